@@ -11,6 +11,7 @@
 
 package uk.co.uwcs.choob;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -19,8 +20,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 import org.jibble.pircbot.IrcException;
@@ -33,7 +34,8 @@ import uk.co.uwcs.choob.support.ChoobProtectionDomain;
 import uk.co.uwcs.choob.support.ConfigReader;
 import uk.co.uwcs.choob.support.DbConnectionBroker;
 import uk.co.uwcs.choob.support.IRCInterface;
-import uk.co.uwcs.choob.support.Interval;
+import uk.co.uwcs.choob.support.IntervalJournal;
+import uk.co.uwcs.choob.support.IntervalScheduler;
 import uk.co.uwcs.choob.support.events.ChannelAction;
 import uk.co.uwcs.choob.support.events.ChannelInfo;
 import uk.co.uwcs.choob.support.events.ChannelInvite;
@@ -75,7 +77,7 @@ final class Choob extends PircBot implements Bot
 	private Modules modules;
 	private IRCInterface irc;
 	private String trigger;
-	private List <Interval> intervalList;
+	private IntervalScheduler intervals;
 	private ChoobWatcherThread watcher;
 
 	private ConfigReader conf;
@@ -105,8 +107,10 @@ final class Choob extends PircBot implements Bot
 		if (messageLimit < 0)
 			messageLimit = 0;
 
-		// Create a shiny synchronised (americans--) list
-		intervalList = new ArrayList<Interval>();
+		// Pending interval callbacks, for the watcher to fire. The journal is
+		// the only copy of some (such as reminders), so it's kept out of tmp.
+		final File journal = new File(conf.getSettingFallback("intervalJournal", "data/intervals.journal")).getAbsoluteFile();
+		intervals = new IntervalScheduler(new IntervalJournal(journal));
 
 		// Create a new database connection broker using the MySQL drivers
 		PrintWriter logFile;
@@ -126,6 +130,7 @@ final class Choob extends PircBot implements Bot
 					+ conf.getSettingFallback("dbServer","localhost")
 					+ "/" + conf.getSettingFallback("database","choob") + "?autoReconnect=true&"
 					+ "autoReconnectForPools=true&initialTimeout=1&"
+					+ "rewriteBatchedStatements=true&"
 					+ "useUnicode=true&characterEncoding=UTF-8&characterSetResults=UTF-8",
 						conf.getSettingFallback("dbUser","choob"),
 						conf.getSettingFallback("dbPass",""), 10, 20, logFile, 60);
@@ -136,6 +141,7 @@ final class Choob extends PircBot implements Bot
 			System.out.println("Unexpected error in DbConnectionBroker setup, exiting.");
 			throw new ExitCodeException(5);
 		}
+		broker.setTraceCheckouts(Boolean.parseBoolean(conf.getSettingFallback("dbTraceCheckouts", "false")));
 
 		// Use sensible charset, ignoring the platform-default.
 		try
@@ -166,7 +172,7 @@ final class Choob extends PircBot implements Bot
 		ctm = new ChoobThreadManager();
 
 		// Initialise our modules.
-		modules = new Modules(broker, intervalList, this, irc, state, ctm);
+		modules = new Modules(broker, intervals, this, irc, state, ctm);
 
 		ctm.setMods(modules);
 
@@ -183,7 +189,7 @@ final class Choob extends PircBot implements Bot
 		irc.grabMods();
 
 		// Create our list of threads
-		watcher = new ChoobWatcherThread(intervalList, irc, modules, ctm);
+		watcher = new ChoobWatcherThread(intervals, irc, modules, ctm);
 
 		watcher.start();
 
@@ -266,6 +272,7 @@ final class Choob extends PircBot implements Bot
 		try
 		{
 			// We need to have an initial set of plugins that ought to be loaded as core.
+			final Map<String,String> corePlugins = new LinkedHashMap<String,String>();
 
 			final Connection dbConnection = broker.getConnection();
 			final PreparedStatement coreplugSmt = dbConnection.prepareStatement("SELECT * FROM Plugins WHERE CorePlugin = 1;");
@@ -273,15 +280,21 @@ final class Choob extends PircBot implements Bot
 			if ( coreplugResults.first() )
 				do
 				{
-					System.out.print("Loading core plugin " + coreplugResults.getString("PluginName") + " from <" + coreplugResults.getString("URL") + ">... ");
-					modules.plugin.addPlugin(coreplugResults.getString("PluginName"), coreplugResults.getString("URL"));
-					System.out.println("done.");
+					corePlugins.put(coreplugResults.getString("PluginName"), coreplugResults.getString("URL"));
 				}
 				while ( coreplugResults.next() );
 
 			coreplugSmt.close();
 
 			broker.freeConnection(dbConnection);
+
+			// Sources are read, compiled and loaded on this many threads at once.
+			final int threads = Integer.parseInt(conf.getSettingFallback("pluginLoadThreads",
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+			System.out.println("Loading core plugins " + corePlugins.keySet() + "... ");
+			modules.plugin.addPlugins(corePlugins, threads);
+			System.out.println("done.");
 		}
 		catch (final Throwable t)
 		{
@@ -298,12 +311,12 @@ final class Choob extends PircBot implements Bot
 		{
 			// I think this is all that's ever really needed...
 			@Override
-			public synchronized boolean implies(final java.security.ProtectionDomain d, final java.security.Permission p)
+			public boolean implies(final java.security.ProtectionDomain d, final java.security.Permission p)
 			{
 				return !(d instanceof ChoobProtectionDomain);
 			}
 			@Override
-			public synchronized java.security.PermissionCollection getPermissions(final java.security.ProtectionDomain d)
+			public java.security.PermissionCollection getPermissions(final java.security.ProtectionDomain d)
 			{
 				final java.security.PermissionCollection p = new java.security.Permissions();
 				if ( !(d instanceof ChoobProtectionDomain) )
@@ -311,7 +324,7 @@ final class Choob extends PircBot implements Bot
 				return p;
 			}
 			@Override
-			public synchronized java.security.PermissionCollection getPermissions(final java.security.CodeSource s)
+			public java.security.PermissionCollection getPermissions(final java.security.CodeSource s)
 			{
 				final java.security.PermissionCollection p = new java.security.Permissions();
 				//if ( !(d instanceof ChoobCodeSource) )
@@ -368,6 +381,14 @@ final class Choob extends PircBot implements Bot
 	@Override
 	protected void onDisconnect()
 	{
+		// Plugins may be holding things they've not yet written out.
+		modules.plugin.destroyPlugins();
+		// Don't lose any lines still waiting to be logged.
+		modules.history.close();
+		// Save rebuilding the text indexes from scratch next time.
+		modules.odb.saveTextIndexes();
+		modules.scrape.saveCache();
+
 		if (exitCode >= 0) {
 			System.out.println("Disconnected as planned.");
 			System.exit(exitCode);
@@ -612,7 +633,7 @@ final class Choob extends PircBot implements Bot
 		spinThreadInternal(ev, false);
 	}
 
-	private synchronized void spinThreadInternal(final Event ev, final boolean securityOK)
+	private void spinThreadInternal(final Event ev, final boolean securityOK)
 	{
 		spinThread(ctm, modules, cdtd, ev, securityOK);
 	}
@@ -626,11 +647,19 @@ final class Choob extends PircBot implements Bot
 		if (ev instanceof ChannelKick)
 			modules.history.addLog(ev);
 
+		// Only what really came from the server describes its state.
+		if (securityOK)
+			modules.ircstate.track(ev);
+
 		if (securityOK && ev instanceof IRCEvent)
 			((IRCEvent)ev).getFlags().put("_securityOK", "true");
 
 		final ChoobTask task = new ChoobDecoderTask(cdtd, ev);
 
-		ctm.queueTask(task);
+		// Decode concurrently, but keep each channel's (or user's) events in order.
+		if (ChoobDecoderTask.isBarrier(ev))
+			cdtd.decoders.executeBarrier(task);
+		else
+			cdtd.decoders.execute(ChoobDecoderTask.orderingKey(ev), task);
 	}
 }
@@ -6,12 +6,14 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
+import uk.co.uwcs.choob.support.events.ChannelEvent;
 import uk.co.uwcs.choob.support.events.CommandEvent;
 import uk.co.uwcs.choob.support.events.Event;
 import uk.co.uwcs.choob.support.events.FilterEvent;
 import uk.co.uwcs.choob.support.events.Message;
 import uk.co.uwcs.choob.support.events.NickChange;
 import uk.co.uwcs.choob.support.events.PrivateMessage;
+import uk.co.uwcs.choob.support.events.QuitEvent;
 import uk.co.uwcs.choob.support.events.UserEvent;
 
 public class ChoobDecoderTask extends ChoobTask
@@ -29,8 +31,35 @@ public class ChoobDecoderTask extends ChoobTask
 		this.data = data;
 	}
 
+	/**
+	 * Get the key under which an event must be decoded in order. Events in
+	 * the same channel keep their order, as do those from the same user
+	 * outside of channels; everything else is ordered with the server.
+	 * Events that affect every channel are decoded as barriers instead; see
+	 * {@link #isBarrier(Event)}.
+	 */
+	static String orderingKey(final Event event)
+	{
+		if (event instanceof ChannelEvent && ((ChannelEvent)event).getChannel() != null)
+			return "#" + ((ChannelEvent)event).getChannel().toLowerCase();
+		if (event instanceof UserEvent && ((UserEvent)event).getNick() != null)
+			return "!" + ((UserEvent)event).getNick().toLowerCase();
+		return "";
+	}
+
+	/**
+	 * Whether an event must be decoded after everything before it, and before
+	 * everything after it, whatever the channel. A quit or nick change ends a
+	 * nick's lines in all of its channels, and by the time we see it the
+	 * state tracker no longer knows which ones they were.
+	 */
+	static boolean isBarrier(final Event event)
+	{
+		return event instanceof QuitEvent || event instanceof NickChange;
+	}
+
 	@Override
-	public synchronized void run()
+	public void run()
 	{
 		final List<ChoobTask> tasks = new LinkedList<ChoobTask>();
 
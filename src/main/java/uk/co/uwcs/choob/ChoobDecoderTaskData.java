@@ -9,7 +9,8 @@ public class ChoobDecoderTaskData {
 	public final ChoobThreadManager ctm;
 	public final Modules modules;
 	public final IRCInterface irc;
-	public Pattern triggerPattern;
+	public final ChoobKeyedExecutor decoders;
+	public volatile Pattern triggerPattern;
 
 	void updatePatterns() {
 		triggerPattern = Pattern.compile("^(?:" + irc.getTriggerRegex() + ")", Pattern.CASE_INSENSITIVE);
@@ -19,6 +20,7 @@ public class ChoobDecoderTaskData {
 		this.modules = mods;
 		this.irc = ircinter;
 		this.ctm = ctm;
+		this.decoders = new ChoobKeyedExecutor(ctm);
 		updatePatterns();
 	}
 }
\ No newline at end of file
@@ -46,12 +46,8 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public ChoobTask commandTask(final String plugin, final String command, final Message ev)
 	{
-		ChoobPluginManager man;
+		final ChoobPluginManager man = state.pluginMap.get(plugin.toLowerCase());
 		ChoobTask task = null;
-		synchronized(state.pluginMap)
-		{
-			man = state.pluginMap.get(plugin.toLowerCase());
-		}
 		if (man != null)
 			task = man.commandTask(plugin, command, ev);
 
@@ -104,11 +100,7 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public ChoobTask intervalTask(final String pluginName, final Object param)
 	{
-		ChoobPluginManager man;
-		synchronized(state.pluginMap)
-		{
-			man = state.pluginMap.get(pluginName.toLowerCase());
-		}
+		final ChoobPluginManager man = state.pluginMap.get(pluginName.toLowerCase());
 		if (man != null)
 			return man.intervalTask(pluginName, param);
 		return null;
@@ -121,15 +113,10 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public List<ChoobTask> eventTasks(final Event ev)
 	{
-		ChoobPluginManager[] mans = new ChoobPluginManager[0];
-		synchronized(state.pluginManagers)
-		{
-			mans = state.pluginManagers.toArray(mans);
-		}
 		final List<ChoobTask> tasks = new LinkedList<ChoobTask>();
-		for(int i=0; i<mans.length; i++)
-			if (!(mans[i] instanceof ChoobDistributingPluginManager))
-				tasks.addAll(mans[i].eventTasks(ev));
+		for (final ChoobPluginManager man : state.pluginManagers)
+			if (!(man instanceof ChoobDistributingPluginManager))
+				tasks.addAll(man.eventTasks(ev));
 		return tasks;
 	}
 
@@ -140,15 +127,10 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public List<ChoobTask> filterTasks(final Message ev)
 	{
-		ChoobPluginManager[] mans = new ChoobPluginManager[0];
-		synchronized(state.pluginManagers)
-		{
-			mans = state.pluginManagers.toArray(mans);
-		}
 		final List<ChoobTask> tasks = new LinkedList<ChoobTask>();
-		for(int i=0; i<mans.length; i++)
-			if (!(mans[i] instanceof ChoobDistributingPluginManager))
-				tasks.addAll(mans[i].filterTasks(ev));
+		for (final ChoobPluginManager man : state.pluginManagers)
+			if (!(man instanceof ChoobDistributingPluginManager))
+				tasks.addAll(man.filterTasks(ev));
 		return tasks;
 	}
 
@@ -160,11 +142,7 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public Object doAPI(final String pluginName, final String APIName, final Object... params) throws ChoobNoSuchCallException
 	{
-		ChoobPluginManager man;
-		synchronized(state.pluginMap)
-		{
-			man = state.pluginMap.get(pluginName.toLowerCase());
-		}
+		final ChoobPluginManager man = state.pluginMap.get(pluginName.toLowerCase());
 		if (man != null)
 			return man.doAPI(pluginName, APIName, params);
 		throw new ChoobNoSuchPluginException(pluginName, "api: " + APIName);
@@ -179,11 +157,7 @@ public final class ChoobDistributingPluginManager extends ChoobPluginManager
 	@Override
 	public Object doGeneric(final String pluginName, final String prefix, final String genericName, final Object... params) throws ChoobNoSuchCallException
 	{
-		ChoobPluginManager man;
-		synchronized(state.pluginMap)
-		{
-			man = state.pluginMap.get(pluginName.toLowerCase());
-		}
+		final ChoobPluginManager man = state.pluginMap.get(pluginName.toLowerCase());
 		if (man != null)
 			return man.doGeneric(pluginName, prefix, genericName, params);
 		throw new ChoobNoSuchPluginException(pluginName, "generic: " + prefix + ":" + genericName);
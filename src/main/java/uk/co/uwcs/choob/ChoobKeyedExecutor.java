@@ -0,0 +1,255 @@
+package uk.co.uwcs.choob;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Runs system tasks on the thread manager such that tasks sharing a key run
+ * one after another, in the order they were submitted, while tasks with
+ * different keys run concurrently. A barrier task runs after everything
+ * submitted before it, whatever the key, and before anything submitted after.
+ */
+public final class ChoobKeyedExecutor
+{
+	// How many tasks one key may run before giving its thread back to the pool.
+	private static final int MAX_TASKS_PER_TURN = 16;
+
+	// Queued on every running key when a barrier arrives; always a key's last task.
+	private static final ChoobTask BARRIER_MARK = new ChoobTask(null, "ChoobKeyedExecutor:barrier");
+
+	private final ChoobThreadManager ctm;
+	private final Map<String,KeyQueue> queues; // Guarded by itself.
+	private Barrier pending; // Guarded by queues.
+
+	private final class KeyQueue extends ChoobTask
+	{
+		final String key;
+		final Queue<ChoobTask> tasks = new LinkedList<ChoobTask>();
+
+		KeyQueue(final String key)
+		{
+			super(null, "ChoobKeyedExecutor:" + key);
+			this.key = key;
+		}
+
+		@Override
+		public void run()
+		{
+			for (int i = 0; i < MAX_TASKS_PER_TURN; i++)
+			{
+				final ChoobTask task;
+				boolean last = false;
+				synchronized(queues)
+				{
+					task = tasks.poll();
+					if (task == null || task == BARRIER_MARK)
+					{
+						// Nothing left; the next submission starts a new run.
+						queues.remove(key);
+						if (task == BARRIER_MARK)
+							last = --pending.waiting == 0;
+					}
+				}
+
+				if (task == BARRIER_MARK)
+				{
+					if (last)
+						runBarrier();
+					return;
+				}
+				if (task == null)
+					return;
+
+				runTask(task);
+			}
+
+			// Still busy, but let other keys have a go first.
+			try
+			{
+				ctm.queueTask(this);
+			}
+			catch (final RuntimeException e)
+			{
+				System.err.println("Couldn't requeue " + getSystemFunction() + ": " + e);
+				abandon(this);
+			}
+		}
+	}
+
+	private static final class Barrier
+	{
+		final ChoobTask task;
+		// Everything submitted while this was pending, in order; a null key is a barrier.
+		final List<String> heldKeys = new ArrayList<String>();
+		final List<ChoobTask> heldTasks = new ArrayList<ChoobTask>();
+		int waiting; // Keys yet to reach the barrier.
+
+		Barrier(final ChoobTask task)
+		{
+			this.task = task;
+		}
+	}
+
+	ChoobKeyedExecutor(final ChoobThreadManager ctm)
+	{
+		this.ctm = ctm;
+		this.queues = new HashMap<String,KeyQueue>();
+	}
+
+	/**
+	 * Queue a task to run after every task previously queued with the same key.
+	 * @param key The ordering key, e.g. a channel name.
+	 * @param task The (system) task to run.
+	 */
+	public void execute(final String key, final ChoobTask task)
+	{
+		final List<ChoobTask> starts = new ArrayList<ChoobTask>(1);
+		synchronized(queues)
+		{
+			add(key, task, starts);
+		}
+		start(starts, true);
+	}
+
+	/**
+	 * Queue a task to run after every task previously queued, whatever its
+	 * key, and before any task queued after it.
+	 * @param task The (system) task to run.
+	 */
+	public void executeBarrier(final ChoobTask task)
+	{
+		final List<ChoobTask> starts = new ArrayList<ChoobTask>(1);
+		synchronized(queues)
+		{
+			add(null, task, starts);
+		}
+		start(starts, true);
+	}
+
+	// Must hold queues. Adds task under key (null for a barrier), noting any run that needs starting.
+	private void add(final String key, final ChoobTask task, final List<ChoobTask> starts)
+	{
+		if (pending != null)
+		{
+			pending.heldKeys.add(key);
+			pending.heldTasks.add(task);
+			return;
+		}
+
+		if (key == null)
+		{
+			pending = new Barrier(task);
+			for (final KeyQueue queue : queues.values())
+				queue.tasks.add(BARRIER_MARK);
+			pending.waiting = queues.size();
+			if (pending.waiting == 0)
+			{
+				starts.add(new ChoobTask(null, "ChoobKeyedExecutor:barrier")
+				{
+					@Override
+					public void run()
+					{
+						runBarrier();
+					}
+				});
+			}
+			return;
+		}
+
+		KeyQueue queue = queues.get(key);
+		if (queue == null)
+		{
+			queue = new KeyQueue(key);
+			queues.put(key, queue);
+			starts.add(queue);
+		}
+		queue.tasks.add(task);
+	}
+
+	private void start(final List<ChoobTask> starts, final boolean rethrow)
+	{
+		for (final ChoobTask start : starts)
+		{
+			try
+			{
+				ctm.queueTask(start);
+			}
+			catch (final RuntimeException e)
+			{
+				if (!(start instanceof KeyQueue))
+				{
+					// Nothing else is running, so the barrier may as well run here.
+					runBarrier();
+					continue;
+				}
+
+				// Don't leave the key blocked behind a run that never happens.
+				abandon((KeyQueue)start);
+				if (rethrow)
+					throw e;
+				System.err.println("Couldn't queue " + start.getSystemFunction() + ": " + e);
+			}
+		}
+	}
+
+	// Runs the pending barrier, then lets through everything held behind it.
+	private void runBarrier()
+	{
+		final Barrier barrier;
+		synchronized(queues)
+		{
+			barrier = pending;
+		}
+
+		runTask(barrier.task);
+
+		final List<ChoobTask> starts = new ArrayList<ChoobTask>();
+		synchronized(queues)
+		{
+			pending = null;
+			for (int i = 0; i < barrier.heldTasks.size(); i++)
+				add(barrier.heldKeys.get(i), barrier.heldTasks.get(i), starts);
+		}
+		start(starts, false);
+	}
+
+	// The thread manager won't run this key's tasks; drop them rather than block the key for good.
+	private void abandon(final KeyQueue queue)
+	{
+		int dropped;
+		boolean last = false;
+		synchronized(queues)
+		{
+			queues.remove(queue.key);
+			dropped = queue.tasks.size();
+			if (queue.tasks.remove(BARRIER_MARK))
+			{
+				dropped--;
+				last = --pending.waiting == 0;
+			}
+			queue.tasks.clear();
+		}
+
+		if (dropped > 0)
+			System.err.println("Dropped " + dropped + " task(s) queued for " + queue.getSystemFunction());
+		if (last)
+			runBarrier();
+	}
+
+	private static void runTask(final ChoobTask task)
+	{
+		try
+		{
+			task.run();
+		}
+		catch (final Throwable e)
+		{
+			System.err.println("Exception in " + task.getSystemFunction() + ": " + e);
+			e.printStackTrace();
+		}
+	}
+}
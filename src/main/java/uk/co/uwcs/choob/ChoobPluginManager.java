@@ -72,8 +72,11 @@ public abstract class ChoobPluginManager
 		AccessController.checkPermission(new ChoobPermission("plugin.load." + pluginName.toLowerCase()));
 
 		// Make sure we're ready to add commands.
-		if (state.commands.get(pluginName.toLowerCase()) == null)
-			state.commands.put(pluginName.toLowerCase(), new ArrayList<String>());
+		synchronized(state.commands)
+		{
+			if (state.commands.get(pluginName.toLowerCase()) == null)
+				state.commands.put(pluginName.toLowerCase(), new ArrayList<String>());
+		}
 
 		createPlugin(pluginName, fromLocation);
 
@@ -85,8 +88,8 @@ public abstract class ChoobPluginManager
 		ChoobPluginManager man;
 		synchronized(state.pluginMap)
 		{
-			man = state.pluginMap.remove(pluginName.toLowerCase());
-			state.pluginMap.put(pluginName.toLowerCase(), this);
+			// One put, so lookups never see the plugin missing mid-reload.
+			man = state.pluginMap.put(pluginName.toLowerCase(), this);
 		}
 		synchronized(state.pluginManagers)
 		{
@@ -6,9 +6,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import uk.co.uwcs.choob.support.IRCInterface;
 
@@ -21,8 +22,9 @@ public class ChoobPluginManagerState {
 
 	public ChoobPluginManagerState(final IRCInterface ircinter) {
 		irc = ircinter;
-		pluginManagers = new LinkedList<ChoobPluginManager>();
-		pluginMap = new HashMap<String,ChoobPluginManager>();
+		// Read on every event and call, but only written on (un)load.
+		pluginManagers = new CopyOnWriteArrayList<ChoobPluginManager>();
+		pluginMap = new ConcurrentHashMap<String,ChoobPluginManager>();
 		commands = new HashMap<String,List<String>>();
 		File transFile = new File("share/en_phonet.dat");
 		if (!transFile.exists()) {
@@ -73,6 +73,21 @@ public class ChoobThread extends Thread
 		return rv;
 	}
 
+	/**
+	 * Get the plugin the current thread is running, if any. Only this
+	 * thread's state is read, so no lock is shared with other threads.
+	 */
+	public static String getCurrentPluginName()
+	{
+		final ChoobThread thread = runningThread();
+		if (thread == null) return null;
+
+		synchronized(thread)
+		{
+			return thread.pluginName;
+		}
+	}
+
 	public static synchronized String getPluginName(final int i)
 	{
 		final ChoobThread thread = runningThread();
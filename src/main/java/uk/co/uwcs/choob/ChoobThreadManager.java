@@ -1,15 +1,15 @@
 package uk.co.uwcs.choob;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.ChoobError;
@@ -22,27 +22,57 @@ import uk.co.uwcs.choob.support.ChoobPermission;
 
 public final class ChoobThreadManager extends ThreadPoolExecutor {
 	private Modules mods;
-	private final long pwoSetupTime;
-	private final Map<String,PluginWaitObject> waitObjects;
-	//private Map<ChoobTask,String> runningTasks;
-	private final Map<String,BlockingQueue<ChoobTask>> queues;
+	private final ConcurrentMap<String,PluginSlots> slots;
+
+	// When Where spams it's WHO requests, it needs to have a reply line for
+	// every user in the channels queued.
+	private static final int MAX_QUEUED_TASKS = 1000;
+
+	/**
+	 * Tracks how many tasks a plugin has running, and those waiting for one
+	 * to finish. The plugin's limit is looked up on every attempt to start a
+	 * task, so a change applies straight away.
+	 */
+	private static final class PluginSlots
+	{
+		final AtomicInteger running = new AtomicInteger();
+		final Queue<ChoobTask> queue = new ConcurrentLinkedQueue<ChoobTask>();
+		final AtomicInteger queued = new AtomicInteger();
 
-	// Time during which the PluginWaitObjects are expired immediately. After
-	// this time, they only expire after PLUGIN_WAIT_OBJECT_EXIRES time.
-	private static final long PLUGIN_WAIT_OBJECT_SETUP_TIME =  1 * 60 * 1000; //  1 minute
-	private static final long PLUGIN_WAIT_OBJECT_EXIRES     = 15 * 60 * 1000; // 15 minutes
+		boolean tryAcquire(final int limit)
+		{
+			while (true)
+			{
+				final int current = running.get();
+				if (current >= limit)
+					return false;
+				if (running.compareAndSet(current, current + 1))
+					return true;
+			}
+		}
 
-	private final class PluginWaitObject
-	{
-		public int limit;
-		public Semaphore sem;
-		public long expires;
+		void release()
+		{
+			running.decrementAndGet();
+		}
 
-		public PluginWaitObject(final int limit)
+		boolean offer(final ChoobTask task)
 		{
-			this.limit = limit;
-			this.sem = new Semaphore(limit);
-			this.expires = System.currentTimeMillis() + PLUGIN_WAIT_OBJECT_EXIRES;
+			if (queued.incrementAndGet() > MAX_QUEUED_TASKS)
+			{
+				queued.decrementAndGet();
+				return false;
+			}
+			queue.add(task);
+			return true;
+		}
+
+		ChoobTask poll()
+		{
+			final ChoobTask task = queue.poll();
+			if (task != null)
+				queued.decrementAndGet();
+			return task;
 		}
 	}
 
@@ -56,10 +86,7 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 				return thread;
 			}
 		});
-		this.pwoSetupTime = System.currentTimeMillis() + PLUGIN_WAIT_OBJECT_SETUP_TIME;
-		this.waitObjects = new HashMap<String,PluginWaitObject>();
-		//this.runningTasks = new HashMap<ChoobTask,String>();
-		this.queues = new HashMap<String,BlockingQueue<ChoobTask>>();
+		this.slots = new ConcurrentHashMap<String,PluginSlots>();
 	}
 
 	public void setMods(Modules mods) {
@@ -76,10 +103,6 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 		final ChoobTask task = (ChoobTask) runTask;
 		final String pluginName = task.getPluginName();
 
-		//synchronized(runningTasks) {
-		//	runningTasks.remove(task);
-		//}
-
 		// Was it a system task?
 		if (pluginName == null)
 			return;
@@ -87,30 +110,20 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 		ChoobThread.clearPluginsStatic(); // Make sure stack is clean
 
 		// Before we finish up, do we have more for this plugin?
-		final BlockingQueue<ChoobTask> queue = getQueue(pluginName);
-		final ChoobTask next = queue.poll();
+		final PluginSlots pluginSlots = getSlots(pluginName);
+		final ChoobTask next = pluginSlots.poll();
 		if (next != null)
 		{
-			// If so, just queue that. Don't relinquish the semaphore.
+			// If so, just queue that. Don't relinquish the slot.
 			execute(next);
 		}
 		else
 		{
-			synchronized(waitObjects)
-			{
-				// If not, let someone else have a chance.
-				final PluginWaitObject waitObject = getWaitObject(pluginName);
-
-				waitObject.sem.release();
-
-				// Remove the wait object, if we're not using it.
-				if (waitObject.sem.availablePermits() == waitObject.limit &&
-					(waitObject.expires < System.currentTimeMillis() ||
-					 this.pwoSetupTime > System.currentTimeMillis()))
-				{
-					waitObjects.remove(pluginName.toLowerCase());
-				}
-			}
+			// If not, let someone else have a chance.
+			pluginSlots.release();
+
+			// Something may have been queued since we looked.
+			runQueued(pluginName, pluginSlots);
 		}
 	}
 
@@ -120,11 +133,6 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 		// Queue the plugin up onto the stack
 		final String pluginName = ((ChoobTask)task).getPluginName();
 
-		//synchronized(runningTasks) {
-		//	String sf = ((ChoobTask)task).getSystemFunction();
-		//	runningTasks.put((ChoobTask)task, (pluginName == null ? "S:" + sf : "P:" + pluginName + (sf != null ? ":S:" + sf : "")));
-		//}
-
 		// System task?
 		if (pluginName == null)
 			return;
@@ -132,34 +140,33 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 		((ChoobThread)thread).pushPlugin(pluginName);
 	}
 
-	private PluginWaitObject getWaitObject(final String pluginName)
+	private PluginSlots getSlots(final String pluginName)
 	{
-		// This needs synchronization.
-		synchronized(waitObjects)
-		{
-			PluginWaitObject ret = waitObjects.get(pluginName.toLowerCase());
-			if (ret == null)
-			{
-				final int limit = mods.plugin.getConcurrencyLimit(pluginName);
-				ret = new PluginWaitObject(limit);
-				waitObjects.put(pluginName.toLowerCase(), ret);
-			}
+		final String key = pluginName.toLowerCase();
+		final PluginSlots ret = slots.get(key);
+		if (ret != null)
 			return ret;
-		}
+
+		final PluginSlots created = new PluginSlots();
+		final PluginSlots raced = slots.putIfAbsent(key, created);
+		return raced != null ? raced : created;
 	}
 
-	// This needs synchronization.
-	private synchronized BlockingQueue<ChoobTask> getQueue(final String pluginName)
+	/**
+	 * Start as many of the plugin's queued tasks as its limit allows.
+	 */
+	private void runQueued(final String pluginName, final PluginSlots pluginSlots)
 	{
-		BlockingQueue<ChoobTask> ret = queues.get(pluginName.toLowerCase());
-		if (ret == null)
+		while (!pluginSlots.queue.isEmpty() && pluginSlots.tryAcquire(mods.plugin.getConcurrencyLimit(pluginName)))
 		{
-			// When Where spams it's WHO requests, it needs to have a reply line for every user
-			// in the channels queued.
-			ret = new ArrayBlockingQueue<ChoobTask>(1000);
-			queues.put(pluginName.toLowerCase(), ret);
+			final ChoobTask next = pluginSlots.poll();
+			if (next == null)
+			{
+				pluginSlots.release();
+				continue;
+			}
+			execute(next);
 		}
-		return ret;
 	}
 
 	public void queueTask(final ChoobTask task) throws RejectedExecutionException
@@ -170,14 +177,6 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 
 	private void queue(final ChoobTask task) throws RejectedExecutionException
 	{
-		//synchronized(runningTasks) {
-		//	System.out.print("ChoobThreadManager.beforeExecute: pool usage = " + getActiveCount() + "/" + getPoolSize());
-		//	for (String n : runningTasks.values()) {
-		//		System.out.print(", " + n);
-		//	}
-		//	System.out.println();
-		//}
-
 		final String pluginName = task.getPluginName();
 		if (pluginName == null)
 		{
@@ -186,25 +185,20 @@ public final class ChoobThreadManager extends ThreadPoolExecutor {
 			return;
 		}
 
-		boolean acquireOK = false;
-		synchronized(waitObjects)
-		{
-			final PluginWaitObject waitObject = getWaitObject(pluginName);
-			acquireOK = waitObject.sem.tryAcquire();
-		}
-		if (acquireOK)
+		final PluginSlots pluginSlots = getSlots(pluginName);
+		if (pluginSlots.tryAcquire(mods.plugin.getConcurrencyLimit(pluginName)))
 		{
 			execute(task);
 		}
 		else
 		{
-			// Couldn't get the semaphore lock...
-			final BlockingQueue<ChoobTask> queue = getQueue(pluginName);
-
-			// Attempt to queue it for later.
-			if (!queue.offer(task))
+			// All of the plugin's slots are in use; attempt to queue it for later.
+			if (!pluginSlots.offer(task))
 				// And the queue is full. Time to pop.
 				throw new RejectedExecutionException("Plugin " + pluginName + " has too many queued tasks!");
+
+			// A slot may have been freed while we were queueing.
+			runQueued(pluginName, pluginSlots);
 		}
 	}
 }
@@ -6,30 +6,35 @@
 
 package uk.co.uwcs.choob;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.IRCInterface;
 import uk.co.uwcs.choob.support.Interval;
+import uk.co.uwcs.choob.support.IntervalScheduler;
 
 /**
- * Continually monitors the list of active callbacks, executing them as required.
+ * Waits for each interval callback to come due, and queues it to run.
  */
 public final class ChoobWatcherThread extends Thread
 {
-	private final List<Interval> intervalList;
-	private boolean running;
+	// How long to wait before trying an interval again, if its plugin is too busy.
+	private static final long RETRY_DELAY = 1000;
+
+	// Durable intervals put back after a restart may come due before their
+	// plugin is loaded; how long to keep trying, and how often.
+	private static final long UNLOADED_RETRY_DELAY = 10000;
+	private static final int UNLOADED_RETRIES = 60;
+
+	private final IntervalScheduler intervals;
+	private volatile boolean running;
 	private final Modules mods;
 	private final ChoobThreadManager ctm;
 
 	/** Creates a new instance of ChoobWatcherThread */
-	ChoobWatcherThread(final List<Interval> intervalList, final IRCInterface irc,
+	ChoobWatcherThread(final IntervalScheduler intervals, final IRCInterface irc,
 			final Modules mods, final ChoobThreadManager ctm) {
-		this.intervalList = intervalList;
+		this.intervals = intervals;
 		this.mods = mods;
 		this.ctm = ctm;
 	}
@@ -41,75 +46,67 @@ public final class ChoobWatcherThread extends Thread
 
 		do
 		{
-			final long timeNow = new Date().getTime();
-			long next = timeNow + 1000;
-			List<Interval> requeuedIntervals;
-
-			synchronized( intervalList )
+			final Interval tempInterval;
+			try
 			{
-				Iterator<Interval> tempIt = intervalList.iterator();
-				requeuedIntervals = new ArrayList<Interval>();
+				tempInterval = intervals.take();
+			}
+			catch( final InterruptedException e )
+			{
+				// Well shucks Batman, I guess that _was_ a gay bar.
+				continue;
+			}
 
-				while( tempIt.hasNext() )
+			final ChoobTask t = mods.plugin.doInterval(tempInterval.getPlugin(), tempInterval.getParameter());
+			if (t != null)
+			{
+				try
 				{
-					final Interval tempInterval = tempIt.next();
-
-					if (tempInterval.getTrigger() <= timeNow)
-					{
-						tempIt.remove();
-						final ChoobTask t = mods.plugin.doInterval(tempInterval.getPlugin(), tempInterval.getParameter());
-						if (t != null)
-						{
-							try
-							{
-								ctm.queueTask(t);
-							}
-							catch (final RejectedExecutionException e)
-							{
-								// Plugin is at concurreny limit. Requeue task for later.
-								tempInterval.setTrigger(tempInterval.getTrigger() + 1000);
-								requeuedIntervals.add(tempInterval);
-							}
-							catch (final Exception e)
-							{
-								System.err.println("Plugin " + tempInterval.getPlugin() + " got exception queuing task.");
-								System.err.println(e);
-								e.printStackTrace();
-							}
-						}
-						else
-						{
-							System.err.println("Plugin manager for plugin " + tempInterval.getPlugin() + " returned a null doInterval ChoobTask.");
-						}
-					}
-					else if (next > tempInterval.getTrigger())
-						next = tempInterval.getTrigger();
+					ctm.queueTask(whenDone(t, tempInterval));
 				}
-
-				// Re-queue any items here.
-				// We need to kill the iterator before this will work.
-				tempIt = requeuedIntervals.iterator();
-				while (tempIt.hasNext())
+				catch (final RejectedExecutionException e)
+				{
+					// Plugin is at concurreny limit. Requeue task for later.
+					tempInterval.setTrigger(System.currentTimeMillis() + RETRY_DELAY);
+					intervals.retry(tempInterval);
+				}
+				catch (final Exception e)
 				{
-					final Interval tempInterval = tempIt.next();
-					intervalList.add(tempInterval);
+					System.err.println("Plugin " + tempInterval.getPlugin() + " got exception queuing task.");
+					System.err.println(e);
+					e.printStackTrace();
+					intervals.done(tempInterval);
 				}
 			}
+			else if (tempInterval.isDurable() && tempInterval.getAttempts() < UNLOADED_RETRIES)
+			{
+				tempInterval.setTrigger(System.currentTimeMillis() + UNLOADED_RETRY_DELAY);
+				intervals.retry(tempInterval);
+			}
+			else
+			{
+				System.err.println("Plugin manager for plugin " + tempInterval.getPlugin() + " returned a null doInterval ChoobTask.");
+				intervals.done(tempInterval);
+			}
+		}
+		while( running );
+	}
 
-			final long delay = next - timeNow;
-
-			synchronized( this )
+	// Only once the plugin's been called is a durable interval finished with.
+	private ChoobTask whenDone(final ChoobTask task, final Interval interval)
+	{
+		return new ChoobTask(task.getPluginName(), task.getSystemFunction()) {
+			@Override public void run()
 			{
 				try
 				{
-					wait(delay);
+					task.run();
 				}
-				catch( final InterruptedException e )
+				finally
 				{
-					// Well shucks Batman, I guess that _was_ a gay bar.
+					intervals.done(interval);
 				}
 			}
-		}
-		while( running );
+		};
 	}
 }
@@ -7,6 +7,7 @@
 package uk.co.uwcs.choob.modules;
 
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.sql.Connection;
@@ -19,6 +20,8 @@ import java.util.List;
 import uk.co.uwcs.choob.support.ChoobError;
 import uk.co.uwcs.choob.support.ChoobPermission;
 import uk.co.uwcs.choob.support.DbConnectionBroker;
+import uk.co.uwcs.choob.support.HistoryBuffer;
+import uk.co.uwcs.choob.support.HistoryWriter;
 import uk.co.uwcs.choob.support.events.ChannelAction;
 import uk.co.uwcs.choob.support.events.ChannelEvent;
 import uk.co.uwcs.choob.support.events.ChannelKick;
@@ -35,12 +38,43 @@ import uk.co.uwcs.choob.support.events.PrivateMessage;
  */
 public final class HistoryModule
 {
+	// Lines waiting to be written, and how they're batched up.
+	private static final int WRITE_BUFFER_SIZE = 10000;
+	private static final int WRITE_BATCH_SIZE = 100;
+	private static final long WRITE_FLUSH_INTERVAL = 1000;
+
+	// Lines kept in memory for each channel.
+	private static final int RECENT_LINES = 500;
+
+	// How far back getLastMessages looks.
+	private static final long LAST_MESSAGES_PERIOD = 60*60*12*1000;
+
 	private final DbConnectionBroker dbBroker;
+	private final HistoryWriter writer;
+	private final HistoryBuffer recent;
 
 	/** Creates a new instance of LoggerModule */
 	HistoryModule(final DbConnectionBroker dbBroker)
 	{
 		this.dbBroker = dbBroker;
+		this.writer = new HistoryWriter(dbBroker, WRITE_BUFFER_SIZE, WRITE_BATCH_SIZE, WRITE_FLUSH_INTERVAL);
+		this.recent = new HistoryBuffer(RECENT_LINES);
+	}
+
+	/**
+	 * @return The number of history requests answered from memory.
+	 */
+	public long getRecentHits()
+	{
+		return recent.getHits();
+	}
+
+	/**
+	 * @return The number of history requests that had to go to the database.
+	 */
+	public long getRecentMisses()
+	{
+		return recent.getMisses();
 	}
 
 	public void addLog (final Message m)
@@ -49,9 +83,9 @@ public final class HistoryModule
 	}
 
 	/**
-	 * Logs a line from IRC to the database.
+	 * Logs a line from IRC to the database. The line is queued, and written
+	 * out in a batch shortly afterwards; recent lines are also kept in memory.
 	 * @param ev {@link Event} object representing the line from IRC.
-	 * @throws Exception Thrown from the database access, potential SQL or IO exceptions.
 	 */
 
 	public void addLog( final Event ev )
@@ -61,71 +95,69 @@ public final class HistoryModule
 
 		AccessController.checkPermission(new ChoobPermission("history.add"));
 
-		Connection dbConnection = null;
-
-		PreparedStatement insertLine = null;
-
-		try
+		if (ev instanceof Message)
 		{
-			dbConnection = dbBroker.getConnection();
+			final Message mes = (Message)ev;
 
-			insertLine = dbConnection.prepareStatement("INSERT INTO History VALUES(NULL,?,?,?,?,?,?,?)");
-
-			if (ev instanceof Message)
-			{
-				final Message mes = (Message)ev;
-				insertLine.setString(1, mes.getClass().getName());
-				insertLine.setString(2, mes.getNick());
-				insertLine.setString(3, mes.getLogin()+"@"+mes.getHostname());
-
-				String chan = null;
-				if (mes instanceof ChannelEvent)
-					chan = ((ChannelEvent)mes).getChannel();
-
-				insertLine.setString(4, chan);
-				insertLine.setString(5, mes.getMessage());
-				insertLine.setLong(6, mes.getMillis());
-				insertLine.setInt(7, mes.getRandom());
-			}
-			else if (ev instanceof ChannelKick)
-			{
-				final ChannelKick mes = (ChannelKick)ev;
-				insertLine.setString(1, mes.getClass().getName());
-				insertLine.setString(2, mes.getNick());
-				insertLine.setString(3, mes.getLogin()+"@"+mes.getHostname());
-				insertLine.setString(4, mes.getChannel());
-				insertLine.setString(5, mes.getMessage());
-				insertLine.setLong(6, mes.getMillis());
-				insertLine.setInt(7, mes.getRandom());
-			}
-
-			insertLine.executeUpdate();
+			String chan = null;
+			if (mes instanceof ChannelEvent)
+				chan = ((ChannelEvent)mes).getChannel();
 
+			log(new HistoryWriter.Row(mes.getClass().getName(), mes.getNick(),
+					mes.getLogin()+"@"+mes.getHostname(), chan, mes.getMessage(),
+					mes.getMillis(), mes.getRandom()));
 		}
-		catch( final SQLException e )
+		else if (ev instanceof ChannelKick)
 		{
-			System.err.println("Could not write history line to database: " + e);
-			// I think this exception doesn't need to be propogated... --bucko
-		}
-		finally
-		{
-			try
-			{
-				if (insertLine != null)
-					insertLine.close();
-			}
-			catch (final SQLException e)
-			{
-				System.err.println("Could not close SQL connection: " + e);
-			}
-			finally
-			{
-				dbBroker.freeConnection( dbConnection );
-			}
+			final ChannelKick mes = (ChannelKick)ev;
+			log(new HistoryWriter.Row(mes.getClass().getName(), mes.getNick(),
+					mes.getLogin()+"@"+mes.getHostname(), mes.getChannel(), mes.getMessage(),
+					mes.getMillis(), mes.getRandom()));
 		}
 	}
 
+	private void log(final HistoryWriter.Row row)
+	{
+		if (writer.add(row))
+			recent.add(row);
+	}
 
+	/**
+	 * Rebuild a message from a line held in memory.
+	 * @return The message, or null if the line wasn't a message.
+	 */
+	private Message toMessage(final HistoryWriter.Row row)
+	{
+		final String type = row.getType();
+		final int pos = row.getHostmask().indexOf('@');
+		final String login = row.getHostmask().substring(0,pos);
+		final String host = row.getHostmask().substring(pos+1);
+		final String channel = row.getChannel();
+
+		// Need privs to create events...
+		return AccessController.doPrivileged( new PrivilegedAction<Message>() {
+			@Override public Message run() {
+				if (type.equals(ChannelAction.class.getName()))
+					return new ChannelAction("onAction", row.getTime(), row.getRandom(), row.getText(), row.getNick(), login, host, channel, channel);
+				else if (type.equals(ChannelMessage.class.getName()))
+					return new ChannelMessage("onMessage", row.getTime(), row.getRandom(), row.getText(), row.getNick(), login, host, channel, channel);
+				else if (type.equals(PrivateMessage.class.getName()))
+					return new PrivateMessage("onPrivateMessage", row.getTime(), row.getRandom(), row.getText(), row.getNick(), login, host, channel);
+				else if (type.equals(PrivateAction.class.getName()))
+					return new PrivateAction("onPrivateAction", row.getTime(), row.getRandom(), row.getText(), row.getNick(), login, host, channel);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes out any lines still waiting to be logged, and stops logging.
+	 */
+	public void close()
+	{
+		AccessController.checkPermission(new ChoobPermission("history.close"));
+		writer.close();
+	}
 
 	/**
 	 * Get the ID of a message object.
@@ -134,6 +166,20 @@ public final class HistoryModule
 	 */
 	public int getMessageID( final Message mes )
 	{
+		final HistoryWriter.Row row = recent.find(mes.getClass().getName(), mes.getNick(),
+				mes.getLogin()+"@"+mes.getHostname(), mes instanceof ChannelEvent ? ((ChannelEvent)mes).getChannel() : null,
+				mes.getMillis(), mes.getRandom());
+		if (row != null)
+		{
+			// Lines only get an ID once they're written.
+			if (row.getID() == -1)
+				writer.flush();
+			if (row.getID() != -1)
+				return row.getID();
+		}
+
+		writer.flush();
+
 		Connection dbCon = null;
 		PreparedStatement stat = null;
 		try
@@ -192,6 +238,15 @@ public final class HistoryModule
 	 */
 	public Message getMessage( final int messageID )
 	{
+		final HistoryWriter.Row row = recent.find(messageID);
+		if (row != null)
+		{
+			final Message mes = toMessage(row);
+			if (mes == null)
+				System.err.println("Invalid event type: " + row.getType());
+			return mes;
+		}
+
 		System.out.println("getMessage");
 		Connection dbCon = null;
 		PreparedStatement stat = null;
@@ -340,6 +395,23 @@ public final class HistoryModule
 	 */
 	public List<Message> getLastMessages( final String channel, final IRCRootEvent cause, final int count )
 	{
+		final long before = cause == null ? System.currentTimeMillis() : cause.getMillis();
+		final List<HistoryWriter.Row> rows = channel == null ? null : recent.getLastRows(channel, before, before - LAST_MESSAGES_PERIOD, count);
+		if (rows != null)
+		{
+			final List<Message> results = new ArrayList<Message>(rows.size());
+			for (final HistoryWriter.Row row : rows)
+			{
+				// Only channel messages, as below.
+				if (!row.getType().equals(ChannelAction.class.getName()) && !row.getType().equals(ChannelMessage.class.getName()))
+					continue;
+				results.add(toMessage(row));
+			}
+			return results;
+		}
+
+		writer.flush();
+
 		Connection dbCon = null;
 		PreparedStatement stat = null;
 		try
@@ -3,18 +3,36 @@ package uk.co.uwcs.choob.modules;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpVersion;
@@ -27,11 +45,14 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -40,9 +61,14 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 
+import uk.co.uwcs.choob.ChoobTask;
+import uk.co.uwcs.choob.ChoobThread;
+import uk.co.uwcs.choob.ChoobThreadManager;
+
 /**
  *
  * Totally taken from
@@ -53,6 +79,12 @@ import org.apache.http.protocol.HttpContext;
  *
  * Apache HttpClient helper class for performing HTTP requests.
  *
+ * Requests share a pool of connections, and run on the module's own threads,
+ * at most {@link #MAX_PER_HOST} to each host at once; the rest wait their
+ * turn, so one slow site only holds up requests to itself. The perform
+ * methods wait for their result. The async versions return straight away,
+ * and pass the result to a callback run as a task of the calling plugin.
+ *
  */
 public class HttpModule {
 
@@ -67,6 +99,14 @@ public class HttpModule {
 	public static final String HTTP_RESPONSE = "HTTP_RESPONSE";
 	public static final String HTTP_RESPONSE_ERROR = "HTTP_RESPONSE_ERROR";
 
+	/** Most requests in progress at once, over all hosts. */
+	public static final int MAX_TOTAL = 20;
+	/** Most requests in progress at once to any one host. */
+	public static final int MAX_PER_HOST = 4;
+
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+
 	// Establish client once, as static field with static setup block.
 	// (This is a best practice in HttpClient docs - but will leave reference
 	// until *process* stopped on Android.)
@@ -76,12 +116,16 @@ public class HttpModule {
 		params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
 		params.setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET, HTTP.UTF_8);
 		params.setParameter(CoreProtocolPNames.USER_AGENT, "Apache-HttpClient/Android");
-		params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 15000);
+		params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, CONNECT_TIMEOUT);
+		params.setParameter(CoreConnectionPNames.SO_TIMEOUT, READ_TIMEOUT);
 		params.setParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+		params.setParameter(ClientPNames.CONN_MANAGER_TIMEOUT, (long)CONNECT_TIMEOUT);
 		SchemeRegistry schemeRegistry = new SchemeRegistry();
 		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 		ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+		cm.setMaxTotal(MAX_TOTAL);
+		cm.setDefaultMaxPerRoute(MAX_PER_HOST);
 		client = new DefaultHttpClient(cm, params);
 		// add gzip decompressor to handle gzipped content in responses
 		// (default we *do* always send accept encoding gzip header in request)
@@ -103,14 +147,140 @@ public class HttpModule {
 		});
 	}
 
+	/**
+	 * Receives the result of an asynchronous request.
+	 */
+	public interface Callback {
+		/**
+		 * @param response The body of the response, or a string starting
+		 *            {@link #HTTP_RESPONSE_ERROR} if the request failed.
+		 */
+		void completed(String response);
+	}
+
+	/**
+	 * The requests to a host at some moment, and how long they've taken.
+	 */
+	public static final class HostStats {
+		private final String host;
+		private final int inFlight;
+		private final int queued;
+		private final long requests;
+		private final long failures;
+		private final long totalLatency;
+		private final long maxLatency;
+
+		HostStats(final Host h) {
+			host = h.name;
+			inFlight = h.inFlight.get();
+			queued = h.queued.get();
+			requests = h.requests.get();
+			failures = h.failures.get();
+			totalLatency = h.totalLatency.get();
+			maxLatency = h.maxLatency.get();
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		/** @return The number of requests being made now. */
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		/** @return The number of requests waiting to start. */
+		public int getQueued() {
+			return queued;
+		}
+
+		/** @return The number of requests finished. */
+		public long getRequests() {
+			return requests;
+		}
+
+		/** @return The number of requests that failed. */
+		public long getFailures() {
+			return failures;
+		}
+
+		/** @return The mean time, in ms, requests took once started. */
+		public long getMeanLatency() {
+			return requests == 0 ? 0 : totalLatency / requests;
+		}
+
+		/** @return The longest time, in ms, a request took once started. */
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+
+		@Override
+		public String toString() {
+			return host + ": " + inFlight + " in flight, " + queued + " queued, " + requests + " done (" + failures + " failed), "
+					+ getMeanLatency() + "ms mean, " + maxLatency + "ms max";
+		}
+	}
+
+	// Guarded by itself, except for the counters.
+	private static final class Host {
+		final String name;
+		final Queue<Runnable> waiting = new LinkedList<Runnable>();
+		int running;
+
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong totalLatency = new AtomicLong();
+		final AtomicLong maxLatency = new AtomicLong();
+
+		Host(final String name) {
+			this.name = name;
+		}
+
+		void finished(final long latency, final boolean failed) {
+			requests.incrementAndGet();
+			if (failed)
+				failures.incrementAndGet();
+			totalLatency.addAndGet(latency);
+			long max;
+			while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+				// Someone else got there first; try again.
+			}
+		}
+	}
+
 	private final ResponseHandler<String> responseHandler;
+	private final ChoobThreadManager ctm;
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
 
 	/**
 	 * Constructor.
 	 *
+	 * @param ctm Where callbacks are queued, as tasks of the plugin that made
+	 *            the request.
 	 */
-	public HttpModule() {
+	public HttpModule(final ChoobThreadManager ctm) {
+		this.ctm = ctm;
 		responseHandler = new BasicResponseHandler();
+		executor = new ThreadPoolExecutor(MAX_TOTAL, MAX_TOTAL, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				// Threads inherit their creator's permissions, which may be a plugin's.
+				return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+					@Override
+					public Thread run() {
+						final Thread thread = new Thread(r, "choob-http-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
 	}
 
 	/**
@@ -158,18 +328,68 @@ public class HttpModule {
 		return performRequest(contentType, url, user, pass, additionalHeaders, params, HttpModule.POST_TYPE);
 	}
 
+	/**
+	 * Start an HTTP GET operation, without waiting for it to finish.
+	 *
+	 * @param callback Given the response, as a task of the calling plugin.
+	 *            May be null.
+	 * @return The response, when it arrives.
+	 */
+	public Future<String> performGetAsync(final String url, final Callback callback) {
+		return submit(createRequest(null, url, null, null, null, null, HttpModule.GET_TYPE), null, null, callback);
+	}
+
+	/**
+	 * Start an HTTP GET operation with user/pass and headers, without
+	 * waiting for it to finish.
+	 *
+	 */
+	public Future<String> performGetAsync(final String url, final String user, final String pass,
+			final Map<String, String> additionalHeaders, final Callback callback) {
+		return submit(createRequest(null, url, user, pass, additionalHeaders, null, HttpModule.GET_TYPE), user, pass, callback);
+	}
+
+	/**
+	 * Start a simplified HTTP POST operation, without waiting for it to
+	 * finish.
+	 *
+	 */
+	public Future<String> performPostAsync(final String url, final Map<String, String> params, final Callback callback) {
+		return submit(createRequest(HttpModule.MIME_FORM_ENCODED, url, null, null, null, params, HttpModule.POST_TYPE), null, null, callback);
+	}
+
+	/**
+	 * @return The state of the requests to each host that has been asked
+	 *         for anything.
+	 */
+	public Map<String, HostStats> getHostStats() {
+		final Map<String, HostStats> ret = new TreeMap<String, HostStats>();
+		for (final Host host : hosts.values())
+			ret.put(host.name, new HostStats(host));
+		return Collections.unmodifiableMap(ret);
+	}
+
 	//
 	// private methods
 	//
 	private String performRequest(final String contentType, final String url, final String user, final String pass,
 			final Map<String, String> headers, final Map<String, String> params, final int requestType) {
-
-		// add user and pass to client credentials if present
-		if ((user != null) && (pass != null)) {
-			HttpModule.client.getCredentialsProvider().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, pass));
+		final Future<String> response = submit(createRequest(contentType, url, user, pass, headers, params, requestType), user, pass, null);
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			response.cancel(true);
+			Thread.currentThread().interrupt();
+			return HttpModule.HTTP_RESPONSE_ERROR + " - " + e.getClass().getSimpleName() + " " + e.getMessage();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error peforming HTTP request: " + e.getCause().getMessage(), e.getCause());
 		}
+	}
 
-		// process headers using request interceptor
+	private HttpRequestBase createRequest(final String contentType, final String url, final String user, final String pass,
+			final Map<String, String> headers, final Map<String, String> params, final int requestType) {
+
+		// process headers
 		final Map<String, String> sendHeaders = new HashMap<String, String>();
 		// add encoding header for gzip if not present
 		if (!sendHeaders.containsKey(HttpModule.ACCEPT_ENCODING)) {
@@ -181,18 +401,6 @@ public class HttpModule {
 		if (requestType == HttpModule.POST_TYPE) {
 			sendHeaders.put(HttpModule.CONTENT_TYPE, contentType);
 		}
-		if (sendHeaders.size() > 0) {
-			HttpModule.client.addRequestInterceptor(new HttpRequestInterceptor() {
-				@Override
-				public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
-					for (String key : sendHeaders.keySet()) {
-						if (!request.containsHeader(key)) {
-							request.addHeader(key, sendHeaders.get(key));
-						}
-					}
-				}
-			});
-		}
 
 		// handle POST or GET request respectively
 		HttpRequestBase method = null;
@@ -218,16 +426,137 @@ public class HttpModule {
 			method = new HttpGet(url);
 		}
 
-		// execute request
-		return execute(method);
+		for (Map.Entry<String, String> header : sendHeaders.entrySet()) {
+			method.addHeader(header.getKey(), header.getValue());
+		}
+		return method;
+	}
+
+	private static String hostKey(final URI uri) {
+		final String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+		return uri.getPort() == -1 ? host : host + ":" + uri.getPort();
+	}
+
+	private Host host(final String name) {
+		final Host ret = hosts.get(name);
+		if (ret != null)
+			return ret;
+		final Host created = new Host(name);
+		final Host raced = hosts.putIfAbsent(name, created);
+		return raced != null ? raced : created;
+	}
+
+	/**
+	 * Queue a request behind any others to the same host. It's made with the
+	 * permissions of the caller, and its callback run as a task of the
+	 * calling plugin.
+	 */
+	private Future<String> submit(final HttpRequestBase method, final String user, final String pass, final Callback callback) {
+		final AccessControlContext caller = AccessController.getContext();
+		final String pluginName = ChoobThread.getPluginName(0);
+		final Host host = host(hostKey(method.getURI()));
+
+		final FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() {
+				host.inFlight.incrementAndGet();
+				final long start = System.currentTimeMillis();
+				String response = null;
+				try {
+					response = AccessController.doPrivileged(new PrivilegedAction<String>() {
+						@Override
+						public String run() {
+							return execute(method, user, pass);
+						}
+					}, caller);
+					return response;
+				} finally {
+					host.inFlight.decrementAndGet();
+					host.finished(System.currentTimeMillis() - start, response == null || response.startsWith(HTTP_RESPONSE_ERROR));
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (callback == null || isCancelled())
+					return;
+				final String response;
+				try {
+					response = get();
+				} catch (Exception e) {
+					return;
+				}
+				complete(pluginName, callback, response);
+			}
+		};
+
+		// Cancelled tasks don't run, but still have to make way for the next.
+		final Runnable slot = new Runnable() {
+			@Override
+			public void run() {
+				host.queued.decrementAndGet();
+				try {
+					task.run();
+				} finally {
+					next(host);
+				}
+			}
+		};
+
+		host.queued.incrementAndGet();
+		synchronized (host) {
+			if (host.running < MAX_PER_HOST) {
+				host.running++;
+				executor.execute(slot);
+			} else {
+				host.waiting.add(slot);
+			}
+		}
+		return task;
+	}
+
+	// A request to the host has finished, so start the next one waiting.
+	private void next(final Host host) {
+		synchronized (host) {
+			final Runnable next = host.waiting.poll();
+			if (next != null)
+				executor.execute(next);
+			else
+				host.running--;
+		}
+	}
+
+	private void complete(final String pluginName, final Callback callback, final String response) {
+		if (pluginName == null || ctm == null) {
+			callback.completed(response);
+			return;
+		}
+
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override
+			public Object run() {
+				ctm.queueTask(new ChoobTask(pluginName, "http-callback") {
+					@Override
+					public void run() {
+						callback.completed(response);
+					}
+				});
+				return null;
+			}
+		});
 	}
 
-	private synchronized String execute(final HttpRequestBase method) {
+	private String execute(final HttpRequestBase method, final String user, final String pass) {
 		String response = null;
-		// execute method returns?!? (rather than async) - do it here sync, and
-		// wrap async elsewhere
+		// add user and pass to this request's credentials if present
+		final HttpContext context = new BasicHttpContext();
+		if ((user != null) && (pass != null)) {
+			final BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+			credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, pass));
+			context.setAttribute(ClientContext.CREDS_PROVIDER, credentials);
+		}
 		try {
-			response = HttpModule.client.execute(method, responseHandler);
+			response = HttpModule.client.execute(method, responseHandler, context);
 		} catch (ClientProtocolException e) {
 			response = HttpModule.HTTP_RESPONSE_ERROR + " - " + e.getClass().getSimpleName() + " " + e.getMessage();
 			// e.printStackTrace();
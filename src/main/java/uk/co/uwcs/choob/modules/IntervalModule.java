@@ -7,23 +7,24 @@
 package uk.co.uwcs.choob.modules;
 
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 import uk.co.uwcs.choob.support.Interval;
+import uk.co.uwcs.choob.support.IntervalJournal;
+import uk.co.uwcs.choob.support.IntervalScheduler;
 
 /**
  * Generates a call-back to a plugin at a specified point in time.
  */
 public final class IntervalModule
 {
-	private final List <Interval> intervalList;
+	private final IntervalScheduler intervals;
 	private final Modules mods;
 
 	/** Creates a new instance of IntervalModule */
-	IntervalModule( final List <Interval> intervalList, final Modules mods )
+	IntervalModule( final IntervalScheduler intervals, final Modules mods )
 	{
-		this.intervalList = intervalList;
+		this.intervals = intervals;
 		this.mods = mods;
 	}
 
@@ -69,34 +70,74 @@ public final class IntervalModule
 		callBackReal( parameter, System.currentTimeMillis() + delay, id );
 	}
 
+	/**
+	 * Calls the 'interval' function in the calling plugin, with the specified
+	 * parameter and after the specified interval, even if the bot is
+	 * restarted in the meantime. If it was down when the callback was due,
+	 * it comes a little after it starts up again.
+	 * @param parameter The parameter that you want passed along to the
+	 *                  interval function; at most {@link IntervalJournal#MAX_PARAMETER} chars.
+	 * @param interval The Date at which you want the event to occur.
+	 * @param id The unique id of this interval (-1 for no ID).
+	 * @return Whether it'll be kept across restarts. If not, it's still
+	 *         called back as long as the bot keeps running.
+	 */
+	public boolean callBackDurable( final String parameter, final Date interval, final int id )
+	{
+		return callBackReal( parameter, interval.getTime(), id, true );
+	}
+
+	/**
+	 * Calls the 'interval' function in the calling plugin, with the specified
+	 * parameter and after the specified interval, even if the bot is
+	 * restarted in the meantime. If it was down when the callback was due,
+	 * it comes a little after it starts up again.
+	 * @param parameter The parameter that you want passed along to the
+	 *                  interval function; at most {@link IntervalJournal#MAX_PARAMETER} chars.
+	 * @param delay The delay after which you want the event to occur, in milliseconds.
+	 * @param id The unique id of this interval (-1 for no ID).
+	 * @return Whether it'll be kept across restarts. If not, it's still
+	 *         called back as long as the bot keeps running.
+	 */
+	public boolean callBackDurable( final String parameter, final long delay, final int id )
+	{
+		return callBackReal( parameter, System.currentTimeMillis() + delay, id, true );
+	}
+
 	private void callBackReal (final Object parameter, final long when, final int id)
+	{
+		callBackReal( parameter, when, id, false );
+	}
+
+	private boolean callBackReal (final Object parameter, final long when, final int id, final boolean durable)
 	{
 		final String plugin = mods.security.getPluginName(0);
 		if (plugin == null)
 		{
 			System.err.println("A plugin tried to call callBack, but wasn't on the stack...");
-			return;
+			return false;
 		}
-		final Interval newInt = new Interval( plugin, parameter, when, id );
-		synchronized(intervalList)
+		return intervals.schedule( new Interval( plugin, parameter, when, id, durable ) );
+	}
+
+	/**
+	 * Cancel one of the calling plugin's pending intervals.
+	 * @param id The ID it was given.
+	 * @return Whether there was one to cancel.
+	 */
+	public boolean cancel ( final int id )
+	{
+		final String plugin = mods.security.getPluginName(0);
+		if (plugin == null)
 		{
-			if ( id != -1 )
-			{
-				// XXX this is damn inefficient...
-				final Iterator<Interval> iterator = intervalList.iterator();
-				while(iterator.hasNext())
-				{
-					final Interval thisInt = iterator.next();
-					if ( id == thisInt.getId() && plugin.equals(thisInt.getPlugin()) )
-						iterator.remove();
-				}
-			}
-			intervalList.add( newInt );
+			System.err.println("A plugin tried to call cancel, but wasn't on the stack...");
+			return false;
 		}
+		return intervals.cancel( plugin, id );
 	}
 
 	/**
-	 * Clear all intervals from the calling plugin.
+	 * Clear all intervals from the calling plugin, durable ones included.
 	 */
 	public void reset ()
 	{
@@ -106,16 +147,14 @@ public final class IntervalModule
 			System.err.println("A plugin tried to call reset, but wasn't on the stack...");
 			return;
 		}
-		synchronized(intervalList)
-		{
-			// XXX this is damn inefficient...
-			final Iterator<Interval> iterator = intervalList.iterator();
-			while(iterator.hasNext())
-			{
-				final Interval thisInt = iterator.next();
-				if ( plugin.equals(thisInt.getPlugin()) )
-					iterator.remove();
-			}
-		}
+		intervals.cancelAll( plugin );
+	}
+
+	/**
+	 * @return The number of intervals waiting to fire, for each plugin that has any.
+	 */
+	public Map<String,Integer> getPendingCounts ()
+	{
+		return intervals.getPendingCounts();
 	}
 }
@@ -0,0 +1,677 @@
+/*
+ * IrcStateModule.java
+ */
+
+package uk.co.uwcs.choob.modules;
+
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import uk.co.uwcs.choob.Bot;
+import uk.co.uwcs.choob.support.ChoobPermission;
+import uk.co.uwcs.choob.support.events.ChannelEvent;
+import uk.co.uwcs.choob.support.events.ChannelJoin;
+import uk.co.uwcs.choob.support.events.ChannelKick;
+import uk.co.uwcs.choob.support.events.ChannelPart;
+import uk.co.uwcs.choob.support.events.Event;
+import uk.co.uwcs.choob.support.events.NickChange;
+import uk.co.uwcs.choob.support.events.QuitEvent;
+import uk.co.uwcs.choob.support.events.ServerResponse;
+import uk.co.uwcs.choob.support.events.UserEvent;
+
+/**
+ * Keeps track of the users the bot can see, and what it knows about them:
+ * their hostmask, real address, account, and away, bot and operator flags.
+ *
+ * The state is kept current from joins, parts, kicks, quits and nick
+ * changes, and from every WHO, WHOIS and NAMES reply, whoever asked for it.
+ * When the bot joins a channel it asks for the channel's WHO list itself, so
+ * the members of every channel it's in are always known without asking the
+ * server again.
+ *
+ * Lookups which do need the server ({@link #whois}, and {@link #who} for
+ * channels the bot isn't in) are shared: if a request for the same target
+ * is already outstanding, callers wait for its reply rather than sending
+ * another. Requests for different targets are all sent straight away, and
+ * each reply is matched back to its request by the nick or channel in it.
+ */
+public final class IrcStateModule
+{
+	/** How long WHOIS details are trusted before asking the server again. */
+	public static final long WHOIS_MAX_AGE = 5 * 60 * 1000;
+
+	/** How long lookups wait for the server to reply. */
+	public static final long LOOKUP_TIMEOUT = 10000;
+
+	// A nick or channel name we're happy to put in a raw line.
+	private static final Pattern VALID_TARGET = Pattern.compile("[^\\s,:]+");
+
+	private final Bot bot;
+
+	// Nick (lower case) -> user.
+	private final ConcurrentMap<String,User> users = new ConcurrentHashMap<String,User>();
+	// Channels (lower case) the bot is in, and those whose WHO list has arrived.
+	private final Set<String> joined = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final Set<String> synced = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+	// Target (lower case) -> outstanding request.
+	private final ConcurrentMap<String,Request> whoises = new ConcurrentHashMap<String,Request>();
+	private final ConcurrentMap<String,Request> whos = new ConcurrentHashMap<String,Request>();
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong requestsSent = new AtomicLong();
+	private final AtomicLong events = new AtomicLong();
+
+	/**
+	 * What is known about a user at some moment.
+	 */
+	public static final class UserInfo
+	{
+		private final String nick;
+		private final String login;
+		private final String host;
+		private final String address;
+		private final String account;
+		private final String realName;
+		private final boolean away;
+		private final boolean bot;
+		private final boolean operator;
+		private final boolean registered;
+		private final boolean secure;
+		private final long whoisTime;
+		private final Set<String> channels;
+
+		UserInfo(final User user)
+		{
+			nick = user.nick;
+			login = user.login;
+			host = user.host;
+			address = user.address;
+			account = user.account;
+			realName = user.realName;
+			away = user.away;
+			bot = user.bot;
+			operator = user.operator;
+			registered = user.registered;
+			secure = user.secure;
+			whoisTime = user.whoisTime;
+			channels = Collections.unmodifiableSet(new HashSet<String>(user.channels));
+		}
+
+		public String getNick() { return nick; }
+
+		/** @return The user's login (ident), or null if not known. */
+		public String getLogin() { return login; }
+
+		/** @return The user's hostname, or null if not known. */
+		public String getHost() { return host; }
+
+		/** @return The address the server says the user is really connecting from, or null. */
+		public String getAddress() { return address; }
+
+		/** @return The services account the user is logged in as, or null. */
+		public String getAccount() { return account; }
+
+		/** @return The user's real name, or null if not known. */
+		public String getRealName() { return realName; }
+
+		public boolean isAway() { return away; }
+		public boolean isBot() { return bot; }
+		public boolean isOperator() { return operator; }
+
+		/** @return Whether the user has identified for their nick. Only known after a WHOIS. */
+		public boolean isRegistered() { return registered; }
+
+		/** @return Whether the user is connected with SSL. Only known after a WHOIS. */
+		public boolean isSecure() { return secure; }
+
+		/** @return When the details last came from a WHOIS, or 0 if they never have. */
+		public long getWhoisTime() { return whoisTime; }
+
+		/** @return The (lower case) channels the user is known to be in. */
+		public Set<String> getChannels() { return channels; }
+	}
+
+	// Guarded by its own lock.
+	private static final class User
+	{
+		String nick;
+		String login;
+		String host;
+		String address;
+		String account;
+		String realName;
+		boolean away;
+		boolean bot;
+		boolean operator;
+		boolean registered;
+		boolean secure;
+		long whoisTime;
+		long touched = System.currentTimeMillis();
+		final Set<String> channels = new HashSet<String>();
+
+		User(final String nick)
+		{
+			this.nick = nick;
+		}
+
+		synchronized UserInfo snapshot()
+		{
+			return new UserInfo(this);
+		}
+	}
+
+	private static final class Request
+	{
+		final long sent = System.currentTimeMillis();
+		final CountDownLatch done = new CountDownLatch(1);
+		// For WHO, the nicks (lower case) in the reply.
+		final Set<String> nicks = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+		boolean expired()
+		{
+			return System.currentTimeMillis() - sent > LOOKUP_TIMEOUT;
+		}
+
+		boolean await()
+		{
+			try
+			{
+				return done.await(LOOKUP_TIMEOUT - (System.currentTimeMillis() - sent), TimeUnit.MILLISECONDS);
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	IrcStateModule(final Bot bot)
+	{
+		this.bot = bot;
+	}
+
+	/**
+	 * Get what's currently known about a user, without asking the server.
+	 * @param nick The user's nick.
+	 * @return The user's details, or null if the user isn't known.
+	 */
+	public UserInfo getUser(final String nick)
+	{
+		final User user = users.get(nick.toLowerCase());
+		return user == null ? null : user.snapshot();
+	}
+
+	/**
+	 * Get the users known to be in a channel, without asking the server.
+	 * @param channel The channel.
+	 * @return The users' details.
+	 */
+	public List<UserInfo> getChannelUsers(final String channel)
+	{
+		final String key = channel.toLowerCase();
+		final List<UserInfo> ret = new ArrayList<UserInfo>();
+		for (final User user : users.values())
+		{
+			final UserInfo info = user.snapshot();
+			if (info.getChannels().contains(key))
+				ret.add(info);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return Whether the bot is in a channel and has its full member list.
+	 */
+	public boolean isSynced(final String channel)
+	{
+		return synced.contains(channel.toLowerCase());
+	}
+
+	/**
+	 * Get a user's full details, as given by WHOIS. Details less than
+	 * {@link #WHOIS_MAX_AGE} old are returned straight away; otherwise the
+	 * server is asked (or the caller waits for the reply to an identical
+	 * request already sent).
+	 * @param nick The user's nick.
+	 * @return The user's details, or null if there's no such user or the
+	 *         server didn't reply in time.
+	 */
+	public UserInfo whois(final String nick)
+	{
+		lookups.incrementAndGet();
+		final String key = nick.toLowerCase();
+		final User user = users.get(key);
+		if (user != null)
+		{
+			final UserInfo info = user.snapshot();
+			if (System.currentTimeMillis() - info.getWhoisTime() < WHOIS_MAX_AGE)
+				return info;
+		}
+
+		if (!VALID_TARGET.matcher(nick).matches())
+			return null;
+
+		if (!request(whoises, key, "WHOIS " + nick).await())
+			return null;
+
+		final User done = users.get(key);
+		return done == null ? null : done.snapshot();
+	}
+
+	/**
+	 * Get the users in a channel (or the user with a nick), as given by WHO.
+	 * Channels the bot is in are answered from memory.
+	 * @param target The channel or nick.
+	 * @return The users' details, or null if the server didn't reply in time.
+	 */
+	public List<UserInfo> who(final String target)
+	{
+		lookups.incrementAndGet();
+		if (isSynced(target))
+			return getChannelUsers(target);
+
+		if (!VALID_TARGET.matcher(target).matches())
+			return null;
+
+		final Request req = request(whos, target.toLowerCase(), "WHO " + target);
+		if (!req.await())
+			return null;
+
+		final List<UserInfo> ret = new ArrayList<UserInfo>();
+		synchronized (req.nicks)
+		{
+			for (final String nick : req.nicks)
+			{
+				final User user = users.get(nick);
+				if (user != null)
+					ret.add(user.snapshot());
+			}
+		}
+		return ret;
+	}
+
+	// Finds the outstanding request for a target, or sends a new one.
+	private Request request(final ConcurrentMap<String,Request> pending, final String key, final String line)
+	{
+		while (true)
+		{
+			final Request existing = pending.get(key);
+			if (existing != null && !existing.expired())
+				return existing;
+
+			final Request created = new Request();
+			final boolean won = existing == null ? pending.putIfAbsent(key, created) == null : pending.replace(key, existing, created);
+			if (won)
+			{
+				requestsSent.incrementAndGet();
+				bot.sendRawLineViaQueue(line);
+				return created;
+			}
+		}
+	}
+
+	private static void complete(final ConcurrentMap<String,Request> pending, final String key)
+	{
+		final Request req = pending.remove(key);
+		if (req != null)
+			req.done.countDown();
+	}
+
+	private User user(final String nick)
+	{
+		final String key = nick.toLowerCase();
+		final User ret = users.get(key);
+		if (ret != null)
+			return ret;
+		final User created = new User(nick);
+		final User raced = users.putIfAbsent(key, created);
+		return raced != null ? raced : created;
+	}
+
+	private boolean isMe(final String nick)
+	{
+		return nick.equalsIgnoreCase(bot.getNick());
+	}
+
+	/**
+	 * Update the state from an event from IRC. Called by the core for every
+	 * event, before any plugin sees it.
+	 * @param ev The event.
+	 */
+	public void track(final Event ev)
+	{
+		AccessController.checkPermission(new ChoobPermission("state.track"));
+
+		if (events.incrementAndGet() % 1000 == 0)
+			prune();
+
+		if (ev instanceof ServerResponse)
+		{
+			serverResponse(((ServerResponse)ev).getCode(), ((ServerResponse)ev).getResponse());
+			return;
+		}
+
+		if (ev instanceof NickChange)
+		{
+			final NickChange nc = (NickChange)ev;
+			final User user = users.remove(nc.getNick().toLowerCase());
+			if (user != null)
+			{
+				synchronized (user)
+				{
+					user.nick = nc.getNewNick();
+					// Identification is for a nick, so has to be checked again.
+					user.registered = false;
+					user.whoisTime = 0;
+				}
+				users.put(nc.getNewNick().toLowerCase(), user);
+			}
+			return;
+		}
+
+		if (ev instanceof QuitEvent)
+		{
+			users.remove(((QuitEvent)ev).getNick().toLowerCase());
+			return;
+		}
+
+		if (ev instanceof ChannelKick)
+		{
+			final ChannelKick ck = (ChannelKick)ev;
+			left(ck.getChannel(), ck.getTarget());
+			return;
+		}
+
+		if (ev instanceof ChannelPart)
+		{
+			final ChannelPart cp = (ChannelPart)ev;
+			left(cp.getChannel(), cp.getNick());
+			return;
+		}
+
+		if (ev instanceof UserEvent)
+		{
+			final UserEvent ue = (UserEvent)ev;
+			if (ue.getNick() == null || ue.getNick().length() == 0 || ue.getLogin() == null || ue.getLogin().length() == 0)
+				return;
+
+			final User user = user(ue.getNick());
+			synchronized (user)
+			{
+				user.login = ue.getLogin();
+				user.host = ue.getHostname();
+				user.touched = System.currentTimeMillis();
+				if (ev instanceof ChannelJoin)
+					user.channels.add(((ChannelEvent)ev).getChannel().toLowerCase());
+			}
+
+			if (ev instanceof ChannelJoin && isMe(ue.getNick()))
+			{
+				final String channel = ((ChannelEvent)ev).getChannel().toLowerCase();
+				joined.add(channel);
+				synced.remove(channel);
+			}
+		}
+	}
+
+	private void left(final String channel, final String nick)
+	{
+		final String key = channel.toLowerCase();
+		if (isMe(nick))
+		{
+			joined.remove(key);
+			synced.remove(key);
+			for (final User user : users.values())
+				synchronized (user)
+				{
+					user.channels.remove(key);
+				}
+			return;
+		}
+
+		final User user = users.get(nick.toLowerCase());
+		if (user != null)
+			synchronized (user)
+			{
+				user.channels.remove(key);
+			}
+	}
+
+	// Drops users we no longer share a channel with, once their details are old.
+	private void prune()
+	{
+		final long cutoff = System.currentTimeMillis() - WHOIS_MAX_AGE;
+		final Iterator<User> it = users.values().iterator();
+		while (it.hasNext())
+		{
+			final User user = it.next();
+			synchronized (user)
+			{
+				if (user.channels.isEmpty() && user.touched < cutoff && user.whoisTime < cutoff)
+					it.remove();
+			}
+		}
+	}
+
+	// Splits a numeric reply into its parameters, the last being the text after the colon.
+	static List<String> params(final String response)
+	{
+		final List<String> ret = new ArrayList<String>();
+		final int colon = response.startsWith(":") ? 0 : response.indexOf(" :");
+		final String head = colon == -1 ? response : response.substring(0, colon);
+		for (final String param : head.trim().split(" +"))
+			if (param.length() > 0)
+				ret.add(param);
+		if (colon != -1)
+			ret.add(response.substring(colon + (colon == 0 ? 1 : 2)));
+		return ret;
+	}
+
+	private void serverResponse(final int code, final String response)
+	{
+		final List<String> p = params(response);
+		if (p.size() < 2)
+			return;
+
+		switch (code)
+		{
+			case 352: // RPL_WHOREPLY: me channel login host server nick flags :hops real name
+			{
+				if (p.size() < 7)
+					return;
+				final String channel = p.get(1).toLowerCase();
+				final String nick = p.get(5);
+				final String flags = p.get(6);
+				final User user = user(nick);
+				synchronized (user)
+				{
+					user.login = p.get(2);
+					user.host = p.get(3);
+					user.away = flags.indexOf('G') != -1;
+					user.operator = flags.indexOf('*') != -1;
+					if (flags.indexOf('B') != -1)
+						user.bot = true;
+					if (p.size() > 7)
+					{
+						final String hopsAndName = p.get(7);
+						final int space = hopsAndName.indexOf(' ');
+						user.realName = space == -1 ? "" : hopsAndName.substring(space + 1);
+					}
+					if (!channel.equals("*"))
+						user.channels.add(channel);
+					user.touched = System.currentTimeMillis();
+				}
+
+				Request req = whos.get(channel);
+				if (req == null)
+					req = whos.get(nick.toLowerCase());
+				if (req != null)
+					req.nicks.add(nick.toLowerCase());
+				return;
+			}
+
+			case 315: // RPL_ENDOFWHO: me target :End of /WHO list.
+			{
+				final String target = p.get(1).toLowerCase();
+				if (joined.contains(target))
+					synced.add(target);
+				complete(whos, target);
+				return;
+			}
+
+			case 353: // RPL_NAMREPLY: me type channel :[@+]nick ...
+			{
+				if (p.size() < 4)
+					return;
+				final String channel = p.get(2).toLowerCase();
+				for (final String name : p.get(3).split(" +"))
+				{
+					final String nick = name.replaceFirst("^[@+%&~!]+", "");
+					if (nick.length() == 0)
+						continue;
+					final User user = user(nick);
+					synchronized (user)
+					{
+						user.channels.add(channel);
+					}
+				}
+				return;
+			}
+
+			case 366: // RPL_ENDOFNAMES: me channel :End of /NAMES list.
+			{
+				// Fill in the hostmasks of everyone who was already here.
+				final String channel = p.get(1);
+				if (joined.contains(channel.toLowerCase()) && !isSynced(channel) && VALID_TARGET.matcher(channel).matches())
+					request(whos, channel.toLowerCase(), "WHO " + channel);
+				return;
+			}
+
+			case 311: // RPL_WHOISUSER: me nick login host * :real name
+			{
+				if (p.size() < 5)
+					return;
+				final User user = user(p.get(1));
+				synchronized (user)
+				{
+					user.login = p.get(2);
+					user.host = p.get(3);
+					user.realName = p.size() > 5 ? p.get(5) : null;
+					// Everything else is reset, and set again by the lines to come.
+					user.address = null;
+					user.account = null;
+					user.away = false;
+					user.bot = false;
+					user.operator = false;
+					user.registered = false;
+					user.secure = false;
+					user.touched = System.currentTimeMillis();
+				}
+				return;
+			}
+
+			case 330: // RPL_WHOISACCOUNT: me nick account :is logged in as
+			{
+				if (p.size() < 4)
+					return;
+				final User user = user(p.get(1));
+				synchronized (user)
+				{
+					user.account = p.get(2);
+				}
+				return;
+			}
+
+			case 338: // RPL_WHOISACTUALLY: me nick [login@host] address :actually using host
+			{
+				if (p.size() < 4)
+					return;
+				final String address = p.get(p.size() - 2);
+				if (address.indexOf('@') != -1)
+					return;
+				final User user = user(p.get(1));
+				synchronized (user)
+				{
+					user.address = address;
+				}
+				return;
+			}
+
+			case 301: // RPL_AWAY
+			case 307: // RPL_WHOISREGNICK
+			case 313: // RPL_WHOISOPERATOR
+			case 335: // RPL_WHOISBOT
+			case 671: // RPL_WHOISSECURE
+			{
+				final User user = users.get(p.get(1).toLowerCase());
+				if (user == null)
+					return;
+				synchronized (user)
+				{
+					if (code == 301)
+						user.away = true;
+					else if (code == 307)
+						user.registered = true;
+					else if (code == 313)
+						user.operator = true;
+					else if (code == 335)
+						user.bot = true;
+					else
+						user.secure = true;
+				}
+				return;
+			}
+
+			case 318: // RPL_ENDOFWHOIS: me nick :End of /WHOIS list.
+			{
+				final String key = p.get(1).toLowerCase();
+				final User user = users.get(key);
+				if (user != null)
+					synchronized (user)
+					{
+						user.whoisTime = System.currentTimeMillis();
+					}
+				complete(whoises, key);
+				return;
+			}
+
+			case 401: // ERR_NOSUCHNICK: me nick :No such nick/channel
+			{
+				final String key = p.get(1).toLowerCase();
+				users.remove(key);
+				complete(whoises, key);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of WHO and WHOIS lookups asked for.
+	 */
+	public long getLookups()
+	{
+		return lookups.get();
+	}
+
+	/**
+	 * @return The number of WHO and WHOIS requests actually sent to the server.
+	 */
+	public long getRequestsSent()
+	{
+		return requestsSent.get();
+	}
+}
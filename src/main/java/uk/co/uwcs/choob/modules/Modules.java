@@ -6,7 +6,6 @@
 
 package uk.co.uwcs.choob.modules;
 
-import java.util.List;
 
 import uk.co.uwcs.choob.Bot;
 import uk.co.uwcs.choob.ChoobPluginManagerState;
@@ -15,7 +14,7 @@ import uk.co.uwcs.choob.support.ChoobException;
 import uk.co.uwcs.choob.support.ChoobInternalError;
 import uk.co.uwcs.choob.support.DbConnectionBroker;
 import uk.co.uwcs.choob.support.IRCInterface;
-import uk.co.uwcs.choob.support.Interval;
+import uk.co.uwcs.choob.support.IntervalScheduler;
 
 /**
  * Wrapper for the group of Modules in the bot. An instance of this class gets
@@ -95,15 +94,25 @@ public final class Modules {
 	 */
 	public HttpModule http;
 
+	/**
+	 * What's known about the users and channels the bot can see.
+	 */
+	public IrcStateModule ircstate;
+
+	/**
+	 * The web server, which serves plugins' web generic calls.
+	 */
+	public WebModule web;
+
 	/**
 	 * Creates a new instance of the Modules.
 	 */
-	public Modules(final DbConnectionBroker dbBroker, final List<Interval> intervalList, final Bot bot, final IRCInterface irc,
+	public Modules(final DbConnectionBroker dbBroker, final IntervalScheduler intervals, final Bot bot, final IRCInterface irc,
 			final ChoobPluginManagerState state, final ChoobThreadManager ctm) {
 		try {
 			date = new DateModule();
 			history = new HistoryModule(dbBroker);
-			interval = new IntervalModule(intervalList, this);
+			interval = new IntervalModule(intervals, this);
 			nick = new NickModule();
 			odb = new ObjectDbModule(dbBroker, this);
 			pc = new ProtectedChannels();
@@ -112,7 +121,9 @@ public final class Modules {
 			security = new SecurityModule(dbBroker, this);
 			synthetic = new SyntheticModule(bot);
 			util = new UtilModule(irc);
-			http = new HttpModule();
+			http = new HttpModule(ctm);
+			ircstate = new IrcStateModule(bot);
+			web = new WebModule(this, state, ctm);
 		} catch (final ChoobException e) {
 			throw new ChoobInternalError("Unable to construct all required modules", e);
 		}
@@ -6,15 +6,27 @@
 
 package uk.co.uwcs.choob.modules;
 
+import java.io.File;
 import java.security.AccessController;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import uk.co.uwcs.choob.ChoobMain;
 import uk.co.uwcs.choob.support.ChoobError;
 import uk.co.uwcs.choob.support.ChoobPermission;
 import uk.co.uwcs.choob.support.DbConnectionBroker;
 import uk.co.uwcs.choob.support.ObjectDBDeadlockError;
+import uk.co.uwcs.choob.support.ObjectDBEntityCache;
+import uk.co.uwcs.choob.support.ObjectDBObjectJavaWrapper;
+import uk.co.uwcs.choob.support.ObjectDBQueryCache;
+import uk.co.uwcs.choob.support.ObjectDBSchemaCache;
+import uk.co.uwcs.choob.support.ObjectDBTextIndex;
 import uk.co.uwcs.choob.support.ObjectDBTransaction;
 
 /**
@@ -54,12 +66,259 @@ public final class ObjectDbModule
 {
 	private final DbConnectionBroker broker;
 	private final Modules mods;
+	private final ObjectDBSchemaCache schemaCache;
+	private final ObjectDBEntityCache entityCache;
+	private final ObjectDBQueryCache queryCache;
+	private final ObjectDBTextIndex textIndex;
 
 	/** Creates a new instance of ObjectDbModule */
 	ObjectDbModule(final DbConnectionBroker broker, final Modules mods)
 	{
 		this.broker = broker;
 		this.mods = mods;
+		this.schemaCache = new ObjectDBSchemaCache();
+		this.entityCache = new ObjectDBEntityCache();
+		this.queryCache = new ObjectDBQueryCache(500);
+		this.textIndex = new ObjectDBTextIndex(new File(ChoobMain.TEMP_FOLDER, "textindex"));
+	}
+
+	/**
+	 * Forget which of a plugin's tables have been checked against its
+	 * classes, so they get checked again on next use, and stop caching any
+	 * classes it registered with {@link #cacheClass}. Called whenever the
+	 * plugin is (re)loaded or detached.
+	 * @param pluginName The name of the plugin.
+	 */
+	public void invalidateSchemaCache(final String pluginName)
+	{
+		schemaCache.invalidatePlugin(pluginName);
+		entityCache.invalidatePlugin(pluginName);
+	}
+
+	/**
+	 * Keep recently used objects of a class in memory, so that retrieving
+	 * them by their key fields (with a clause such as
+	 * <tt>WHERE name = "foo" AND channel = "#bar"</tt>, and nothing else)
+	 * doesn't need to go to the database. The cache is kept up to date by
+	 * save, update and delete; changes made with raw SQL are only picked up
+	 * once the cached rows expire.
+	 *
+	 * Plugins should call this from their constructor.
+	 *
+	 * @param storedClass The .class of the objects to cache.
+	 * @param maxEntries The most distinct keys to hold objects for.
+	 * @param ttl How long, in milliseconds, objects may be served from memory.
+	 * @param keyFields The fields lookups are made on; each must be a String,
+	 *                  int or long.
+	 */
+	public void cacheClass(final Class<?> storedClass, final int maxEntries, final long ttl, final String... keyFields)
+	{
+		final Object sample;
+		try
+		{
+			sample = storedClass.newInstance();
+		}
+		catch (final InstantiationException e)
+		{
+			throw new ChoobError("Could not instantiate " + storedClass.getName(), e);
+		}
+		catch (final IllegalAccessException e)
+		{
+			throw new ChoobError("Could not instantiate " + storedClass.getName(), e);
+		}
+		entityCache.register(new ObjectDBObjectJavaWrapper(sample), mods.security.getPluginName(0), maxEntries, ttl, keyFields);
+	}
+
+	/**
+	 * Keep a full-text index of some String fields of a class, so that
+	 * {@link #findCandidates} can narrow substring and regex searches of
+	 * them down to a few rows. The index is kept up to date by save, update
+	 * and delete (but not raw SQL), and is written out on shutdown so it
+	 * needn't be rebuilt from the table on the next start.
+	 *
+	 * Plugins should call this from their constructor.
+	 *
+	 * @param storedClass The .class of the objects to index.
+	 * @param textFields The String fields to index.
+	 */
+	public void indexText(final Class<?> storedClass, final String... textFields)
+	{
+		final Object sample;
+		try
+		{
+			sample = storedClass.newInstance();
+		}
+		catch (final InstantiationException e)
+		{
+			throw new ChoobError("Could not instantiate " + storedClass.getName(), e);
+		}
+		catch (final IllegalAccessException e)
+		{
+			throw new ChoobError("Could not instantiate " + storedClass.getName(), e);
+		}
+		textIndex.register(new ObjectDBObjectJavaWrapper(sample), mods.security.getPluginName(0), textFields);
+	}
+
+	/**
+	 * Find the objects which could match a search of an indexed field. The
+	 * result may contain objects which don't match, so the search itself
+	 * must still be made, restricted to these with {@link #idClause}.
+	 * @param storedClass The .class registered with {@link #indexText}.
+	 * @param field The field to be searched.
+	 * @param search The text to be searched for, as for <tt>LIKE "%search%"</tt>,
+	 *               or the expression to be matched, as for <tt>RLIKE</tt>.
+	 * @param regex Whether search is a regular expression.
+	 * @return The IDs of the objects which could match, or null if the index
+	 *         can't narrow the search down.
+	 */
+	public Set<Integer> findCandidates(final Class<?> storedClass, final String field, final String search, final boolean regex)
+	{
+		final String className = storedClass.getName();
+		if (!textIndex.isIndexed(className))
+			return null;
+
+		final ObjectDBTextIndex.Build build = textIndex.startBuild(className);
+		if (build != null)
+		{
+			boolean built = false;
+			try
+			{
+				for (final Object obj : retrieve(storedClass, "WHERE 1"))
+					build.add(new ObjectDBObjectJavaWrapper(obj));
+				build.finish();
+				built = true;
+			}
+			finally
+			{
+				if (!built)
+					build.abort();
+			}
+		}
+
+		return textIndex.candidates(className, field, search, regex);
+	}
+
+	/**
+	 * Build a clause restricting a query to some IDs, such as those from
+	 * {@link #findCandidates}.
+	 * @param idField The ID field to restrict, e.g. <tt>id</tt> or <tt>join0.id</tt>.
+	 * @param ids The IDs to allow.
+	 * @return The clause, in brackets.
+	 */
+	public String idClause(final String idField, final Collection<Integer> ids)
+	{
+		if (ids.isEmpty())
+			return "(0)";
+		final StringBuilder ret = new StringBuilder("(");
+		for (final int id : ids)
+		{
+			if (ret.length() > 1)
+				ret.append(" OR ");
+			ret.append(idField).append(" = ").append(id);
+		}
+		return ret.append(")").toString();
+	}
+
+	/**
+	 * Write out the full-text indexes, so they can be loaded rather than
+	 * rebuilt on the next start.
+	 */
+	public void saveTextIndexes()
+	{
+		AccessController.checkPermission(new ChoobPermission("objectdb.saveindexes"));
+		textIndex.save();
+	}
+
+	/**
+	 * @return The number of searches narrowed down by a full-text index.
+	 */
+	public long getTextIndexHits()
+	{
+		return textIndex.getHits();
+	}
+
+	/**
+	 * @return The number of searches a full-text index couldn't help with.
+	 */
+	public long getTextIndexMisses()
+	{
+		return textIndex.getMisses();
+	}
+
+	/**
+	 * @return The number of queries whose parsed form was reused.
+	 */
+	public long getQueryCacheHits()
+	{
+		return queryCache.getHits();
+	}
+
+	/**
+	 * @return The number of queries that had to be parsed.
+	 */
+	public long getQueryCacheMisses()
+	{
+		return queryCache.getMisses();
+	}
+
+	/**
+	 * @return The number of retrieves answered from the entity cache.
+	 */
+	public long getEntityCacheHits()
+	{
+		return entityCache.getHits();
+	}
+
+	/**
+	 * @return The number of retrieves that could have come from the entity
+	 *         cache, but had to go to the database.
+	 */
+	public long getEntityCacheMisses()
+	{
+		return entityCache.getMisses();
+	}
+
+	/**
+	 * @return The number of keys dropped from the entity cache for being too
+	 *         old or to make room for others.
+	 */
+	public long getEntityCacheEvictions()
+	{
+		return entityCache.getEvictions();
+	}
+
+	/**
+	 * @return A summary of the database connection pool's state: connections
+	 *         in use, idle and waited for, checkout waits, timeouts and leaks.
+	 */
+	public String getConnectionPoolStatus()
+	{
+		return broker.getStatus();
+	}
+
+	/**
+	 * @return Who has database connections checked out, and for how long.
+	 */
+	public String getConnectionHolders()
+	{
+		return broker.describeHolders();
+	}
+
+	/**
+	 * @return The number of table schema checks which have hit the database.
+	 */
+	public long getSchemaChecksRun()
+	{
+		return schemaCache.getChecksRun();
+	}
+
+	/**
+	 * @return The number of table schema checks skipped because the table was
+	 *         already known to match its class.
+	 */
+	public long getSchemaChecksAvoided()
+	{
+		return schemaCache.getChecksAvoided();
 	}
 
 	/**
@@ -102,6 +361,31 @@ public final class ObjectDbModule
 
 	@SuppressWarnings("unchecked")
 	public List retrieve(final Object storedClass, final String clause)
+	{
+		return retrieve(storedClass, clause, new Object[0]);
+	}
+
+	/**
+	 * Retrieve all the objects of a particular type matching a clause, with
+	 * the values in the clause given separately. For example:
+	 * <pre>
+	 *   mods.odb.retrieve(SeenObj.class, "WHERE name = ?", nick);
+	 * </pre>
+	 * The values must NOT be escaped. As the clause text doesn't change
+	 * between calls, it only has to be parsed once.
+	 * @param storedClass The .class of the object you want to retrieve.
+	 * @param clause The clause specifying which objects you want to select,
+	 *               with a <tt>?</tt> in place of each value.
+	 * @param params The values, in the order they appear in the clause.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> retrieve(final Class<T> storedClass, final String clause, final Object... params)
+	{
+		return retrieve((Object)storedClass, clause, params);
+	}
+
+	@SuppressWarnings("unchecked")
+	public List retrieve(final Object storedClass, final String clause, final Object... params)
 	{
 		Connection dbConn = null;
 		try
@@ -115,9 +399,13 @@ public final class ObjectDbModule
 		final ObjectDBTransaction trans = new ObjectDBTransaction();
 		trans.setConn(dbConn);
 		trans.setMods(mods);
+		trans.setSchemaCache(schemaCache);
+		trans.setEntityCache(entityCache);
+		trans.setQueryCache(queryCache);
+		trans.setTextIndex(textIndex);
 		try
 		{
-			return trans.retrieve(storedClass, clause);
+			return trans.retrieve(storedClass, clause, params);
 		}
 		finally
 		{
@@ -126,30 +414,75 @@ public final class ObjectDbModule
 	}
 
 	/**
-	 * This doesn't work.
+	 * Retrieve just the IDs of the objects of a particular type matching a
+	 * clause. Much cheaper than {@link #retrieve} when only a few of the
+	 * objects will be needed; fetch those with {@link #retrieveByIds}.
+	 * @param storedClass The .class of the objects.
+	 * @param clause The clause specifying which objects you want, as for
+	 *               {@link #retrieve(Class, String, Object...)}.
+	 * @param params The values for any <tt>?</tt> in the clause.
+	 */
+	public List<Integer> retrieveInt(final Object storedClass, final String clause, final Object... params)
+	{
+		final Connection dbConn = checkOut();
+		try
+		{
+			return readTransaction(dbConn).retrieveInt(storedClass, clause, params);
+		}
+		finally
+		{
+			broker.freeConnection( dbConn );
+		}
+	}
 
-	public List<Integer> retrieveInt(Class storedClass, String clause)
+	/**
+	 * Retrieve the objects of a particular type with the given IDs, in the
+	 * same order. IDs which have no object are skipped.
+	 * @param storedClass The .class of the objects.
+	 * @param ids The IDs, such as those from {@link #retrieveInt}.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> retrieveByIds(final Class<T> storedClass, final Collection<Integer> ids)
 	{
-		return retrieveInt((Object)storedClass, clause);
+		return retrieveByIds((Object)storedClass, ids);
 	}
 
-	public List<Integer> retrieveInt(Object storedClass, String clause)
+	@SuppressWarnings("unchecked")
+	public List retrieveByIds(final Object storedClass, final Collection<Integer> ids)
 	{
-		Connection dbConn = null;
+		final Connection dbConn = checkOut();
 		try
 		{
-			dbConn = broker.getConnection();
+			return readTransaction(dbConn).retrieveByIds(storedClass, ids);
 		}
-		catch (SQLException e)
+		finally
 		{
-			throw new ChoobError("Sql Exception", e);
+			broker.freeConnection( dbConn );
 		}
-		ObjectDBTransaction trans = new ObjectDBTransaction();
-		trans.setConn(dbConn);
-		trans.setMods(mods);
+	}
+
+	/**
+	 * Retrieve a random selection of the objects of a particular type
+	 * matching a clause. This takes two cheap queries, where
+	 * <tt>SORT RANDOM LIMIT (1)</tt> makes the database sort every match.
+	 * @param storedClass The .class of the objects.
+	 * @param count The most objects to return.
+	 * @param clause The clause specifying which objects may be picked.
+	 * @param params The values for any <tt>?</tt> in the clause.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> retrieveRandom(final Class<T> storedClass, final int count, final String clause, final Object... params)
+	{
+		return retrieveRandom((Object)storedClass, count, clause, params);
+	}
+
+	@SuppressWarnings("unchecked")
+	public List retrieveRandom(final Object storedClass, final int count, final String clause, final Object... params)
+	{
+		final Connection dbConn = checkOut();
 		try
 		{
-			return trans.retrieveInt(storedClass, clause);
+			return readTransaction(dbConn).retrieveRandom(storedClass, count, clause, params);
 		}
 		finally
 		{
@@ -157,7 +490,30 @@ public final class ObjectDbModule
 		}
 	}
 
-	 */
+	private Connection checkOut()
+	{
+		try
+		{
+			return broker.getConnection();
+		}
+		catch (final SQLException e)
+		{
+			throw new ChoobError("Sql Exception", e);
+		}
+	}
+
+	// A transaction for running single queries outside of begin/commit.
+	private ObjectDBTransaction readTransaction(final Connection dbConn)
+	{
+		final ObjectDBTransaction trans = new ObjectDBTransaction();
+		trans.setConn(dbConn);
+		trans.setMods(mods);
+		trans.setSchemaCache(schemaCache);
+		trans.setEntityCache(entityCache);
+		trans.setQueryCache(queryCache);
+		trans.setTextIndex(textIndex);
+		return trans;
+	}
 
 	/**
 	 * Delete a specific object from the database.
@@ -204,6 +560,101 @@ public final class ObjectDbModule
 		}
 	}
 
+	/**
+	 * Save any number of new objects to the database, in one transaction.
+	 * @param strObjects The objects to save.
+	 */
+	public void saveAll( final List<?> strObjects )
+	{
+		runLockedTransaction( strObjects, new ObjectDBTransaction() { @Override
+		public void run() {
+			saveAll(strObjects);
+		} } );
+	}
+
+	/**
+	 * Update any number of changed objects back to the database, in one
+	 * transaction.
+	 * @param strObjects The objects to update.
+	 */
+	public void updateAll( final List<?> strObjects )
+	{
+		runLockedTransaction( strObjects, new ObjectDBTransaction() { @Override
+		public void run() {
+			updateAll(strObjects);
+		} } );
+	}
+
+	/**
+	 * Delete any number of specific objects from the database, in one
+	 * transaction.
+	 * @param strObjects The objects to delete.
+	 */
+	public void deleteAll( final List<?> strObjects )
+	{
+		runLockedTransaction( strObjects, new ObjectDBTransaction() { @Override
+		public void run() {
+			deleteAll(strObjects);
+		} } );
+	}
+
+	/**
+	 * Delete every object of a class matching a clause from the database.
+	 * @param storedClass The .class of the objects you want to delete.
+	 * @param clause The clause specifying which objects to delete, as for
+	 *               {@link #retrieve(Class, String, Object...)}.
+	 * @param params The values for any <tt>?</tt> placeholders in the clause.
+	 * @return The number of objects deleted.
+	 */
+	public int deleteWhere( final Object storedClass, final String clause, final Object... params )
+	{
+		final int[] deleted = new int[1];
+		final ObjectDBTransaction trans = new ObjectDBTransaction() { @Override
+		public void run() {
+			deleted[0] = deleteWhere(storedClass, clause, params);
+		} };
+
+		if (storedClass instanceof Class)
+		{
+			synchronized( storedClass )
+			{
+				runTransaction( trans );
+			}
+		}
+		else
+			runTransaction( trans );
+		return deleted[0];
+	}
+
+	// Takes the same per-class locks as save() and friends, in a fixed order,
+	// for the duration of the transaction.
+	private void runLockedTransaction( final List<?> strObjects, final ObjectDBTransaction trans )
+	{
+		if (strObjects.isEmpty())
+			return;
+
+		final SortedMap<String, Class<?>> classes = new TreeMap<String, Class<?>>();
+		for (final Object strObject : strObjects)
+		{
+			final Class<?> clazz = strObject.getClass();
+			classes.put(clazz.getName() + "@" + System.identityHashCode(clazz), clazz);
+		}
+		runLockedTransaction( classes.values().iterator(), trans );
+	}
+
+	private void runLockedTransaction( final Iterator<Class<?>> classes, final ObjectDBTransaction trans )
+	{
+		if (!classes.hasNext())
+		{
+			runTransaction( trans );
+			return;
+		}
+		synchronized( classes.next() )
+		{
+			runLockedTransaction( classes, trans );
+		}
+	}
+
 	public void runTransaction( final ObjectDBTransaction trans )
 	{
 		Connection dbConn = null;
@@ -218,6 +669,10 @@ public final class ObjectDbModule
 
 		trans.setConn(dbConn);
 		trans.setMods(mods);
+		trans.setSchemaCache(schemaCache);
+		trans.setEntityCache(entityCache);
+		trans.setQueryCache(queryCache);
+		trans.setTextIndex(textIndex);
 		try
 		{
 			// Attempt up to 20 backoffs with initial delay 100ms and exponent 1.3.
@@ -265,6 +720,10 @@ public final class ObjectDbModule
 
 		trans.setConn(dbConn);
 		trans.setMods(mods);
+		trans.setSchemaCache(schemaCache);
+		trans.setEntityCache(entityCache);
+		trans.setQueryCache(queryCache);
+		trans.setTextIndex(textIndex);
 		try
 		{
 			trans.begin();
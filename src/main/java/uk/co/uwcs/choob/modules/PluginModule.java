@@ -16,9 +16,23 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import uk.co.uwcs.choob.Bot;
 import uk.co.uwcs.choob.ChoobDistributingPluginManager;
@@ -58,12 +72,20 @@ public final class PluginModule
 	private final ChoobThreadManager ctm;
 	private final DbConnectionBroker broker;
 	private final Modules mods;
-	private final ChoobPluginManager hsPlugMan;
+	private final HaxSunPluginManager hsPlugMan;
 	private final ChoobPluginManager annotatedPlugMan;
 	private final ChoobPluginManager dPlugMan;
 	private final ChoobPluginManager jsPlugMan;
 	private final Bot bot;
 	private final IRCInterface irc;
+	private final Map<String,Integer> concurrencyLimits = new ConcurrentHashMap<String,Integer>();
+
+	// Finds the plugins a plugin's source calls into.
+	private static final Pattern PLUGIN_CALL = Pattern.compile("call(?:API|Generic)\\s*\\(\\s*\"(\\w+)\"");
+
+	// Thread limit for any plugin the Concurrency plugin hasn't given one.
+	private static final int DEFAULT_CONCURRENCY_LIMIT = 2;
+
 	private static final Map<String, URLStreamHandler> URL_HANDLERS =
 		ImmutableMap.<String, URLStreamHandler>of(
 			"choob-plugin", new ChoobURLStreamHandler()
@@ -119,13 +141,7 @@ public final class PluginModule
 			@Override
 			public void run() {
 				try {
-					String file = srcURL.getFile();
-					if (file.endsWith(".js"))
-						existed[0] = jsPlugMan.loadPlugin(pluginName, srcURL);
-					else if(file.contains("Annotated"))
-						existed[0] = annotatedPlugMan.loadPlugin(pluginName, srcURL);
-					else
-						existed[0] = hsPlugMan.loadPlugin(pluginName, srcURL);
+					existed[0] = managerFor(srcURL).loadPlugin(pluginName, srcURL);
 				} catch (final ChoobException e) {
 					err[0] = e;
 				}
@@ -134,6 +150,9 @@ public final class PluginModule
 		final ChoobThread thread = new ChoobThread(task, "choob-addPlugin-" + pluginName);
 		thread.pushPlugin(pluginName);
 
+		// The new code may store different classes; check its tables afresh.
+		mods.odb.invalidateSchemaCache(pluginName);
+
 		thread.start();
 		try {
 			thread.join();
@@ -149,6 +168,167 @@ public final class PluginModule
 			bot.onPluginReLoaded(pluginName);
 	}
 
+	private ChoobPluginManager managerFor(final URL srcURL) {
+		final String file = srcURL.getFile();
+		if (file.endsWith(".js"))
+			return jsPlugMan;
+		else if(file.contains("Annotated"))
+			return annotatedPlugMan;
+		else
+			return hsPlugMan;
+	}
+
+	/**
+	 * Adds several plugins at once, as at startup. The sources are all read
+	 * in parallel, the Java plugins whose source has changed are compiled
+	 * together, and then the plugins are created concurrently, except that a
+	 * plugin calling another's API waits for that one to be created first.
+	 * @param plugins Map of plugin name to source URL, in the order they'd
+	 *            be loaded one at a time.
+	 * @param threads Number of threads to load with.
+	 * @throws ChoobException The error the first failed plugin threw.
+	 */
+	public void addPlugins(final Map<String,String> plugins, final int threads) throws ChoobException {
+		final long start = System.currentTimeMillis();
+		final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			int count = 0;
+			@Override public Thread newThread(final Runnable r) {
+				return new ChoobThread(r, "choob-addPlugins-" + ++count);
+			}
+		});
+		try {
+			final Map<String,URL> urls = new LinkedHashMap<String,URL>();
+			for (final Map.Entry<String,String> plugin : plugins.entrySet())
+				urls.put(plugin.getKey(), createUrl(plugin.getValue()));
+
+			// Read all the sources. Any that can't be read are left for
+			// loading them to complain about.
+			final Map<String,Future<String>> reading = new LinkedHashMap<String,Future<String>>();
+			for (final Map.Entry<String,URL> url : urls.entrySet()) {
+				final URL srcURL = url.getValue();
+				reading.put(url.getKey(), pool.submit(new Callable<String>() {
+					@Override public String call() throws IOException {
+						return HaxSunPluginManager.consume(srcURL.openConnection().getInputStream());
+					}
+				}));
+			}
+			final Map<String,String> sources = new HashMap<String,String>();
+			for (final Map.Entry<String,Future<String>> read : reading.entrySet()) {
+				try {
+					sources.put(read.getKey(), read.getValue().get());
+				} catch (final ExecutionException e) {
+					System.err.println("Couldn't read source of plugin " + read.getKey() + ": " + e.getCause());
+				}
+			}
+			final long read = System.currentTimeMillis();
+
+			final Map<String,URL> javaUrls = new HashMap<String,URL>();
+			final Map<String,String> javaSources = new HashMap<String,String>();
+			for (final Map.Entry<String,String> source : sources.entrySet()) {
+				final URL srcURL = urls.get(source.getKey());
+				if (managerFor(srcURL) == hsPlugMan) {
+					javaUrls.put(source.getKey(), srcURL);
+					javaSources.put(source.getKey(), source.getValue());
+				}
+			}
+			final int compiled = hsPlugMan.precompile(javaUrls, javaSources, pool);
+			final long built = System.currentTimeMillis();
+
+			// Work out who calls whom, among the plugins being loaded.
+			final Map<String,String> lowerNames = new HashMap<String,String>();
+			for (final String pluginName : plugins.keySet())
+				lowerNames.put(pluginName.toLowerCase(), pluginName);
+			final Map<String,Set<String>> dependencies = new HashMap<String,Set<String>>();
+			for (final String pluginName : plugins.keySet()) {
+				final Set<String> deps = new HashSet<String>();
+				final String source = sources.get(pluginName);
+				if (source != null) {
+					final Matcher ma = PLUGIN_CALL.matcher(source);
+					while (ma.find()) {
+						final String dep = lowerNames.get(ma.group(1).toLowerCase());
+						if (dep != null && !dep.equals(pluginName))
+							deps.add(dep);
+					}
+				}
+				dependencies.put(pluginName, deps);
+			}
+
+			// Create them in rounds, each round being those whose
+			// dependencies have all been created.
+			final Map<String,String> remaining = new LinkedHashMap<String,String>(plugins);
+			final Map<String,ChoobException> errors = new HashMap<String,ChoobException>();
+			while (!remaining.isEmpty()) {
+				final List<String> round = new ArrayList<String>();
+				for (final String pluginName : remaining.keySet()) {
+					boolean ready = true;
+					for (final String dep : dependencies.get(pluginName))
+						if (remaining.containsKey(dep))
+							ready = false;
+					if (ready)
+						round.add(pluginName);
+				}
+				// A cycle; break it by going in the original order.
+				if (round.isEmpty())
+					round.add(remaining.keySet().iterator().next());
+
+				final Map<String,Future<?>> loading = new LinkedHashMap<String,Future<?>>();
+				for (final String pluginName : round) {
+					final URL srcURL = urls.get(pluginName);
+					final String url = remaining.remove(pluginName);
+					loading.put(pluginName, pool.submit(new Callable<Void>() {
+						@Override public Void call() throws ChoobException {
+							loadPluginHere(pluginName, srcURL);
+							addPluginToDb(pluginName, url);
+							return null;
+						}
+					}));
+				}
+				for (final Map.Entry<String,Future<?>> load : loading.entrySet()) {
+					try {
+						load.getValue().get();
+					} catch (final ExecutionException e) {
+						final Throwable cause = e.getCause();
+						errors.put(load.getKey(), cause instanceof ChoobException ? (ChoobException)cause
+								: new ChoobException("Plugin " + load.getKey() + " failed to load: " + cause, cause));
+					}
+				}
+			}
+			final long created = System.currentTimeMillis();
+
+			System.out.println("Loaded " + plugins.size() + " plugins in " + (created - start) + "ms: reading sources took "
+					+ (read - start) + "ms, compiling " + compiled + " changed plugins " + (built - read)
+					+ "ms, and creating plugins " + (created - built) + "ms.");
+
+			for (final String pluginName : plugins.keySet())
+				if (errors.containsKey(pluginName))
+					throw errors.get(pluginName);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ChoobException("Interrupted loading plugins.", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Does the work of addPluginWithoutAddingToDb on the current thread,
+	 * which must be a ChoobThread not running as any plugin.
+	 */
+	private void loadPluginHere(final String pluginName, final URL srcURL) throws ChoobException {
+		// The new code may store different classes; check its tables afresh.
+		mods.odb.invalidateSchemaCache(pluginName);
+
+		ChoobThread.pushPluginStatic(pluginName);
+		try {
+			managerFor(srcURL).loadPlugin(pluginName, srcURL);
+		} finally {
+			ChoobThread.clearPluginsStatic();
+		}
+
+		// Inform plugins, if they want to know.
+		bot.onPluginReLoaded(pluginName);
+	}
+
 	/** Not using {@link URL#setURLStreamHandlerFactory(java.net.URLStreamHandlerFactory)}
 	 * as it can only be set once and setting interferes with frameworks */
 	static URL createUrl(final String url) throws ChoobException {
@@ -199,6 +379,7 @@ public final class PluginModule
 	public void detachPlugin(String pluginName) throws ChoobNoSuchPluginException {
 		pluginName = getPluginName(pluginName); // Fix the case of the param
 		dPlugMan.unloadPlugin(pluginName);
+		mods.odb.invalidateSchemaCache(pluginName);
 		bot.onPluginReLoaded(pluginName);
 	}
 
@@ -428,6 +609,15 @@ public final class PluginModule
 		return ((HaxSunPluginManager)hsPlugMan).getSimpleCommands();
 	}
 
+	/**
+	 * Let every Java plugin save what it's holding, as the bot's about to
+	 * exit. The plugins stay loaded.
+	 */
+	public void destroyPlugins()
+	{
+		((HaxSunPluginManager)hsPlugMan).destroyPlugins();
+	}
+
 	/**
 	 * Get a list of known plugins.
 	 * @param onlyCore whether to only return known core plugins
@@ -455,29 +645,23 @@ public final class PluginModule
 	 */
 	public int getConcurrencyLimit(final String pluginName)
 	{
-		// Small hack to allow the ChoobTask to return a value. Default here is
-		// 2 threads/plugin.
-		final int[] limit = new int[] { 2 };
-
-		final ChoobTask task = new ChoobTask(null, "getConcurrencyLimit") {
-			@Override
-			public void run() {
-				try {
-					limit[0] = (Integer)mods.plugin.callAPI("Concurrency", "GetThreadLimit", pluginName);
-				} catch (final Exception e) {
-					// Don't care about anything. Lalala.
-				}
-			}
-		};
-		final ChoobThread thread = new ChoobThread(task, "choob-getConcurrencyLimit");
-		thread.pushPlugin(pluginName);
-
-		thread.start();
-		try {
-			thread.join();
-		} catch (final InterruptedException e) {}
+		final Integer limit = concurrencyLimits.get(pluginName.toLowerCase());
+		return limit != null ? limit.intValue() : DEFAULT_CONCURRENCY_LIMIT;
+	}
 
-		return limit[0];
+	/**
+	 * Sets the maximum number of threads a plugin is allowed to have. Takes
+	 * effect the next time one of the plugin's tasks is started.
+	 * @param pluginName the name of the plugin to set the limit of.
+	 * @param limit the new limit, or 0 to revert to the default.
+	 */
+	public void setConcurrencyLimit(final String pluginName, final int limit)
+	{
+		AccessController.checkPermission(new ChoobPermission("plugin.threadlimit"));
+		if (limit <= 0)
+			concurrencyLimits.remove(pluginName.toLowerCase());
+		else
+			concurrencyLimits.put(pluginName.toLowerCase(), limit);
 	}
 
 	private void setCoreStatus(final String pluginName, final boolean isCore) throws ChoobNoSuchPluginException {
@@ -1,24 +1,29 @@
 package uk.co.uwcs.choob.modules;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.util.Collections;
+import java.security.AccessController;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jibble.pircbot.Colors;
 
+import uk.co.uwcs.choob.ChoobMain;
+import uk.co.uwcs.choob.support.ChoobPermission;
 import uk.co.uwcs.choob.support.GetContentsCached;
+import uk.co.uwcs.choob.support.WebCache;
 
 // I'm going to assume that java caches regex stuff.
 /**
  * Module providing functionality allowing the BOT to extract information from a website.
  */
 public final class ScraperModule {
-	private final Map <java.net.URL, GetContentsCached>sites=Collections.synchronizedMap(new HashMap<URL, GetContentsCached>()); // URL -> GetContentsCached.
+	private static final int CACHE_ENTRIES = 256;
+	private static final long CACHE_BYTES = 16 * 1024 * 1024;
+
+	private final WebCache sites = new WebCache(CACHE_ENTRIES, CACHE_BYTES, new File(ChoobMain.TEMP_FOLDER, "webcache.dat"));
 	private final static HashMap <String, Character>EntityMap=new HashMap<String, Character>();
 
 	static {
@@ -543,32 +548,38 @@ public final class ScraperModule {
 	}
 
 	/**
-	 * Get the contents, with caching, of the given URL.
+	 * Get the contents, with caching, of the given URL. Contents up to twice
+	 * the timeout old may be returned, while they're refreshed in the
+	 * background.
 	 * @param url The URL to get the contents of.
 	 * @param timeout The timeout to use when performing the operation.
 	 * @throws java.io.IOException
 	 * @return The contents of the URL provided.
 	 */
 	public String getContentsCached(final URL url, final long timeout) throws IOException {
-		GetContentsCached gcc=sites.get(url);
-		if (gcc==null) {
-			gcc=new GetContentsCached(url, timeout);
-			sites.put(url, gcc);
-		} else {
-			if (gcc.getTimeout()>timeout)
-				gcc.setTimeout(timeout);
-		}
+		return sites.get(url, timeout);
+	}
 
-		synchronized (sites) {
-			final Iterator<Map.Entry<URL, GetContentsCached>> i = sites.entrySet().iterator();
-			while (i.hasNext()) {
-				if (i.next().getValue().expired()) {
-					i.remove();
-				}
-			}
-		}
+	/**
+	 * Write out the cached pages, so they can be used on the next start.
+	 */
+	public void saveCache() {
+		AccessController.checkPermission(new ChoobPermission("scraper.savecache"));
+		sites.save();
+	}
 
-		return gcc.getContents();
+	/**
+	 * @return The number of pages cached.
+	 */
+	public int getCacheEntries() {
+		return sites.size();
+	}
+
+	/**
+	 * @return The approximate size, in bytes, of the pages cached.
+	 */
+	public long getCacheBytes() {
+		return sites.getBytes();
 	}
 
 	/**
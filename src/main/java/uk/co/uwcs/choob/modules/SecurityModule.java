@@ -22,6 +22,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -29,6 +30,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.PropertyPermission;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import uk.co.uwcs.choob.support.ChoobAuthError;
 import uk.co.uwcs.choob.support.ChoobError;
@@ -66,6 +70,54 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 	private final Modules mods;
 	private final int anonID;
 
+	// Upper bound on remembered permission decisions; the cache is simply
+	// emptied if it gets this big.
+	private static final int MAX_DECISIONS = 20000;
+
+	/**
+	 * Everything worked out from the permission and group tables. Replaced
+	 * wholesale whenever either changes, so a check running across the change
+	 * can only store its answer in the old, discarded, copy.
+	 */
+	private static final class Decisions
+	{
+		// Node ID -> every node it inherits from, including anonymous.
+		final ConcurrentMap<Integer,List<Integer>> closures = new ConcurrentHashMap<Integer,List<Integer>>();
+		final ConcurrentMap<DecisionKey,Boolean> answers = new ConcurrentHashMap<DecisionKey,Boolean>();
+	}
+
+	private static final class DecisionKey
+	{
+		private final int nodeID;
+		private final boolean includeThis;
+		private final Permission permission;
+
+		DecisionKey(final int nodeID, final boolean includeThis, final Permission permission)
+		{
+			this.nodeID = nodeID;
+			this.includeThis = includeThis;
+			this.permission = permission;
+		}
+
+		@Override public boolean equals(final Object o)
+		{
+			if (!(o instanceof DecisionKey))
+				return false;
+			final DecisionKey other = (DecisionKey)o;
+			return nodeID == other.nodeID && includeThis == other.includeThis && permission.equals(other.permission);
+		}
+
+		@Override public int hashCode()
+		{
+			return (nodeID * 31 + (includeThis ? 1 : 0)) * 31 + permission.hashCode();
+		}
+	}
+
+	private volatile Decisions decisions = new Decisions();
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong permChecks = new AtomicLong();
+	private final AtomicLong permCacheHits = new AtomicLong();
+
 	/**
 	 * Creates a new instance of SecurityModule
 	 * @param dbBroker Database connection pool/broker.
@@ -82,7 +134,7 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 
 		this.nodeIDCache = new ArrayList<Map<String, Integer>>();
 		for (int i = 0; i < 4; i++) {
-			nodeIDCache.add(new HashMap<String, Integer>());
+			nodeIDCache.add(new ConcurrentHashMap<String, Integer>());
 		}
 
 		this.anonID = getNodeIDFromNodeName("anonymous", 3);
@@ -152,6 +204,7 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 		synchronized(nodeMap) {
 			nodeMap.remove(nodeID);
 		}
+		invalidateDecisions();
 	}
 
 	/**
@@ -159,9 +212,44 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 	 */
 	private void invalidateNodeTree(final int nodeID)
 	{
-		synchronized(nodeMap) {
+		synchronized(nodeTree) {
 			nodeTree.remove(nodeID);
 		}
+		invalidateDecisions();
+	}
+
+	/**
+	 * Forget all remembered permission decisions and group closures.
+	 */
+	private void invalidateDecisions()
+	{
+		decisions = new Decisions();
+	}
+
+	/**
+	 * @return The number of permission checks made against user nodes.
+	 */
+	public long getPermissionChecks()
+	{
+		return permChecks.get();
+	}
+
+	/**
+	 * @return The mean number of permission checks per second since startup.
+	 */
+	public double getPermissionChecksPerSecond()
+	{
+		final long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed <= 0 ? 0 : permChecks.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return The fraction of permission checks answered from the cache.
+	 */
+	public double getPermissionCacheHitRate()
+	{
+		final long checks = permChecks.get();
+		return checks == 0 ? 0 : (double)permCacheHits.get() / checks;
 	}
 
 	private PermissionCollection getNodePermissions(final int nodeID)
@@ -293,12 +381,40 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 
 	private boolean hasPerm(final Permission permission, final int userNode, final boolean includeThis)
 	{
-		final Iterator<Integer> allNodes = getAllNodes(userNode, includeThis);
+		permChecks.incrementAndGet();
+		final Decisions current = decisions;
+		final DecisionKey key = new DecisionKey(userNode, includeThis, permission);
+		final Boolean known = current.answers.get(key);
+		if (known != null)
+		{
+			permCacheHits.incrementAndGet();
+			return known.booleanValue();
+		}
+
+		final Boolean rv = checkPerm(permission, userNode, includeThis, current);
+		// Without the node's groups, nothing's known; ask again next time.
+		if (rv == null)
+			return false;
+		if (current.answers.size() >= MAX_DECISIONS)
+			current.answers.clear();
+		current.answers.put(key, rv);
+		return rv.booleanValue();
+	}
+
+	/**
+	 * @return Whether the node has the permission, or null if its groups
+	 *         couldn't be looked up.
+	 */
+	private Boolean checkPerm(final Permission permission, final int userNode, final boolean includeThis, final Decisions current)
+	{
+		final Iterator<Integer> allNodes = getAllNodes(userNode, includeThis, current);
+		if (allNodes == null)
+			return null;
 
 		if ( ! allNodes.hasNext() )
 		{
 			System.out.println("User node " + userNode + " has no subnodes!");
-			return false;
+			return Boolean.FALSE;
 		}
 
 		int nodeID;
@@ -308,16 +424,47 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 			final PermissionCollection perms = getNodePermissions( nodeID );
 			// Be careful to avoid invalid groups and stuff.
 			if (perms != null && perms.implies(permission))
-				return true;
+				return Boolean.TRUE;
 		}
 
-		return false;
+		return Boolean.FALSE;
 	}
 
 	/**
 	 * Get all nodes linked to the passed node.
+	 * @return The nodes, or null if the database couldn't be reached.
 	 */
 	private Iterator<Integer> getAllNodes(final int nodeID, final boolean addThis)
+	{
+		return getAllNodes(nodeID, addThis, decisions);
+	}
+
+	private Iterator<Integer> getAllNodes(final int nodeID, final boolean addThis, final Decisions current)
+	{
+		List<Integer> closure = current.closures.get(nodeID);
+		if (closure == null)
+		{
+			closure = getNodeClosure(nodeID);
+			if (closure == null)
+				return null;
+			current.closures.put(nodeID, closure);
+		}
+		if (!addThis)
+			return closure.iterator();
+
+		final List<Integer> list = new ArrayList<Integer>(closure.size() + 1);
+		list.add(nodeID);
+		for (final Integer node : closure)
+			if (node.intValue() != nodeID)
+				list.add(node);
+		return list.iterator();
+	}
+
+	/**
+	 * Work out every node the passed node inherits from, including anonymous.
+	 * @return The nodes, or null if the database couldn't be reached.
+	 */
+	private List<Integer> getNodeClosure(final int nodeID)
 	{
 		synchronized(nodeTree)
 		{
@@ -330,11 +477,9 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 			{
 				e.printStackTrace();
 				System.err.println("Couldn't get a connection for getAllNodes()");
-				return new ArrayList<Integer>().iterator(); // XXX
+				return null;
 			}
 			final List <Integer>list = new ArrayList<Integer>();
-			if (addThis)
-				list.add(nodeID);
 			try
 			{
 				getAllNodesRecursive(dbCon, list, nodeID, 0);
@@ -348,7 +493,7 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 			{
 				dbBroker.freeConnection(dbCon);
 			}
-			return list.iterator();
+			return Collections.unmodifiableList(list);
 		}
 	}
 
@@ -388,6 +533,8 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 			}
 			catch (final SQLException e)
 			{
+				// Don't remember this node as having no groups.
+				nodeTree.remove(nodeID);
 				sqlErr("getting user nodes", e);
 			}
 			finally
@@ -1294,6 +1441,7 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 
 				// Done!
 				dbConn.commit();
+				invalidateNodeTree(userID);
 			}
 			catch (final SQLException e)
 			{
@@ -1602,6 +1750,8 @@ public final class SecurityModule extends SecurityManager // For getClassContext
 		final List<String> foundPerms = new LinkedList<String>();
 
 		final Iterator<Integer> allNodes = getAllNodes(groupID, true);
+		if (allNodes == null)
+			throw new ChoobException("Couldn't look up the groups of " + group + "; try again later.");
 
 		if ( ! allNodes.hasNext() )
 		{
@@ -0,0 +1,244 @@
+package uk.co.uwcs.choob.modules;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketPermission;
+import java.net.URLDecoder;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uk.co.uwcs.choob.ChoobPluginManagerState;
+import uk.co.uwcs.choob.ChoobTask;
+import uk.co.uwcs.choob.ChoobThreadManager;
+import uk.co.uwcs.choob.support.ChoobException;
+import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
+import uk.co.uwcs.choob.support.WebServer;
+
+/**
+ * Serves plugins' 'web' generic calls over HTTP.
+ *
+ * /rpc/Plugin.Name?params calls Plugin's web generic Name, with a
+ * PrintWriter for the response, the (decoded) params, and the client's
+ * address and hostname. Any other /name/rest goes to the web generic name of
+ * the plugin that started the server, with rest as its params.
+ *
+ * Each call is queued as a task of the plugin it's for, so it runs with that
+ * plugin's permissions and within its concurrency limit, alongside whatever
+ * else the plugin is doing. The server itself never waits for a plugin.
+ */
+public final class WebModule
+{
+	private static final Pattern RPC_URL = Pattern.compile("rpc/([a-zA-Z0-9_-]+?)\\.([a-zA-Z0-9_-]+?)(?:\\?(.*))?");
+	private static final Pattern OTHER_URL = Pattern.compile("([a-zA-Z0-9_-]+)(?:/(.*))?");
+
+	// Clients' hostnames, so each isn't looked up for every request.
+	private static final int MAX_HOSTNAMES = 256;
+	private static final long HOSTNAME_TTL = 10 * 60 * 1000;
+
+	private static final class Hostname
+	{
+		final String name;
+		final long expires;
+
+		Hostname(final String name)
+		{
+			this.name = name;
+			this.expires = System.currentTimeMillis() + HOSTNAME_TTL;
+		}
+	}
+
+	private final Modules mods;
+	private final ChoobPluginManagerState state;
+	private final ChoobThreadManager ctm;
+	private final ConcurrentMap<InetAddress,Hostname> hostnames = new ConcurrentHashMap<InetAddress,Hostname>();
+
+	// Guarded by this.
+	private WebServer server;
+	private volatile String owner;
+
+	private final WebServer.Handler handler = new WebServer.Handler()
+	{
+		@Override
+		public void handle(final WebServer.Exchange exchange)
+		{
+			dispatch(exchange);
+		}
+	};
+
+	/** Creates a new instance of WebModule */
+	WebModule(final Modules mods, final ChoobPluginManagerState state, final ChoobThreadManager ctm)
+	{
+		this.mods = mods;
+		this.state = state;
+		this.ctm = ctm;
+	}
+
+	/**
+	 * Serve web generics on the given port, or carry on if that's already
+	 * being done. Anything but /rpc/ URLs goes to the calling plugin.
+	 * @param port The port to listen on.
+	 * @throws ChoobException If the port can't be listened on.
+	 */
+	public synchronized void listen(final int port) throws ChoobException
+	{
+		AccessController.checkPermission(new SocketPermission("localhost:" + port, "listen"));
+		owner = mods.security.getPluginName(0);
+		// One that's died is started again.
+		if (server != null && server.getPort() == port && server.isRunning())
+			return;
+
+		close();
+		try
+		{
+			// The server's thread mustn't inherit the caller's permissions.
+			server = AccessController.doPrivileged(new PrivilegedExceptionAction<WebServer>() {
+				@Override public WebServer run() throws IOException
+				{
+					return new WebServer(new InetSocketAddress(port), handler, "choob-web-" + port);
+				}
+			});
+		}
+		catch (final PrivilegedActionException e)
+		{
+			throw new ChoobException("Can't listen on port " + port + ": " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Stop serving, if the server's running.
+	 */
+	public synchronized void close()
+	{
+		if (server == null)
+			return;
+		AccessController.checkPermission(new SocketPermission("localhost:" + server.getPort(), "listen"));
+		server.close();
+		server = null;
+	}
+
+	/**
+	 * @return The port being listened on, or -1 if there isn't one.
+	 */
+	public synchronized int getPort()
+	{
+		return server == null || !server.isRunning() ? -1 : server.getPort();
+	}
+
+	private void dispatch(final WebServer.Exchange exchange)
+	{
+		// http://www.w3.org/TR/html40/appendix/notes.html#non-ascii-chars
+		final String url;
+		try
+		{
+			url = URLDecoder.decode(exchange.getTarget().substring(1), "UTF-8").trim();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			exchange.sendError("400 Bad Request", "Badly formatted URL: " + exchange.getTarget());
+			return;
+		}
+		catch (final UnsupportedEncodingException e)
+		{
+			exchange.sendError("400 Bad Request", "Badly formatted URL: " + exchange.getTarget());
+			return;
+		}
+
+		final String pluginName;
+		final String name;
+		final String params;
+		final Matcher rpc = RPC_URL.matcher(url);
+		final Matcher other = OTHER_URL.matcher(url);
+		if (rpc.matches())
+		{
+			pluginName = rpc.group(1);
+			name = rpc.group(2);
+			params = rpc.group(3) != null ? rpc.group(3) : "";
+		}
+		else if (owner != null && other.matches())
+		{
+			pluginName = owner;
+			name = other.group(1);
+			params = other.group(2) != null ? other.group(2) : "";
+		}
+		else
+		{
+			pluginName = null;
+			name = null;
+			params = null;
+		}
+
+		// Anyone can ask for anything; only queue work for plugins that exist.
+		if (pluginName == null || !state.pluginMap.containsKey(pluginName.toLowerCase()))
+		{
+			// Note that this reply is intentionally really short to trigger prettifying in certain browsers.
+			exchange.sendError("404 Not Found", "Oop, no pages here.");
+			return;
+		}
+
+		try
+		{
+			ctm.queueTask(new ChoobTask(pluginName, "web:" + name) {
+				@Override public void run()
+				{
+					call(exchange, pluginName, name, params);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			exchange.sendError("503 Service Unavailable", "Too busy; try again later.");
+		}
+	}
+
+	private void call(final WebServer.Exchange exchange, final String pluginName, final String name, final String params)
+	{
+		final InetAddress address = exchange.getAddress();
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody()));
+		try
+		{
+			mods.plugin.callGeneric(pluginName, "web", name, out, params, new String[] { address.getHostAddress(), getHostname(address) });
+			out.close();
+		}
+		catch (final ChoobNoSuchCallException e)
+		{
+			out.flush();
+			exchange.sendError("404 Not Found", "Oop, no pages here.");
+		}
+		catch (final Exception e)
+		{
+			out.flush();
+			exchange.sendError("500 Internal Server Error", "Error: " + e);
+			e.printStackTrace();
+		}
+		finally
+		{
+			// Errors get here too; the connection's no use until the
+			// response is finished. Does nothing if it already is.
+			out.flush();
+			exchange.sendError("500 Internal Server Error", "Error: the page wasn't finished.");
+		}
+	}
+
+	private String getHostname(final InetAddress address)
+	{
+		final Hostname cached = hostnames.get(address);
+		if (cached != null && cached.expires > System.currentTimeMillis())
+			return cached.name;
+
+		if (hostnames.size() >= MAX_HOSTNAMES)
+			hostnames.clear();
+		final Hostname found = new Hostname(address.getHostName());
+		hostnames.put(address, found);
+		return found.name;
+	}
+}
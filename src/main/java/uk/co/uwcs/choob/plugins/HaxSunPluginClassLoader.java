@@ -99,4 +99,13 @@ public final class HaxSunPluginClassLoader extends ClassLoader
 			throw (ClassNotFoundException)e.getException();
 		}
 	}
+
+	/**
+	 * Define a class made at runtime (e.g. an invoker) in this plugin's
+	 * package, with the plugin's permissions.
+	 */
+	Class<?> defineGeneratedClass(final String name, final byte[] data)
+	{
+		return defineClass(name, data, 0, data.length, domain);
+	}
 }
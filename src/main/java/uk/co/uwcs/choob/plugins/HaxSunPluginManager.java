@@ -8,6 +8,7 @@ package uk.co.uwcs.choob.plugins;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -21,13 +22,15 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.net.URLConnection;
 import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Permission;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,10 +39,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
@@ -68,6 +78,8 @@ import uk.co.uwcs.choob.support.ChoobException;
 import uk.co.uwcs.choob.support.ChoobInvocationError;
 import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
 import uk.co.uwcs.choob.support.ChoobNoSuchPluginException;
+import uk.co.uwcs.choob.support.ChoobPermission;
+import uk.co.uwcs.choob.support.FilterIndex;
 import uk.co.uwcs.choob.support.IRCInterface;
 import uk.co.uwcs.choob.support.events.Event;
 import uk.co.uwcs.choob.support.events.Message;
@@ -82,6 +94,10 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 	final static String PLUGIN_DIR = ChoobMain.TEMP_FOLDER.getPath() + "/plugins";
 	private final ChoobPluginMap allPlugins;
 
+	// Plugin name -> source URL, for plugins precompile() has just made sure
+	// are compiled from that URL's current contents.
+	private final Map<String,String> verifiedSources = new ConcurrentHashMap<String,String>();
+
 	public HaxSunPluginManager(final Modules mods, final IRCInterface irc, final ChoobPluginManagerState state)
 			throws ChoobException {
 		super(mods, state);
@@ -150,8 +166,276 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 		throw new ChoobException(excep);
 	}
 
+	/**
+	 * Compile several plugins' sources in a single compiler run, with each
+	 * plugin's classes going to its own directory.
+	 * @param fileNames Map of plugin name to the source files for it.
+	 * @return true if everything compiled.
+	 */
+	private boolean compileBatch(final Map<String,String[]> fileNames) throws ChoobException
+	{
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final PrintWriter output = new PrintWriter(baos);
+
+		final StandardJavaFileManager standardManager = compiler
+				.getStandardFileManager(null, null, null);
+
+		try {
+			standardManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(new File(PLUGIN_DIR)));
+		} catch (final IOException e) {
+			throw new ChoobException(e);
+		}
+
+		// Everything is in package plugins.<PluginName>, so the class name
+		// says which plugin's directory it belongs in.
+		final ForwardingJavaFileManager<StandardJavaFileManager> fileManager =
+			new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+				@Override
+				public JavaFileObject getJavaFileForOutput(final Location location, final String className,
+						final JavaFileObject.Kind kind, final FileObject sibling) throws IOException
+				{
+					final String[] parts = className.split("\\.");
+					if (location != StandardLocation.CLASS_OUTPUT || parts.length < 3 || !parts[0].equals("plugins"))
+						return super.getJavaFileForOutput(location, className, kind, sibling);
+
+					final File classFile = new File(PLUGIN_DIR + File.separator + parts[1] + File.separator
+							+ className.replace('.', File.separatorChar) + kind.extension);
+					classFile.getParentFile().mkdirs();
+					return standardManager.getJavaFileObjects(classFile).iterator().next();
+				}
+			};
+
+		final List<String> allNames = new ArrayList<String>();
+		for (final String[] names : fileNames.values())
+			allNames.addAll(Arrays.asList(names));
+		final Iterable<? extends JavaFileObject> compilationUnits = standardManager
+			.getJavaFileObjectsFromStrings(allNames);
+
+		final boolean success;
+		try {
+			success = AccessController
+					.doPrivileged(new PrivilegedExceptionAction<Boolean>() {
+						@Override public Boolean run() {
+							return compiler.getTask(output, fileManager, null,
+									null, null, compilationUnits).call();
+						}
+					});
+		} catch (final PrivilegedActionException e) {
+			throw new ChoobException(e);
+		}
+
+		try {
+			fileManager.close();
+		} catch (final IOException e) {
+			throw new ChoobException(e);
+		}
+
+		return success;
+	}
+
+	/**
+	 * Make sure a set of plugins are compiled from their current source,
+	 * compiling all those that have changed together. Any that fail to
+	 * compile are left for loading them to report on.
+	 * @param urls Map of plugin name to the URL of its source.
+	 * @param sources Map of plugin name to the source itself.
+	 * @param pool Executor to prepare the sources for compilation on.
+	 * @return The number of plugins that were compiled.
+	 */
+	public int precompile(final Map<String,URL> urls, final Map<String,String> sources, final ExecutorService pool) throws ChoobException
+	{
+		for (final String pluginName : sources.keySet())
+			AccessController.checkPermission(new ChoobPermission("plugin.load." + pluginName.toLowerCase()));
+
+		// Split each stale plugin into its files, in parallel.
+		final Map<String,Future<String[]>> preparing = new HashMap<String,Future<String[]>>();
+		for (final Entry<String,String> source : sources.entrySet())
+		{
+			final String pluginName = source.getKey();
+			final String code = source.getValue();
+			preparing.put(pluginName, pool.submit(new Callable<String[]>() {
+				@Override public String[] call() throws ChoobException {
+					if (isCompiled(pluginName, code))
+						return null;
+					return prepareSource(pluginName, code);
+				}
+			}));
+		}
+
+		final Map<String,String[]> stale = new HashMap<String,String[]>();
+		for (final Entry<String,Future<String[]>> prep : preparing.entrySet())
+		{
+			final String pluginName = prep.getKey();
+			try
+			{
+				final String[] names = prep.getValue().get();
+				if (names == null)
+					verifiedSources.put(pluginName, urls.get(pluginName).toString());
+				else
+					stale.put(pluginName, names);
+			}
+			catch (final ExecutionException e)
+			{
+				System.err.println("Couldn't prepare plugin " + pluginName + " for compilation: " + e.getCause());
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ChoobException("Interrupted preparing plugins for compilation.", e);
+			}
+		}
+
+		if (stale.isEmpty())
+			return 0;
+
+		final List<String> compiled = new ArrayList<String>();
+		if (compileBatch(stale))
+			compiled.addAll(stale.keySet());
+		else
+		{
+			// Something's broken; compile them separately to find out what.
+			final Map<String,Future<Boolean>> retries = new HashMap<String,Future<Boolean>>();
+			for (final Entry<String,String[]> plugin : stale.entrySet())
+			{
+				final String[] names = plugin.getValue();
+				final String classPath = getClassPath(plugin.getKey());
+				retries.put(plugin.getKey(), pool.submit(new Callable<Boolean>() {
+					@Override public Boolean call() {
+						try
+						{
+							compile(names, classPath);
+							return true;
+						}
+						catch (final ChoobException e)
+						{
+							return false;
+						}
+					}
+				}));
+			}
+			for (final Entry<String,Future<Boolean>> retry : retries.entrySet())
+			{
+				try
+				{
+					if (retry.getValue().get().booleanValue())
+						compiled.add(retry.getKey());
+				}
+				catch (final ExecutionException e)
+				{
+					System.err.println("Couldn't compile plugin " + retry.getKey() + ": " + e.getCause());
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new ChoobException("Interrupted compiling plugins.", e);
+				}
+			}
+		}
+
+		for (final String pluginName : compiled)
+		{
+			markCompiled(pluginName, sources.get(pluginName));
+			verifiedSources.put(pluginName, urls.get(pluginName).toString());
+		}
+		return stale.size();
+	}
+
+	private static String getClassPath(final String pluginName)
+	{
+		return PLUGIN_DIR + File.separator + pluginName + File.separator;
+	}
+
+	private static File getHashFile(final String pluginName)
+	{
+		return new File(getClassPath(pluginName) + pluginName + ".sha1");
+	}
+
+	private static String hash(final String code)
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(code.getBytes("UTF-8"));
+			final StringBuilder ret = new StringBuilder(digest.length * 2);
+			for (final byte b : digest)
+				ret.append(String.format("%02x", b & 0xff));
+			return ret.toString();
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			throw new ChoobError("SHA-1 is not available", e);
+		}
+		catch (final IOException e)
+		{
+			throw new ChoobError("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * Are the plugin's classes compiled from exactly this source?
+	 */
+	private static boolean isCompiled(final String pluginName, final String code)
+	{
+		final File hashFile = getHashFile(pluginName);
+		final File classFile = new File(getClassPath(pluginName) + "plugins" + File.separator + pluginName
+				+ File.separator + pluginName + ".class");
+		if (!hashFile.isFile() || !classFile.isFile())
+			return false;
+		try
+		{
+			return consume(new FileInputStream(hashFile)).trim().equals(hash(code));
+		}
+		catch (final IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Record that the plugin's classes have been compiled from this source.
+	 */
+	private static void markCompiled(final String pluginName, final String code)
+	{
+		try
+		{
+			final PrintStream hashOut = new PrintStream(new FileOutputStream(getHashFile(pluginName)));
+			try
+			{
+				hashOut.print(hash(code));
+			}
+			finally
+			{
+				hashOut.close();
+			}
+		}
+		catch (final IOException e)
+		{
+			// It'll just get compiled again next time.
+			System.err.println("Couldn't record source hash for plugin " + pluginName + ": " + e);
+		}
+	}
+
+	/**
+	 * Write out the source for compilation, forgetting what it was last
+	 * compiled from until it's compiled again.
+	 * @return The names of the files written.
+	 */
+	private String[] prepareSource(final String pluginName, final String code) throws ChoobException
+	{
+		final String classPath = getClassPath(pluginName);
+		new File(classPath).mkdirs();
+		getHashFile(pluginName).delete();
+		try
+		{
+			return makeJavaFiles(pluginName, classPath, code);
+		}
+		catch (final IOException e)
+		{
+			throw new ChoobException("Failed to set up for compiler: " + e);
+		}
+	}
+
 	/** Entire contents in a String */
-	private static String consume(final InputStream in) throws IOException
+	public static String consume(final InputStream in) throws IOException
 	{
 		final int block = 1024 * 10;
 		final StringBuilder data = new StringBuilder(block);
@@ -178,14 +462,13 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 		return (CompilationUnit) parser.createAST(null);
 	}
 
-	private String[] makeJavaFiles(final String pluginName, final String outDir, final InputStream in) throws IOException
+	private String[] makeJavaFiles(final String pluginName, final String outDir, final String cus) throws IOException
 	{
 		final Document doc;
 		CompilationUnit cu;
 
-		// create an initial doc / cu pair from the inputstream
+		// create an initial doc / cu pair from the source
 		{
-			final String cus = consume(in);
 			cu = asAST(cus);
 			cu.recordModifications();
 			doc = new Document(cus);
@@ -304,50 +587,24 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 	@Override
 	protected Object createPlugin(final String pluginName, final URL source) throws ChoobException
 	{
-		final String classPath = PLUGIN_DIR + File.separator + pluginName + File.separator;
-		if (source != null)
+		final String classPath = getClassPath(pluginName);
+		if (source != null && !source.toString().equals(verifiedSources.remove(pluginName)))
 		{
-			final File javaDir = new File(classPath);
-			final String javaFileName = classPath + pluginName + ".java";
-			final File javaFile = new File(javaFileName);
-			URLConnection sourceConn;
+			final String code;
 			try
 			{
-				sourceConn = source.openConnection();
+				code = consume(source.openConnection().getInputStream());
 			}
 			catch (final IOException e)
 			{
 				throw new ChoobException("Problem opening connection: ", e);
 			}
-			if (sourceConn.getLastModified() > javaFile.lastModified() || sourceConn.getLastModified() == 0)
-			{
-				// needs
-				InputStream in = null;
-				boolean success = false;
-				try
-				{
-					javaDir.mkdirs();
-					in = sourceConn.getInputStream();
-					final String[] names = makeJavaFiles(pluginName, classPath, in);
-					compile(names, classPath);
-					// This should help to aleviate timezone differences.
-					javaFile.setLastModified( sourceConn.getLastModified() );
-					success = true;
-				}
-				catch (final IOException e)
-				{
-					throw new ChoobException("Failed to set up for compiler: " + e);
-				}
-				finally
-				{
-					try {
-						if (in != null)
-							in.close();
-					} catch (final IOException e) {}
 
-					if (!success)
-						javaFile.delete();
-				}
+			// Only recompile if the source has actually changed.
+			if (!isCompiled(pluginName, code))
+			{
+				compile(prepareSource(pluginName, code), classPath);
+				markCompiled(pluginName, code);
 			}
 		}
 
@@ -462,6 +719,9 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 			// TODO: Make a groupExists() or something so we don't need to squelch this
 		}
 
+		// Let the instance being replaced save anything it's holding.
+		destroyInstance(pluginName, allPlugins.getPluginObj(pluginName));
+
 		String[] newCommands = new String[0];
 		String[] oldCommands = new String[0];
 		synchronized(allPlugins)
@@ -526,9 +786,51 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 		}
 	}
 
+	/**
+	 * Call the destroy() method of a plugin instance that's going away, if it
+	 * has one. Problems are reported, but don't stop it going.
+	 */
+	private static void destroyInstance(final String pluginName, final Object pluginObj)
+	{
+		if (pluginObj == null)
+			return;
+
+		try
+		{
+			final Method meth = pluginObj.getClass().getMethod("destroy");
+			meth.invoke(pluginObj);
+		}
+		catch (final NoSuchMethodException e)
+		{
+			// Most plugins have nothing to clean up.
+		}
+		catch (final IllegalAccessException e)
+		{
+			// Nor does this matter.
+		}
+		catch (final InvocationTargetException e)
+		{
+			System.err.println("Plugin " + pluginName + "'s destroy() threw an exception: " + e.getCause());
+			e.getCause().printStackTrace();
+		}
+	}
+
+	/**
+	 * Call destroy() on every plugin, as the bot is going away. They stay
+	 * loaded, and may still be called.
+	 */
+	public void destroyPlugins()
+	{
+		AccessController.checkPermission(new ChoobPermission("root"));
+		for (final Entry<String,Object> plugin : allPlugins.getPluginObjs().entrySet())
+			destroyInstance(plugin.getKey(), plugin.getValue());
+	}
+
 	@Override
 	protected void destroyPlugin(final String pluginName)
 	{
+		destroyInstance(pluginName, allPlugins.getPluginObj(pluginName));
+
 		String[] oldCommands = new String[0];
 		synchronized(allPlugins)
 		{
@@ -603,26 +905,26 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 	{
 		final String pluginName = meth.getDeclaringClass().getSimpleName();
 		final Object plugin = allPlugins.getPluginObj(pluginName);
-		final Object[] params;
-		if (meth.getParameterTypes().length == 1)
-			params = new Object[] { param };
-		else
-			params = new Object[] { param, mods, irc };
+		final PluginInvoker invoker = allPlugins.getInvoker(meth);
+		final boolean simple = isSimpleCommand(meth);
+		final boolean full = meth.getParameterTypes().length != 1;
 
 		return new ChoobTask(pluginName) {
 			@Override
 			public void run() {
 				try
 				{
-					if (isSimpleCommand(meth))
+					if (simple)
 					{
 						// intentional throw of ClassCastException.
 						Message m = (Message) param;
-						String res = (String)meth.invoke(plugin, mods.util.getParamString(m));
+						String res = (String)invoker.invoke(plugin, mods.util.getParamString(m));
 						irc.sendContextReply(m, res);
 					}
+					else if (full)
+						invoker.invoke(plugin, param, mods, irc);
 					else
-						meth.invoke(plugin, params);
+						invoker.invoke(plugin, param);
 				}
 				catch (final InvocationTargetException e)
 				{
@@ -698,28 +1000,30 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 		if (plugin == null)
 			throw new ChoobNoSuchPluginException(pluginName, sig);
 
-		Member meth = allPlugins.getGeneric(sig);
-		if (meth == null)
+		PluginInvoker invoker = allPlugins.getGeneric(sig);
+		if (invoker == null)
 		{
 			// OK, not cached. But maybe it's still there...
 			final List<Member> meths = allPlugins.getAllGeneric(fullName);
 
+			Member meth = null;
 			if (meths != null)
 				meth = javaHorrorMethodResolve(meths, params);
 
 			if (meth != null)
-				allPlugins.setGeneric(sig, meth);
+			{
+				invoker = allPlugins.getInvoker(meth);
+				allPlugins.setGeneric(sig, invoker);
+			}
 			else
 				throw new ChoobNoSuchCallException(pluginName, sig);
 		}
-		final Member meth2 = meth;
+		final PluginInvoker invoker2 = invoker;
 		try
 		{
 			return AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
 				@Override public Object run() throws InvocationTargetException, IllegalAccessException {
-					if (meth2 instanceof Method)
-						return ((Method)meth2).invoke(plugin, params);
-					return ((Field)meth2).get(plugin);
+					return invoker2.invoke(plugin, params);
 				}
 			}, mods.security.getPluginContext() );
 		}
@@ -861,9 +1165,55 @@ public final class HaxSunPluginManager extends ChoobPluginManager
 
 /**
  * Caches all sorts of plugin info
+ *
+ * The maps below are only touched while holding the lock, by resetPlugin. Each
+ * change is then published as a new, immutable set of Tables, which is what
+ * all the lookups read from, so they never have to lock anything.
  */
 final class ChoobPluginMap
 {
+	// Everything needed to dispatch to plugins, as of the last (un)load.
+	private static final class Tables
+	{
+		final Map<String,Object> plugins;
+		final Map<String,List<String>> pluginCommands;
+		final Map<String,Method> pluginInterval;
+		final Map<String,Method> commands;
+		final Map<String,List<Member>> genCalls;
+		final Map<String,List<Method>> events;
+		final FilterIndex<Method> filters;
+		final Map<Member,PluginInvoker> invokers;
+
+		// Resolved generic signatures. Filled in as calls are made; being part
+		// of the snapshot, it's thrown away whenever any plugin changes.
+		final Map<String,PluginInvoker> genCallSigs = new ConcurrentHashMap<String,PluginInvoker>();
+
+		Tables(final ChoobPluginMap map)
+		{
+			plugins = Collections.unmodifiableMap(new HashMap<String,Object>(map.plugins));
+			pluginCommands = copyOfLists(map.pluginCommands);
+			pluginInterval = Collections.unmodifiableMap(new HashMap<String,Method>(map.pluginInterval));
+			commands = Collections.unmodifiableMap(new HashMap<String,Method>(map.commands));
+			genCalls = copyOfLists(map.genCalls);
+			events = copyOfLists(map.events);
+			invokers = Collections.unmodifiableMap(new HashMap<Member,PluginInvoker>(map.invokers));
+
+			final FilterIndex.Builder<Method> builder = new FilterIndex.Builder<Method>();
+			for (final Entry<Pattern,List<Method>> filter : map.filters.entrySet())
+				for (final Method meth : filter.getValue())
+					builder.add(filter.getKey(), meth);
+			filters = builder.build();
+		}
+
+		private static <T> Map<String,List<T>> copyOfLists(final Map<String,List<T>> map)
+		{
+			final Map<String,List<T>> ret = new HashMap<String,List<T>>();
+			for (final Entry<String,List<T>> entry : map.entrySet())
+				ret.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<T>(entry.getValue())));
+			return Collections.unmodifiableMap(ret);
+		}
+	}
+
 	// Name -> Plugin object
 	private final Map<String,Object> plugins;
 
@@ -871,7 +1221,6 @@ final class ChoobPluginMap
 	private final Map<String,List<String>> pluginCommands;
 //	private final Map<String,List<String>> pluginApiCallSigs;
 //	private final Map<String,List<String>> pluginApiCalls;
-	private final Map<String,List<String>> pluginGenCallSigs;
 	private final Map<String,List<String>> pluginGenCalls;
 	private final Map<String,List<Pattern>> pluginFilters;
 
@@ -884,10 +1233,12 @@ final class ChoobPluginMap
 	private final Map<String,Method> commands; // plugin.commandname -> method
 //	private final Map<String,Method> apiCallSigs;
 //	private final Map<String,List<Method>> apiCalls;
-	private final Map<String,Member> genCallSigs; // plugin.prefix:genericname(params) -> method
 	private final Map<String,List<Member>> genCalls; // plugin.prefix:genericname -> list of possible methods
 	private final Map<Pattern,List<Method>> filters; // pattern object -> method to call on match
 	private final Map<String,List<Method>> events; // event name -> method list
+	private final Map<Member,PluginInvoker> invokers; // method or field -> its invoker
+
+	private volatile Tables tables;
 
 	// Create an empty plugin map.
 	ChoobPluginMap()
@@ -897,17 +1248,17 @@ final class ChoobPluginMap
 		//pluginApiCalls = new HashMap<String,List<String>>();
 		//pluginApiCallSigs = new HashMap<String,List<String>>();
 		pluginGenCalls = new HashMap<String,List<String>>();
-		pluginGenCallSigs = new HashMap<String,List<String>>();
 		pluginFilters = new HashMap<String,List<Pattern>>();
 		pluginEvents = new HashMap<String,List<Method>>();
 		pluginInterval = new HashMap<String,Method>();
 		commands = new HashMap<String,Method>();
 		//apiCallSigs = new HashMap<String,Method>();
 		//apiCalls = new HashMap<String,List<Method>>();
-		genCallSigs = new HashMap<String,Member>();
 		genCalls = new HashMap<String,List<Member>>();
 		filters = new HashMap<Pattern,List<Method>>();
 		events = new HashMap<String,List<Method>>();
+		invokers = new HashMap<Member,PluginInvoker>();
+		tables = new Tables(this);
 	}
 
 	// Wipe out details for plugin <name>, and if pluginObj is not null, add new ones.
@@ -930,18 +1281,18 @@ final class ChoobPluginMap
 			it = pluginGenCalls.get(lname).iterator();
 			while (it.hasNext())
 				genCalls.remove(it.next());
-			it = pluginGenCallSigs.get(lname).iterator();
-			while (it.hasNext())
-				genCallSigs.remove(it.next());
 			final Iterator<Pattern> it3 = pluginFilters.get(lname).iterator();
 			while (it3.hasNext())
 			{
-				final Iterator<Method> it2 = filters.get(it3.next()).iterator();
+				final Pattern pat = it3.next();
+				final Iterator<Method> it2 = filters.get(pat).iterator();
 				while(it2.hasNext())
 				{
 					if (it2.next().getDeclaringClass().getSimpleName().compareToIgnoreCase(pluginName) == 0)
 						it2.remove();
 				}
+				if (filters.get(pat).isEmpty())
+					filters.remove(pat);
 			}
 			final Iterator<Method> it2 = pluginEvents.get(lname).iterator();
 			while (it2.hasNext())
@@ -949,6 +1300,12 @@ final class ChoobPluginMap
 				final Method m = it2.next();
 				events.get(m.getName()).remove(m);
 			}
+			final Iterator<Member> it4 = invokers.keySet().iterator();
+			while (it4.hasNext())
+			{
+				if (it4.next().getDeclaringClass().getSimpleName().compareToIgnoreCase(pluginName) == 0)
+					it4.remove();
+			}
 		}
 
 		if (pluginObj == null)
@@ -958,9 +1315,10 @@ final class ChoobPluginMap
 			//pluginApiCalls.remove(lname);
 			//pluginApiCallSigs.remove(lname);
 			pluginGenCalls.remove(lname);
-			pluginGenCallSigs.remove(lname);
+			pluginFilters.remove(lname);
 			pluginEvents.remove(lname);
 			pluginInterval.remove(lname);
+			tables = new Tables(this);
 			return;
 		}
 
@@ -974,8 +1332,6 @@ final class ChoobPluginMap
 		//pluginApiCallSigs.put(lname, apiss);
 		final List<String> gens = new LinkedList<String>();
 		pluginGenCalls.put(lname, gens);
-		final List<String> genss = new LinkedList<String>();
-		pluginGenCallSigs.put(lname, genss);
 		final List<Pattern> fils = new LinkedList<Pattern>();
 		pluginFilters.put(lname, fils);
 		final List<Method> evs = new LinkedList<Method>();
@@ -999,6 +1355,7 @@ final class ChoobPluginMap
 				{
 					coms.add(commandName);
 					commands.put(commandName, meth);
+					addInvoker(meth);
 
 					if (HaxSunPluginManager.isSimpleCommand(meth))
 					{
@@ -1067,6 +1424,7 @@ final class ChoobPluginMap
 					if (filters.get(pattern) == null)
 						filters.put(pattern, new LinkedList<Method>());
 					filters.get(pattern).add(meth);
+					addInvoker(meth);
 				}
 				else
 				{
@@ -1081,6 +1439,7 @@ final class ChoobPluginMap
 					if (events.get(name) == null)
 						events.put(name, new LinkedList<Method>());
 					events.get(name).add(meth);
+					addInvoker(meth);
 				}
 				else
 				{
@@ -1092,6 +1451,7 @@ final class ChoobPluginMap
 				if (HaxSunPluginManager.checkIntervalSignature(meth))
 				{
 					pluginInterval.put(lname, meth);
+					addInvoker(meth);
 				}
 				else
 				{
@@ -1114,6 +1474,7 @@ final class ChoobPluginMap
 						if (genCalls.get(fullName) == null)
 							genCalls.put(fullName, new LinkedList<Member>());
 						genCalls.get(fullName).add(meth);
+						addInvoker(meth);
 					}
 					else
 					{
@@ -1164,6 +1525,7 @@ final class ChoobPluginMap
 					if (genCalls.get(fullName) == null)
 						genCalls.put(fullName, new LinkedList<Member>());
 					genCalls.get(fullName).add(field);
+					addInvoker(field);
 				}
 				else
 				{
@@ -1171,26 +1533,52 @@ final class ChoobPluginMap
 				}
 			}
 		}
+		tables = new Tables(this);
 	}
 
-	synchronized Object getPluginObj(final String pluginName)
+	// Must be called with the lock held.
+	private void addInvoker(final Member member)
 	{
-		return plugins.get(pluginName.toLowerCase());
+		if (!invokers.containsKey(member))
+			invokers.put(member, PluginInvoker.create(member));
 	}
 
-	synchronized Object getPluginObj(final Member meth)
+	/**
+	 * Get the invoker for a loaded plugin's method or field. Falls back to
+	 * making a new one, in case the plugin has since been unloaded.
+	 */
+	PluginInvoker getInvoker(final Member member)
+	{
+		final PluginInvoker invoker = tables.invokers.get(member);
+		if (invoker != null)
+			return invoker;
+		return PluginInvoker.create(member);
+	}
+
+	Object getPluginObj(final String pluginName)
+	{
+		return tables.plugins.get(pluginName.toLowerCase());
+	}
+
+	// Name (lower case) -> plugin object, for every plugin.
+	Map<String,Object> getPluginObjs()
+	{
+		return tables.plugins;
+	}
+
+	Object getPluginObj(final Member meth)
 	{
 		return getPluginObj(meth.getDeclaringClass().getSimpleName().toLowerCase());
 	}
 
-	synchronized Method getCommand(final String commandName)
+	Method getCommand(final String commandName)
 	{
-		return commands.get(commandName.toLowerCase());
+		return tables.commands.get(commandName.toLowerCase());
 	}
 
-	synchronized List<String> getCommands(final String pluginName)
+	List<String> getCommands(final String pluginName)
 	{
-		return pluginCommands.get(pluginName.toLowerCase());
+		return tables.pluginCommands.get(pluginName.toLowerCase());
 	}
 
 	/*synchronized Method getAPI(String apiName)
@@ -1209,52 +1597,41 @@ final class ChoobPluginMap
 		return apiCalls.get(apiName.toLowerCase());
 	}*/
 
-	synchronized Member getGeneric(final String genName)
+	PluginInvoker getGeneric(final String genName)
 	{
-		return genCallSigs.get(genName.toLowerCase());
+		return tables.genCallSigs.get(genName.toLowerCase());
 	}
 
-	synchronized void setGeneric(final String genName, final Member obj)
+	void setGeneric(final String genName, final PluginInvoker invoker)
 	{
-		pluginGenCallSigs.get(obj.getDeclaringClass().getSimpleName().toLowerCase()).add(genName.toLowerCase());
-		genCallSigs.put(genName.toLowerCase(), obj);
+		tables.genCallSigs.put(genName.toLowerCase(), invoker);
 	}
 
-	synchronized List<Member> getAllGeneric(final String genName)
+	List<Member> getAllGeneric(final String genName)
 	{
-		return genCalls.get(genName.toLowerCase());
+		return tables.genCalls.get(genName.toLowerCase());
 	}
 
-	synchronized List<Method> getFilter(final String text)
+	List<Method> getFilter(final String text)
 	{
-		final List<Method> ret = new LinkedList<Method>();
-		final Iterator<Pattern> pats = filters.keySet().iterator();
-		while(pats.hasNext())
-		{
-			final Pattern pat = pats.next();
-			if (pat.matcher(text).find())
-				ret.addAll(filters.get(pat));
-		}
-		return ret;
+		return tables.filters.match(text);
 	}
 
-	synchronized List<Method> getEvent(final String eventName)
+	// The returned list must not be modified.
+	List<Method> getEvent(final String eventName)
 	{
-		final List<Method> handlers = events.get(eventName);
-		if (handlers != null)
-			return new ArrayList<Method>(handlers);
-		return null;
+		return tables.events.get(eventName);
 	}
 
-	synchronized Method getInterval(final String pluginName)
+	Method getInterval(final String pluginName)
 	{
-		return pluginInterval.get(pluginName.toLowerCase());
+		return tables.pluginInterval.get(pluginName.toLowerCase());
 	}
 
-	synchronized List<String> getAllSimpleCommands()
+	List<String> getAllSimpleCommands()
 	{
 		List<String> ret = new ArrayList<String>();
-		for (Entry<String, Method> cmdref : commands.entrySet())
+		for (Entry<String, Method> cmdref : tables.commands.entrySet())
 			if (HaxSunPluginManager.isSimpleCommand(cmdref.getValue()))
 				ret.add(cmdref.getKey());
 		return ret;
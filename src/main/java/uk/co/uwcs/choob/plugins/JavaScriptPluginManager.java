@@ -14,11 +14,14 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,7 +29,9 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.FunctionObject;
+import org.mozilla.javascript.NativeJavaPackage;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.regexp.NativeRegExp;
@@ -37,9 +42,12 @@ import uk.co.uwcs.choob.ChoobTask;
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.ChoobError;
 import uk.co.uwcs.choob.support.ChoobException;
+import uk.co.uwcs.choob.support.ChoobFakeProtectionDomain;
 import uk.co.uwcs.choob.support.ChoobInvocationError;
 import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
+import uk.co.uwcs.choob.support.FilterIndex;
 import uk.co.uwcs.choob.support.IRCInterface;
+import uk.co.uwcs.choob.support.JSRegExpTranslator;
 import uk.co.uwcs.choob.support.JSUtils;
 import uk.co.uwcs.choob.support.events.Event;
 import uk.co.uwcs.choob.support.events.Message;
@@ -58,14 +66,113 @@ public final class JavaScriptPluginManager extends ChoobPluginManager {
 	private final Modules mods;
 	private final IRCInterface irc;
 
+	/*
+	 * Standard objects (and dump/dumpln), shared by every plugin's scope and
+	 * sealed so that no plugin can change them under another.
+	 */
+	private final ScriptableObject sharedScope;
+
 	private final int CALL_WANT_TASK   = 1;
 	private final int CALL_WANT_RESULT = 2;
 
+	// Plugins are compiled to classes with all of Rhino's optimisations on.
+	static final int OPTIMIZATION_LEVEL = 9;
+
+	/*
+	 * Things the plugins used to add to the standard objects themselves,
+	 * which they can no longer do now they're sealed.
+	 */
+	private static final String PRELUDE =
+		"if (!String.prototype.trim) {\n" +
+		"	String.prototype.trim = function() {\n" +
+		"		return this.replace(/^\\s+/, \"\").replace(/\\s+$/, \"\");\n" +
+		"	};\n" +
+		"}\n";
+
 	public JavaScriptPluginManager(final Modules mods, final IRCInterface irc, ChoobPluginManagerState state) {
 		super(mods, state);
 		this.mods = mods;
 		this.irc = irc;
 		this.pluginMap = new JavaScriptPluginMap();
+		this.sharedScope = createSharedScope();
+	}
+
+	/*
+	 * Gets the Context for this thread, entering one if there isn't one
+	 * already. It is left entered afterwards, so the plugin threads each make
+	 * one the first time they call into JavaScript and keep it from then on.
+	 */
+	static Context enterContext() {
+		Context cx = Context.getCurrentContext();
+		if (cx == null) {
+			cx = Context.enter();
+			cx.setOptimizationLevel(OPTIMIZATION_LEVEL);
+		}
+		return cx;
+	}
+
+	/*
+	 * Builds the scope every plugin scope inherits from. Everything in it is
+	 * sealed, bar the Java packages, which fill themselves in as they're
+	 * used.
+	 */
+	static ScriptableObject createSharedScope() {
+		final Context cx = enterContext();
+		final ScriptableObject scope = cx.initStandardObjects(null, false);
+		try {
+			final int flags = ScriptableObject.READONLY | ScriptableObject.DONTENUM | ScriptableObject.PERMANENT;
+			ScriptableObject.defineProperty(scope, "dump", new FunctionObject("dump", JavaScriptPluginManager.class.getMethod("dump", String.class), scope), flags);
+			ScriptableObject.defineProperty(scope, "dumpln", new FunctionObject("dumpln", JavaScriptPluginManager.class.getMethod("dumpln", String.class), scope), flags);
+		} catch(final NoSuchMethodException e) {
+			System.err.println("Method not found: " + e);
+			// Ignore for now.
+		}
+		cx.evaluateString(scope, PRELUDE, "prelude", 1, null);
+
+		for (final Object id : scope.getAllIds()) {
+			if (!(id instanceof String)) {
+				continue;
+			}
+			final Object value = scope.get((String)id, scope);
+			if (!(value instanceof ScriptableObject) || value instanceof NativeJavaPackage) {
+				continue;
+			}
+			final ScriptableObject obj = (ScriptableObject)value;
+			if (obj instanceof Function) {
+				final Object proto = obj.get("prototype", obj);
+				if (proto instanceof ScriptableObject) {
+					((ScriptableObject)proto).sealObject();
+				}
+			}
+			obj.sealObject();
+		}
+		scope.sealObject();
+		return scope;
+	}
+
+	/*
+	 * Makes a new, empty, top-level scope for one plugin; lookups it can't
+	 * satisfy fall through to the shared scope.
+	 */
+	static Scriptable createPluginScope(final Context cx, final Scriptable sharedScope) {
+		final Scriptable scope = cx.newObject(sharedScope);
+		scope.setPrototype(sharedScope);
+		scope.setParentScope(null);
+		return scope;
+	}
+
+	/*
+	 * Compiles a plugin's source to classes. This is done once per load; the
+	 * calls after that only run the result.
+	 */
+	static Script compile(final Context cx, final String code, final String pluginName) {
+		final int level = cx.getOptimizationLevel();
+		cx.setOptimizationLevel(OPTIMIZATION_LEVEL);
+		try {
+			return cx.compileString(code, pluginName, 1, null);
+		} finally {
+			cx.setOptimizationLevel(level);
+		}
 	}
 
 	/*
@@ -116,7 +223,7 @@ public final class JavaScriptPluginManager extends ChoobPluginManager {
 		}
 
 		// Create the new plugin instance.
-		final JavaScriptPlugin plug = new JavaScriptPlugin(this, pluginName, code, mods, irc);
+		final JavaScriptPlugin plug = new JavaScriptPlugin(this, pluginName, code, sharedScope, mods, irc);
 
 		// Update bot's overall command list, for spell-check-based suggestions.
 		String[] newCommands = new String[0];
@@ -131,8 +238,7 @@ public final class JavaScriptPluginManager extends ChoobPluginManager {
 				oldCommands = commands.toArray(oldCommands);
 
 			// Clear the old instance's map data and load the new plugin map.
-			pluginMap.unloadPluginMap(pluginName);
-			pluginMap.loadPluginMap(pluginName, plug);
+			pluginMap.replacePluginMap(pluginName, plug);
 
 			// Get list of commands for newly loaded plugin.
 			commands = pluginMap.getCommands(pluginName);
@@ -258,14 +364,10 @@ public final class JavaScriptPluginManager extends ChoobPluginManager {
 		final String pluginName = plugin.getName();
 		final String fullName = pluginName + "." + export.getName();
 
-		final ProtectionDomain[] domain = new ProtectionDomain[] {
-				mods.security.getContextProtectionDomain(),
-				mods.security.getProtectionDomain(pluginName)
-			};
-		final AccessControlContext accessContext = new AccessControlContext(domain);
+		final AccessControlContext accessContext = plugin.getAccessContext(mods.security.getPluginNames());
 		final PrivilegedExceptionAction<Object> action = new PrivilegedExceptionAction<Object>() {
 			@Override public Object run() throws Exception {
-				final Context cx = Context.enter();
+				final Context cx = enterContext();
 				try {
 					final Scriptable scope = plugin.getScope();
 					final Scriptable inst = plugin.getInstance();
@@ -299,9 +401,6 @@ public final class JavaScriptPluginManager extends ChoobPluginManager {
 					}
 					e.printStackTrace();
 					throw e;
-
-				} finally {
-					Context.exit();
 				}
 			}
 		};
@@ -340,36 +439,105 @@ final class JavaScriptPluginMap {
 	 * Interval  interval        one       pluginname
 	 */
 
-	// List of plugins.
-	private final Map<String,JavaScriptPlugin> plugins;
-	// List of function for each command.
-	private final Map<String,JavaScriptPluginMethod> commands;
-	// List of function for each event.
-	private final Map<String,List<JavaScriptPluginMethod>> events;
-	// List of function for each filter.
-	private final Map<NativeRegExp,JavaScriptPluginMethod> filters;
-	// List of function for each generic.
-	private final Map<String,JavaScriptPluginExport> generics;
-	// List of function for each interval callback.
-	private final Map<String,JavaScriptPluginMethod> intervals;
-
-	public JavaScriptPluginMap() {
-		plugins   = new HashMap<String,JavaScriptPlugin>();
-
-		commands  = new HashMap<String,JavaScriptPluginMethod>();
-		events    = new HashMap<String,List<JavaScriptPluginMethod>>();
-		filters   = new HashMap<NativeRegExp,JavaScriptPluginMethod>();
-		generics  = new HashMap<String,JavaScriptPluginExport>();
-		intervals = new HashMap<String,JavaScriptPluginMethod>();
+	/*
+	 * Filters translated to java.util.regex are matched by the index, along
+	 * with everything else's; only the rest need to go through Rhino.
+	 */
+	private static final class FilterTables {
+		final FilterIndex<JavaScriptPluginMethod> index;
+		final Map<NativeRegExp,JavaScriptPluginMethod> fallback;
+
+		FilterTables(final FilterIndex<JavaScriptPluginMethod> index, final Map<NativeRegExp,JavaScriptPluginMethod> fallback) {
+			this.index = index;
+			this.fallback = fallback;
+		}
 	}
 
+	/*
+	 * Everything loaded, at some moment. (Un)loading a plugin builds a new
+	 * copy and swaps it in whole, so lookups need no lock, and never see a
+	 * plugin half way through being replaced. A copy is never changed once
+	 * it has been swapped in.
+	 */
+	private static final class Tables {
+		// List of plugins.
+		final Map<String,JavaScriptPlugin> plugins;
+		// List of function for each command.
+		final Map<String,JavaScriptPluginMethod> commands;
+		// List of function for each event.
+		final Map<String,List<JavaScriptPluginMethod>> events;
+		// List of function for each filter.
+		final Map<NativeRegExp,JavaScriptPluginMethod> filters;
+		// The java.util.regex version of each filter, or null if it hasn't one.
+		final Map<NativeRegExp,Pattern> filterPatterns;
+		// List of function for each generic.
+		final Map<String,JavaScriptPluginExport> generics;
+		// List of function for each interval callback.
+		final Map<String,JavaScriptPluginMethod> intervals;
+		// Built from filters, so getFilter needs no lock either.
+		FilterTables filterTables;
+
+		Tables() {
+			plugins   = new HashMap<String,JavaScriptPlugin>();
+			commands  = new HashMap<String,JavaScriptPluginMethod>();
+			events    = new HashMap<String,List<JavaScriptPluginMethod>>();
+			filters   = new HashMap<NativeRegExp,JavaScriptPluginMethod>();
+			filterPatterns = new HashMap<NativeRegExp,Pattern>();
+			generics  = new HashMap<String,JavaScriptPluginExport>();
+			intervals = new HashMap<String,JavaScriptPluginMethod>();
+			filterTables = new FilterTables(FilterIndex.<JavaScriptPluginMethod>empty(), Collections.<NativeRegExp,JavaScriptPluginMethod>emptyMap());
+		}
+
+		Tables(final Tables old) {
+			plugins   = new HashMap<String,JavaScriptPlugin>(old.plugins);
+			commands  = new HashMap<String,JavaScriptPluginMethod>(old.commands);
+			events    = new HashMap<String,List<JavaScriptPluginMethod>>();
+			for (final Map.Entry<String,List<JavaScriptPluginMethod>> event: old.events.entrySet()) {
+				events.put(event.getKey(), new ArrayList<JavaScriptPluginMethod>(event.getValue()));
+			}
+			filters   = new HashMap<NativeRegExp,JavaScriptPluginMethod>(old.filters);
+			filterPatterns = new HashMap<NativeRegExp,Pattern>(old.filterPatterns);
+			generics  = new HashMap<String,JavaScriptPluginExport>(old.generics);
+			intervals = new HashMap<String,JavaScriptPluginMethod>(old.intervals);
+			filterTables = old.filterTables;
+		}
+	}
+
+	// Swapped, never changed; see Tables.
+	private volatile Tables tables = new Tables();
+
 	synchronized void loadPluginMap(final String pluginName, final JavaScriptPlugin pluginObj) {
+		final Tables t = new Tables(tables);
+		load(t, pluginName, pluginObj);
+		rebuildFilters(t);
+		tables = t;
+	}
+
+	synchronized void unloadPluginMap(final String pluginName) {
+		final Tables t = new Tables(tables);
+		unload(t, pluginName);
+		rebuildFilters(t);
+		tables = t;
+	}
+
+	/*
+	 * Swap a plugin's old instance for its new one, in one go.
+	 */
+	synchronized void replacePluginMap(final String pluginName, final JavaScriptPlugin pluginObj) {
+		final Tables t = new Tables(tables);
+		unload(t, pluginName);
+		load(t, pluginName, pluginObj);
+		rebuildFilters(t);
+		tables = t;
+	}
+
+	private static void load(final Tables t, final String pluginName, final JavaScriptPlugin pluginObj) {
 		final String lname = pluginName.toLowerCase();
 
 		//System.out.println("Loading " + pluginName + ":");
 		//System.out.println("  TYPE      NAME");
 
-		plugins.put(lname, pluginObj);
+		t.plugins.put(lname, pluginObj);
 
 		int count = 0;
 		Scriptable inst = pluginObj.getInstance();
@@ -391,7 +559,7 @@ final class JavaScriptPluginMap {
 						final JavaScriptPluginMethod method = new JavaScriptPluginMethod(pluginObj, propString, func);
 
 						final String commandName = lname + "." + propString.substring(7).toLowerCase();
-						commands.put(commandName, method);
+						t.commands.put(commandName, method);
 						count++;
 						//System.out.println("  Command   " + commandName);
 
@@ -411,7 +579,7 @@ final class JavaScriptPluginMap {
 						}
 
 						final String fullName = lname + ".help:" + propString.toLowerCase();
-						generics.put(fullName, helpExport);
+						t.generics.put(fullName, helpExport);
 						count++;
 						//System.out.println("  Generic   " + fullName);
 
@@ -427,10 +595,10 @@ final class JavaScriptPluginMap {
 						final JavaScriptPluginMethod method = new JavaScriptPluginMethod(pluginObj, propString, func);
 
 						final String eventName = propString.toLowerCase();
-						if (events.get(eventName) == null) {
-							events.put(eventName, new LinkedList<JavaScriptPluginMethod>());
+						if (t.events.get(eventName) == null) {
+							t.events.put(eventName, new ArrayList<JavaScriptPluginMethod>());
 						}
-						events.get(eventName).add(method);
+						t.events.get(eventName).add(method);
 						count++;
 						//System.out.println("  Event     " + eventName + " (" + pluginName + ")");
 
@@ -457,7 +625,12 @@ final class JavaScriptPluginMap {
 						final JavaScriptPluginMethod method = new JavaScriptPluginMethod(pluginObj, propString, func);
 
 						final NativeRegExp filterPattern = (NativeRegExp)regexpVal;
-						filters.put(filterPattern, method);
+						final Pattern javaPattern = translateFilter(filterPattern);
+						if (javaPattern == null) {
+							System.err.println("  NOTE: Filter function (" + propString + ") regexp can't be matched by java.util.regex; it will be run by Rhino.");
+						}
+						t.filters.put(filterPattern, method);
+						t.filterPatterns.put(filterPattern, javaPattern);
 						count++;
 						//System.out.println("  Filter    " + filterPattern + " (" + pluginName + ")");
 
@@ -472,7 +645,7 @@ final class JavaScriptPluginMap {
 						final Function func = (Function)propVal;
 
 						final JavaScriptPluginMethod method = new JavaScriptPluginMethod(pluginObj, propString, func);
-						intervals.put(lname, method);
+						t.intervals.put(lname, method);
 						count++;
 						//System.out.println("  Interval  " + lname);
 
@@ -494,7 +667,7 @@ final class JavaScriptPluginMap {
 							final String prefix = matcher.group(1);
 							final String gName = propString.substring(prefix.length()).toLowerCase();
 							final String fullName = lname + "." + prefix + ":" + gName;
-							generics.put(fullName, export);
+							t.generics.put(fullName, export);
 							count++;
 							//System.out.println("  Generic   " + fullName);
 						}
@@ -506,13 +679,13 @@ final class JavaScriptPluginMap {
 		//System.out.println("Done (" + count + " items added).");
 	}
 
-	synchronized void unloadPluginMap(final String pluginName) {
+	private static void unload(final Tables t, final String pluginName) {
 		final String lname = pluginName.toLowerCase();
 
-		if (plugins.get(lname) == null) {
+		if (t.plugins.get(lname) == null) {
 			return;
 		}
-		final JavaScriptPlugin pluginObj = plugins.get(lname);
+		final JavaScriptPlugin pluginObj = t.plugins.get(lname);
 
 		//System.out.println("Unloading " + pluginName + ":");
 		//System.out.println("  TYPE      NAME");
@@ -520,20 +693,20 @@ final class JavaScriptPluginMap {
 		int count = 0;
 		// Commands
 		final List<String> commandsToRemove = new LinkedList<String>();
-		for (final String command: commands.keySet()) {
-			if (commands.get(command).getPlugin() == pluginObj) {
+		for (final String command: t.commands.keySet()) {
+			if (t.commands.get(command).getPlugin() == pluginObj) {
 				commandsToRemove.add(command);
 			}
 		}
 		for (final String command: commandsToRemove) {
 			//System.out.println("  Command   " + command);
 			count++;
-			commands.remove(command);
+			t.commands.remove(command);
 		}
 		// Events
-		for (final String event: events.keySet()) {
+		for (final String event: t.events.keySet()) {
 			final List<JavaScriptPluginMethod> eventHooksToRemove = new LinkedList<JavaScriptPluginMethod>();
-			for (final JavaScriptPluginMethod method: events.get(event)) {
+			for (final JavaScriptPluginMethod method: t.events.get(event)) {
 				if (method.getPlugin() == pluginObj) {
 					eventHooksToRemove.add(method);
 				}
@@ -541,50 +714,76 @@ final class JavaScriptPluginMap {
 			for (final JavaScriptPluginMethod method: eventHooksToRemove) {
 				//System.out.println("  Event     " + event + " (" + method.getPlugin().getName() + ")");
 				count++;
-				events.get(event).remove(method);
+				t.events.get(event).remove(method);
 			}
 		}
 		// Filters
 		final List<NativeRegExp> filtersToRemove = new LinkedList<NativeRegExp>();
-		for (final NativeRegExp filter: filters.keySet()) {
-			if (filters.get(filter).getPlugin() == pluginObj) {
+		for (final NativeRegExp filter: t.filters.keySet()) {
+			if (t.filters.get(filter).getPlugin() == pluginObj) {
 				filtersToRemove.add(filter);
 			}
 		}
 		for (final NativeRegExp filter: filtersToRemove) {
-			//System.out.println("  Filter    " + filter + " (" + filters.get(filter).getPlugin().getName() + ")");
+			//System.out.println("  Filter    " + filter + " (" + t.filters.get(filter).getPlugin().getName() + ")");
 			count++;
-			filters.remove(filter);
+			t.filters.remove(filter);
+			t.filterPatterns.remove(filter);
 		}
 		// Generics
 		final List<String> genericsToRemove = new LinkedList<String>();
-		for (final String generic: generics.keySet()) {
-			if (generics.get(generic).getPlugin() == pluginObj) {
+		for (final String generic: t.generics.keySet()) {
+			if (t.generics.get(generic).getPlugin() == pluginObj) {
 				genericsToRemove.add(generic);
 			}
 		}
 		for (final String generic: genericsToRemove) {
 			//System.out.println("  Generic   " + generic);
 			count++;
-			generics.remove(generic);
+			t.generics.remove(generic);
 		}
 		// Intervals
-		if (intervals.get(lname) != null) {
+		if (t.intervals.get(lname) != null) {
 			//System.out.println("  Interval  " + lname);
 			count++;
-			intervals.remove(lname);
+			t.intervals.remove(lname);
 		}
-		plugins.remove(lname);
+		t.plugins.remove(lname);
 
 		//System.out.println("Done (" + count + " items removed).");
 	}
 
-	synchronized List<String> getCommands(final String pluginName) {
-		final JavaScriptPlugin pluginObj = plugins.get(pluginName.toLowerCase());
+	private static Pattern translateFilter(final NativeRegExp regexp) {
+		final Object source = regexp.get("source", regexp);
+		if (!(source instanceof String)) {
+			return null;
+		}
+		return JSRegExpTranslator.translate((String)source,
+				Boolean.TRUE.equals(regexp.get("ignoreCase", regexp)),
+				Boolean.TRUE.equals(regexp.get("multiline", regexp)));
+	}
+
+	private static void rebuildFilters(final Tables t) {
+		final FilterIndex.Builder<JavaScriptPluginMethod> builder = new FilterIndex.Builder<JavaScriptPluginMethod>();
+		final Map<NativeRegExp,JavaScriptPluginMethod> fallback = new HashMap<NativeRegExp,JavaScriptPluginMethod>();
+		for (final Map.Entry<NativeRegExp,JavaScriptPluginMethod> filter: t.filters.entrySet()) {
+			final Pattern pattern = t.filterPatterns.get(filter.getKey());
+			if (pattern != null) {
+				builder.add(pattern, filter.getValue());
+			} else {
+				fallback.put(filter.getKey(), filter.getValue());
+			}
+		}
+		t.filterTables = new FilterTables(builder.build(), Collections.unmodifiableMap(fallback));
+	}
+
+	List<String> getCommands(final String pluginName) {
+		final Tables t = tables;
+		final JavaScriptPlugin pluginObj = t.plugins.get(pluginName.toLowerCase());
 		final List<String> rv = new LinkedList<String>();
 
-		for (final String command: commands.keySet()) {
-			if (commands.get(command).getPlugin() == pluginObj) {
+		for (final String command: t.commands.keySet()) {
+			if (t.commands.get(command).getPlugin() == pluginObj) {
 				rv.add(command);
 			}
 		}
@@ -592,48 +791,48 @@ final class JavaScriptPluginMap {
 		return rv;
 	}
 
-	synchronized JavaScriptPluginMethod getCommand(final String commandName) {
-		return commands.get(commandName.toLowerCase());
+	JavaScriptPluginMethod getCommand(final String commandName) {
+		return tables.commands.get(commandName.toLowerCase());
 	}
 
-	synchronized List<JavaScriptPluginMethod> getEvent(final String eventName) {
-		final List<JavaScriptPluginMethod> event = events.get(eventName.toLowerCase());
-		if (event == null) {
-			return null;
-		}
-
-		return new LinkedList<JavaScriptPluginMethod>(event);
+	// The returned list must not be modified.
+	List<JavaScriptPluginMethod> getEvent(final String eventName) {
+		return tables.events.get(eventName.toLowerCase());
 	}
 
-	synchronized List<JavaScriptPluginMethod> getFilter(final String message) {
-		final List<JavaScriptPluginMethod> rv = new LinkedList<JavaScriptPluginMethod>();
-		final Iterator<NativeRegExp> regexps = filters.keySet().iterator();
-		while (regexps.hasNext()) {
-			final NativeRegExp regexp = regexps.next();
-			final JavaScriptPluginMethod method = filters.get(regexp);
-			final JavaScriptPlugin plugin = method.getPlugin();
-			final Scriptable scope = plugin.getScope();
-			final Object[] args = { message };
+	List<JavaScriptPluginMethod> getFilter(final String message) {
+		final FilterTables filterTables = tables.filterTables;
+		final List<JavaScriptPluginMethod> matched = filterTables.index.match(message);
+		if (filterTables.fallback.isEmpty()) {
+			return matched;
+		}
 
-			final Context cx = Context.enter();
-			try {
-				final Object ret = regexp.call(cx, scope, null, args);
-				if (ret != null) {
-					rv.add(method);
-				}
-			} finally {
-				Context.exit();
+		final List<JavaScriptPluginMethod> rv = new ArrayList<JavaScriptPluginMethod>(matched);
+		final Context cx = JavaScriptPluginManager.enterContext();
+		final Object[] args = { message };
+		for (final Map.Entry<NativeRegExp,JavaScriptPluginMethod> filter: filterTables.fallback.entrySet()) {
+			final NativeRegExp regexp = filter.getKey();
+			final JavaScriptPluginMethod method = filter.getValue();
+			final Scriptable scope = method.getPlugin().getScope();
+
+			// A regexp object carries its lastIndex, so don't share one between threads.
+			final Object ret;
+			synchronized (regexp) {
+				ret = regexp.call(cx, scope, null, args);
+			}
+			if (ret != null) {
+				rv.add(method);
 			}
 		}
 		return rv;
 	}
 
-	synchronized JavaScriptPluginExport getGeneric(final String genericName) {
-		return generics.get(genericName.toLowerCase());
+	JavaScriptPluginExport getGeneric(final String genericName) {
+		return tables.generics.get(genericName.toLowerCase());
 	}
 
-	synchronized JavaScriptPluginMethod getInterval(final String pluginName) {
-		return intervals.get(pluginName.toLowerCase());
+	JavaScriptPluginMethod getInterval(final String pluginName) {
+		return tables.intervals.get(pluginName.toLowerCase());
 	}
 }
 
@@ -701,29 +900,33 @@ final class JavaScriptPluginProperty extends JavaScriptPluginExport {
 }
 
 final class JavaScriptPlugin {
+	// Callers stacks we'll remember access contexts for, per plugin.
+	private static final int MAX_ACCESS_CONTEXTS = 64;
+
 	private final String pluginName;
+	private final ProtectionDomain domain;
+	/*
+	 * The contexts calls into the plugin run under, keyed on the stack of
+	 * plugins making the call. The domains only ask the security module, so
+	 * these never go stale; they go away with the plugin instance on reload.
+	 */
+	private final ConcurrentMap<List<String>,AccessControlContext> accessContexts;
 	private Scriptable scope;
 	private Scriptable inst;
 
-	public JavaScriptPlugin(final JavaScriptPluginManager plugMan, final String pluginName, final String code, final Modules mods, final IRCInterface irc) throws ChoobException {
+	public JavaScriptPlugin(final JavaScriptPluginManager plugMan, final String pluginName, final String code, final Scriptable sharedScope, final Modules mods, final IRCInterface irc) throws ChoobException {
 		this.pluginName = pluginName;
+		this.domain = mods.security.getProtectionDomain(pluginName);
+		this.accessContexts = new ConcurrentHashMap<List<String>,AccessControlContext>();
 
-		final Context cx = Context.enter();
+		final Context cx = JavaScriptPluginManager.enterContext();
 		try {
-			scope = cx.initStandardObjects();
-			// Set up dump() and dumpln() functions.
-			try {
-				final int flags = ScriptableObject.READONLY | ScriptableObject.DONTENUM | ScriptableObject.PERMANENT;
-				ScriptableObject.defineProperty(scope, "__jsplugman_pluginName", pluginName, flags);
-				ScriptableObject.defineProperty(scope, "dump", new FunctionObject("dump", JavaScriptPluginManager.class.getMethod("dump", String.class), scope), flags);
-				ScriptableObject.defineProperty(scope, "dumpln", new FunctionObject("dumpln", JavaScriptPluginManager.class.getMethod("dumpln", String.class), scope), flags);
-			} catch(final NoSuchMethodException e) {
-				System.err.println("Method not found: " + e);
-				// Ignore for now.
-			}
+			scope = JavaScriptPluginManager.createPluginScope(cx, sharedScope);
+			final int flags = ScriptableObject.READONLY | ScriptableObject.DONTENUM | ScriptableObject.PERMANENT;
+			ScriptableObject.defineProperty(scope, "__jsplugman_pluginName", pluginName, flags);
 
 			// Pull in script.
-			cx.evaluateString(scope, code, pluginName, 1, null);
+			JavaScriptPluginManager.compile(cx, code, pluginName).exec(cx, scope);
 			final Object ctor = scope.get(pluginName, scope);
 			if (ctor == Scriptable.NOT_FOUND) {
 				throw new ChoobException("Constructor property '" + pluginName + "' for JavaScript plugin not found.");
@@ -738,8 +941,7 @@ final class JavaScriptPlugin {
 			final String pluginNameF = pluginName;
 			final Context cxF = cx;
 
-			final ProtectionDomain accessDomain = mods.security.getProtectionDomain(pluginName);
-			final AccessControlContext accessContext = new AccessControlContext(new ProtectionDomain[] { accessDomain });
+			final AccessControlContext accessContext = new AccessControlContext(new ProtectionDomain[] { domain });
 			try {
 				inst = AccessController.doPrivileged(new PrivilegedExceptionAction<Scriptable>() {
 						@Override public Scriptable run() {
@@ -755,9 +957,6 @@ final class JavaScriptPlugin {
 
 		} catch (final RhinoException e) {
 			throw new ChoobException(e.details() + " Line " + e.lineNumber() + ", col " + e.columnNumber() + " of " + e.sourceName() + ".");
-
-		} finally {
-			Context.exit();
 		}
 	}
 
@@ -772,4 +971,25 @@ final class JavaScriptPlugin {
 	public Scriptable getInstance() {
 		return inst;
 	}
+
+	/*
+	 * Gets the context to run a call into this plugin under, given the
+	 * plugins that are making it.
+	 */
+	public AccessControlContext getAccessContext(final List<String> callers) {
+		AccessControlContext accessContext = accessContexts.get(callers);
+		if (accessContext == null) {
+			accessContext = new AccessControlContext(new ProtectionDomain[] {
+					new ChoobFakeProtectionDomain(callers),
+					domain
+				});
+			if (accessContexts.size() < MAX_ACCESS_CONTEXTS) {
+				final AccessControlContext old = accessContexts.putIfAbsent(callers, accessContext);
+				if (old != null) {
+					accessContext = old;
+				}
+			}
+		}
+		return accessContext;
+	}
 }
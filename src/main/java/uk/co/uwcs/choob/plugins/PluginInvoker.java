@@ -0,0 +1,296 @@
+package uk.co.uwcs.choob.plugins;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Calls a single plugin method (or reads a single plugin field).
+ *
+ * For methods, a small class is generated with ASM that calls the method
+ * directly, which is considerably cheaper than going through Method.invoke.
+ * One and three argument methods (commands, events and filters) also get an
+ * entry point that doesn't need an argument array. Exceptions thrown by the
+ * plugin are wrapped in an InvocationTargetException, just like reflection.
+ *
+ * If the generated class can't be made for whatever reason, this falls back
+ * to plain reflection.
+ */
+public abstract class PluginInvoker
+{
+	private static final String SUPER_NAME = Type.getInternalName(PluginInvoker.class);
+	private static final String ITE_NAME = Type.getInternalName(InvocationTargetException.class);
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	protected PluginInvoker()
+	{
+	}
+
+	/**
+	 * Call the method.
+	 * @param target The plugin object (ignored for static methods).
+	 * @param args The arguments to pass.
+	 * @return The method's return value, boxed, or null for void methods.
+	 */
+	public abstract Object invoke(Object target, Object[] args) throws InvocationTargetException, IllegalAccessException;
+
+	public Object invoke(final Object target, final Object arg) throws InvocationTargetException, IllegalAccessException
+	{
+		return invoke(target, new Object[] { arg });
+	}
+
+	public Object invoke(final Object target, final Object arg0, final Object arg1, final Object arg2) throws InvocationTargetException, IllegalAccessException
+	{
+		return invoke(target, new Object[] { arg0, arg1, arg2 });
+	}
+
+	/**
+	 * Get an invoker for a plugin method or field.
+	 */
+	public static PluginInvoker create(final Member member)
+	{
+		if (member instanceof Method)
+		{
+			final Method meth = (Method)member;
+			try
+			{
+				return generate(meth);
+			}
+			catch (final RuntimeException e)
+			{
+				System.err.println("Could not generate invoker for " + meth + ", using reflection: " + e);
+			}
+			catch (final LinkageError e)
+			{
+				System.err.println("Could not generate invoker for " + meth + ", using reflection: " + e);
+			}
+			return new ReflectiveMethodInvoker(meth);
+		}
+		return new FieldInvoker((Field)member);
+	}
+
+	private static PluginInvoker generate(final Method meth)
+	{
+		final Class<?> clazz = meth.getDeclaringClass();
+		final ClassLoader loader = clazz.getClassLoader();
+
+		// Plugin classes get their invokers alongside them, so package access
+		// is fine. Anything else has to be public to be callable.
+		final boolean samePackage = loader instanceof HaxSunPluginClassLoader;
+		if (!samePackage && !(Modifier.isPublic(clazz.getModifiers()) && Modifier.isPublic(meth.getModifiers())))
+			throw new IllegalArgumentException("not accessible");
+		if (Modifier.isPrivate(meth.getModifiers()))
+			throw new IllegalArgumentException("private method");
+
+		final String name = clazz.getName() + "$$Invoker" + count.incrementAndGet();
+		final byte[] data = generateClass(name.replace('.', '/'), meth);
+
+		final Class<?> invokerClass = AccessController.doPrivileged(new PrivilegedAction<Class<?>>() {
+			@Override public Class<?> run() {
+				if (samePackage)
+					return ((HaxSunPluginClassLoader)loader).defineGeneratedClass(name, data);
+				return new InvokerClassLoader(loader).define(name, data, clazz.getProtectionDomain());
+			}
+		});
+
+		try
+		{
+			return (PluginInvoker)invokerClass.newInstance();
+		}
+		catch (final InstantiationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (final IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] generateClass(final String name, final Method meth)
+	{
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, SUPER_NAME, null);
+
+		final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, SUPER_NAME, "<init>", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		final int arity = meth.getParameterTypes().length;
+		generateInvoke(cw, meth, -1);
+		if (arity == 1 || arity == 3)
+			generateInvoke(cw, meth, arity);
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	// Generates invoke(Object, Object[]) if arity is -1, or the fixed-arity
+	// version otherwise.
+	private static void generateInvoke(final ClassWriter cw, final Method meth, final int arity)
+	{
+		final Class<?>[] params = meth.getParameterTypes();
+		final StringBuilder desc = new StringBuilder("(Ljava/lang/Object;");
+		if (arity < 0)
+			desc.append("[Ljava/lang/Object;");
+		else
+			for (int i = 0; i < arity; i++)
+				desc.append("Ljava/lang/Object;");
+		desc.append(")Ljava/lang/Object;");
+
+		final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "invoke", desc.toString(), null, null);
+		mv.visitCode();
+
+		final Label start = new Label();
+		final Label end = new Label();
+		final Label handler = new Label();
+		mv.visitTryCatchBlock(start, end, handler, "java/lang/Throwable");
+
+		final String owner = Type.getInternalName(meth.getDeclaringClass());
+		final boolean isStatic = Modifier.isStatic(meth.getModifiers());
+		if (!isStatic)
+		{
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitTypeInsn(CHECKCAST, owner);
+		}
+		for (int i = 0; i < params.length; i++)
+		{
+			if (arity < 0)
+			{
+				mv.visitVarInsn(ALOAD, 2);
+				pushInt(mv, i);
+				mv.visitInsn(AALOAD);
+			}
+			else
+				mv.visitVarInsn(ALOAD, 2 + i);
+			unbox(mv, params[i]);
+		}
+
+		mv.visitLabel(start);
+		mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKEVIRTUAL, owner, meth.getName(), Type.getMethodDescriptor(meth));
+		mv.visitLabel(end);
+		box(mv, meth.getReturnType());
+		mv.visitInsn(ARETURN);
+
+		// Wrap anything thrown, as Method.invoke would have.
+		mv.visitLabel(handler);
+		mv.visitTypeInsn(NEW, ITE_NAME);
+		mv.visitInsn(DUP_X1);
+		mv.visitInsn(SWAP);
+		mv.visitMethodInsn(INVOKESPECIAL, ITE_NAME, "<init>", "(Ljava/lang/Throwable;)V");
+		mv.visitInsn(ATHROW);
+
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private static void pushInt(final MethodVisitor mv, final int i)
+	{
+		if (i <= 5)
+			mv.visitInsn(ICONST_0 + i);
+		else
+			mv.visitIntInsn(BIPUSH, i);
+	}
+
+	private static void unbox(final MethodVisitor mv, final Class<?> type)
+	{
+		if (!type.isPrimitive())
+		{
+			if (type != Object.class)
+				mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+			return;
+		}
+		final String wrapper = Type.getInternalName(wrapperFor(type));
+		mv.visitTypeInsn(CHECKCAST, wrapper);
+		mv.visitMethodInsn(INVOKEVIRTUAL, wrapper, type.getName() + "Value", "()" + Type.getDescriptor(type));
+	}
+
+	private static void box(final MethodVisitor mv, final Class<?> type)
+	{
+		if (type == Void.TYPE)
+			mv.visitInsn(ACONST_NULL);
+		else if (type.isPrimitive())
+		{
+			final String wrapper = Type.getInternalName(wrapperFor(type));
+			mv.visitMethodInsn(INVOKESTATIC, wrapper, "valueOf", "(" + Type.getDescriptor(type) + ")L" + wrapper + ";");
+		}
+	}
+
+	private static Class<?> wrapperFor(final Class<?> type)
+	{
+		if (type == Integer.TYPE) return Integer.class;
+		if (type == Long.TYPE) return Long.class;
+		if (type == Boolean.TYPE) return Boolean.class;
+		if (type == Double.TYPE) return Double.class;
+		if (type == Float.TYPE) return Float.class;
+		if (type == Short.TYPE) return Short.class;
+		if (type == Byte.TYPE) return Byte.class;
+		if (type == Character.TYPE) return Character.class;
+		throw new IllegalArgumentException("Unknown primitive type " + type);
+	}
+
+	// For public classes not loaded by a plugin loader (e.g. in the debugger).
+	private static final class InvokerClassLoader extends ClassLoader
+	{
+		InvokerClassLoader(final ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		Class<?> define(final String name, final byte[] data, final ProtectionDomain domain)
+		{
+			return defineClass(name, data, 0, data.length, domain);
+		}
+	}
+
+	private static final class ReflectiveMethodInvoker extends PluginInvoker
+	{
+		private final Method meth;
+
+		ReflectiveMethodInvoker(final Method meth)
+		{
+			this.meth = meth;
+		}
+
+		@Override
+		public Object invoke(final Object target, final Object[] args) throws InvocationTargetException, IllegalAccessException
+		{
+			return meth.invoke(target, args);
+		}
+	}
+
+	// Fields are regarded as a method that takes no parameters.
+	private static final class FieldInvoker extends PluginInvoker
+	{
+		private final Field field;
+
+		FieldInvoker(final Field field)
+		{
+			this.field = field;
+		}
+
+		@Override
+		public Object invoke(final Object target, final Object[] args) throws IllegalAccessException
+		{
+			return field.get(target);
+		}
+	}
+}
@@ -7,14 +7,55 @@ package uk.co.uwcs.choob.support;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.uwcs.choob.ChoobThread;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.mchange.v2.c3p0.DataSources;
 
+/**
+ * Hands out database connections, at most maxConns at a time.
+ *
+ * The physical connections and their prepared statements are pooled by c3p0;
+ * on top of that, the broker limits how long a caller will wait for a
+ * connection, keeps track of who has each one checked out, and complains
+ * about connections that have been held for a suspiciously long time.
+ */
 public final class DbConnectionBroker
 {
+	// How often to look for leaked connections.
+	private static final long LEAK_CHECK_PERIOD = 30;
+
 	ComboPooledDataSource cpds;
 
+	private Semaphore permits;
+	private long checkoutTimeout;
+	private PrintWriter log;
+	private volatile long leakThreshold = 60000;
+	private volatile boolean traceCheckouts;
+
+	private final Set<BrokerConnection> active = Collections.newSetFromMap(new ConcurrentHashMap<BrokerConnection,Boolean>());
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong checkouts = new AtomicLong();
+	private final AtomicLong totalWait = new AtomicLong();
+	private final AtomicLong maxWait = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+
+	private ScheduledExecutorService leakChecker;
+
 	/**
 	 * Create a new DbConnectionBroker.
 	 *
@@ -25,7 +66,7 @@ public final class DbConnectionBroker
 	 * @param minConns		Minimum number of connections to start with.
 	 * @param maxConns		Maximum number of connections in dynamic pool.
 	 * @param logFile		PrintWriter to log to.
-	 * @param maxCheckoutSeconds	Max time a connection can be checked out before being recycled. Zero value turns option off, default is 60 seconds.
+	 * @param maxCheckoutSeconds	Max time to wait for a connection when all are in use. Zero waits forever.
 	 */
 	public DbConnectionBroker(final String dbDriver, final String dbServer, final String dbLogin, final String dbPassword, final int minConns, final int maxConns, final PrintWriter logFile, final int maxCheckoutSeconds) throws SQLException
 	{
@@ -48,7 +89,17 @@ public final class DbConnectionBroker
 		cpds.setMinPoolSize(minConns);
 		cpds.setMaxPoolSize(maxConns);
 		cpds.setLogWriter(logFile);
-		cpds.setCheckoutTimeout(maxCheckoutSeconds*1000);
+		// The broker does its own waiting; c3p0 never has more requests than
+		// connections.
+		cpds.setCheckoutTimeout(0);
+
+		permits = new Semaphore(Math.max(1, maxConns), true);
+		checkoutTimeout = maxCheckoutSeconds * 1000L;
+		log = logFile;
+
+		// Keep prepared statements open per connection, so ObjectDB queries
+		// using the same clause don't get prepared from scratch every time.
+		cpds.setMaxStatementsPerConnection(100);
 
 		cpds.setIdleConnectionTestPeriod(300); // Execute a a query after idle for 5 mins.
 		//cpds.setTestConnectionOnCheckout(true); // Apparently very slow!
@@ -62,14 +113,232 @@ public final class DbConnectionBroker
 			props.setProperty("password", dbPassword);
 			cpds.setProperties(props);
 		*/
+
+		leakChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override public Thread newThread(final Runnable r)
+			{
+				final Thread t = new Thread(r, "DbConnectionBroker leak checker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		leakChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override public void run()
+			{
+				checkForLeaks();
+			}
+		}, LEAK_CHECK_PERIOD, LEAK_CHECK_PERIOD, TimeUnit.SECONDS);
 	}
 
-	/** Checkout a Connection. */
+	/**
+	 * Checkout a Connection. Waits for one to be freed if they are all in use.
+	 * @throws SQLException If none was freed within the checkout timeout.
+	 */
 	public Connection getConnection() throws SQLException
 	{
-		// Switch to the 2nd line to get per-SQL-statement logging.
-		return cpds.getConnection();
-		//return new ChoobConnectionWrapper(cpds.getConnection());
+		final long start = System.nanoTime();
+		waiting.incrementAndGet();
+		try
+		{
+			final boolean got;
+			if (checkoutTimeout > 0)
+				got = permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS);
+			else
+			{
+				permits.acquire();
+				got = true;
+			}
+			if (!got)
+			{
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + checkoutTimeout / 1000 + "s waiting for a database connection; all "
+						+ active.size() + " are in use, by: " + describeHolders());
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database connection.", e);
+		}
+		finally
+		{
+			waiting.decrementAndGet();
+		}
+
+		final Connection conn;
+		try
+		{
+			// Switch to the 2nd line to get per-SQL-statement logging.
+			conn = cpds.getConnection();
+			//conn = new ChoobConnectionWrapper(cpds.getConnection());
+		}
+		catch (final SQLException e)
+		{
+			permits.release();
+			throw e;
+		}
+
+		final long waited = (System.nanoTime() - start) / 1000000;
+		checkouts.incrementAndGet();
+		totalWait.addAndGet(waited);
+		long max;
+		while (waited > (max = maxWait.get()) && !maxWait.compareAndSet(max, waited))
+			;
+
+		final BrokerConnection ret;
+		if (traceCheckouts)
+			ret = new BrokerConnection(this, conn, ChoobThread.getPluginStack(), new Throwable("Checked out here"));
+		else
+		{
+			final String plugin = ChoobThread.getCurrentPluginName();
+			ret = new BrokerConnection(this, conn, plugin != null ? plugin : "core", null);
+		}
+		active.add(ret);
+		return ret;
+	}
+
+	// Called once, when a BrokerConnection is closed.
+	void checkIn(final BrokerConnection conn) throws SQLException
+	{
+		if (!active.remove(conn))
+			return;
+		if (conn.reported && log != null)
+			log.println("Leaked database connection, checked out by " + conn.owner + ", was returned after "
+					+ (System.currentTimeMillis() - conn.checkedOut) / 1000 + "s.");
+		try
+		{
+			conn.conn.close();
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private void checkForLeaks()
+	{
+		final long now = System.currentTimeMillis();
+		for (final BrokerConnection conn : active)
+		{
+			if (conn.reported || now - conn.checkedOut < leakThreshold)
+				continue;
+			conn.reported = true;
+			leaks.incrementAndGet();
+			System.err.println("Database connection checked out by " + conn.owner + " (on " + conn.threadName + ") has been held for "
+					+ (now - conn.checkedOut) / 1000 + "s; it's probably been leaked.");
+			if (conn.checkoutTrace != null)
+				conn.checkoutTrace.printStackTrace();
+		}
+	}
+
+	/**
+	 * Set how long a connection can be held before it's reported as leaked.
+	 * @param millis The time, in milliseconds. Defaults to a minute.
+	 */
+	public void setLeakThreshold(final long millis)
+	{
+		leakThreshold = millis;
+	}
+
+	/**
+	 * Set whether to record where each connection is checked out, so leaks
+	 * can be traced to the code responsible. This costs a stack trace per
+	 * checkout, so is off by default.
+	 */
+	public void setTraceCheckouts(final boolean trace)
+	{
+		traceCheckouts = trace;
+	}
+
+	/** @return The number of connections that have been checked out. */
+	public long getCheckouts()
+	{
+		return checkouts.get();
+	}
+
+	/** @return The mean time, in milliseconds, spent waiting to checkout a connection. */
+	public long getAverageWait()
+	{
+		final long n = checkouts.get();
+		return n == 0 ? 0 : totalWait.get() / n;
+	}
+
+	/** @return The longest time, in milliseconds, spent waiting to checkout a connection. */
+	public long getMaxWait()
+	{
+		return maxWait.get();
+	}
+
+	/** @return The number of checkouts that gave up waiting. */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	/** @return The number of connections that have been reported as leaked. */
+	public long getLeaks()
+	{
+		return leaks.get();
+	}
+
+	/** @return The number of connections currently checked out. */
+	public int getActiveCount()
+	{
+		return active.size();
+	}
+
+	/** @return The number of open connections not currently checked out. */
+	public int getIdleCount()
+	{
+		try
+		{
+			return cpds.getNumIdleConnectionsDefaultUser();
+		}
+		catch (final SQLException e)
+		{
+			return -1;
+		}
+	}
+
+	/** @return The number of threads waiting for a connection. */
+	public int getWaitingCount()
+	{
+		return waiting.get();
+	}
+
+	/**
+	 * @return Who has connections checked out, and for how long, longest first.
+	 */
+	public String describeHolders()
+	{
+		final List<BrokerConnection> conns = new ArrayList<BrokerConnection>(active);
+		if (conns.isEmpty())
+			return "nobody";
+		Collections.sort(conns, new java.util.Comparator<BrokerConnection>() {
+			@Override public int compare(final BrokerConnection a, final BrokerConnection b)
+			{
+				return a.checkedOut < b.checkedOut ? -1 : a.checkedOut == b.checkedOut ? 0 : 1;
+			}
+		});
+		final long now = System.currentTimeMillis();
+		final StringBuilder ret = new StringBuilder();
+		for (final BrokerConnection conn : conns)
+		{
+			if (ret.length() > 0)
+				ret.append("; ");
+			ret.append(conn.owner).append(" (").append((now - conn.checkedOut) / 1000).append("s)");
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * @return A one-line summary of the pool's state and history.
+	 */
+	public String getStatus()
+	{
+		return getActiveCount() + " connections in use, " + getIdleCount() + " idle, " + getWaitingCount() + " waiting. "
+			+ getCheckouts() + " checkouts, waiting " + getAverageWait() + "ms on average and " + getMaxWait() + "ms at most; "
+			+ getTimeouts() + " timed out and " + getLeaks() + " leaked.";
 	}
 
 	/** Free (check-back-in) a checked-out Connection. */
@@ -87,6 +356,7 @@ public final class DbConnectionBroker
 	/** Free all of the resources allocated by this DbConnectionBroker */
 	public void destroy() throws SQLException
 	{
+		leakChecker.shutdownNow();
 		DataSources.destroy(cpds);
 	}
 
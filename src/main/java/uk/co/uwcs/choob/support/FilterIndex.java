@@ -0,0 +1,417 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable set of filter regexes, each with the handler to call when it
+ * matches, that can match a line against all of them at once.
+ *
+ * Every pattern that must contain some literal text (e.g. "++" or "http://")
+ * has that text fed into an Aho-Corasick automaton, so one scan over the line
+ * finds which patterns could possibly match; only those (and any pattern with
+ * no usable literal) are then run as full regexes.
+ *
+ * Indexes are never changed once built: plugin managers build a new one on
+ * (un)load and swap it in, so lookups need no locking at all.
+ *
+ * @param <T> The type of the filter handlers.
+ */
+public final class FilterIndex<T>
+{
+	private static final FilterIndex<Object> EMPTY = new Builder<Object>().build();
+
+	private final Pattern[] patterns;
+	private final Object[] handlers;
+
+	// Patterns with no required literal, which have to be tried every time.
+	private final int[] unconditional;
+
+	// The automaton. Node 0 is the root; each node's edges are sorted by char.
+	private final char[][] edgeChars;
+	private final int[][] edgeTargets;
+	private final int[] fail;
+	private final int[][] outputs; // Patterns whose literal ends at this node.
+
+	/**
+	 * Collects filters for a new index.
+	 */
+	public static final class Builder<T>
+	{
+		private final List<Pattern> patterns = new ArrayList<Pattern>();
+		private final List<T> handlers = new ArrayList<T>();
+
+		/**
+		 * Add a filter. Filters are returned by {@link FilterIndex#match} in
+		 * the order they were added.
+		 */
+		public Builder<T> add(final Pattern pattern, final T handler)
+		{
+			patterns.add(pattern);
+			handlers.add(handler);
+			return this;
+		}
+
+		public FilterIndex<T> build()
+		{
+			return new FilterIndex<T>(patterns, handlers);
+		}
+	}
+
+	/**
+	 * @return An index with no filters in it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> FilterIndex<T> empty()
+	{
+		return (FilterIndex<T>)EMPTY;
+	}
+
+	private FilterIndex(final List<Pattern> patternList, final List<T> handlerList)
+	{
+		patterns = patternList.toArray(new Pattern[patternList.size()]);
+		handlers = handlerList.toArray();
+
+		// Build the trie out of each pattern's literal.
+		final List<Map<Character,Integer>> trie = new ArrayList<Map<Character,Integer>>();
+		final List<List<Integer>> out = new ArrayList<List<Integer>>();
+		trie.add(new HashMap<Character,Integer>());
+		out.add(new ArrayList<Integer>());
+
+		final List<Integer> always = new ArrayList<Integer>();
+		for (int i = 0; i < patterns.length; i++)
+		{
+			final String literal = requiredLiteral(patterns[i]);
+			if (literal == null)
+			{
+				always.add(i);
+				continue;
+			}
+			int node = 0;
+			for (int j = 0; j < literal.length(); j++)
+			{
+				final Character c = Character.valueOf(literal.charAt(j));
+				Integer next = trie.get(node).get(c);
+				if (next == null)
+				{
+					next = trie.size();
+					trie.add(new HashMap<Character,Integer>());
+					out.add(new ArrayList<Integer>());
+					trie.get(node).put(c, next);
+				}
+				node = next;
+			}
+			out.get(node).add(i);
+		}
+
+		unconditional = toArray(always);
+
+		final int size = trie.size();
+		edgeChars = new char[size][];
+		edgeTargets = new int[size][];
+		for (int n = 0; n < size; n++)
+		{
+			final Character[] keys = trie.get(n).keySet().toArray(new Character[0]);
+			Arrays.sort(keys);
+			edgeChars[n] = new char[keys.length];
+			edgeTargets[n] = new int[keys.length];
+			for (int k = 0; k < keys.length; k++)
+			{
+				edgeChars[n][k] = keys[k].charValue();
+				edgeTargets[n][k] = trie.get(n).get(keys[k]).intValue();
+			}
+		}
+
+		// Failure links, breadth first, merging outputs along the way.
+		fail = new int[size];
+		final LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (final int child : edgeTargets[0])
+			queue.add(child);
+		while (!queue.isEmpty())
+		{
+			final int node = queue.removeFirst();
+			for (int k = 0; k < edgeChars[node].length; k++)
+			{
+				final char c = edgeChars[node][k];
+				final int child = edgeTargets[node][k];
+				int f = fail[node];
+				while (f != 0 && step(f, c) < 0)
+					f = fail[f];
+				final int target = step(f, c);
+				fail[child] = target >= 0 ? target : 0;
+				out.get(child).addAll(out.get(fail[child]));
+				queue.add(child);
+			}
+		}
+
+		outputs = new int[size][];
+		for (int n = 0; n < size; n++)
+			outputs[n] = toArray(out.get(n));
+	}
+
+	/**
+	 * Find the handlers of every filter that matches some text.
+	 * @param text The line to match against.
+	 * @return The handlers, in the order their filters were added.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> match(final String text)
+	{
+		if (patterns.length == 0)
+			return Collections.emptyList();
+
+		final BitSet candidates = new BitSet(patterns.length);
+		for (final int i : unconditional)
+			candidates.set(i);
+
+		if (edgeChars[0].length > 0)
+		{
+			int node = 0;
+			for (int i = 0; i < text.length(); i++)
+			{
+				final char c = fold(text.charAt(i));
+				int next;
+				while ((next = step(node, c)) < 0 && node != 0)
+					node = fail[node];
+				node = next >= 0 ? next : 0;
+				for (final int p : outputs[node])
+					candidates.set(p);
+			}
+		}
+
+		final List<T> ret = new ArrayList<T>();
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+		{
+			if (patterns[i].matcher(text).find())
+				ret.add((T)handlers[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The number of filters in this index.
+	 */
+	public int size()
+	{
+		return patterns.length;
+	}
+
+	/**
+	 * @return The number of filters that have to be run against every line.
+	 */
+	public int getUnconditionalCount()
+	{
+		return unconditional.length;
+	}
+
+	private int step(final int node, final char c)
+	{
+		final int k = Arrays.binarySearch(edgeChars[node], c);
+		return k >= 0 ? edgeTargets[node][k] : -1;
+	}
+
+	private static int[] toArray(final List<Integer> list)
+	{
+		final int[] ret = new int[list.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = list.get(i).intValue();
+		return ret;
+	}
+
+	// Folds case the same way for literals and text, so a case insensitive
+	// pattern's literal is still found.
+	private static char fold(final char c)
+	{
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * Work out some text that every match of a pattern must contain. This is
+	 * deliberately conservative: it only looks at the top level of the
+	 * pattern, and gives up on anything it doesn't fully understand.
+	 * @return The longest such literal (case folded), or null if none was found.
+	 */
+	static String requiredLiteral(final Pattern pattern)
+	{
+		if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0)
+			return null;
+
+		final String src = pattern.pattern();
+		String best = "";
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < src.length())
+		{
+			final char c = src.charAt(i);
+			int next = i + 1;
+			char literal = 0;
+			boolean isLiteral = false;
+
+			if (c == '\\')
+			{
+				if (next >= src.length())
+					return null;
+				final char e = src.charAt(next);
+				if (Character.isLetterOrDigit(e))
+				{
+					// \b, \d, \w and friends aren't literals; anything taking
+					// arguments (\x41, \p{L}, \Q...\E, ...) is too hard.
+					if ("bBdDsSwWAGzZ".indexOf(e) < 0)
+						return null;
+				}
+				else
+				{
+					literal = e;
+					isLiteral = true;
+				}
+				next++;
+			}
+			else if (c == '|')
+			{
+				// Alternation at the top level; nothing is required.
+				return null;
+			}
+			else if (c == '(')
+			{
+				if (src.startsWith("(?", i) && !src.startsWith("(?:", i) && !src.startsWith("(?=", i)
+						&& !src.startsWith("(?!", i) && !src.startsWith("(?<=", i) && !src.startsWith("(?<!", i))
+					return null; // Flags or named groups.
+				next = skipGroup(src, i);
+				if (next < 0)
+					return null;
+			}
+			else if (c == '[')
+			{
+				next = skipClass(src, i);
+				if (next < 0)
+					return null;
+			}
+			else if (".^$".indexOf(c) >= 0)
+			{
+				// Not literal.
+			}
+			else if ("*+?{)]}".indexOf(c) >= 0)
+			{
+				// A quantifier not directly following a literal; leave it be.
+				return null;
+			}
+			else
+			{
+				literal = c;
+				isLiteral = true;
+			}
+
+			// Deal with any quantifier following this item.
+			boolean required = true;
+			boolean repeats = false;
+			if (next < src.length())
+			{
+				final char q = src.charAt(next);
+				if (q == '?' || q == '*')
+				{
+					required = false;
+					next++;
+				}
+				else if (q == '+')
+				{
+					repeats = true;
+					next++;
+				}
+				else if (q == '{')
+				{
+					final int close = src.indexOf('}', next);
+					if (close < 0)
+						return null;
+					if (src.charAt(next + 1) == '0')
+						required = false;
+					repeats = true;
+					next = close + 1;
+				}
+				if (next < src.length() && (src.charAt(next) == '?' || src.charAt(next) == '+'))
+					next++; // Lazy or possessive.
+			}
+
+			if (isLiteral && required && literal < 128)
+			{
+				run.append(fold(literal));
+				if (repeats)
+				{
+					best = longer(best, run);
+					run = new StringBuilder();
+				}
+			}
+			else
+			{
+				best = longer(best, run);
+				run = new StringBuilder();
+			}
+			i = next;
+		}
+		best = longer(best, run);
+		return best.length() > 0 ? best : null;
+	}
+
+	private static String longer(final String best, final StringBuilder run)
+	{
+		return run.length() > best.length() ? run.toString() : best;
+	}
+
+	// Returns the index just after the group starting at start, or -1.
+	private static int skipGroup(final String src, final int start)
+	{
+		int depth = 0;
+		int i = start;
+		while (i < src.length())
+		{
+			final char c = src.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '[')
+			{
+				i = skipClass(src, i);
+				if (i < 0)
+					return -1;
+				continue;
+			}
+			else if (c == '(')
+				depth++;
+			else if (c == ')' && --depth == 0)
+				return i + 1;
+			i++;
+		}
+		return -1;
+	}
+
+	// Returns the index just after the character class starting at start, or -1.
+	private static int skipClass(final String src, final int start)
+	{
+		int depth = 0;
+		int i = start;
+		while (i < src.length())
+		{
+			final char c = src.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '[')
+			{
+				depth++;
+				// A ']' straight after the opening bracket (or "[^") is literal.
+				if (i + 1 < src.length() && src.charAt(i + 1) == '^')
+					i++;
+				if (i + 1 < src.length() && src.charAt(i + 1) == ']')
+					i++;
+			}
+			else if (c == ']' && --depth == 0)
+				return i + 1;
+			i++;
+		}
+		return -1;
+	}
+}
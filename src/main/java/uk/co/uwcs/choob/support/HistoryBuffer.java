@@ -0,0 +1,205 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recent lines logged in each channel (and in private), so that
+ * requests for recent history can be answered without going to the History
+ * table.
+ *
+ * Each channel has a fixed-size ring of the lines logged since startup. The
+ * buffer knows the time after which its ring holds every line, so it can
+ * tell when a request can be answered completely from memory, and when it
+ * reaches back further and has to go to the database.
+ */
+public final class HistoryBuffer
+{
+	private final int capacity;
+	private final long started;
+	private final ConcurrentMap<String,Ring> rings = new ConcurrentHashMap<String,Ring>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final class Ring
+	{
+		private final HistoryWriter.Row[] rows = new HistoryWriter.Row[capacity];
+		private int next;
+		private int size;
+		// Every line logged after this time is in the ring.
+		private long completeAfter = started;
+
+		synchronized void add(final HistoryWriter.Row row)
+		{
+			final HistoryWriter.Row evicted = rows[next];
+			if (evicted != null && evicted.time > completeAfter)
+				completeAfter = evicted.time;
+			rows[next] = row;
+			next = (next + 1) % rows.length;
+			if (size < rows.length)
+				size++;
+		}
+
+		/**
+		 * Rows logged between after and before, exclusive, newest first.
+		 * @return The rows, or null if the ring may not hold all of the most
+		 *         recent count of them.
+		 */
+		synchronized List<HistoryWriter.Row> last(final long before, final long after, final int count)
+		{
+			final List<HistoryWriter.Row> ret = new ArrayList<HistoryWriter.Row>(Math.min(count, size));
+			for (int i = 1; i <= size; i++)
+			{
+				final HistoryWriter.Row row = rows[(next - i + rows.length) % rows.length];
+				if (row.time < before && row.time > after)
+					ret.add(row);
+			}
+
+			// Lines can arrive slightly out of order; order as the database does.
+			Collections.sort(ret, new Comparator<HistoryWriter.Row>() {
+				@Override public int compare(final HistoryWriter.Row a, final HistoryWriter.Row b)
+				{
+					return a.time > b.time ? -1 : a.time == b.time ? 0 : 1;
+				}
+			});
+
+			if (ret.size() >= count)
+			{
+				final List<HistoryWriter.Row> newest = new ArrayList<HistoryWriter.Row>(ret.subList(0, count));
+				if (count == 0 || newest.get(count - 1).time > completeAfter)
+					return newest;
+				return null;
+			}
+			return completeAfter <= after ? ret : null;
+		}
+
+		synchronized HistoryWriter.Row find(final String type, final String nick, final String hostmask, final long time, final int random)
+		{
+			for (int i = 1; i <= size; i++)
+			{
+				final HistoryWriter.Row row = rows[(next - i + rows.length) % rows.length];
+				if (row.time == time && row.random == random && row.type.equals(type)
+						&& row.nick.equals(nick) && row.hostmask.equals(hostmask))
+					return row;
+			}
+			return null;
+		}
+
+		synchronized HistoryWriter.Row find(final int id)
+		{
+			for (int i = 0; i < size; i++)
+				if (rows[i].id == id)
+					return rows[i];
+			return null;
+		}
+	}
+
+	/**
+	 * @param capacity The number of lines to keep for each channel.
+	 */
+	public HistoryBuffer(final int capacity)
+	{
+		this.capacity = capacity;
+		this.started = System.currentTimeMillis();
+	}
+
+	private static String key(final String channel)
+	{
+		return channel == null ? "" : channel.toLowerCase();
+	}
+
+	private Ring ring(final String channel)
+	{
+		final String key = key(channel);
+		final Ring ret = rings.get(key);
+		if (ret != null)
+			return ret;
+
+		final Ring created = new Ring();
+		final Ring raced = rings.putIfAbsent(key, created);
+		return raced != null ? raced : created;
+	}
+
+	/**
+	 * Remember a line that has just been logged.
+	 */
+	public void add(final HistoryWriter.Row row)
+	{
+		ring(row.channel).add(row);
+	}
+
+	/**
+	 * Get the most recent lines logged in a channel in a period.
+	 * @param channel The channel.
+	 * @param before Only lines logged before this time are included.
+	 * @param after Only lines logged after this time are included.
+	 * @param count The maximum number of lines to return.
+	 * @return The lines, newest first, or null if they aren't all in memory.
+	 */
+	public List<HistoryWriter.Row> getLastRows(final String channel, final long before, final long after, final int count)
+	{
+		final Ring ring = rings.get(key(channel));
+		final List<HistoryWriter.Row> ret;
+		if (ring != null)
+			ret = ring.last(before, after, count);
+		else
+			ret = started <= after ? new ArrayList<HistoryWriter.Row>() : null;
+
+		if (ret != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * Find a line that's still in memory.
+	 * @return The line, or null if it isn't in memory.
+	 */
+	public HistoryWriter.Row find(final String type, final String nick, final String hostmask, final String channel, final long time, final int random)
+	{
+		final Ring ring = rings.get(key(channel));
+		if (ring == null)
+			return null;
+		return ring.find(type, nick, hostmask, time, random);
+	}
+
+	/**
+	 * Find a line that's still in memory by its LineID.
+	 * @return The line, or null if it isn't in memory.
+	 */
+	public HistoryWriter.Row find(final int id)
+	{
+		if (id < 0)
+			return null;
+		for (final Ring ring : rings.values())
+		{
+			final HistoryWriter.Row row = ring.find(id);
+			if (row != null)
+				return row;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of requests answered from memory.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of requests that had to go to the database.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+}
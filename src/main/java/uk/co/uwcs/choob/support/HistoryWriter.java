@@ -0,0 +1,371 @@
+package uk.co.uwcs.choob.support;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for the History table.
+ *
+ * Lines are put into a bounded buffer by whoever logs them, and a dedicated
+ * thread drains the buffer and inserts them in JDBC batches through a single
+ * prepared statement (which MySQL's driver turns into multi-row inserts). A
+ * batch is written when it is full, or when its oldest line has waited for
+ * the flush interval. If the buffer fills up, loggers block for a while
+ * before the line is dropped.
+ */
+public final class HistoryWriter implements Runnable
+{
+	/** A single line waiting to go into the History table. */
+	public static final class Row
+	{
+		final String type;
+		final String nick;
+		final String hostmask;
+		final String channel;
+		final String text;
+		final long time;
+		final int random;
+		// The LineID the row was given, once it has been written.
+		volatile int id = -1;
+
+		public Row(final String type, final String nick, final String hostmask, final String channel, final String text, final long time, final int random)
+		{
+			this.type = type;
+			this.nick = nick;
+			this.hostmask = hostmask;
+			this.channel = channel;
+			this.text = text;
+			this.time = time;
+			this.random = random;
+		}
+
+		public String getType()
+		{
+			return type;
+		}
+
+		public String getNick()
+		{
+			return nick;
+		}
+
+		public String getHostmask()
+		{
+			return hostmask;
+		}
+
+		public String getChannel()
+		{
+			return channel;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+
+		public long getTime()
+		{
+			return time;
+		}
+
+		public int getRandom()
+		{
+			return random;
+		}
+
+		/**
+		 * @return The row's LineID, or -1 if it hasn't been written yet, or
+		 *         the driver didn't say what it was.
+		 */
+		public int getID()
+		{
+			return id;
+		}
+	}
+
+	// Put in the queue to wake the writer when someone's waiting on it.
+	private static final Row FLUSH = new Row(null, null, null, null, null, 0, 0);
+
+	private static final String INSERT_SQL = "INSERT INTO History VALUES(NULL,?,?,?,?,?,?,?)";
+
+	// How long a logger will wait for space in a full buffer.
+	private static final long OFFER_TIMEOUT = 5000;
+	// How long flush() will wait for the writer to catch up.
+	private static final long FLUSH_TIMEOUT = 10000;
+
+	private final DbConnectionBroker dbBroker;
+	private final BlockingQueue<Row> queue;
+	private final int batchSize;
+	private final long flushInterval;
+	private final Thread thread;
+
+	private final Object enqueueLock = new Object();
+	private final Object progressLock = new Object();
+	private volatile long enqueued;
+	private long processed; // Guarded by progressLock.
+	private volatile boolean flushRequested;
+	private volatile boolean running;
+
+	// Only touched by the writer thread.
+	private Connection dbConn;
+	private PreparedStatement insert;
+
+	/**
+	 * Creates and starts a new writer.
+	 * @param dbBroker Source of the connection to write with.
+	 * @param capacity Maximum number of lines waiting to be written.
+	 * @param batchSize Maximum number of lines written in one go.
+	 * @param flushInterval Maximum time, in milliseconds, a line waits for its batch to fill.
+	 */
+	public HistoryWriter(final DbConnectionBroker dbBroker, final int capacity, final int batchSize, final long flushInterval)
+	{
+		this.dbBroker = dbBroker;
+		this.queue = new ArrayBlockingQueue<Row>(capacity);
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.running = true;
+		this.thread = new Thread(this, "choob-history-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues a line for writing, blocking for a while if the buffer is full.
+	 * @return false if the line was dropped.
+	 */
+	public boolean add(final Row row)
+	{
+		if (!running)
+		{
+			System.err.println("History writer has been closed; dropping line.");
+			return false;
+		}
+		synchronized(enqueueLock)
+		{
+			try
+			{
+				if (!queue.offer(row, OFFER_TIMEOUT, TimeUnit.MILLISECONDS))
+				{
+					System.err.println("History buffer is full; dropping line.");
+					return false;
+				}
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			enqueued++;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until every line queued before this call has been written (or
+	 * given up on).
+	 */
+	public void flush()
+	{
+		final long target = enqueued;
+		final long giveUp = System.currentTimeMillis() + FLUSH_TIMEOUT;
+		synchronized(progressLock)
+		{
+			if (processed < target)
+				wake();
+			while (processed < target && thread.isAlive())
+			{
+				final long wait = giveUp - System.currentTimeMillis();
+				if (wait <= 0)
+				{
+					System.err.println("Timed out waiting for history lines to be written.");
+					return;
+				}
+				try
+				{
+					progressLock.wait(wait);
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting lines, writes out everything already queued and
+	 * releases the writer's connection.
+	 */
+	public void close()
+	{
+		running = false;
+		wake();
+		try
+		{
+			thread.join(FLUSH_TIMEOUT);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Get the writer to write what it has now, rather than waiting for the
+	// batch to fill.
+	private void wake()
+	{
+		flushRequested = true;
+		// If there's no room, the writer has a full batch to be getting on with.
+		queue.offer(FLUSH);
+	}
+
+	@Override
+	public void run()
+	{
+		final List<Row> batch = new ArrayList<Row>(batchSize);
+		try
+		{
+			while (running || !queue.isEmpty())
+			{
+				try
+				{
+					fillBatch(batch);
+				}
+				catch (final InterruptedException e)
+				{
+					// Just write what we have.
+				}
+				if (!batch.isEmpty())
+					write(batch);
+				batch.clear();
+			}
+		}
+		finally
+		{
+			releaseConnection();
+			synchronized(progressLock)
+			{
+				progressLock.notifyAll();
+			}
+		}
+	}
+
+	private void fillBatch(final List<Row> batch) throws InterruptedException
+	{
+		final Row first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+		if (first == null || first == FLUSH)
+			return;
+		batch.add(first);
+
+		final long deadline = System.currentTimeMillis() + flushInterval;
+		while (batch.size() < batchSize)
+		{
+			queue.drainTo(batch, batchSize - batch.size());
+			boolean woken = false;
+			while (batch.remove(FLUSH))
+				woken = true;
+			if (woken || batch.size() >= batchSize || flushRequested || !running)
+				return;
+
+			final long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return;
+			final Row next = queue.poll(wait, TimeUnit.MILLISECONDS);
+			if (next == null || next == FLUSH)
+				return;
+			batch.add(next);
+		}
+	}
+
+	private void write(final List<Row> batch)
+	{
+		try
+		{
+			if (insert == null)
+			{
+				dbConn = dbBroker.getConnection();
+				insert = dbConn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS);
+			}
+
+			for (final Row row : batch)
+			{
+				insert.setString(1, row.type);
+				insert.setString(2, row.nick);
+				insert.setString(3, row.hostmask);
+				insert.setString(4, row.channel);
+				insert.setString(5, row.text);
+				insert.setLong(6, row.time);
+				insert.setInt(7, row.random);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+
+			// Note the IDs given to the rows, for anyone holding on to them.
+			// Some drivers only give the last row's key for a batch; then
+			// there's no telling which is which, so the rows are left
+			// without, and their IDs are looked up if they're wanted.
+			final List<Integer> ids = new ArrayList<Integer>(batch.size());
+			final ResultSet keys = insert.getGeneratedKeys();
+			try
+			{
+				while (keys.next())
+					ids.add(keys.getInt(1));
+			}
+			finally
+			{
+				keys.close();
+			}
+			if (ids.size() == batch.size())
+			{
+				for (int i = 0; i < batch.size(); i++)
+					batch.get(i).id = ids.get(i);
+			}
+		}
+		catch (final SQLException e)
+		{
+			System.err.println("Could not write " + batch.size() + " history lines to database: " + e);
+		}
+		finally
+		{
+			// Hand the connection back between batches, so the broker
+			// doesn't take it for a leak; the pool keeps the statement.
+			releaseConnection();
+			synchronized(progressLock)
+			{
+				processed += batch.size();
+				if (processed >= enqueued)
+					flushRequested = false;
+				progressLock.notifyAll();
+			}
+		}
+	}
+
+	private void releaseConnection()
+	{
+		try
+		{
+			if (insert != null)
+				insert.close();
+		}
+		catch (final SQLException e)
+		{
+			System.err.println("Could not close SQL statement: " + e);
+		}
+		finally
+		{
+			insert = null;
+			dbBroker.freeConnection(dbConn);
+			dbConn = null;
+		}
+	}
+}
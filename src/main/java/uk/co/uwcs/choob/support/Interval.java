@@ -20,6 +20,17 @@ public final class Interval
 
 	private int id;
 
+	private boolean durable;
+
+	// For IntervalScheduler: the order it was added in, whether it has since
+	// been replaced or cancelled, and how many times it's been retried.
+	long sequence;
+	boolean cancelled;
+	int attempts;
+
+	// For IntervalJournal: the key of its record, or 0 if it hasn't one.
+	long journalKey;
+
 	/** Creates a new instance of Interval */
 	public Interval()
 	{
@@ -33,6 +44,12 @@ public final class Interval
 		this.id = id;
 	}
 
+	public Interval(final String plugin, final Object parameter, final long trigger, final int id, final boolean durable)
+	{
+		this(plugin, parameter, trigger, id);
+		this.durable = durable;
+	}
+
 	/**
 	 * Getter for property trigger.
 	 * @return Value of property trigger.
@@ -43,7 +60,8 @@ public final class Interval
 	}
 
 	/**
-	 * Setter for property trigger.
+	 * Setter for property trigger. Don't change it while the interval is
+	 * scheduled.
 	 * @param trigger New value of property trigger.
 	 */
 	public void setTrigger(final long trigger)
@@ -69,6 +87,23 @@ public final class Interval
 		this.id = id;
 	}
 
+	/**
+	 * Getter for property durable.
+	 * @return Whether the interval is kept across restarts.
+	 */
+	public boolean isDurable()
+	{
+		return durable;
+	}
+
+	/**
+	 * @return How many times the interval has been put back to try again.
+	 */
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
 	/**
 	 * Getter for property plugin.
 	 * @return Value of property plugin.
@@ -0,0 +1,301 @@
+package uk.co.uwcs.choob.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only log of durable intervals, so they can be put back after a
+ * restart. Each interval gets a record when it's scheduled and another when
+ * it fires or is cancelled; whatever has the first and not the second when
+ * the log is read back is still pending.
+ *
+ * Records are flushed as they're written, but not synced, so a crash of the
+ * machine (as opposed to the bot) can lose the last few. A record cut short
+ * by a crash ends the log, and is gone after the next compaction.
+ *
+ * Not thread safe; IntervalScheduler only calls it with its lock held.
+ */
+public final class IntervalJournal
+{
+	private static final int MAGIC = 0x494A4E31; // "IJN1"
+	private static final byte ADD = 1;
+	private static final byte DONE = 2;
+
+	/** The longest parameter that can be written. */
+	public static final int MAX_PARAMETER = 0xFFFF / 3;
+
+	// Rewrite the log once it has this many dead records, and more dead than live.
+	private static final int COMPACT_AFTER = 256;
+
+	private final File file;
+	private DataOutputStream out;
+	private long nextKey = 1;
+	private int live;
+	private int dead;
+	// Whether the log has something unreadable in it, so must be rewritten.
+	private boolean damaged;
+
+	public IntervalJournal(final File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Read back the log. This must be called before anything is written.
+	 * @return The intervals still pending, in the order they were scheduled.
+	 */
+	public List<Interval> load()
+	{
+		final Map<Long,Interval> pending = new LinkedHashMap<Long,Interval>();
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override public Object run()
+			{
+				if (file.exists())
+					read(pending);
+				return null;
+			}
+		});
+		live = pending.size();
+		return new ArrayList<Interval>(pending.values());
+	}
+
+	private void read(final Map<Long,Interval> pending)
+	{
+		try
+		{
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() != MAGIC)
+				{
+					System.err.println("Interval journal " + file + " isn't one; ignoring it.");
+					damaged = true;
+					return;
+				}
+				while (true)
+				{
+					final byte type;
+					try
+					{
+						type = in.readByte();
+					}
+					catch (final EOFException e)
+					{
+						break;
+					}
+					final long key = in.readLong();
+					nextKey = Math.max(nextKey, key + 1);
+					if (type == ADD)
+					{
+						final String plugin = in.readUTF();
+						final int id = in.readInt();
+						final long trigger = in.readLong();
+						final String parameter = in.readUTF();
+						final Interval interval = new Interval(plugin, parameter, trigger, id, true);
+						interval.journalKey = key;
+						pending.put(key, interval);
+					}
+					else if (type == DONE)
+						pending.remove(key);
+					else
+						throw new IOException("Unknown record type " + type);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (final IOException e)
+		{
+			// Most likely the bot died half way through a write.
+			System.err.println("Interval journal " + file + " ends early: " + e);
+			damaged = true;
+		}
+	}
+
+	/**
+	 * Write a record for a newly scheduled interval.
+	 * @return Whether it was written.
+	 */
+	public boolean add(final Interval interval)
+	{
+		// writeUTF takes at most 64k of bytes, at up to three a char.
+		final String parameter = (String)interval.getParameter();
+		if (parameter.length() > MAX_PARAMETER)
+		{
+			System.err.println("Interval parameter from " + interval.getPlugin() + " is too long to keep across restarts.");
+			return false;
+		}
+
+		final long key = nextKey++;
+		final boolean written = write(new Record() {
+			@Override public void write(final DataOutputStream data) throws IOException
+			{
+				data.writeByte(ADD);
+				data.writeLong(key);
+				data.writeUTF(interval.getPlugin());
+				data.writeInt(interval.getId());
+				data.writeLong(interval.getTrigger());
+				data.writeUTF(parameter);
+			}
+		});
+		if (written)
+		{
+			interval.journalKey = key;
+			live++;
+		}
+		return written;
+	}
+
+	/**
+	 * Write a record saying an interval has fired or been cancelled.
+	 */
+	public void done(final Interval interval)
+	{
+		final long key = interval.journalKey;
+		if (key == 0)
+			return;
+		interval.journalKey = 0;
+		if (write(new Record() {
+				@Override public void write(final DataOutputStream data) throws IOException
+				{
+					data.writeByte(DONE);
+					data.writeLong(key);
+				}
+			}))
+		{
+			live--;
+			dead++;
+		}
+	}
+
+	/**
+	 * @return Whether enough of the log is dead that it's worth rewriting.
+	 */
+	public boolean wantsCompaction()
+	{
+		return damaged || (dead >= COMPACT_AFTER && dead > live);
+	}
+
+	/**
+	 * Replace the log with one holding just the given intervals, which should
+	 * be everything that's still pending.
+	 */
+	public void compact(final Collection<Interval> pending)
+	{
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override public Object run()
+			{
+				final File temp = new File(file.getPath() + ".tmp");
+				try
+				{
+					close();
+					file.getParentFile().mkdirs();
+					final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+					int count = 0;
+					try
+					{
+						data.writeInt(MAGIC);
+						for (final Interval interval : pending)
+						{
+							if (interval.journalKey == 0)
+								continue;
+							data.writeByte(ADD);
+							data.writeLong(interval.journalKey);
+							data.writeUTF(interval.getPlugin());
+							data.writeInt(interval.getId());
+							data.writeLong(interval.getTrigger());
+							data.writeUTF((String)interval.getParameter());
+							count++;
+						}
+					}
+					finally
+					{
+						data.close();
+					}
+					file.delete();
+					if (!temp.renameTo(file))
+						throw new IOException("Couldn't rename " + temp);
+					live = count;
+					dead = 0;
+					damaged = false;
+				}
+				catch (final IOException e)
+				{
+					System.err.println("Couldn't compact interval journal " + file + ": " + e);
+					temp.delete();
+				}
+				return null;
+			}
+		});
+	}
+
+	private interface Record
+	{
+		void write(DataOutputStream data) throws IOException;
+	}
+
+	private boolean write(final Record record)
+	{
+		return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+			@Override public Boolean run()
+			{
+				try
+				{
+					if (out == null)
+						open();
+					record.write(out);
+					out.flush();
+					return true;
+				}
+				catch (final IOException e)
+				{
+					System.err.println("Couldn't write to interval journal " + file + ": " + e);
+					close();
+					damaged = true;
+					return false;
+				}
+			}
+		});
+	}
+
+	private void open() throws IOException
+	{
+		final boolean exists = file.exists() && file.length() > 0;
+		if (!exists)
+			file.getParentFile().mkdirs();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		if (!exists)
+			out.writeInt(MAGIC);
+	}
+
+	private void close()
+	{
+		if (out == null)
+			return;
+		try
+		{
+			out.close();
+		}
+		catch (final IOException e)
+		{
+			// Nothing more we can do.
+		}
+		out = null;
+	}
+}
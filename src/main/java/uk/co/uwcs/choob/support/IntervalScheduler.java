@@ -0,0 +1,340 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Holds the pending interval callbacks, in a heap ordered by when they're
+ * due, and hands each one out at the moment it is.
+ *
+ * Intervals with an ID (anything but -1) are also indexed by (plugin, ID), so
+ * replacing or cancelling one is a lookup, not a scan. Cancelled intervals are
+ * only marked, and are dropped when they reach the top of the heap, or all
+ * at once if they ever make up most of it.
+ *
+ * Durable intervals are also written to an {@link IntervalJournal}, if there
+ * is one, and are read back from it when the scheduler is created. Any that
+ * were missed while the bot was down are spread out, a little after startup,
+ * rather than all fired at once; once they have been, the journal is
+ * compacted. A durable interval stays in the journal after it's taken, until
+ * {@link #done} says it's been run, so one cut short by a restart is run
+ * again.
+ */
+public final class IntervalScheduler
+{
+	private static final Comparator<Interval> ORDER = new Comparator<Interval>()
+	{
+		@Override
+		public int compare(final Interval a, final Interval b)
+		{
+			if (a.getTrigger() != b.getTrigger())
+				return a.getTrigger() < b.getTrigger() ? -1 : 1;
+			// Same time; first come, first served.
+			return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+		}
+	};
+
+	/** A plugin's pending intervals. */
+	private static final class PluginIntervals
+	{
+		final Set<Interval> all = new HashSet<Interval>();
+		final Map<Integer,Interval> byId = new HashMap<Integer,Interval>();
+	}
+
+	// Overdue intervals from the journal start this long after startup, so
+	// their plugins have a chance to load, and are this far apart.
+	static final long REPLAY_DELAY = 30000;
+	static final long REPLAY_SPACING = 1000;
+
+	private final IntervalJournal journal;
+	// Overdue intervals from the journal that haven't fired or gone yet.
+	private final Set<Interval> replaying = new HashSet<Interval>();
+	// Durable intervals that have been taken, but not yet run.
+	private final Set<Interval> running = new HashSet<Interval>();
+	// Whether the journal is being read back, so mustn't be compacted yet.
+	private boolean loading;
+	private final PriorityQueue<Interval> heap = new PriorityQueue<Interval>(64, ORDER);
+	private final Map<String,PluginIntervals> plugins = new HashMap<String,PluginIntervals>();
+	private long sequence;
+	private int cancelled;
+
+	/**
+	 * Create a scheduler that doesn't keep anything across restarts.
+	 */
+	public IntervalScheduler()
+	{
+		this(null);
+	}
+
+	/**
+	 * Create a scheduler that keeps durable intervals in a journal, and put
+	 * back any that are in it already.
+	 */
+	public IntervalScheduler(final IntervalJournal journal)
+	{
+		this.journal = journal;
+		if (journal != null)
+			replay(journal.load(), System.currentTimeMillis());
+	}
+
+	private synchronized void replay(final List<Interval> loaded, final long now)
+	{
+		final List<Interval> byTrigger = new ArrayList<Interval>(loaded);
+		Collections.sort(byTrigger, ORDER);
+		long next = now + REPLAY_DELAY;
+		for (final Interval interval : byTrigger)
+		{
+			if (interval.getTrigger() < next)
+			{
+				interval.setTrigger(next);
+				next += REPLAY_SPACING;
+				replaying.add(interval);
+			}
+		}
+
+		// In the order they were scheduled, so later ones replace earlier.
+		loading = true;
+		for (final Interval interval : loaded)
+			schedule(interval);
+		loading = false;
+		// Not much point in keeping the old log if it's broken.
+		if (journal.wantsCompaction())
+			journal.compact(loaded);
+	}
+
+	/**
+	 * Add an interval. If it has an ID, any other pending interval from the
+	 * same plugin with the same ID is cancelled.
+	 * @return Whether it's in the journal, so will be kept across restarts.
+	 */
+	public synchronized boolean schedule(final Interval interval)
+	{
+		final PluginIntervals pending = getPending(interval.getPlugin());
+		if (interval.getId() != -1)
+		{
+			final Interval old = pending.byId.put(interval.getId(), interval);
+			if (old != null)
+				cancel(pending, old);
+		}
+		add(pending, interval);
+		if (journal != null && interval.isDurable() && interval.journalKey == 0)
+			journal.add(interval);
+		return interval.journalKey != 0;
+	}
+
+	/**
+	 * Add an interval again, after it couldn't be run. Unlike
+	 * {@link #schedule}, this gives way to anything the plugin has scheduled
+	 * with the same ID in the meantime.
+	 * @return Whether it was added.
+	 */
+	public synchronized boolean retry(final Interval interval)
+	{
+		running.remove(interval);
+		final PluginIntervals pending = getPending(interval.getPlugin());
+		if (interval.getId() != -1)
+		{
+			if (pending.byId.containsKey(interval.getId()))
+			{
+				if (pending.all.isEmpty())
+					plugins.remove(interval.getPlugin());
+				gone(interval);
+				return false;
+			}
+			pending.byId.put(interval.getId(), interval);
+		}
+		interval.attempts++;
+		add(pending, interval);
+		// It's still in the journal, unless it couldn't be written before.
+		if (journal != null && interval.isDurable() && interval.journalKey == 0)
+			journal.add(interval);
+		return true;
+	}
+
+	/**
+	 * Say that an interval from {@link #take} has been run, or given up on,
+	 * so it needn't be run again after a restart.
+	 */
+	public synchronized void done(final Interval interval)
+	{
+		if (running.remove(interval))
+			gone(interval);
+	}
+
+	/**
+	 * Cancel a plugin's pending interval.
+	 * @return Whether there was one to cancel.
+	 */
+	public synchronized boolean cancel(final String plugin, final int id)
+	{
+		final PluginIntervals pending = plugins.get(plugin);
+		if (pending == null)
+			return false;
+		final Interval interval = pending.byId.remove(id);
+		if (interval == null)
+			return false;
+		cancel(pending, interval);
+		if (pending.all.isEmpty())
+			plugins.remove(plugin);
+		return true;
+	}
+
+	/**
+	 * Cancel all of a plugin's pending intervals.
+	 * @return How many there were.
+	 */
+	public synchronized int cancelAll(final String plugin)
+	{
+		final PluginIntervals pending = plugins.remove(plugin);
+		if (pending == null)
+			return 0;
+		for (final Interval interval : pending.all)
+		{
+			interval.cancelled = true;
+			gone(interval);
+		}
+		cancelled += pending.all.size();
+		purgeIfMostlyCancelled();
+		return pending.all.size();
+	}
+
+	/**
+	 * Wait for the next interval to be due, and remove it. Once it's been run,
+	 * it must be passed to {@link #done} or {@link #retry}.
+	 */
+	public synchronized Interval take() throws InterruptedException
+	{
+		while (true)
+		{
+			dropCancelled();
+			final Interval next = heap.peek();
+			if (next == null)
+			{
+				wait();
+				continue;
+			}
+			final long delay = next.getTrigger() - System.currentTimeMillis();
+			if (delay > 0)
+			{
+				wait(delay);
+				continue;
+			}
+
+			heap.poll();
+			final PluginIntervals pending = plugins.get(next.getPlugin());
+			pending.all.remove(next);
+			if (next.getId() != -1)
+				pending.byId.remove(next.getId());
+			if (pending.all.isEmpty())
+				plugins.remove(next.getPlugin());
+			if (journal != null && next.isDurable())
+				running.add(next);
+			return next;
+		}
+	}
+
+	/**
+	 * @return The number of intervals waiting to fire.
+	 */
+	public synchronized int size()
+	{
+		return heap.size() - cancelled;
+	}
+
+	/**
+	 * @return The number of intervals waiting to fire for each plugin.
+	 */
+	public synchronized Map<String,Integer> getPendingCounts()
+	{
+		final Map<String,Integer> ret = new HashMap<String,Integer>();
+		for (final Map.Entry<String,PluginIntervals> plugin : plugins.entrySet())
+			ret.put(plugin.getKey(), plugin.getValue().all.size());
+		return ret;
+	}
+
+	private PluginIntervals getPending(final String plugin)
+	{
+		PluginIntervals pending = plugins.get(plugin);
+		if (pending == null)
+		{
+			pending = new PluginIntervals();
+			plugins.put(plugin, pending);
+		}
+		return pending;
+	}
+
+	private void add(final PluginIntervals pending, final Interval interval)
+	{
+		interval.sequence = sequence++;
+		interval.cancelled = false;
+		pending.all.add(interval);
+		heap.add(interval);
+
+		// The watcher may be waiting for something later than this.
+		if (heap.peek() == interval)
+			notifyAll();
+	}
+
+	private void cancel(final PluginIntervals pending, final Interval interval)
+	{
+		pending.all.remove(interval);
+		interval.cancelled = true;
+		cancelled++;
+		gone(interval);
+		purgeIfMostlyCancelled();
+	}
+
+	// Called when an interval has been run or cancelled.
+	private void gone(final Interval interval)
+	{
+		if (journal == null || !interval.isDurable())
+			return;
+		journal.done(interval);
+		final boolean replayed = replaying.remove(interval) && replaying.isEmpty();
+		if (!loading && (replayed || journal.wantsCompaction()))
+		{
+			final List<Interval> durable = new ArrayList<Interval>(running);
+			for (final PluginIntervals plugin : plugins.values())
+			{
+				for (final Interval pending : plugin.all)
+				{
+					if (pending.isDurable())
+						durable.add(pending);
+				}
+			}
+			Collections.sort(durable, ORDER);
+			journal.compact(durable);
+		}
+	}
+
+	private void dropCancelled()
+	{
+		while (!heap.isEmpty() && heap.peek().cancelled)
+		{
+			heap.poll();
+			cancelled--;
+		}
+	}
+
+	private void purgeIfMostlyCancelled()
+	{
+		if (cancelled < 64 || cancelled * 2 < heap.size())
+			return;
+		final List<Interval> live = new ArrayList<Interval>(heap.size() - cancelled);
+		for (final Interval interval : heap)
+		{
+			if (!interval.cancelled)
+				live.add(interval);
+		}
+		heap.clear();
+		heap.addAll(live);
+		cancelled = 0;
+	}
+}
@@ -0,0 +1,219 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Turns JavaScript regular expressions into java.util.regex ones, so that
+ * JavaScript plugins' filters can be matched without going into Rhino.
+ *
+ * The two syntaxes are nearly the same; the differences that matter are
+ * rewritten (\s, \b, '.', '$', literal brackets inside classes, escapes Java
+ * doesn't know), and anything that can't be done exactly (backreferences,
+ * multiline mode, empty classes, ...) gives up, leaving it to Rhino.
+ *
+ * Case insensitive matching uses Unicode case folding, which differs from
+ * JavaScript's only for the odd character (like the Kelvin sign) that folds
+ * into ASCII.
+ */
+public final class JSRegExpTranslator
+{
+	// JavaScript's whitespace, for \s, without the surrounding brackets.
+	private static final String SPACE = " \\t\\n\\x0B\\f\\r\\u00A0\\u1680\\u180E\\u2000-\\u200A\\u2028\\u2029\\u202F\\u205F\\u3000\\uFEFF";
+
+	// JavaScript's idea of a word character, which is always ASCII.
+	private static final String WORD = "[A-Za-z0-9_]";
+
+	private static final String WORD_BOUNDARY = "(?:(?<=" + WORD + ")(?!" + WORD + ")|(?<!" + WORD + ")(?=" + WORD + "))";
+	private static final String NOT_WORD_BOUNDARY = "(?:(?<=" + WORD + ")(?=" + WORD + ")|(?<!" + WORD + ")(?!" + WORD + "))";
+
+	// '.' matches anything but a line terminator, and U+0085 isn't one.
+	private static final String ANY = "[^\\n\\r\\u2028\\u2029]";
+
+	private JSRegExpTranslator()
+	{
+		// Unused
+	}
+
+	/**
+	 * Translate a JavaScript regular expression.
+	 * @param source The expression's source, as in its "source" property.
+	 * @param ignoreCase Whether it has the i flag.
+	 * @param multiline Whether it has the m flag.
+	 * @return A pattern that matches the same things, or null if there isn't
+	 *         one we can be sure of.
+	 */
+	public static Pattern translate(final String source, final boolean ignoreCase, final boolean multiline)
+	{
+		// Java and JavaScript don't agree on what a line terminator is.
+		if (multiline)
+			return null;
+
+		final String regex = translate(source);
+		if (regex == null)
+			return null;
+
+		try
+		{
+			return Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+		}
+		catch (final PatternSyntaxException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return The java.util.regex source for some JavaScript regex source, or
+	 *         null if it can't be translated.
+	 */
+	static String translate(final String src)
+	{
+		final StringBuilder out = new StringBuilder(src.length() + 16);
+		boolean inClass = false;
+		int i = 0;
+		while (i < src.length())
+		{
+			final char c = src.charAt(i++);
+			if (c == '\\')
+			{
+				if (i >= src.length())
+					return null;
+				final char e = src.charAt(i++);
+				switch (e)
+				{
+					case 'd': case 'D': case 'w': case 'W':
+					case 't': case 'n': case 'f': case 'r':
+						out.append('\\').append(e);
+						break;
+					case 's':
+						out.append(inClass ? SPACE : "[" + SPACE + "]");
+						break;
+					case 'S':
+						// Java gets negated classes nested in classes wrong.
+						if (inClass)
+							return null;
+						out.append("[^" + SPACE + "]");
+						break;
+					case 'b':
+						out.append(inClass ? "\\x08" : WORD_BOUNDARY);
+						break;
+					case 'B':
+						if (inClass)
+							return null;
+						out.append(NOT_WORD_BOUNDARY);
+						break;
+					case 'v':
+						out.append("\\x0B");
+						break;
+					case '0':
+						if (i < src.length() && Character.isDigit(src.charAt(i)))
+							return null; // Octal.
+						out.append("\\x00");
+						break;
+					case '1': case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
+						// Backreferences to groups that haven't matched
+						// match nothing in Java, but anything in JavaScript.
+						return null;
+					case 'c':
+						if (i >= src.length() || !isAsciiLetter(src.charAt(i)))
+							return null;
+						// Java XORs the letter with 64; JavaScript takes it mod 32.
+						out.append("\\c").append(Character.toUpperCase(src.charAt(i++)));
+						break;
+					case 'x':
+						i = hexEscape(src, i, 2, 'x', out);
+						break;
+					case 'u':
+						i = hexEscape(src, i, 4, 'u', out);
+						break;
+					default:
+						// Any other escaped letter is just that letter.
+						if (Character.isLetterOrDigit(e))
+							out.append(e);
+						else
+							out.append('\\').append(e);
+				}
+			}
+			else if (inClass)
+			{
+				if (c == ']')
+					inClass = false;
+				// Java nests classes and has && for intersection.
+				if (c == '[' || c == '&')
+					out.append('\\');
+				out.append(c);
+			}
+			else if (c == '[')
+			{
+				out.append(c);
+				if (i < src.length() && src.charAt(i) == '^')
+					out.append(src.charAt(i++));
+				// [] matches nothing, and [^] anything; Java has neither.
+				if (i < src.length() && src.charAt(i) == ']')
+					return null;
+				inClass = true;
+			}
+			else if (c == '(')
+			{
+				if (i < src.length() && src.charAt(i) == '?'
+						&& (i + 1 >= src.length() || ":=!".indexOf(src.charAt(i + 1)) < 0))
+					return null;
+				out.append(c);
+			}
+			else if (c == '.')
+				out.append(ANY);
+			else if (c == '$')
+				out.append("\\z"); // Java's $ also matches before a final newline.
+			else if (c == '{' && !isQuantifier(src, i))
+				out.append("\\{");
+			else
+				out.append(c);
+		}
+		return inClass ? null : out.toString();
+	}
+
+	// Copies a hex escape (\x or u) if it's valid, or the plain letter if not, as
+	// JavaScript does. Returns where to carry on from.
+	private static int hexEscape(final String src, final int start, final int digits, final char letter, final StringBuilder out)
+	{
+		if (start + digits > src.length())
+		{
+			out.append(letter);
+			return start;
+		}
+		for (int j = start; j < start + digits; j++)
+		{
+			if (Character.digit(src.charAt(j), 16) < 0 || src.charAt(j) > 'f')
+			{
+				out.append(letter);
+				return start;
+			}
+		}
+		out.append('\\').append(letter).append(src, start, start + digits);
+		return start + digits;
+	}
+
+	// Whether the '{' just before start begins {n}, {n,} or {n,m}.
+	private static boolean isQuantifier(final String src, final int start)
+	{
+		int i = start;
+		final int digitsStart = i;
+		while (i < src.length() && src.charAt(i) >= '0' && src.charAt(i) <= '9')
+			i++;
+		if (i == digitsStart || i >= src.length())
+			return false;
+		if (src.charAt(i) == ',')
+		{
+			i++;
+			while (i < src.length() && src.charAt(i) >= '0' && src.charAt(i) <= '9')
+				i++;
+		}
+		return i < src.length() && src.charAt(i) == '}';
+	}
+
+	private static boolean isAsciiLetter(final char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
@@ -0,0 +1,723 @@
+package uk.co.uwcs.choob.support;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds recently retrieved rows of ObjectDB classes that have asked to be
+ * cached, so that the common "fetch the row for this name" query can be
+ * answered without going to the database.
+ *
+ * Only clauses which are nothing but equality tests on exactly the class'
+ * registered key fields (e.g. <tt>WHERE name = "foo"</tt>) are served; all
+ * other queries go straight through. Rows are stored as plain field values,
+ * and every hit makes new objects from them, so plugins can't change the
+ * cached copy by accident.
+ *
+ * {@link ObjectDBTransaction} reports every save, update and delete of a
+ * cached class once it has been committed, and the cache is updated to
+ * match. Writes made with raw SQL are not seen; the time-to-live bounds how
+ * long those can go unnoticed.
+ */
+public final class ObjectDBEntityCache
+{
+	// Class name (lower case) -> cache for that class.
+	private final ConcurrentMap<String,ClassCache> classes = new ConcurrentHashMap<String,ClassCache>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Starts caching a class, replacing any previous settings (and cached
+	 * rows) for it.
+	 * @param sample A (wrapped) instance of the class, to read the fields from.
+	 * @param pluginName The plugin registering the class, if any.
+	 * @param maxEntries The most distinct keys to hold rows for.
+	 * @param ttl How long, in milliseconds, loaded rows may be used for.
+	 * @param keyFields The fields that lookups are made on. Each must be a
+	 *                  String, int or long.
+	 */
+	public void register(final ObjectDBObject sample, final String pluginName, final int maxEntries, final long ttl, final String[] keyFields)
+	{
+		if (keyFields.length == 0)
+			throw new ObjectDBError("At least one key field is needed to cache " + sample.getClassName());
+		if (maxEntries <= 0 || ttl <= 0)
+			throw new ObjectDBError("Cache size and time-to-live must be positive for " + sample.getClassName());
+
+		final String[] fields = sample.getFields();
+		final int[] keyIndex = new int[keyFields.length];
+		final boolean[] keyIsString = new boolean[keyFields.length];
+		for (int k = 0; k < keyFields.length; k++)
+		{
+			keyIndex[k] = -1;
+			for (int i = 0; i < fields.length; i++)
+				if (fields[i].equalsIgnoreCase(keyFields[k]))
+					keyIndex[k] = i;
+			if (keyIndex[k] < 0)
+				throw new ObjectDBError("Class " + sample.getClassName() + " has no field " + keyFields[k] + " to cache on.");
+
+			final Type type;
+			try
+			{
+				type = sample.getFieldType(fields[keyIndex[k]]);
+			}
+			catch (final NoSuchFieldException e)
+			{
+				throw new ObjectDBError("Class " + sample.getClassName() + " has no field " + keyFields[k] + " to cache on.");
+			}
+			if (type == String.class)
+				keyIsString[k] = true;
+			else if (type != Integer.TYPE && type != Long.TYPE)
+				throw new ObjectDBError("Field " + keyFields[k] + " of " + sample.getClassName() + " must be a String, int or long to cache on.");
+		}
+
+		int idIndex = -1;
+		for (int i = 0; i < fields.length; i++)
+			if (fields[i].equals("id"))
+				idIndex = i;
+
+		final String className = sample.getClassName().toLowerCase();
+		classes.put(className, new ClassCache(className, pluginName, fields, idIndex, keyIndex, keyIsString, maxEntries, ttl));
+	}
+
+	/**
+	 * Stops caching every class registered by a plugin.
+	 * @param pluginName The name of the plugin whose classes are to be dropped.
+	 */
+	public void invalidatePlugin(final String pluginName)
+	{
+		final Iterator<ClassCache> it = classes.values().iterator();
+		while (it.hasNext())
+		{
+			final ClassCache cache = it.next();
+			if (cache.pluginName != null && cache.pluginName.equalsIgnoreCase(pluginName))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Stops caching every class.
+	 */
+	public void invalidateAll()
+	{
+		classes.clear();
+	}
+
+	/**
+	 * Works out whether a query can be answered by the cache.
+	 * @param className The class being retrieved.
+	 * @param clause The clause passed to retrieve.
+	 * @param params The values for any placeholders in the clause.
+	 * @return A handle for the cached rows, or null if the class isn't cached
+	 *         or the clause is anything more than a lookup on its key.
+	 */
+	Lookup lookup(final String className, final String clause, final Object... params)
+	{
+		final ClassCache cache = classes.get(className.toLowerCase());
+		if (cache == null || clause == null)
+			return null;
+
+		final String key = cache.parseKey(clause, params);
+		if (key == null)
+			return null;
+
+		synchronized (cache)
+		{
+			return new Lookup(cache, key, cache.generation);
+		}
+	}
+
+	/**
+	 * Takes a copy of an object about to be saved or updated, if its class is
+	 * cached. The copy is given to {@link #apply} after the write is committed.
+	 */
+	Change stored(final ObjectDBObject obj)
+	{
+		final ClassCache cache = classes.get(obj.getClassName().toLowerCase());
+		if (cache == null)
+			return null;
+		final Object[] row = cache.snapshot(obj);
+		if (row == null)
+			return new Change(cache, Change.CLEAR, 0, null);
+		return new Change(cache, Change.STORE, obj.getId(), row);
+	}
+
+	/**
+	 * Notes the deletion of an object, if its class is cached.
+	 */
+	Change deleted(final ObjectDBObject obj)
+	{
+		final ClassCache cache = classes.get(obj.getClassName().toLowerCase());
+		if (cache == null)
+			return null;
+		return new Change(cache, Change.DELETE, obj.getId(), null);
+	}
+
+	/**
+	 * Notes that an unknown set of objects of a class has changed.
+	 */
+	Change cleared(final String className)
+	{
+		final ClassCache cache = classes.get(className.toLowerCase());
+		if (cache == null)
+			return null;
+		return new Change(cache, Change.CLEAR, 0, null);
+	}
+
+	/**
+	 * Updates the cache with writes that have been committed.
+	 */
+	void apply(final List<Change> changes)
+	{
+		for (final Change change : changes)
+		{
+			final ClassCache current = classes.get(change.cache.className);
+			if (current == change.cache)
+				current.apply(change);
+			else if (current != null)
+				// Re-registered since the write; the row may not fit any more.
+				current.apply(new Change(current, Change.CLEAR, 0, null));
+		}
+	}
+
+	/**
+	 * @return The number of lookups answered from the cache.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of cacheable lookups that had to go to the database.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of keys dropped for being too old or to make room.
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * A cacheable query, from just before it was (maybe) run.
+	 */
+	final class Lookup
+	{
+		private final ClassCache cache;
+		private final String key;
+		private final long generation;
+
+		Lookup(final ClassCache cache, final String key, final long generation)
+		{
+			this.cache = cache;
+			this.key = key;
+			this.generation = generation;
+		}
+
+		String[] getFields()
+		{
+			return cache.fields;
+		}
+
+		/**
+		 * @return Copies of the cached rows' field values, in the order of
+		 *         {@link #getFields}, or null on a miss.
+		 */
+		List<Object[]> getRows()
+		{
+			final List<Object[]> rows = cache.get(key);
+			if (rows == null)
+				misses.incrementAndGet();
+			else
+				hits.incrementAndGet();
+			return rows;
+		}
+
+		/**
+		 * Stores the result of the query, unless a write to the class has been
+		 * seen since the lookup (in which case the result might be stale).
+		 */
+		void fill(final List<ObjectDBObject> objects)
+		{
+			final List<Object[]> rows = new ArrayList<Object[]>(objects.size());
+			for (final ObjectDBObject obj : objects)
+			{
+				final Object[] row = cache.snapshot(obj);
+				if (row == null)
+					return;
+				rows.add(row);
+			}
+			cache.put(key, generation, rows);
+		}
+	}
+
+	/**
+	 * A committed (or about to be committed) write to a cached class.
+	 */
+	static final class Change
+	{
+		static final int STORE = 0;
+		static final int DELETE = 1;
+		static final int CLEAR = 2;
+
+		final ClassCache cache;
+		final int type;
+		final int id;
+		final Object[] row;
+
+		Change(final ClassCache cache, final int type, final int id, final Object[] row)
+		{
+			this.cache = cache;
+			this.type = type;
+			this.id = id;
+			this.row = row;
+		}
+	}
+
+	private final class ClassCache
+	{
+		final String className;
+		final String pluginName;
+		final String[] fields;
+		final int idIndex;
+		final int[] keyIndex;
+		final boolean[] keyIsString;
+		final long ttl;
+
+		// Everything below is guarded by this.
+		long generation;
+		private final LinkedHashMap<String,Entry> entries;
+		private final Map<Integer,String> keyOfId = new HashMap<Integer,String>();
+
+		ClassCache(final String className, final String pluginName, final String[] fields, final int idIndex, final int[] keyIndex, final boolean[] keyIsString, final int maxEntries, final long ttl)
+		{
+			this.className = className;
+			this.pluginName = pluginName;
+			this.fields = fields;
+			this.idIndex = idIndex;
+			this.keyIndex = keyIndex;
+			this.keyIsString = keyIsString;
+			this.ttl = ttl;
+			this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override protected boolean removeEldestEntry(final Map.Entry<String,Entry> eldest)
+				{
+					if (size() <= maxEntries)
+						return false;
+					forget(eldest.getValue());
+					evictions.incrementAndGet();
+					return true;
+				}
+			};
+		}
+
+		synchronized List<Object[]> get(final String key)
+		{
+			final Entry entry = entries.get(key);
+			if (entry == null)
+				return null;
+			if (System.currentTimeMillis() - entry.loaded > ttl)
+			{
+				entries.remove(key);
+				forget(entry);
+				evictions.incrementAndGet();
+				return null;
+			}
+			final List<Object[]> ret = new ArrayList<Object[]>(entry.rows.size());
+			for (final Object[] row : entry.rows)
+				ret.add(row.clone());
+			return ret;
+		}
+
+		synchronized void put(final String key, final long gen, final List<Object[]> rows)
+		{
+			if (gen != generation)
+				return;
+			final Entry old = entries.remove(key);
+			if (old != null)
+				forget(old);
+			final Entry entry = new Entry(key, rows, System.currentTimeMillis());
+			for (final Object[] row : rows)
+				keyOfId.put(id(row), key);
+			entries.put(key, entry);
+		}
+
+		synchronized void apply(final Change change)
+		{
+			generation++;
+
+			if (change.type == Change.CLEAR)
+			{
+				entries.clear();
+				keyOfId.clear();
+				return;
+			}
+
+			// Take the row out of whichever key it was cached under.
+			final String oldKey = keyOfId.remove(change.id);
+			if (oldKey != null)
+			{
+				final Entry entry = entries.get(oldKey);
+				if (entry != null)
+				{
+					final int at = indexOf(entry.rows, change.id);
+					if (at >= 0)
+					{
+						entry.rows.remove(at);
+						if (change.type == Change.STORE && oldKey.equals(rowKey(change.row)))
+						{
+							// Same key; update in place so the order is kept.
+							entry.rows.add(at, change.row);
+							keyOfId.put(change.id, oldKey);
+							return;
+						}
+					}
+				}
+			}
+
+			if (change.type != Change.STORE)
+				return;
+
+			final String newKey = rowKey(change.row);
+			if (newKey == null)
+			{
+				// Can't tell which cached keys the database would match this
+				// row to, so start afresh.
+				if (hasOddKey(change.row))
+				{
+					entries.clear();
+					keyOfId.clear();
+				}
+				return;
+			}
+
+			final Entry entry = entries.get(newKey);
+			if (entry != null)
+			{
+				entry.rows.add(change.row);
+				keyOfId.put(change.id, newKey);
+			}
+		}
+
+		private void forget(final Entry entry)
+		{
+			for (final Object[] row : entry.rows)
+			{
+				final Integer id = id(row);
+				if (entry.key.equals(keyOfId.get(id)))
+					keyOfId.remove(id);
+			}
+		}
+
+		private int indexOf(final List<Object[]> rows, final int id)
+		{
+			for (int i = 0; i < rows.size(); i++)
+				if (id(rows.get(i)) == id)
+					return i;
+			return -1;
+		}
+
+		private Integer id(final Object[] row)
+		{
+			return (Integer)row[idIndex];
+		}
+
+		/**
+		 * @return The field values of an object, or null if it doesn't have
+		 *         the fields this cache was registered with.
+		 */
+		Object[] snapshot(final ObjectDBObject obj)
+		{
+			final Object[] row = new Object[fields.length];
+			try
+			{
+				for (int i = 0; i < fields.length; i++)
+					row[i] = obj.getFieldValue(fields[i]);
+			}
+			catch (final NoSuchFieldException e)
+			{
+				return null;
+			}
+			catch (final IllegalAccessException e)
+			{
+				return null;
+			}
+			if (idIndex < 0 || !(row[idIndex] instanceof Integer))
+				return null;
+			return row;
+		}
+
+		// The key a row would be found under, or null if a key value is NULL
+		// or a string that the database might compare differently to us.
+		private String rowKey(final Object[] row)
+		{
+			final StringBuilder key = new StringBuilder();
+			for (int k = 0; k < keyIndex.length; k++)
+			{
+				final Object value = row[keyIndex[k]];
+				if (value == null)
+					return null;
+				final String part = keyIsString[k] ? normalise((String)value) : value.toString();
+				if (part == null)
+					return null;
+				key.append(part).append('\0');
+			}
+			return key.toString();
+		}
+
+		private boolean hasOddKey(final Object[] row)
+		{
+			for (int k = 0; k < keyIndex.length; k++)
+			{
+				final Object value = row[keyIndex[k]];
+				if (keyIsString[k] && value != null && normalise((String)value) == null)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Turns a clause into a key, if it is exactly an equality test on
+		 * each key field, joined by AND.
+		 */
+		String parseKey(final String clause, final Object[] params)
+		{
+			int param = 0;
+			final String[] values = new String[keyIndex.length];
+			final ClauseReader in = new ClauseReader(clause);
+			if (!in.word("WHERE"))
+				return null;
+			int seen = 0;
+			do
+			{
+				final String field = in.field();
+				if (field == null || !in.symbol("="))
+					return null;
+				int k = -1;
+				for (int i = 0; i < keyIndex.length; i++)
+					if (fields[keyIndex[i]].equalsIgnoreCase(field))
+						k = i;
+				if (k < 0 || values[k] != null)
+					return null;
+
+				final String value;
+				if (in.symbol("?"))
+				{
+					if (param >= params.length)
+						return null;
+					value = paramValue(params[param++], keyIsString[k]);
+				}
+				else
+					value = keyIsString[k] ? in.string() : in.integer();
+				if (value == null)
+					return null;
+				values[k] = keyIsString[k] ? normalise(value) : value;
+				if (values[k] == null)
+					return null;
+				seen++;
+			}
+			while (in.word("AND") || in.symbol("&&"));
+
+			if (!in.atEnd() || seen != keyIndex.length || param != params.length)
+				return null;
+
+			final StringBuilder key = new StringBuilder();
+			for (final String value : values)
+				key.append(value).append('\0');
+			return key.toString();
+		}
+	}
+
+	// The key text for a placeholder's value, or null if it isn't the
+	// right type.
+	private static String paramValue(final Object value, final boolean isString)
+	{
+		if (isString)
+			return value instanceof String ? (String)value : null;
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+			return Long.toString(((Number)value).longValue());
+		if (value instanceof Double)
+		{
+			// JavaScript numbers.
+			final double d = ((Double)value).doubleValue();
+			if (d == Math.rint(d) && Math.abs(d) < 1e15)
+				return Long.toString((long)d);
+		}
+		return null;
+	}
+
+	private static final class Entry
+	{
+		final String key;
+		final List<Object[]> rows;
+		final long loaded;
+
+		Entry(final String key, final List<Object[]> rows, final long loaded)
+		{
+			this.key = key;
+			this.rows = rows;
+			this.loaded = loaded;
+		}
+	}
+
+	/**
+	 * Folds a string the way the database's case insensitive comparison
+	 * does, or returns null for anything that isn't plain printable ASCII
+	 * (where the collation rules get too involved to copy).
+	 */
+	static String normalise(final String value)
+	{
+		int end = value.length();
+		while (end > 0 && value.charAt(end - 1) == ' ')
+			end--;
+		for (int i = 0; i < end; i++)
+		{
+			final char c = value.charAt(i);
+			if (c < 0x20 || c > 0x7e)
+				return null;
+		}
+		return value.substring(0, end).toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Just enough of a tokenizer to recognise simple key lookups.
+	 */
+	static final class ClauseReader
+	{
+		private final String text;
+		private int pos;
+
+		ClauseReader(final String text)
+		{
+			this.text = text;
+		}
+
+		private void skipSpace()
+		{
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+
+		boolean atEnd()
+		{
+			skipSpace();
+			return pos == text.length();
+		}
+
+		boolean word(final String word)
+		{
+			skipSpace();
+			final int end = pos + word.length();
+			if (!text.regionMatches(true, pos, word, 0, word.length()))
+				return false;
+			if (end < text.length() && isWordChar(text.charAt(end)))
+				return false;
+			pos = end;
+			return true;
+		}
+
+		boolean symbol(final String symbol)
+		{
+			skipSpace();
+			if (!text.startsWith(symbol, pos))
+				return false;
+			pos += symbol.length();
+			return true;
+		}
+
+		String field()
+		{
+			skipSpace();
+			final boolean quoted = pos < text.length() && text.charAt(pos) == '`';
+			if (quoted)
+				pos++;
+			final int start = pos;
+			while (pos < text.length() && isWordChar(text.charAt(pos)))
+				pos++;
+			if (pos == start)
+				return null;
+			final String name = text.substring(start, pos);
+			if (quoted)
+			{
+				if (pos >= text.length() || text.charAt(pos) != '`')
+					return null;
+				pos++;
+			}
+			return name;
+		}
+
+		// A quoted string literal. Escapes the database would treat
+		// specially are rejected rather than copied.
+		String string()
+		{
+			skipSpace();
+			if (pos >= text.length())
+				return null;
+			final char quote = text.charAt(pos);
+			if (quote != '\'' && quote != '"')
+				return null;
+			pos++;
+			final StringBuilder value = new StringBuilder();
+			while (pos < text.length())
+			{
+				final char c = text.charAt(pos++);
+				if (c == quote)
+				{
+					if (pos < text.length() && text.charAt(pos) == quote)
+						return null;
+					return value.toString();
+				}
+				if (c == '\\')
+				{
+					if (pos >= text.length())
+						return null;
+					final char e = text.charAt(pos++);
+					if (Character.isLetterOrDigit(e) || e == '%' || e == '_')
+						return null;
+					value.append(e);
+				}
+				else
+					value.append(c);
+			}
+			return null;
+		}
+
+		String integer()
+		{
+			skipSpace();
+			final int start = pos;
+			if (pos < text.length() && text.charAt(pos) == '-')
+				pos++;
+			final int digits = pos;
+			while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+				pos++;
+			if (pos == digits || pos - digits > 18)
+				return null;
+			if (pos < text.length() && isWordChar(text.charAt(pos)))
+				return null;
+			return Long.toString(Long.parseLong(text.substring(start, pos)));
+		}
+
+		private static boolean isWordChar(final char c)
+		{
+			return Character.isLetterOrDigit(c) || c == '_';
+		}
+	}
+}
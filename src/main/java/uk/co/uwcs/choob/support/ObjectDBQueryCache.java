@@ -0,0 +1,213 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the SQL that {@link ObjectDBClauseParser} produced for each
+ * query, so that a clause used over and over only goes through the parser
+ * once.
+ *
+ * Clauses may contain <tt>?</tt> placeholders (outside of quotes) in place of
+ * values, which are then passed to the database separately. Using these
+ * means the same clause text is used for every value, so it is only parsed
+ * once, and the database can reuse the statement too.
+ */
+public final class ObjectDBQueryCache
+{
+	// Marks the string constants standing in for placeholders while parsing.
+	private static final char MARK = '\u0001';
+
+	private final Map<String,Query> queries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * A parsed query.
+	 */
+	public static final class Query
+	{
+		private final String sql;
+		private final int[] paramOrder;
+		private final int paramCount;
+		private final int type;
+		private final List<String> usedClasses;
+
+		Query(final String sql, final int[] paramOrder, final int paramCount, final int type, final List<String> usedClasses)
+		{
+			this.sql = sql;
+			this.paramOrder = paramOrder;
+			this.paramCount = paramCount;
+			this.type = type;
+			this.usedClasses = usedClasses;
+		}
+
+		/**
+		 * @return The SQL, with a <tt>?</tt> for each parameter use.
+		 */
+		public String getSQL()
+		{
+			return sql;
+		}
+
+		/**
+		 * @return The number of placeholders in the original clause.
+		 */
+		public int getParamCount()
+		{
+			return paramCount;
+		}
+
+		/**
+		 * @return The type of query, as given by {@link ObjectDBClauseParser#getType}.
+		 */
+		public int getType()
+		{
+			return type;
+		}
+
+		/**
+		 * @return The classes read by the query.
+		 */
+		public List<String> getUsedClasses()
+		{
+			return usedClasses;
+		}
+
+		// The index of the parameter the i'th ? in the SQL stands for.
+		int paramAt(final int i)
+		{
+			return paramOrder[i];
+		}
+
+		int paramUses()
+		{
+			return paramOrder.length;
+		}
+	}
+
+	public ObjectDBQueryCache(final int maxQueries)
+	{
+		this.queries = new LinkedHashMap<String,Query>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override protected boolean removeEldestEntry(final Map.Entry<String,Query> eldest)
+			{
+				return size() > maxQueries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the parsed form of a query, parsing it if it hasn't been seen
+	 * recently.
+	 * @param className The class the query is for.
+	 * @param query The full query, e.g. <tt>SELECT `id` WHERE name = ?</tt>.
+	 */
+	public Query compile(final String className, final String query) throws ParseException
+	{
+		final String key = className + '\0' + query;
+		Query ret;
+		synchronized (queries)
+		{
+			ret = queries.get(key);
+		}
+		if (ret != null)
+		{
+			hits.incrementAndGet();
+			return ret;
+		}
+
+		misses.incrementAndGet();
+		ret = parse(className, query);
+		synchronized (queries)
+		{
+			queries.put(key, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Parses a query, without looking in or filling any cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Query parse(final String className, final String query) throws ParseException
+	{
+		// Swap each ? for a numbered string constant; the parser passes
+		// constants through to the SQL untouched.
+		final StringBuilder marked = new StringBuilder(query.length() + 16);
+		int count = 0;
+		char quote = 0;
+		for (int i = 0; i < query.length(); i++)
+		{
+			final char c = query.charAt(i);
+			if (c == MARK)
+				throw new ParseException("Invalid character in clause.");
+			if (quote != 0)
+			{
+				marked.append(c);
+				if (c == '\\' && quote != '`' && i + 1 < query.length())
+					marked.append(query.charAt(++i));
+				else if (c == quote)
+					quote = 0;
+			}
+			else if (c == '\'' || c == '"' || c == '`')
+			{
+				marked.append(c);
+				quote = c;
+			}
+			else if (c == '?')
+				marked.append('\'').append(MARK).append(count++).append(MARK).append('\'');
+			else
+				marked.append(c);
+		}
+
+		final ObjectDBClauseParser parser = new ObjectDBClauseParser(marked.toString(), className);
+		parser.setUseMany(true);
+		final String sql = parser.ODBExpr();
+
+		// Put the placeholders back, noting which parameter each one is.
+		final StringBuilder out = new StringBuilder(sql.length());
+		final List<Integer> order = new ArrayList<Integer>();
+		int pos = 0;
+		while (true)
+		{
+			final int start = sql.indexOf("'" + MARK, pos);
+			if (start < 0)
+				break;
+			final int end = sql.indexOf(MARK + "'", start + 2);
+			out.append(sql, pos, start).append('?');
+			order.add(Integer.valueOf(sql.substring(start + 2, end)));
+			pos = end + 2;
+		}
+		out.append(sql, pos, sql.length());
+
+		final int[] paramOrder = new int[order.size()];
+		for (int i = 0; i < paramOrder.length; i++)
+			paramOrder[i] = order.get(i).intValue();
+
+		return new Query(out.toString(), paramOrder, count, parser.getType(),
+				Collections.unmodifiableList(new ArrayList<String>(parser.getUsedClasses())));
+	}
+
+	/**
+	 * @return The number of queries that didn't need parsing.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of queries that had to be parsed.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+}
@@ -0,0 +1,117 @@
+package uk.co.uwcs.choob.support;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which ObjectDB tables have already been checked against the
+ * class stored in them, so that {@link ObjectDBTransaction} only has to
+ * describe and diff a table once for each layout of a class.
+ *
+ * Entries are keyed by the ObjectDB class name, and store a fingerprint of
+ * the class' field names and types; a class whose fields change (e.g. when
+ * its plugin is reloaded) no longer matches and gets checked again.
+ */
+public final class ObjectDBSchemaCache
+{
+	// Class name (lower case) -> fingerprint of the verified field list.
+	private final ConcurrentMap<String,String> verified = new ConcurrentHashMap<String,String>();
+
+	private final AtomicLong checksRun = new AtomicLong();
+	private final AtomicLong checksAvoided = new AtomicLong();
+
+	/**
+	 * Builds the fingerprint of an object's stored fields.
+	 * @param obj The object whose fields are to be described.
+	 * @return A string listing every field and its type, in name order.
+	 */
+	public static String fingerprint(final ObjectDBObject obj)
+	{
+		final String[] fields = obj.getFields();
+		final String[] parts = new String[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			try
+			{
+				parts[i] = fields[i].toLowerCase() + ":" + obj.getFieldType(fields[i]);
+			}
+			catch (final NoSuchFieldException e)
+			{
+				throw new ObjectDBError("Unknown class type for field " + fields[i]);
+			}
+		}
+		Arrays.sort(parts);
+
+		final StringBuilder buf = new StringBuilder();
+		for (final String part : parts)
+			buf.append(part).append(';');
+		return buf.toString();
+	}
+
+	/**
+	 * Checks whether the table for a class has been verified with the given
+	 * field layout. A hit is counted as an avoided check.
+	 */
+	public boolean isVerified(final String className, final String fingerprint)
+	{
+		if (fingerprint.equals(verified.get(className.toLowerCase())))
+		{
+			checksAvoided.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the table for a class has just been checked (and fixed up
+	 * if needed) against the given field layout.
+	 */
+	public void setVerified(final String className, final String fingerprint)
+	{
+		checksRun.incrementAndGet();
+		verified.put(className.toLowerCase(), fingerprint);
+	}
+
+	/**
+	 * Forgets every class belonging to a plugin, so their tables are checked
+	 * again on next use.
+	 * @param pluginName The name of the plugin whose classes are to be dropped.
+	 */
+	public void invalidatePlugin(final String pluginName)
+	{
+		final String prefix = "plugins." + pluginName.toLowerCase() + ".";
+		final Iterator<String> it = verified.keySet().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Forgets every verified table.
+	 */
+	public void invalidateAll()
+	{
+		verified.clear();
+	}
+
+	/**
+	 * @return The number of table checks that actually went to the database.
+	 */
+	public long getChecksRun()
+	{
+		return checksRun.get();
+	}
+
+	/**
+	 * @return The number of table checks skipped thanks to the cache.
+	 */
+	public long getChecksAvoided()
+	{
+		return checksAvoided.get();
+	}
+}
@@ -0,0 +1,901 @@
+package uk.co.uwcs.choob.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A trigram index over the text fields of ObjectDB classes which have asked
+ * for one, so that substring and regular expression searches can be narrowed
+ * down to a handful of candidate rows before going to the database.
+ *
+ * Every three-character run of (ASCII, lower-cased) text in an indexed field
+ * has a sorted posting list of the IDs of the rows containing it. A search
+ * string is broken into the trigrams any match must contain, and only rows
+ * with all of them are candidates. The answer is always a superset of the
+ * real matches: the database still does the actual comparison, so rows with
+ * text the index can't reason about (anything outside ASCII, which MySQL's
+ * collations may fold) are simply always candidates.
+ *
+ * {@link ObjectDBTransaction} reports every save, update and delete of an
+ * indexed class once it has been committed, as for
+ * {@link ObjectDBEntityCache}. Writes made with raw SQL are not seen.
+ *
+ * The indexed text is written out by {@link #save}, and read back when the
+ * class is registered on the next start. A file is marked dirty as soon as
+ * the class is written to again, so one which has fallen behind the
+ * database is never loaded; the index is rebuilt from the table instead.
+ */
+public final class ObjectDBTextIndex
+{
+	private static final int MAGIC = 0x54584931; // "TXI1"
+
+	// Searches that would give more candidates than this aren't worth it.
+	private static final int MAX_CANDIDATES = 500;
+
+	private final File dir;
+
+	// Class name (lower case) -> index for that class.
+	private final ConcurrentMap<String,ClassIndex> classes = new ConcurrentHashMap<String,ClassIndex>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param dir The directory to keep index files in.
+	 */
+	public ObjectDBTextIndex(final File dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Starts indexing text fields of a class. Registering the same fields
+	 * again (as happens when a plugin is reloaded) keeps the existing index.
+	 * @param sample A (wrapped) instance of the class, to read the fields from.
+	 * @param pluginName The plugin registering the class, if any.
+	 * @param textFields The fields to index. Each must be a String.
+	 */
+	public void register(final ObjectDBObject sample, final String pluginName, final String[] textFields)
+	{
+		if (textFields.length == 0)
+			throw new ObjectDBError("At least one field is needed to index " + sample.getClassName());
+
+		final String[] fields = sample.getFields();
+		final String[] indexed = new String[textFields.length];
+		for (int k = 0; k < textFields.length; k++)
+		{
+			for (int i = 0; i < fields.length; i++)
+				if (fields[i].equalsIgnoreCase(textFields[k]))
+					indexed[k] = fields[i];
+			if (indexed[k] == null)
+				throw new ObjectDBError("Class " + sample.getClassName() + " has no field " + textFields[k] + " to index.");
+
+			final Type type;
+			try
+			{
+				type = sample.getFieldType(indexed[k]);
+			}
+			catch (final NoSuchFieldException e)
+			{
+				throw new ObjectDBError("Class " + sample.getClassName() + " has no field " + textFields[k] + " to index.");
+			}
+			if (type != String.class)
+				throw new ObjectDBError("Field " + textFields[k] + " of " + sample.getClassName() + " must be a String to index.");
+		}
+
+		final String className = sample.getClassName().toLowerCase();
+		final ClassIndex existing = classes.get(className);
+		if (existing != null && Arrays.equals(existing.fields, indexed))
+			return;
+
+		final ClassIndex index = new ClassIndex(className, pluginName, indexed);
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override public Object run()
+			{
+				index.load();
+				return null;
+			}
+		});
+		classes.put(className, index);
+	}
+
+	/**
+	 * @return Whether a class has text fields registered.
+	 */
+	public boolean isIndexed(final String className)
+	{
+		return classes.containsKey(className.toLowerCase());
+	}
+
+	/**
+	 * Claims the job of (re)building the index of a class from its table.
+	 * @return A handle to give the class' rows to, or null if the index is
+	 *         already built, or being built by someone else.
+	 */
+	public Build startBuild(final String className)
+	{
+		final ClassIndex index = classes.get(className.toLowerCase());
+		if (index == null)
+			return null;
+		synchronized (index)
+		{
+			if (index.state != ClassIndex.UNBUILT)
+				return null;
+			index.state = ClassIndex.BUILDING;
+			index.pending.clear();
+			return new Build(index);
+		}
+	}
+
+	/**
+	 * Works out which rows could match a search of an indexed field.
+	 * @param className The class being searched.
+	 * @param field The field being searched.
+	 * @param search The text to look for, or regular expression to match.
+	 * @param regex Whether search is a regular expression.
+	 * @return The IDs of the rows which might match, or null if the index
+	 *         can't narrow the search down usefully.
+	 */
+	public Set<Integer> candidates(final String className, final String field, final String search, final boolean regex)
+	{
+		final ClassIndex index = classes.get(className.toLowerCase());
+		Set<Integer> ret = null;
+		if (index != null)
+		{
+			final int[] trigrams = trigrams(regex ? requiredLiterals(search) : Arrays.asList(search));
+			if (trigrams != null)
+				ret = index.candidates(field, trigrams);
+		}
+
+		if (ret != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * Writes out the index of every built class, so it can be loaded
+	 * instead of rebuilt next time.
+	 */
+	public void save()
+	{
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override public Object run()
+			{
+				for (final ClassIndex index : classes.values())
+					index.save();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Takes a copy of the indexed text of an object about to be saved or
+	 * updated, if its class is indexed. The copy is given to {@link #apply}
+	 * after the write is committed.
+	 */
+	Change stored(final ObjectDBObject obj)
+	{
+		final ClassIndex index = classes.get(obj.getClassName().toLowerCase());
+		if (index == null)
+			return null;
+		index.markDirty();
+		final String[] texts = new String[index.fields.length];
+		try
+		{
+			for (int i = 0; i < texts.length; i++)
+				texts[i] = (String)obj.getFieldValue(index.fields[i]);
+		}
+		catch (final Exception e)
+		{
+			return new Change(index, Change.REBUILD, 0, null);
+		}
+		return new Change(index, Change.STORE, obj.getId(), texts);
+	}
+
+	/**
+	 * Notes the deletion of an object, if its class is indexed.
+	 */
+	Change deleted(final String className, final int id)
+	{
+		final ClassIndex index = classes.get(className.toLowerCase());
+		if (index == null)
+			return null;
+		index.markDirty();
+		return new Change(index, Change.DELETE, id, null);
+	}
+
+	/**
+	 * Updates the index with writes that have been committed.
+	 */
+	void apply(final List<Change> changes)
+	{
+		for (final Change change : changes)
+		{
+			final ClassIndex current = classes.get(change.index.className);
+			if (current == change.index)
+				current.apply(change);
+			else if (current != null)
+				current.apply(new Change(current, Change.REBUILD, 0, null));
+		}
+	}
+
+	/**
+	 * @return The number of searches narrowed down by the index.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of searches the index couldn't help with.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * A committed (or about to be committed) write to an indexed class.
+	 */
+	static final class Change
+	{
+		static final int STORE = 0;
+		static final int DELETE = 1;
+		static final int REBUILD = 2;
+
+		final ClassIndex index;
+		final int type;
+		final int id;
+		final String[] texts;
+
+		Change(final ClassIndex index, final int type, final int id, final String[] texts)
+		{
+			this.index = index;
+			this.type = type;
+			this.id = id;
+			this.texts = texts;
+		}
+	}
+
+	/**
+	 * A (re)build of a class' index, started by {@link #startBuild}. Writes
+	 * committed while the rows are being read are held back and replayed on
+	 * top of them, so none are lost.
+	 */
+	public final class Build
+	{
+		private final ClassIndex index;
+		private final Map<Integer,String[]> rows = new HashMap<Integer,String[]>();
+
+		Build(final ClassIndex index)
+		{
+			this.index = index;
+		}
+
+		/**
+		 * Adds a row read from the class' table.
+		 */
+		public void add(final ObjectDBObject obj)
+		{
+			final String[] texts = new String[index.fields.length];
+			try
+			{
+				for (int i = 0; i < texts.length; i++)
+					texts[i] = (String)obj.getFieldValue(index.fields[i]);
+			}
+			catch (final Exception e)
+			{
+				throw new ObjectDBError("Couldn't read the indexed fields of " + obj.getClassName(), e);
+			}
+			rows.put(obj.getId(), texts);
+		}
+
+		/**
+		 * Makes the index live.
+		 */
+		public void finish()
+		{
+			index.finishBuild(rows);
+		}
+
+		/**
+		 * Gives up, leaving the class to be built again later.
+		 */
+		public void abort()
+		{
+			synchronized (index)
+			{
+				index.state = ClassIndex.UNBUILT;
+				index.pending.clear();
+			}
+		}
+	}
+
+	private final class ClassIndex
+	{
+		static final int UNBUILT = 0;
+		static final int BUILDING = 1;
+		static final int READY = 2;
+
+		final String className;
+		final String pluginName;
+		final String[] fields;
+		final FieldIndex[] indexes;
+
+		// ID -> the text of each field.
+		final Map<Integer,String[]> rows = new HashMap<Integer,String[]>();
+		final List<Change> pending = new ArrayList<Change>();
+		int state = UNBUILT;
+
+		// Whether the file on disk matches the database.
+		private boolean fileClean;
+
+		ClassIndex(final String className, final String pluginName, final String[] fields)
+		{
+			this.className = className;
+			this.pluginName = pluginName;
+			this.fields = fields;
+			this.indexes = new FieldIndex[fields.length];
+			for (int i = 0; i < fields.length; i++)
+				indexes[i] = new FieldIndex();
+		}
+
+		File file()
+		{
+			return new File(dir, className.replaceAll("[^a-z0-9.]", "_") + ".idx");
+		}
+
+		synchronized Set<Integer> candidates(final String field, final int[] trigrams)
+		{
+			if (state != READY)
+				return null;
+			for (int i = 0; i < fields.length; i++)
+				if (fields[i].equalsIgnoreCase(field))
+					return indexes[i].candidates(trigrams);
+			return null;
+		}
+
+		synchronized void apply(final Change change)
+		{
+			if (state == BUILDING)
+				pending.add(change);
+			else if (state == READY)
+				applyNow(change);
+		}
+
+		private void applyNow(final Change change)
+		{
+			if (change.type == Change.REBUILD)
+			{
+				clear();
+				state = UNBUILT;
+				return;
+			}
+
+			final String[] old = rows.remove(change.id);
+			if (change.type == Change.STORE)
+			{
+				for (int i = 0; i < fields.length; i++)
+				{
+					final String before = old == null ? null : old[i];
+					if (before != null && before.equals(change.texts[i]))
+						continue;
+					indexes[i].remove(change.id, before);
+					indexes[i].add(change.id, change.texts[i]);
+				}
+				rows.put(change.id, change.texts);
+			}
+			else if (old != null)
+			{
+				for (int i = 0; i < fields.length; i++)
+					indexes[i].remove(change.id, old[i]);
+			}
+		}
+
+		synchronized void finishBuild(final Map<Integer,String[]> built)
+		{
+			if (state != BUILDING)
+				return;
+			clear();
+			for (final Map.Entry<Integer,String[]> row : built.entrySet())
+				applyNow(new Change(this, Change.STORE, row.getKey(), row.getValue()));
+			state = READY;
+			for (final Change change : pending)
+				applyNow(change);
+			pending.clear();
+		}
+
+		private void clear()
+		{
+			rows.clear();
+			for (int i = 0; i < fields.length; i++)
+				indexes[i] = new FieldIndex();
+		}
+
+		synchronized void markDirty()
+		{
+			if (!fileClean)
+				return;
+			fileClean = false;
+			AccessController.doPrivileged(new PrivilegedAction<Object>() {
+				@Override public Object run()
+				{
+					try
+					{
+						final RandomAccessFile raf = new RandomAccessFile(file(), "rw");
+						try
+						{
+							raf.seek(4);
+							raf.writeBoolean(false);
+						}
+						finally
+						{
+							raf.close();
+						}
+					}
+					catch (final IOException e)
+					{
+						if (!file().delete())
+							System.err.println("Couldn't mark text index " + file() + " as out of date: " + e);
+					}
+					return null;
+				}
+			});
+		}
+
+		// Only called before the index is published.
+		void load()
+		{
+			final File file = file();
+			if (!file.exists())
+				return;
+
+			try
+			{
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try
+				{
+					if (in.readInt() != MAGIC || !in.readBoolean())
+						return;
+					final String[] stored = new String[in.readInt()];
+					for (int i = 0; i < stored.length; i++)
+						stored[i] = in.readUTF();
+					if (!Arrays.equals(stored, fields))
+						return;
+
+					final int count = in.readInt();
+					for (int r = 0; r < count; r++)
+					{
+						final int id = in.readInt();
+						final String[] texts = new String[fields.length];
+						for (int i = 0; i < texts.length; i++)
+							if (in.readBoolean())
+								texts[i] = readString(in);
+						applyNow(new Change(this, Change.STORE, id, texts));
+					}
+					state = READY;
+					fileClean = true;
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch (final IOException e)
+			{
+				System.err.println("Couldn't load text index " + file + ", it will be rebuilt: " + e);
+			}
+			finally
+			{
+				if (state != READY)
+				{
+					clear();
+					file.delete();
+				}
+			}
+		}
+
+		synchronized void save()
+		{
+			if (state != READY || fileClean)
+				return;
+
+			dir.mkdirs();
+			final File file = file();
+			final File temp = new File(dir, file.getName() + ".tmp");
+			try
+			{
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+				try
+				{
+					out.writeInt(MAGIC);
+					out.writeBoolean(true);
+					out.writeInt(fields.length);
+					for (final String field : fields)
+						out.writeUTF(field);
+					out.writeInt(rows.size());
+					for (final Map.Entry<Integer,String[]> row : rows.entrySet())
+					{
+						out.writeInt(row.getKey());
+						for (final String text : row.getValue())
+						{
+							out.writeBoolean(text != null);
+							if (text != null)
+								writeString(out, text);
+						}
+					}
+				}
+				finally
+				{
+					out.close();
+				}
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Couldn't rename " + temp + " to " + file);
+				fileClean = true;
+			}
+			catch (final IOException e)
+			{
+				System.err.println("Couldn't save text index " + file + ": " + e);
+				temp.delete();
+			}
+		}
+	}
+
+	// writeUTF is limited to 64KB, which a text field may well not be.
+	private static void writeString(final DataOutputStream out, final String text) throws IOException
+	{
+		final byte[] bytes = text.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException
+	{
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * The posting lists of one field of a class.
+	 */
+	private static final class FieldIndex
+	{
+		// Trigram -> sorted IDs of the rows containing it.
+		final Map<Integer,IntList> postings = new HashMap<Integer,IntList>();
+		// Rows whose text can't be indexed, and so always have to be checked.
+		final IntList always = new IntList();
+
+		void add(final int id, final String text)
+		{
+			if (text == null)
+				return;
+			final int[] trigrams = rowTrigrams(text);
+			if (trigrams == null)
+			{
+				always.add(id);
+				return;
+			}
+			for (final int trigram : trigrams)
+			{
+				IntList list = postings.get(trigram);
+				if (list == null)
+					postings.put(trigram, list = new IntList());
+				list.add(id);
+			}
+		}
+
+		void remove(final int id, final String text)
+		{
+			if (text == null)
+				return;
+			final int[] trigrams = rowTrigrams(text);
+			if (trigrams == null)
+			{
+				always.remove(id);
+				return;
+			}
+			for (final int trigram : trigrams)
+			{
+				final IntList list = postings.get(trigram);
+				if (list != null && list.remove(id) && list.size == 0)
+					postings.remove(trigram);
+			}
+		}
+
+		Set<Integer> candidates(final int[] trigrams)
+		{
+			final IntList[] lists = new IntList[trigrams.length];
+			IntList smallest = null;
+			for (int i = 0; i < trigrams.length; i++)
+			{
+				lists[i] = postings.get(trigrams[i]);
+				if (lists[i] == null)
+					lists[i] = new IntList();
+				if (smallest == null || lists[i].size < smallest.size)
+					smallest = lists[i];
+			}
+			if (smallest.size + always.size > MAX_CANDIDATES)
+				return null;
+
+			final Set<Integer> ret = new TreeSet<Integer>();
+			next: for (int j = 0; j < smallest.size; j++)
+			{
+				final int id = smallest.data[j];
+				for (final IntList list : lists)
+					if (list != smallest && !list.contains(id))
+						continue next;
+				ret.add(id);
+			}
+			for (int j = 0; j < always.size; j++)
+				ret.add(always.data[j]);
+			return ret;
+		}
+	}
+
+	/**
+	 * A sorted set of ints, as a growable array; IDs mostly arrive in
+	 * increasing order, so adding is usually an append.
+	 */
+	static final class IntList
+	{
+		int[] data = new int[4];
+		int size;
+
+		boolean contains(final int value)
+		{
+			return Arrays.binarySearch(data, 0, size, value) >= 0;
+		}
+
+		void add(final int value)
+		{
+			int pos = size > 0 && data[size - 1] < value ? -size - 1 : Arrays.binarySearch(data, 0, size, value);
+			if (pos >= 0)
+				return;
+			pos = -pos - 1;
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			System.arraycopy(data, pos, data, pos + 1, size - pos);
+			data[pos] = value;
+			size++;
+		}
+
+		boolean remove(final int value)
+		{
+			final int pos = Arrays.binarySearch(data, 0, size, value);
+			if (pos < 0)
+				return false;
+			System.arraycopy(data, pos + 1, data, pos, size - pos - 1);
+			size--;
+			return true;
+		}
+	}
+
+	private static int trigram(final char a, final char b, final char c)
+	{
+		return (a << 14) | (b << 7) | c;
+	}
+
+	private static char fold(final char c)
+	{
+		return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * The distinct trigrams of a row's text, or null if it has anything but
+	 * ASCII in it.
+	 */
+	static int[] rowTrigrams(final String text)
+	{
+		final Set<Integer> ret = new TreeSet<Integer>();
+		for (int i = 0; i < text.length(); i++)
+		{
+			if (text.charAt(i) > 127)
+				return null;
+			if (i >= 2)
+				ret.add(trigram(fold(text.charAt(i - 2)), fold(text.charAt(i - 1)), fold(text.charAt(i))));
+		}
+		final int[] arr = new int[ret.size()];
+		int i = 0;
+		for (final int trigram : ret)
+			arr[i++] = trigram;
+		return arr;
+	}
+
+	/**
+	 * The trigrams that any text containing all of some strings must have,
+	 * or null if there are none. Runs of non-ASCII characters are skipped, as
+	 * the database may consider them equal to something else entirely.
+	 */
+	static int[] trigrams(final List<String> literals)
+	{
+		if (literals == null)
+			return null;
+		final Set<Integer> ret = new TreeSet<Integer>();
+		for (final String literal : literals)
+			for (int i = 2; i < literal.length(); i++)
+			{
+				final char a = literal.charAt(i - 2), b = literal.charAt(i - 1), c = literal.charAt(i);
+				if (a <= 127 && b <= 127 && c <= 127)
+					ret.add(trigram(fold(a), fold(b), fold(c)));
+			}
+		if (ret.isEmpty())
+			return null;
+		final int[] arr = new int[ret.size()];
+		int i = 0;
+		for (final int trigram : ret)
+			arr[i++] = trigram;
+		return arr;
+	}
+
+	/**
+	 * Finds the literal strings that anything matching a regular expression
+	 * must contain. Only the top level of the expression is considered:
+	 * groups, classes, escapes and anything quantified are skipped over.
+	 * @return The strings, or null if the expression has alternatives (or
+	 *         can't be understood), so nothing is required.
+	 */
+	static List<String> requiredLiterals(final String regex)
+	{
+		final List<String> ret = new ArrayList<String>();
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < regex.length())
+		{
+			final char c = regex.charAt(i);
+			switch (c)
+			{
+				case '|':
+				case ')':
+					return null;
+
+				case '(':
+					i = skipGroup(regex, i);
+					if (i < 0)
+						return null;
+					ret.add(run.toString());
+					run = new StringBuilder();
+					continue;
+
+				case '[':
+					i = skipClass(regex, i);
+					if (i < 0)
+						return null;
+					ret.add(run.toString());
+					run = new StringBuilder();
+					continue;
+
+				case '*':
+				case '?':
+				case '{':
+					// The previous character is optional.
+					if (run.length() > 0)
+						run.setLength(run.length() - 1);
+					ret.add(run.toString());
+					run = new StringBuilder();
+					if (c == '{')
+					{
+						i = regex.indexOf('}', i);
+						if (i < 0)
+							return null;
+					}
+					i++;
+					continue;
+
+				case '+':
+				case '.':
+				case '^':
+				case '$':
+					ret.add(run.toString());
+					run = new StringBuilder();
+					i++;
+					continue;
+
+				case '\\':
+					if (i + 1 >= regex.length())
+						return null;
+					final char escaped = regex.charAt(i + 1);
+					if (Character.isLetterOrDigit(escaped))
+					{
+						// A class (\w), an anchor (\b), a back-reference...
+						ret.add(run.toString());
+						run = new StringBuilder();
+					}
+					else
+						run.append(escaped);
+					i += 2;
+					continue;
+
+				default:
+					run.append(c);
+					i++;
+			}
+		}
+		ret.add(run.toString());
+		ret.removeAll(Collections.singleton(""));
+		return ret;
+	}
+
+	// Returns the index just past the ) closing the group opened at start.
+	private static int skipGroup(final String regex, final int start)
+	{
+		int depth = 0;
+		int i = start;
+		while (i < regex.length())
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+				i += 2;
+			else if (c == '[')
+			{
+				i = skipClass(regex, i);
+				if (i < 0)
+					return -1;
+			}
+			else
+			{
+				if (c == '(')
+					depth++;
+				else if (c == ')' && --depth == 0)
+					return i + 1;
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	// Returns the index just past the ] closing the class opened at start.
+	private static int skipClass(final String regex, final int start)
+	{
+		int i = start + 1;
+		if (i < regex.length() && regex.charAt(i) == '^')
+			i++;
+		// A ] straight away is part of the class.
+		if (i < regex.length() && regex.charAt(i) == ']')
+			i++;
+		while (i < regex.length())
+		{
+			final char c = regex.charAt(i);
+			if (c == ']')
+				return i + 1;
+			if (c == '[' && i + 1 < regex.length() && ":.=".indexOf(regex.charAt(i + 1)) >= 0)
+			{
+				// [:alpha:], [.space.] or [=e=].
+				final int end = regex.indexOf(regex.charAt(i + 1) + "]", i + 2);
+				if (end < 0)
+					return -1;
+				i = end + 2;
+			}
+			else if (c == '\\')
+				i += 2;
+			else
+				i++;
+		}
+		return -1;
+	}
+}
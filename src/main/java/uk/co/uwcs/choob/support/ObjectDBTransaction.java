@@ -7,12 +7,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.mozilla.javascript.Function;
@@ -34,6 +41,7 @@ import uk.co.uwcs.choob.modules.ObjectDbModule;
  *               // ObjectDB operations here, e.g.
  *               //   delete(o);
  *               //   save(o);
+ *               //   saveAll(list);
  *           }
  *       });
  * </pre>
@@ -43,12 +51,41 @@ public class ObjectDBTransaction // Needs to be non-final
 {
 	private Connection dbConn;
 	private Modules mods;
+	private ObjectDBSchemaCache schemaCache;
+	private ObjectDBEntityCache entityCache;
+	private ObjectDBQueryCache queryCache;
+	private ObjectDBTextIndex textIndex;
+
+	// Writes to cached and indexed classes, held until the transaction commits.
+	private final List<ObjectDBEntityCache.Change> cacheChanges = new ArrayList<ObjectDBEntityCache.Change>();
+	private final List<ObjectDBTextIndex.Change> indexChanges = new ArrayList<ObjectDBTextIndex.Change>();
+	private boolean inTransaction;
 
 	public final void setMods(Modules mods)
 	{
 		this.mods = mods;
 	}
 
+	public final void setSchemaCache(ObjectDBSchemaCache schemaCache)
+	{
+		this.schemaCache = schemaCache;
+	}
+
+	public final void setQueryCache(ObjectDBQueryCache queryCache)
+	{
+		this.queryCache = queryCache;
+	}
+
+	public final void setEntityCache(ObjectDBEntityCache entityCache)
+	{
+		this.entityCache = entityCache;
+	}
+
+	public final void setTextIndex(ObjectDBTextIndex textIndex)
+	{
+		this.textIndex = textIndex;
+	}
+
 	public final void setConn(Connection dbConn)
 	{
 		this.dbConn = dbConn;
@@ -73,6 +110,9 @@ public class ObjectDBTransaction // Needs to be non-final
 		try
 		{
 			dbConn.setAutoCommit(false);
+			cacheChanges.clear();
+			indexChanges.clear();
+			inTransaction = true;
 		}
 		catch (SQLException e)
 		{
@@ -97,6 +137,17 @@ public class ObjectDBTransaction // Needs to be non-final
 		try
 		{
 			dbConn.commit();
+			inTransaction = false;
+			if (cacheChanges.size() > 0)
+			{
+				entityCache.apply(cacheChanges);
+				cacheChanges.clear();
+			}
+			if (indexChanges.size() > 0)
+			{
+				textIndex.apply(indexChanges);
+				indexChanges.clear();
+			}
 		}
 		catch (SQLException e)
 		{
@@ -118,6 +169,9 @@ public class ObjectDBTransaction // Needs to be non-final
 	{
 		try
 		{
+			cacheChanges.clear();
+			indexChanges.clear();
+			inTransaction = false;
 			dbConn.rollback();
 		}
 		catch (SQLException e)
@@ -252,7 +306,12 @@ public class ObjectDBTransaction // Needs to be non-final
 
 	private final String getTableName(ObjectDBObject obj)
 	{
-		return "_objectdb_" + obj.getClassName().toLowerCase().replaceAll("\\.", "_");
+		return getTableName(obj.getClassName());
+	}
+
+	private final String getTableName(String className)
+	{
+		return "_objectdb_" + className.toLowerCase().replaceAll("\\.", "_");
 	}
 
 	private final void checkTable(ObjectDBClass cls)
@@ -272,6 +331,24 @@ public class ObjectDBTransaction // Needs to be non-final
 	}
 
 	private final void checkTable(ObjectDBObject obj)
+	{
+		if (schemaCache == null)
+		{
+			verifyTable(obj);
+			return;
+		}
+
+		// Only go to the database if this layout of the class hasn't been seen.
+		final String className = obj.getClassName();
+		final String fingerprint = ObjectDBSchemaCache.fingerprint(obj);
+		if (schemaCache.isVerified(className, fingerprint))
+			return;
+
+		verifyTable(obj);
+		schemaCache.setVerified(className, fingerprint);
+	}
+
+	private final void verifyTable(ObjectDBObject obj)
 	{
 		// XXX possibly MySQL specific.
 		Statement stat = null;
@@ -472,7 +549,25 @@ public class ObjectDBTransaction // Needs to be non-final
 	@SuppressWarnings("rawtypes")
 	public final List retrieve(Object storedClass, String clause)
 	{
-		return retrieve(NewClassWrapper(storedClass), clause);
+		return retrieve(NewClassWrapper(storedClass), clause, NO_PARAMS);
+	}
+
+	/**
+	 * Loads any number of stored ObjectDB objects, using a clause with
+	 * <tt>?</tt> placeholders for its values.
+	 *
+	 * @param storedClass The class ({@link Class} for Java, or
+	 *                    {@link Function} for JavaScript) representing the
+	 *                    type of object desired to be retrieved.
+	 * @param clause The restricting part of the query, with a <tt>?</tt> in
+	 *               place of each value (e.g. <tt>WHERE name = ?</tt>).
+	 * @param params The values, in order. These must not be escaped.
+	 * @return {@link List} of objects, typed according to the caller.
+	 */
+	@SuppressWarnings("rawtypes")
+	public final List retrieve(Object storedClass, String clause, Object... params)
+	{
+		return retrieve(NewClassWrapper(storedClass), clause, params);
 	}
 
 	/**
@@ -487,13 +582,47 @@ public class ObjectDBTransaction // Needs to be non-final
 	@SuppressWarnings("rawtypes")
 	public final List retrieve(final ObjectDBClass storedClass, String clause)
 	{
-		String sqlQuery;
+		return retrieve(storedClass, clause, NO_PARAMS);
+	}
 
+	/**
+	 * Loads any number of stored ObjectDB objects, using a clause with
+	 * <tt>?</tt> placeholders for its values.
+	 *
+	 * @param storedClass The {@link ObjectDBClass} indicating the type of
+	 *                    object desired to be retrieved.
+	 * @param clause The restricting part of the query, with a <tt>?</tt> in
+	 *               place of each value.
+	 * @param params The values, in order. These must not be escaped.
+	 * @return {@link List} of objects, typed according to the caller.
+	 */
+	@SuppressWarnings("rawtypes")
+	public final List retrieve(final ObjectDBClass storedClass, String clause, Object... params)
+	{
 		if ( clause == null )
 		{
 			clause = "WHERE 1";
 		}
 
+		// Lookups on the key of a cached class might not need the database.
+		// Skip this if we've written anything the cache hasn't seen yet.
+		ObjectDBEntityCache.Lookup cached = null;
+		if (entityCache != null && cacheChanges.isEmpty())
+		{
+			cached = entityCache.lookup(storedClass.getName(), clause, params);
+			if (cached != null)
+			{
+				checkPermission(storedClass.getName());
+				List<Object[]> rows = cached.getRows();
+				if (rows != null)
+				{
+					List<Object> objects = fromCache(storedClass, cached.getFields(), rows);
+					if (objects != null)
+						return objects;
+				}
+			}
+		}
+
 		String[] fields;
 		try
 		{
@@ -520,100 +649,77 @@ public class ObjectDBTransaction // Needs to be non-final
 		}
 		select = fieldNames.toString();
 
-		ObjectDBClauseParser parser = new ObjectDBClauseParser("SELECT " + select + " " + clause, storedClass.getName());
-		parser.setUseMany(true);
-		try
-		{
-			sqlQuery = parser.ODBExpr();
-		}
-		catch (ParseException e)
-		{
-			// TODO there's some public properties we can use to make a better error message.
-			System.err.println("Parse error in string: " + clause);
-			System.err.println("Error was: " + e);
-			throw new ObjectDBError("Parse error in clause string: " + clause);
-		}
-
-		// Make sure it's the right query type... (XXX Do we need to?)
-		if (parser.getType() != ObjectDBClauseParser.TYPE_SELECT)
-			throw new ObjectDBError("Clause string " + clause + " was not a SELECT clause.");
-
-		// Make sure we can read these classes...
-		@SuppressWarnings("unchecked")
-		List<String> classNames = parser.getUsedClasses();
-		for(String cls: classNames)
-			checkPermission(cls);
+		ObjectDBQueryCache.Query query = compileSelect(storedClass, "SELECT " + select + " " + clause, clause);
 
 		checkTable(storedClass);
 
-		Statement objStat = null;
-		Statement retrieveStat = null;
+		PreparedStatement objStat = null;
 		try
 		{
 			final List<Object> objects = new ArrayList<Object>();
+			final List<ObjectDBObject> wrapped = new ArrayList<ObjectDBObject>();
 			final Set<Integer> objectIds = new HashSet<Integer>();
 
-			objStat = dbConn.createStatement();
-			retrieveStat = dbConn.createStatement();
+			objStat = prepareQuery(query, params);
 
-			ResultSet allObjects = objStat.executeQuery( sqlQuery );
+			ResultSet allObjects = objStat.executeQuery();
 
 			Map<String,Type> fieldTypeCache = new HashMap<String,Type>();
 
-			if( allObjects.first() )
+			while ( allObjects.next() ) // Loop over all objects
 			{
-				do // Loop over all objects
+				// Ensure we never include an object more than once.
+				int objectId = (int)allObjects.getLong(idFieldIndex + 1);
+				if (objectIds.contains(objectId))
+					continue;
+
+				Object newObject = storedClass.newInstance(); // This will be set immediately, because 0 is not a valid ID.
+				ObjectDBObject tempObject = NewObjectWrapper(newObject);
+
+				for(int i=0; i<fields.length; i++)
 				{
-					// Ensure we never include an object more than once.
-					int objectId = (int)allObjects.getLong(idFieldIndex + 1);
-					if (objectIds.contains(objectId))
-						continue;
+					String name = fields[i];
 
-					Object newObject = storedClass.newInstance(); // This will be set immediately, because 0 is not a valid ID.
-					ObjectDBObject tempObject = NewObjectWrapper(newObject);
+					Type fieldType = fieldTypeCache.get(name);
+					if (fieldType == null)
+					{
+						fieldType = tempObject.getFieldType(name);
+						fieldTypeCache.put(name, fieldType);
+					}
 
-					for(int i=0; i<fields.length; i++)
+					if (fieldType == String.class)
+					{
+						tempObject.setFieldValue(name, allObjects.getString(i + 1));
+					}
+					else if (fieldType == Integer.TYPE)
+					{
+						tempObject.setFieldValue(name, (int)allObjects.getLong(i + 1));
+					}
+					else if (fieldType == Long.TYPE)
+					{
+						tempObject.setFieldValue(name, allObjects.getLong(i + 1));
+					}
+					else if (fieldType == Boolean.TYPE)
+					{
+						tempObject.setFieldValue(name, allObjects.getLong(i + 1) == 1);
+					}
+					else if (fieldType == Float.TYPE)
 					{
-						String name = fields[i];
-
-						Type fieldType = fieldTypeCache.get(name);
-						if (fieldType == null)
-						{
-							fieldType = tempObject.getFieldType(name);
-							fieldTypeCache.put(name, fieldType);
-						}
-
-						if (fieldType == String.class)
-						{
-							tempObject.setFieldValue(name, allObjects.getString(i + 1));
-						}
-						else if (fieldType == Integer.TYPE)
-						{
-							tempObject.setFieldValue(name, (int)allObjects.getLong(i + 1));
-						}
-						else if (fieldType == Long.TYPE)
-						{
-							tempObject.setFieldValue(name, allObjects.getLong(i + 1));
-						}
-						else if (fieldType == Boolean.TYPE)
-						{
-							tempObject.setFieldValue(name, allObjects.getLong(i + 1) == 1);
-						}
-						else if (fieldType == Float.TYPE)
-						{
-							tempObject.setFieldValue(name, (float)allObjects.getDouble(i + 1));
-						}
-						else if (fieldType == Double.TYPE)
-						{
-							tempObject.setFieldValue(name, allObjects.getDouble(i + 1));
-						}
+						tempObject.setFieldValue(name, (float)allObjects.getDouble(i + 1));
+					}
+					else if (fieldType == Double.TYPE)
+					{
+						tempObject.setFieldValue(name, allObjects.getDouble(i + 1));
 					}
-					objects.add(newObject);
-					objectIds.add(tempObject.getId());
 				}
-				while ( allObjects.next() ); // Looping over blocks of IDs
+				objects.add(newObject);
+				wrapped.add(tempObject);
+				objectIds.add(tempObject.getId());
 			}
 
+			if (cached != null)
+				cached.fill(wrapped);
+
 			return objects;
 		}
 		catch (NoSuchFieldException e)
@@ -638,100 +744,148 @@ public class ObjectDBTransaction // Needs to be non-final
 		}
 		finally
 		{
-			cleanUp(retrieveStat);
 			cleanUp(objStat);
 		}
 	}
 
 	public final List<Integer> retrieveInt(Object storedClass, String clause)
 	{
-		return retrieveInt(NewClassWrapper(storedClass), clause);
+		return retrieveInt(NewClassWrapper(storedClass), clause, NO_PARAMS);
 	}
 
-	public final List<Integer> retrieveInt(final ObjectDBClass storedClass, String clause)
+	/**
+	 * Finds the IDs of stored ObjectDB objects, without loading the objects
+	 * themselves. The clause is anything {@link #retrieve} would accept.
+	 *
+	 * @param storedClass The class ({@link Class} for Java, or
+	 *                    {@link Function} for JavaScript) of the objects.
+	 * @param clause The restricting part of the query, with a <tt>?</tt> in
+	 *               place of each value.
+	 * @param params The values, in order. These must not be escaped.
+	 * @return The IDs of the matching objects, each once, in the order the
+	 *         query gave them.
+	 */
+	public final List<Integer> retrieveInt(Object storedClass, String clause, Object... params)
 	{
-		String sqlQuery;
+		return retrieveInt(NewClassWrapper(storedClass), clause, params);
+	}
 
-		if ( clause != null )
+	public final List<Integer> retrieveInt(final ObjectDBClass storedClass, String clause, Object... params)
+	{
+		if ( clause == null )
 		{
-			ObjectDBClauseParser parser = new ObjectDBClauseParser(clause, storedClass.getName());
-			try
-			{
-				sqlQuery = parser.ParseSelect(null);
-			}
-			catch (ParseException e)
-			{
-				// TODO there's some public properties we can use to make a better error message.
-				System.err.println("Parse error in string: " + clause);
-				System.err.println("Error was: " + e);
-				throw new ObjectDBError("Parse error in clause string: " + clause);
-			}
+			clause = "WHERE 1";
+		}
 
-			// Make sure it's the right query type... (XXX Do we need to?)
-			if (parser.getType() != ObjectDBClauseParser.TYPE_SELECT)
-				throw new ObjectDBError("Clause string " + clause + " was not a SELECT clause.");
+		checkPermission(storedClass.getName());
 
-			// Make sure we can read these classes...
-			@SuppressWarnings("unchecked")
-			List<String> classNames = parser.getUsedClasses();
-			for(String cls: classNames)
-				checkPermission(cls);
-		}
-		else
-		{
-			checkPermission(storedClass.getName());
-			sqlQuery = "SELECT ObjectStore.ClassID FROM ObjectStore WHERE ClassName = '" + storedClass.getName() + "';";
-		}
+		ObjectDBQueryCache.Query query = compileSelect(storedClass, "SELECT `id` " + clause, clause);
 
 		checkTable(storedClass);
 
-		if ( clause != null )
+		PreparedStatement objStat = null;
+		try
 		{
-			try
-			{
-				sqlQuery = ObjectDBClauseParser.getSQL(clause, storedClass.getName());
-			}
-			catch (ParseException e)
-			{
-				// TODO there's some public properties we can use to make a better error message.
-				System.err.println("Parse error in string: " + clause);
-				System.err.println("Error was: " + e);
-				throw new ObjectDBError("Parse error in clause string.");
-			}
+			final Set<Integer> ids = new LinkedHashSet<Integer>();
+
+			objStat = prepareQuery(query, params);
+			ResultSet results = objStat.executeQuery();
+			while (results.next())
+				ids.add((int)results.getLong(1));
+
+			return new ArrayList<Integer>(ids);
 		}
-		else
+		catch (SQLException e)
 		{
-			sqlQuery = "SELECT ObjectStore.ClassID FROM ObjectStore WHERE ClassName = '" + storedClass.getName() + "';";
+			throw sqlErr(e);
 		}
-
-		Statement objStat = null;
-		try
+		finally
 		{
-			ArrayList<Integer> objects = new ArrayList<Integer>();
+			cleanUp(objStat);
+		}
+	}
 
-			objStat = dbConn.createStatement();
+	/**
+	 * Loads stored ObjectDB objects by their IDs, such as those found by
+	 * {@link #retrieveInt}. IDs with no object are skipped.
+	 *
+	 * @param storedClass The class ({@link Class} for Java, or
+	 *                    {@link Function} for JavaScript) of the objects.
+	 * @param ids The IDs of the objects to load.
+	 * @return The objects, in the order of their IDs in ids.
+	 */
+	@SuppressWarnings("rawtypes")
+	public final List retrieveByIds(Object storedClass, Collection<Integer> ids)
+	{
+		return retrieveByIds(NewClassWrapper(storedClass), ids);
+	}
 
-			ResultSet results = objStat.executeQuery( sqlQuery );
+	@SuppressWarnings("rawtypes")
+	public final List retrieveByIds(final ObjectDBClass storedClass, Collection<Integer> ids)
+	{
+		final Map<Integer,Object> found = new HashMap<Integer,Object>();
+		final List<Integer> wanted = new ArrayList<Integer>(new LinkedHashSet<Integer>(ids));
 
-			if( results.first() )
+		// Fetch in fixed-size batches, padded with a repeated ID, so there are
+		// only a few distinct queries for the query cache to hold.
+		for (int start = 0; start < wanted.size(); start += ID_BATCH)
+		{
+			final List<Integer> batch = wanted.subList(start, Math.min(start + ID_BATCH, wanted.size()));
+			final int size = batch.size() == 1 ? 1 : ID_BATCH;
+			final Object[] params = new Object[size];
+			final StringBuilder clause = new StringBuilder("WHERE id = ?");
+			for (int i = 0; i < size; i++)
 			{
-				do
-				{
-					objects.add( results.getInt(1) );
-				}
-				while(results.next());
+				params[i] = batch.get(Math.min(i, batch.size() - 1));
+				if (i > 0)
+					clause.append(" OR id = ?");
 			}
 
-			return objects;
+			for (Object obj : retrieve(storedClass, clause.toString(), params))
+				found.put(NewObjectWrapper(obj).getId(), obj);
 		}
-		catch (SQLException e)
-		{
-			throw sqlErr(e);
-		}
-		finally
+
+		final List<Object> ret = new ArrayList<Object>(found.size());
+		for (int id : wanted)
 		{
-			cleanUp(objStat);
+			final Object obj = found.get(id);
+			if (obj != null)
+				ret.add(obj);
 		}
+		return ret;
+	}
+
+	/**
+	 * Loads a random selection of the stored ObjectDB objects that match a
+	 * clause. Rather than having the database sort every row by a random
+	 * number (as <tt>SORT RANDOM</tt> does), only the IDs of the matches are
+	 * fetched, and just the chosen objects are loaded.
+	 *
+	 * @param storedClass The class ({@link Class} for Java, or
+	 *                    {@link Function} for JavaScript) of the objects.
+	 * @param count The most objects to return.
+	 * @param clause The restricting part of the query, with a <tt>?</tt> in
+	 *               place of each value.
+	 * @param params The values, in order. These must not be escaped.
+	 * @return Up to count matching objects, in a random order.
+	 */
+	@SuppressWarnings("rawtypes")
+	public final List retrieveRandom(Object storedClass, int count, String clause, Object... params)
+	{
+		return retrieveRandom(NewClassWrapper(storedClass), count, clause, params);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public final List retrieveRandom(final ObjectDBClass storedClass, int count, String clause, Object... params)
+	{
+		final List<Integer> ids = retrieveInt(storedClass, clause, params);
+
+		// Shuffle just the first count IDs into place.
+		final int picks = Math.min(count, ids.size());
+		for (int i = 0; i < picks; i++)
+			Collections.swap(ids, i, i + random.nextInt(ids.size() - i));
+
+		return retrieveByIds(storedClass, ids.subList(0, picks));
 	}
 
 	/**
@@ -765,6 +919,11 @@ public class ObjectDBTransaction // Needs to be non-final
 
 			if (delete.executeUpdate() == 0)
 				throw new ObjectDBError("Object for deletion does not exist.");
+
+			if (entityCache != null)
+				cacheChange(entityCache.deleted(strObj));
+			if (textIndex != null)
+				indexChange(textIndex.deleted(strObj.getClassName(), id));
 		}
 		catch (SQLException e)
 		{
@@ -830,6 +989,284 @@ public class ObjectDBTransaction // Needs to be non-final
 		_store(strObj, false);
 	}
 
+	/**
+	 * Saves any number of new ObjectDB objects, with one batched insert for
+	 * each class. The objects' IDs are set once they have all been stored.
+	 *
+	 * @param strObjs The objects (or {@link ObjectDBObject} wrappers) to be
+	 *                saved.
+	 */
+	public final void saveAll(List<?> strObjs)
+	{
+		for (List<ObjectDBObject> group : groupObjects(strObjs, true))
+			_storeAll(group, false);
+	}
+
+	/**
+	 * Updates the saved data for any number of ObjectDB objects, with one
+	 * batched statement for each class.
+	 *
+	 * @param strObjs The objects (or {@link ObjectDBObject} wrappers) who's
+	 *                saved data is to be updated.
+	 */
+	public final void updateAll(List<?> strObjs)
+	{
+		for (List<ObjectDBObject> group : groupObjects(strObjs, true))
+			_storeAll(group, true);
+	}
+
+	/**
+	 * Deletes any number of objects from the ObjectDB, with one statement for
+	 * each class (per few hundred objects).
+	 *
+	 * @param strObjs The objects (or {@link ObjectDBObject} wrappers) to be
+	 *                deleted.
+	 */
+	public final void deleteAll(List<?> strObjs)
+	{
+		for (List<ObjectDBObject> group : groupObjects(strObjs, false))
+		{
+			ObjectDBObject first = group.get(0);
+			checkPermission(first.getClassName());
+			checkTable(first);
+
+			Set<Integer> ids = new LinkedHashSet<Integer>();
+			for (ObjectDBObject strObj : group)
+				ids.add(strObj.getId());
+
+			try
+			{
+				if (deleteIds(getTableName(first), ids) != ids.size())
+					throw new ObjectDBError("Object for deletion does not exist.");
+
+				if (entityCache != null)
+					for (ObjectDBObject strObj : group)
+						cacheChange(entityCache.deleted(strObj));
+				if (textIndex != null)
+					for (ObjectDBObject strObj : group)
+						indexChange(textIndex.deleted(strObj.getClassName(), strObj.getId()));
+			}
+			catch (SQLException e)
+			{
+				throw sqlErr(e);
+			}
+		}
+	}
+
+	public final int deleteWhere(Object storedClass, String clause, Object... params)
+	{
+		return deleteWhere(NewClassWrapper(storedClass), clause, params);
+	}
+
+	/**
+	 * Deletes every stored object of a class that matches a clause.
+	 *
+	 * @param storedClass The {@link ObjectDBClass} indicating the type of
+	 *                    object to be deleted.
+	 * @param clause The restricting part of the query, as for
+	 *               {@link #retrieve(ObjectDBClass, String, Object...)}.
+	 * @param params The values for any <tt>?</tt> placeholders in the clause.
+	 * @return The number of objects deleted.
+	 */
+	public final int deleteWhere(final ObjectDBClass storedClass, String clause, Object... params)
+	{
+		if ( clause == null )
+		{
+			clause = "WHERE 1";
+		}
+
+		checkPermission(storedClass.getName());
+
+		ObjectDBQueryCache.Query query = compileSelect(storedClass, "SELECT `id` " + clause, clause);
+
+		checkTable(storedClass);
+
+		PreparedStatement objStat = null;
+		try
+		{
+			final Set<Integer> ids = new LinkedHashSet<Integer>();
+
+			objStat = prepareQuery(query, params);
+			ResultSet results = objStat.executeQuery();
+			while (results.next())
+				ids.add((int)results.getLong(1));
+
+			int deleted = deleteIds(getTableName(storedClass.getName()), ids);
+			if (entityCache != null && deleted > 0)
+				cacheChange(entityCache.cleared(storedClass.getName()));
+			if (textIndex != null && deleted > 0)
+				for (int id : ids)
+					indexChange(textIndex.deleted(storedClass.getName(), id));
+			return deleted;
+		}
+		catch (SQLException e)
+		{
+			throw sqlErr(e);
+		}
+		finally
+		{
+			cleanUp(objStat);
+		}
+	}
+
+	// Most IDs to put in a single DELETE.
+	private static final int DELETE_CHUNK = 500;
+
+	private final int deleteIds(String tableName, Collection<Integer> ids) throws SQLException
+	{
+		int deleted = 0;
+		Iterator<Integer> it = ids.iterator();
+		while (it.hasNext())
+		{
+			List<Integer> chunk = new ArrayList<Integer>(DELETE_CHUNK);
+			while (it.hasNext() && chunk.size() < DELETE_CHUNK)
+				chunk.add(it.next());
+
+			StringBuilder sql = new StringBuilder("DELETE FROM `" + clean("`", tableName) + "` WHERE id IN (");
+			for (int i = 0; i < chunk.size(); i++)
+				sql.append(i == 0 ? "?" : ", ?");
+			sql.append(")");
+
+			PreparedStatement delete = null;
+			try
+			{
+				delete = dbConn.prepareStatement(sql.toString());
+				for (int i = 0; i < chunk.size(); i++)
+					delete.setInt(i + 1, chunk.get(i));
+				deleted += delete.executeUpdate();
+			}
+			finally
+			{
+				cleanUp(delete);
+			}
+		}
+		return deleted;
+	}
+
+	// Splits objects up by class, and optionally by their list of fields
+	// (which can differ between JavaScript objects of the same class).
+	private final Collection<List<ObjectDBObject>> groupObjects(List<?> strObjs, boolean byFields)
+	{
+		Map<String,List<ObjectDBObject>> groups = new LinkedHashMap<String,List<ObjectDBObject>>();
+		for (Object obj : strObjs)
+		{
+			ObjectDBObject strObj = obj instanceof ObjectDBObject ? (ObjectDBObject)obj : NewObjectWrapper(obj);
+			String key = strObj.getClassName().toLowerCase();
+			if (byFields)
+				key += " " + Arrays.toString(strObj.getFields());
+
+			List<ObjectDBObject> group = groups.get(key);
+			if (group == null)
+			{
+				group = new ArrayList<ObjectDBObject>();
+				groups.put(key, group);
+			}
+			group.add(strObj);
+		}
+		return groups.values();
+	}
+
+	private final void _storeAll(List<ObjectDBObject> strObjs, boolean replace)
+	{
+		ObjectDBObject first = strObjs.get(0);
+		checkPermission(first.getClassName());
+		checkTable(first);
+
+		// New objects get their ID from the database; the rest keep theirs.
+		List<ObjectDBObject> newObjs = new ArrayList<ObjectDBObject>();
+		List<ObjectDBObject> oldObjs = new ArrayList<ObjectDBObject>();
+		for (ObjectDBObject strObj : strObjs)
+		{
+			if (strObj.getId() == 0)
+				newObjs.add(strObj);
+			else
+				oldObjs.add(strObj);
+		}
+
+		try
+		{
+			if (newObjs.size() > 0)
+				_storeBatch(newObjs, replace, false);
+			if (oldObjs.size() > 0)
+				_storeBatch(oldObjs, replace, true);
+		}
+		catch (SQLException e)
+		{
+			throw sqlErr(e);
+		}
+	}
+
+	private final void _storeBatch(List<ObjectDBObject> strObjs, boolean replace, boolean withId) throws SQLException
+	{
+		ObjectDBObject first = strObjs.get(0);
+		List<String> columns = new ArrayList<String>();
+		for (String field : first.getFields())
+		{
+			if (withId || !field.equals("id"))
+				columns.add(field);
+		}
+
+		StringBuilder names = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++)
+		{
+			if (i != 0)
+			{
+				names.append(", ");
+				values.append(", ");
+			}
+			names.append("`" + clean("`", columns.get(i)) + "`");
+			values.append("?");
+		}
+
+		// Plain VALUES lists, so the driver can rewrite the batch into one multi-row statement.
+		String sql = (replace ? "REPLACE" : "INSERT") + " INTO `" + clean("`", getTableName(first)) + "` (" + names + ") VALUES (" + values + ")";
+
+		PreparedStatement stat = null;
+		try
+		{
+			if (withId)
+				stat = dbConn.prepareStatement(sql);
+			else
+				stat = dbConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+
+			for (ObjectDBObject strObj : strObjs)
+			{
+				for (int c = 0; c < columns.size(); c++)
+				{
+					if (columns.get(c).equals("id"))
+						stat.setInt(c + 1, strObj.getId());
+					else
+						bindField(stat, c + 1, strObj, columns.get(c));
+				}
+				stat.addBatch();
+			}
+			stat.executeBatch();
+
+			// Set the IDs only AFTER we store!
+			if (!withId)
+			{
+				ResultSet keys = stat.getGeneratedKeys();
+				int i = 0;
+				while (i < strObjs.size() && keys.next())
+					strObjs.get(i++).setId((int)keys.getLong(1));
+				if (i != strObjs.size())
+					throw new ObjectDBError("Couldn't get the IDs of the objects which were saved...");
+			}
+
+			if (entityCache != null)
+				for (ObjectDBObject strObj : strObjs)
+					cacheChange(entityCache.stored(strObj));
+			if (textIndex != null)
+				for (ObjectDBObject strObj : strObjs)
+					indexChange(textIndex.stored(strObj));
+		}
+		finally
+		{
+			cleanUp(stat);
+		}
+	}
+
 	private final void _store(ObjectDBObject strObj, boolean replace)
 	{
 		checkPermission(strObj.getClassName());
@@ -870,53 +1307,7 @@ public class ObjectDBTransaction // Needs to be non-final
 				}
 				else
 				{
-					try
-					{
-						Type theType = strObj.getFieldType(fieldName);
-
-						if( theType == java.lang.Integer.TYPE )
-						{
-							int theVal = ((Integer)strObj.getFieldValue(fieldName)).intValue();
-							stat.setInt(c + offset, theVal);
-						}
-						else if( theType == java.lang.Long.TYPE )
-						{
-							long theVal = ((Long)strObj.getFieldValue(fieldName)).longValue();
-							stat.setLong(c + offset, theVal);
-						}
-						else if( theType == java.lang.Boolean.TYPE )
-						{
-							boolean theVal = ((Boolean)strObj.getFieldValue(fieldName)).booleanValue();
-							stat.setByte(c + offset, theVal ? (byte)1 : (byte)0);
-						}
-						else if( theType == java.lang.Float.TYPE )
-						{
-							float theVal = ((Float)strObj.getFieldValue(fieldName)).floatValue();
-							stat.setFloat(c + offset, theVal);
-						}
-						else if( theType == java.lang.Double.TYPE )
-						{
-							double theVal = ((Double)strObj.getFieldValue(fieldName)).doubleValue();
-							stat.setDouble(c + offset, theVal);
-						}
-						else if( theType == String.class )
-						{
-							stat.setString(c + offset, (String)strObj.getFieldValue(fieldName));
-						}
-						else
-						{
-							// Urgh.
-							throw new ObjectDBError("Don't know type for variable " + fieldName);
-						}
-					}
-					catch (NoSuchFieldException e)
-					{
-						// Should never happen, but if it does, just ignore.
-					}
-					catch (IllegalAccessException e)
-					{
-						// Should never happen, but if it does, just ignore.
-					}
+					bindField(stat, c + offset, strObj, fieldName);
 				}
 			}
 
@@ -932,6 +1323,11 @@ public class ObjectDBTransaction // Needs to be non-final
 				else
 					throw new ObjectDBError("Couldn't get the ID of the object which was saved...");
 			}
+
+			if (entityCache != null)
+				cacheChange(entityCache.stored(strObj));
+			if (textIndex != null)
+				indexChange(textIndex.stored(strObj));
 		}
 		catch (SQLException e)
 		{
@@ -943,6 +1339,181 @@ public class ObjectDBTransaction // Needs to be non-final
 		}
 	}
 
+	private final void bindField(PreparedStatement stat, int index, ObjectDBObject strObj, String fieldName) throws SQLException
+	{
+		try
+		{
+			Type theType = strObj.getFieldType(fieldName);
+
+			if( theType == java.lang.Integer.TYPE )
+			{
+				int theVal = ((Integer)strObj.getFieldValue(fieldName)).intValue();
+				stat.setInt(index, theVal);
+			}
+			else if( theType == java.lang.Long.TYPE )
+			{
+				long theVal = ((Long)strObj.getFieldValue(fieldName)).longValue();
+				stat.setLong(index, theVal);
+			}
+			else if( theType == java.lang.Boolean.TYPE )
+			{
+				boolean theVal = ((Boolean)strObj.getFieldValue(fieldName)).booleanValue();
+				stat.setByte(index, theVal ? (byte)1 : (byte)0);
+			}
+			else if( theType == java.lang.Float.TYPE )
+			{
+				float theVal = ((Float)strObj.getFieldValue(fieldName)).floatValue();
+				stat.setFloat(index, theVal);
+			}
+			else if( theType == java.lang.Double.TYPE )
+			{
+				double theVal = ((Double)strObj.getFieldValue(fieldName)).doubleValue();
+				stat.setDouble(index, theVal);
+			}
+			else if( theType == String.class )
+			{
+				stat.setString(index, (String)strObj.getFieldValue(fieldName));
+			}
+			else
+			{
+				// Urgh.
+				throw new ObjectDBError("Don't know type for variable " + fieldName);
+			}
+		}
+		catch (NoSuchFieldException e)
+		{
+			// Should never happen, but if it does, just ignore.
+		}
+		catch (IllegalAccessException e)
+		{
+			// Should never happen, but if it does, just ignore.
+		}
+	}
+
+	private static final Object[] NO_PARAMS = new Object[0];
+
+	// How many objects retrieveByIds asks for at once.
+	private static final int ID_BATCH = 20;
+
+	private static final Random random = new Random();
+
+	// Parses (or fetches the parsed form of) a SELECT query, and checks
+	// we're allowed to read everything in it.
+	private final ObjectDBQueryCache.Query compileSelect(ObjectDBClass storedClass, String sql, String clause)
+	{
+		ObjectDBQueryCache.Query query;
+		try
+		{
+			if (queryCache != null)
+				query = queryCache.compile(storedClass.getName(), sql);
+			else
+				query = ObjectDBQueryCache.parse(storedClass.getName(), sql);
+		}
+		catch (ParseException e)
+		{
+			// TODO there's some public properties we can use to make a better error message.
+			System.err.println("Parse error in string: " + clause);
+			System.err.println("Error was: " + e);
+			throw new ObjectDBError("Parse error in clause string: " + clause);
+		}
+
+		// Make sure it's the right query type... (XXX Do we need to?)
+		if (query.getType() != ObjectDBClauseParser.TYPE_SELECT)
+			throw new ObjectDBError("Clause string " + clause + " was not a SELECT clause.");
+
+		// Make sure we can read these classes...
+		for(String cls: query.getUsedClasses())
+			checkPermission(cls);
+
+		return query;
+	}
+
+	private final PreparedStatement prepareQuery(ObjectDBQueryCache.Query query, Object[] params) throws SQLException
+	{
+		if (params.length != query.getParamCount())
+			throw new ObjectDBError("Clause has " + query.getParamCount() + " placeholders, but " + params.length + " values were given.");
+
+		PreparedStatement stat = dbConn.prepareStatement(query.getSQL());
+		try
+		{
+			for (int i = 0; i < query.paramUses(); i++)
+				bindParam(stat, i + 1, params[query.paramAt(i)]);
+		}
+		catch (RuntimeException e)
+		{
+			cleanUp(stat);
+			throw e;
+		}
+		catch (SQLException e)
+		{
+			cleanUp(stat);
+			throw e;
+		}
+		return stat;
+	}
+
+	private final void bindParam(PreparedStatement stat, int index, Object value) throws SQLException
+	{
+		if (value == null)
+			stat.setNull(index, Types.VARCHAR);
+		else if (value instanceof String)
+			stat.setString(index, (String)value);
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+			stat.setLong(index, ((Number)value).longValue());
+		else if (value instanceof Number)
+			stat.setDouble(index, ((Number)value).doubleValue());
+		else if (value instanceof Boolean)
+			stat.setLong(index, ((Boolean)value).booleanValue() ? 1 : 0);
+		else if (value instanceof Character)
+			stat.setString(index, value.toString());
+		else
+			throw new ObjectDBError("Can't use a " + value.getClass().getName() + " as a query parameter.");
+	}
+
+	// Passes a write on to the entity cache, once it's been committed.
+	private final void cacheChange(ObjectDBEntityCache.Change change)
+	{
+		if (change == null)
+			return;
+		if (inTransaction)
+			cacheChanges.add(change);
+		else
+			entityCache.apply(Collections.singletonList(change));
+	}
+
+	// Passes a write on to the text index, once it's been committed.
+	private final void indexChange(ObjectDBTextIndex.Change change)
+	{
+		if (change == null)
+			return;
+		if (inTransaction)
+			indexChanges.add(change);
+		else
+			textIndex.apply(Collections.singletonList(change));
+	}
+
+	private final List<Object> fromCache(ObjectDBClass storedClass, String[] fields, List<Object[]> rows)
+	{
+		final List<Object> objects = new ArrayList<Object>(rows.size());
+		try
+		{
+			for (Object[] row : rows)
+			{
+				Object newObject = storedClass.newInstance();
+				ObjectDBObject tempObject = NewObjectWrapper(newObject);
+				for (int i = 0; i < fields.length; i++)
+					tempObject.setFieldValue(fields[i], row[i]);
+				objects.add(newObject);
+			}
+		}
+		catch (Exception e)
+		{
+			// The class has changed under us; let the database sort it out.
+			return null;
+		}
+		return objects;
+	}
+
 	private final Map<String,Object> permCache = new HashMap<String,Object>(); // Doesn't need sync.
 	private final void checkPermission(String objClass)
 	{
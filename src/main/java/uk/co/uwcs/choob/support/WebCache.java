@@ -0,0 +1,470 @@
+package uk.co.uwcs.choob.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The contents of web pages, shared by everything that fetches them through
+ * the {@link uk.co.uwcs.choob.modules.ScraperModule}.
+ *
+ * The cache holds at most a fixed number of pages and bytes, throwing out
+ * the least recently used. Only one fetch of a URL is ever in progress;
+ * anyone else asking for it at the same time waits for that one. Pages are
+ * refetched with the ETag and Last-Modified the server gave, so a page that
+ * hasn't changed costs a 304 rather than the whole body again.
+ *
+ * A page which has passed its timeout, but not by more than the timeout
+ * again, is returned as it is while it's refreshed in the background, so
+ * commands get an immediate answer. Anything older waits for the refresh.
+ *
+ * If given a file, the cache is written there by {@link #save}, and read
+ * back when next constructed.
+ */
+public final class WebCache
+{
+	private static final int MAGIC = 0x57434831; // "WCH1"
+
+	private static final int TIMEOUT = 15000;
+	private static final String USER_AGENT = "Opera/8.51 (X11; Linux x86_64; U; en)";
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final File file;
+
+	// URL -> page, least recently used first. Guarded by itself.
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	private long bytes;
+
+	// URL -> fetch in progress.
+	private final ConcurrentMap<String,FutureTask<Entry>> fetching = new ConcurrentHashMap<String,FutureTask<Entry>>();
+	private final ThreadPoolExecutor refresher;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong stale = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+
+	private static final class Entry
+	{
+		final String contents;
+		final String etag;
+		final String lastModified;
+		final long fetched;
+
+		Entry(final String contents, final String etag, final String lastModified, final long fetched)
+		{
+			this.contents = contents;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetched = fetched;
+		}
+
+		long size()
+		{
+			return contents.length() * 2L;
+		}
+	}
+
+	/**
+	 * @param maxEntries The most pages to keep.
+	 * @param maxBytes The most (approximate) bytes of pages to keep.
+	 * @param file Where the cache is kept between runs, or null.
+	 */
+	public WebCache(final int maxEntries, final long maxBytes, final File file)
+	{
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.file = file;
+
+		refresher = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override public Thread newThread(final Runnable r)
+			{
+				// Threads inherit their creator's permissions, which may be a plugin's.
+				return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+					@Override public Thread run()
+					{
+						final Thread thread = new Thread(r, "choob-webcache-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		});
+		refresher.allowCoreThreadTimeOut(true);
+
+		if (file != null)
+			AccessController.doPrivileged(new PrivilegedAction<Object>() {
+				@Override public Object run()
+				{
+					load();
+					return null;
+				}
+			});
+	}
+
+	/**
+	 * Get the contents of a page.
+	 * @param url The page.
+	 * @param timeout How old, in ms, the contents may be.
+	 * @return The contents, with lines ending in "\n".
+	 * @throws IOException If the page had to be fetched, and couldn't be.
+	 */
+	public String get(final URL url, final long timeout) throws IOException
+	{
+		final String key = url.toString();
+		final Entry cached;
+		synchronized (entries)
+		{
+			cached = entries.get(key);
+		}
+
+		final long age = cached == null ? Long.MAX_VALUE : System.currentTimeMillis() - cached.fetched;
+		if (age < timeout)
+		{
+			hits.incrementAndGet();
+			return cached.contents;
+		}
+
+		if (age < 2 * timeout)
+		{
+			stale.incrementAndGet();
+			fetch(url, key, cached, true);
+			return cached.contents;
+		}
+
+		misses.incrementAndGet();
+		final FutureTask<Entry> fetch = fetch(url, key, cached, false);
+		try
+		{
+			return fetch.get().contents;
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching " + key);
+		}
+		catch (final ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Couldn't fetch " + key + ": " + e.getCause());
+		}
+	}
+
+	/**
+	 * Forget a page, so it's fetched on the next request.
+	 */
+	public void remove(final URL url)
+	{
+		synchronized (entries)
+		{
+			final Entry removed = entries.remove(url.toString());
+			if (removed != null)
+				bytes -= removed.size();
+		}
+	}
+
+	// Finds the fetch of a URL in progress, or starts a new one, in the background or this thread.
+	private FutureTask<Entry> fetch(final URL url, final String key, final Entry cached, final boolean background)
+	{
+		final FutureTask<Entry> existing = fetching.get(key);
+		if (existing != null)
+			return existing;
+
+		// The page is fetched with the permissions of whoever first asked.
+		final AccessControlContext caller = AccessController.getContext();
+		final FutureTask<Entry> created = new FutureTask<Entry>(new Callable<Entry>() {
+			@Override public Entry call() throws IOException
+			{
+				try
+				{
+					final Entry entry;
+					try
+					{
+						entry = AccessController.doPrivileged(new PrivilegedExceptionAction<Entry>() {
+							@Override public Entry run() throws IOException
+							{
+								return download(url, cached);
+							}
+						}, caller);
+					}
+					catch (final PrivilegedActionException e)
+					{
+						throw (IOException)e.getException();
+					}
+					put(key, entry);
+					return entry;
+				}
+				finally
+				{
+					fetching.remove(key);
+				}
+			}
+		});
+
+		final FutureTask<Entry> raced = fetching.putIfAbsent(key, created);
+		if (raced != null)
+			return raced;
+		if (background)
+			refresher.execute(created);
+		else
+			created.run();
+		return created;
+	}
+
+	private Entry download(final URL url, final Entry cached) throws IOException
+	{
+		final URLConnection site = url.openConnection();
+		site.setReadTimeout(TIMEOUT);
+		site.setConnectTimeout(TIMEOUT);
+		site.setRequestProperty("User-agent", USER_AGENT);
+		if (cached != null && cached.etag != null)
+			site.setRequestProperty("If-None-Match", cached.etag);
+		if (cached != null && cached.lastModified != null)
+			site.setRequestProperty("If-Modified-Since", cached.lastModified);
+
+		if (cached != null && site instanceof HttpURLConnection
+				&& ((HttpURLConnection)site).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+		{
+			notModified.incrementAndGet();
+			((HttpURLConnection)site).disconnect();
+			return new Entry(cached.contents, cached.etag, cached.lastModified, System.currentTimeMillis());
+		}
+
+		final InputStream is = site.getInputStream();
+		final StringBuilder ls = new StringBuilder();
+		try
+		{
+			final BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			String l;
+			while ((l = br.readLine()) != null)
+				ls.append(l).append("\n");
+		}
+		finally
+		{
+			is.close();
+		}
+
+		return new Entry(ls.toString(), site.getHeaderField("ETag"), site.getHeaderField("Last-Modified"), System.currentTimeMillis());
+	}
+
+	private void put(final String key, final Entry entry)
+	{
+		synchronized (entries)
+		{
+			final Entry old = entries.put(key, entry);
+			if (old != null)
+				bytes -= old.size();
+			bytes += entry.size();
+
+			final Iterator<Entry> it = entries.values().iterator();
+			while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext())
+			{
+				final Entry evicted = it.next();
+				// Pages bigger than the whole cache still get one turn in it.
+				if (evicted == entry)
+					continue;
+				bytes -= evicted.size();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Write the cache out, so it can be loaded on the next start.
+	 */
+	public void save()
+	{
+		if (file == null)
+			return;
+
+		final List<Map.Entry<String,Entry>> copy;
+		synchronized (entries)
+		{
+			copy = new ArrayList<Map.Entry<String,Entry>>(entries.entrySet());
+		}
+
+		AccessController.doPrivileged(new PrivilegedAction<Object>() {
+			@Override public Object run()
+			{
+				final File temp = new File(file.getPath() + ".tmp");
+				try
+				{
+					file.getParentFile().mkdirs();
+					final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+					try
+					{
+						out.writeInt(MAGIC);
+						out.writeInt(copy.size());
+						for (final Map.Entry<String,Entry> e : copy)
+						{
+							out.writeUTF(e.getKey());
+							writeString(out, e.getValue().contents);
+							writeString(out, e.getValue().etag);
+							writeString(out, e.getValue().lastModified);
+							out.writeLong(e.getValue().fetched);
+						}
+					}
+					finally
+					{
+						out.close();
+					}
+					file.delete();
+					if (!temp.renameTo(file))
+						throw new IOException("Couldn't rename " + temp);
+				}
+				catch (final IOException e)
+				{
+					System.err.println("Couldn't save web cache " + file + ": " + e);
+					temp.delete();
+				}
+				return null;
+			}
+		});
+	}
+
+	private void load()
+	{
+		if (!file.exists())
+			return;
+
+		try
+		{
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() != MAGIC)
+					return;
+				final int count = in.readInt();
+				for (int i = 0; i < count; i++)
+				{
+					final String key = in.readUTF();
+					final String contents = readString(in);
+					final String etag = readString(in);
+					final String lastModified = readString(in);
+					put(key, new Entry(contents, etag, lastModified, in.readLong()));
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (final IOException e)
+		{
+			System.err.println("Couldn't load web cache " + file + ": " + e);
+		}
+	}
+
+	// writeUTF is limited to 64k, which pages aren't.
+	private static void writeString(final DataOutputStream out, final String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException
+	{
+		final int length = in.readInt();
+		if (length == -1)
+			return null;
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * @return The number of pages in the cache.
+	 */
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return The approximate size, in bytes, of the pages in the cache.
+	 */
+	public long getBytes()
+	{
+		synchronized (entries)
+		{
+			return bytes;
+		}
+	}
+
+	/**
+	 * @return The number of requests answered with a fresh page.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of requests answered with an old page while it was refreshed.
+	 */
+	public long getStaleHits()
+	{
+		return stale.get();
+	}
+
+	/**
+	 * @return The number of requests which had to wait for a fetch.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of refreshes the server said were unnecessary.
+	 */
+	public long getNotModified()
+	{
+		return notModified.get();
+	}
+}
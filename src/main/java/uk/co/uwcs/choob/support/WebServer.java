@@ -0,0 +1,861 @@
+package uk.co.uwcs.choob.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A small HTTP/1.1 server. One thread accepts connections and does all of
+ * their reading and writing, without blocking; each request is passed to a
+ * {@link Handler}, which should hand it to some other thread to answer.
+ *
+ * Responses are streamed: what's written to an {@link Exchange}'s body goes
+ * out in chunks as the buffer fills, and a handler that writes faster than
+ * the client reads is made to wait. Those that fit in the buffer are sent
+ * whole, with their length. Connections are kept open between requests where
+ * the client allows it.
+ *
+ * As plugins have always written their own status line and headers, the
+ * body may start with them ("HTTP/1.0 200 OK", headers, a blank line). They
+ * are turned into a head that suits the connection; anything else gets a
+ * plain text one.
+ */
+public final class WebServer
+{
+	/**
+	 * Something to answer requests.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Answer a request, by writing to its body and closing it. This is
+		 * called on the server's thread, so it mustn't block.
+		 */
+		void handle(Exchange exchange);
+	}
+
+	/** The longest request head taken. */
+	public static final int MAX_HEAD = 8192;
+	/** The most connections open at once; more are dropped. */
+	public static final int MAX_CONNECTIONS = 256;
+	/**
+	 * How long, in ms, an idle connection is kept open, or one whose client
+	 * has stopped reading its response.
+	 */
+	public static final long IDLE_TIMEOUT = 15000;
+
+	// How long to stop accepting for, after accepting fails (e.g. when out
+	// of file descriptors), so as not to spin.
+	private static final long ACCEPT_PAUSE = 1000;
+
+	// How much of a response is kept before it's sent, and how much can be
+	// waiting to go before the handler is held up.
+	private static final int CHUNK = 8192;
+	private static final int MAX_PENDING = 64 * 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final Handler handler;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final SelectionKey serverKey;
+	// When to start accepting again, if it's been stopped; 0 if it hasn't.
+	private long acceptPausedUntil;
+	private final Thread thread;
+	private final Set<Connection> connections = new HashSet<Connection>();
+	// Connections with something for the server's thread to do.
+	private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean open = true;
+
+	/**
+	 * Start listening.
+	 * @param address Where to listen.
+	 * @param handler Given every request.
+	 * @param name The name of the server's thread.
+	 */
+	public WebServer(final InetSocketAddress address, final Handler handler, final String name) throws IOException
+	{
+		this.handler = handler;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try
+		{
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address);
+			server.configureBlocking(false);
+			serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (final IOException e)
+		{
+			server.close();
+			selector.close();
+			throw e;
+		}
+
+		thread = new Thread(name)
+		{
+			@Override
+			public void run()
+			{
+				serve();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return The port being listened on.
+	 */
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return Whether the server is still serving; it stops if closed, or if
+	 *         something goes badly wrong.
+	 */
+	public boolean isRunning()
+	{
+		return thread.isAlive();
+	}
+
+	/**
+	 * Stop listening, and drop every connection. Handlers still writing to
+	 * them will find them gone.
+	 */
+	public void close()
+	{
+		open = false;
+		selector.wakeup();
+		try
+		{
+			thread.join(5000);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void serve()
+	{
+		try
+		{
+			while (open)
+			{
+				selector.select(1000);
+
+				Connection conn;
+				while ((conn = ready.poll()) != null)
+					wake(conn);
+
+				final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					final SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+					{
+						conn = (Connection)key.attachment();
+						if (key.isWritable())
+							write(conn);
+						if (key.isValid() && key.isReadable())
+							read(conn);
+					}
+				}
+
+				sweep();
+			}
+		}
+		catch (final IOException e)
+		{
+			System.err.println("Web server died:");
+			e.printStackTrace();
+		}
+		finally
+		{
+			for (final Connection conn : new HashSet<Connection>(connections))
+				drop(conn);
+			try
+			{
+				server.close();
+				selector.close();
+			}
+			catch (final IOException e)
+			{
+				// Nothing more to do.
+			}
+		}
+	}
+
+	private void accept()
+	{
+		while (true)
+		{
+			final SocketChannel channel;
+			try
+			{
+				channel = server.accept();
+			}
+			catch (final IOException e)
+			{
+				// Most likely temporary; carry on with the connections there
+				// are, and try again shortly.
+				System.err.println("Web server couldn't accept a connection: " + e);
+				serverKey.interestOps(0);
+				acceptPausedUntil = System.currentTimeMillis() + ACCEPT_PAUSE;
+				return;
+			}
+			if (channel == null)
+				return;
+
+			try
+			{
+				if (connections.size() >= MAX_CONNECTIONS)
+				{
+					channel.close();
+					continue;
+				}
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				final Connection conn = new Connection(channel);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+				connections.add(conn);
+			}
+			catch (final IOException e)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (final IOException e2)
+				{
+					// It's gone anyway.
+				}
+			}
+		}
+	}
+
+	private void read(final Connection conn)
+	{
+		final int n;
+		try
+		{
+			n = conn.channel.read(conn.in);
+		}
+		catch (final IOException e)
+		{
+			drop(conn);
+			return;
+		}
+		if (n < 0)
+		{
+			drop(conn);
+			return;
+		}
+		conn.lastActive = System.currentTimeMillis();
+		parse(conn);
+	}
+
+	// Look for a complete request head in what's been read, and pass it on.
+	private void parse(final Connection conn)
+	{
+		final ByteBuffer in = conn.in;
+		final int end = headEnd(in.array(), in.position());
+		if (end < 0)
+		{
+			if (!in.hasRemaining())
+				reject(conn, "431 Request Header Fields Too Large");
+			return;
+		}
+
+		final String head;
+		try
+		{
+			head = new String(in.array(), 0, end, "ISO-8859-1");
+		}
+		catch (final UnsupportedEncodingException e)
+		{
+			throw new ChoobInternalError("No ISO-8859-1?", e);
+		}
+		// Anything after this head is the next request.
+		in.flip();
+		in.position(end);
+		in.compact();
+
+		final Exchange exchange = Exchange.parse(this, conn, head);
+		if (exchange == null)
+		{
+			reject(conn, "400 Bad Request");
+			return;
+		}
+		if (!exchange.method.equals("GET") && !exchange.method.equals("HEAD"))
+		{
+			reject(conn, "501 Not Implemented");
+			return;
+		}
+
+		// No more reading until this one's been answered.
+		conn.key.interestOps(0);
+		conn.busy = true;
+		try
+		{
+			handler.handle(exchange);
+		}
+		catch (final RuntimeException e)
+		{
+			System.err.println("Web request handler failed:");
+			e.printStackTrace();
+			exchange.sendError("500 Internal Server Error", e.toString());
+		}
+	}
+
+	// Where the head ends (after its blank line), or -1 if it hasn't yet.
+	private static int headEnd(final byte[] buf, final int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (buf[i] != '\n')
+				continue;
+			if (i + 1 < length && buf[i + 1] == '\n')
+				return i + 2;
+			if (i + 2 < length && buf[i + 1] == '\r' && buf[i + 2] == '\n')
+				return i + 3;
+		}
+		return -1;
+	}
+
+	private void reject(final Connection conn, final String status)
+	{
+		conn.key.interestOps(0);
+		conn.busy = true;
+		final Exchange exchange = new Exchange(this, conn, "GET", "/", false, false);
+		exchange.sendError(status, status);
+	}
+
+	// Called, on the server's thread, when a handler has written something,
+	// or finished.
+	private void wake(final Connection conn)
+	{
+		if (!conn.key.isValid())
+			return;
+		write(conn);
+	}
+
+	private void write(final Connection conn)
+	{
+		// Left over from a response that's already gone.
+		if (!conn.busy)
+			return;
+		synchronized (conn)
+		{
+			try
+			{
+				ByteBuffer buf;
+				while ((buf = conn.out.peek()) != null)
+				{
+					final int n = conn.channel.write(buf);
+					conn.pending -= n;
+					if (n > 0)
+						conn.lastProgress = System.currentTimeMillis();
+					if (buf.hasRemaining())
+						break;
+					conn.out.poll();
+				}
+			}
+			catch (final IOException e)
+			{
+				drop(conn);
+				return;
+			}
+			conn.notifyAll();
+
+			if (!conn.out.isEmpty())
+			{
+				conn.key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (!conn.finished)
+			{
+				conn.key.interestOps(0);
+				return;
+			}
+			if (conn.closeAfter)
+			{
+				drop(conn);
+				return;
+			}
+
+			// On to the next request.
+			conn.finished = false;
+			conn.busy = false;
+			conn.lastActive = System.currentTimeMillis();
+		}
+		conn.key.interestOps(SelectionKey.OP_READ);
+		parse(conn);
+	}
+
+	private void sweep()
+	{
+		final long now = System.currentTimeMillis();
+		if (acceptPausedUntil != 0 && now >= acceptPausedUntil)
+		{
+			acceptPausedUntil = 0;
+			serverKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+
+		for (final Connection conn : new HashSet<Connection>(connections))
+		{
+			if (!conn.busy)
+			{
+				if (now - conn.lastActive > IDLE_TIMEOUT)
+					drop(conn);
+				continue;
+			}
+
+			// A client that's stopped reading would hold up its handler for
+			// good; dropping it lets the handler go.
+			final boolean stalled;
+			synchronized (conn)
+			{
+				stalled = !conn.out.isEmpty() && now - conn.lastProgress > IDLE_TIMEOUT;
+			}
+			if (stalled)
+				drop(conn);
+		}
+	}
+
+	private void drop(final Connection conn)
+	{
+		connections.remove(conn);
+		conn.key.cancel();
+		try
+		{
+			conn.channel.close();
+		}
+		catch (final IOException e)
+		{
+			// It's gone anyway.
+		}
+		synchronized (conn)
+		{
+			conn.closed = true;
+			conn.out.clear();
+			conn.notifyAll();
+		}
+	}
+
+	/** A client's connection. Output fields are guarded by the object. */
+	private static final class Connection
+	{
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(MAX_HEAD);
+		SelectionKey key;
+		long lastActive = System.currentTimeMillis();
+		// Whether a request is being answered; only used on the server's thread.
+		boolean busy;
+
+		final Queue<ByteBuffer> out = new LinkedList<ByteBuffer>();
+		int pending;
+		// When anything queued was last sent, or queued if there was none.
+		long lastProgress;
+		boolean finished;
+		boolean closeAfter;
+		boolean closed;
+
+		Connection(final SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A request, and the means to answer it.
+	 */
+	public static final class Exchange
+	{
+		private final WebServer server;
+		private final Connection conn;
+		private final String method;
+		private final String target;
+		// Whether the client speaks HTTP/1.1, and wants the connection kept.
+		private final boolean http11;
+		private final boolean keepAlive;
+		private final Body body = new Body();
+
+		Exchange(final WebServer server, final Connection conn, final String method, final String target, final boolean http11, final boolean keepAlive)
+		{
+			this.server = server;
+			this.conn = conn;
+			this.method = method;
+			this.target = target;
+			this.http11 = http11;
+			this.keepAlive = keepAlive;
+		}
+
+		static Exchange parse(final WebServer server, final Connection conn, final String head)
+		{
+			final String[] lines = head.split("\r?\n");
+			final String[] request = lines[0].split(" ");
+			if (request.length != 3 || !request[2].startsWith("HTTP/1."))
+				return null;
+
+			final boolean http11 = !request[2].equals("HTTP/1.0");
+			boolean keepAlive = http11;
+			for (int i = 1; i < lines.length; i++)
+			{
+				final int colon = lines[i].indexOf(':');
+				if (colon < 0)
+					continue;
+				final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				final String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+				if (name.equals("connection") && value.contains("close"))
+					keepAlive = false;
+				else if (name.equals("connection") && value.contains("keep-alive"))
+					keepAlive = true;
+				// Requests with bodies aren't handled; don't try to find
+				// where the next one starts.
+				else if (name.equals("transfer-encoding") || (name.equals("content-length") && !value.equals("0")))
+					keepAlive = false;
+			}
+			return new Exchange(server, conn, request[0], request[1], http11, keepAlive);
+		}
+
+		/** @return The request method, GET or HEAD. */
+		public String getMethod()
+		{
+			return method;
+		}
+
+		/** @return The request target, as sent: the path and any query. */
+		public String getTarget()
+		{
+			return target;
+		}
+
+		/** @return Where the request came from. */
+		public InetAddress getAddress()
+		{
+			final Socket socket = conn.channel.socket();
+			return socket.getInetAddress();
+		}
+
+		/**
+		 * @return The response; it may start with a status line and headers.
+		 *         It must be closed when done with.
+		 */
+		public OutputStream getResponseBody()
+		{
+			return body;
+		}
+
+		/**
+		 * Answer with an error, if nothing's been sent yet; otherwise, just
+		 * end the response. Either way, the response is finished.
+		 */
+		public void sendError(final String status, final String message)
+		{
+			body.error(status, message);
+		}
+
+		// The head to send before the body.
+		private byte[] head(final String status, final String headers, final int length)
+		{
+			final StringBuilder head = new StringBuilder(128);
+			head.append(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(status).append("\r\n").append(headers);
+			if (length >= 0)
+				head.append("Content-Length: ").append(length).append("\r\n");
+			else if (chunked())
+				head.append("Transfer-Encoding: chunked\r\n");
+			if (!persistent(length))
+				head.append("Connection: close\r\n");
+			else if (!http11)
+				head.append("Connection: keep-alive\r\n");
+			head.append("\r\n");
+			try
+			{
+				return head.toString().getBytes("ISO-8859-1");
+			}
+			catch (final UnsupportedEncodingException e)
+			{
+				throw new ChoobInternalError("No ISO-8859-1?", e);
+			}
+		}
+
+		private boolean chunked()
+		{
+			return http11 && keepAlive;
+		}
+
+		// Whether the connection can be kept after a response of some length
+		// (-1 if it's streamed).
+		private boolean persistent(final int length)
+		{
+			return keepAlive && (length >= 0 || chunked());
+		}
+
+		private void send(final byte[] data, final int off, final int len) throws IOException
+		{
+			if (len == 0)
+				return;
+			final ByteBuffer buf = ByteBuffer.allocate(len);
+			buf.put(data, off, len);
+			buf.flip();
+			synchronized (conn)
+			{
+				if (conn.closed)
+					throw new IOException("Connection closed");
+				if (conn.out.isEmpty())
+					conn.lastProgress = System.currentTimeMillis();
+				conn.out.add(buf);
+				conn.pending += len;
+			}
+			server.ready.add(conn);
+			server.selector.wakeup();
+
+			// Hold on until the client catches up.
+			synchronized (conn)
+			{
+				try
+				{
+					while (conn.pending > MAX_PENDING && !conn.closed)
+						conn.wait();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted writing response");
+				}
+			}
+		}
+
+		private void finish(final boolean persistent)
+		{
+			synchronized (conn)
+			{
+				conn.finished = true;
+				conn.closeAfter = !persistent;
+			}
+			server.ready.add(conn);
+			server.selector.wakeup();
+		}
+
+		/**
+		 * Takes the response, working out its head from what's written first.
+		 */
+		private final class Body extends OutputStream
+		{
+			private final byte[] buf = new byte[CHUNK];
+			private int count;
+			// The head the handler wrote, while it's being written.
+			private byte[] given;
+			private int givenCount;
+			// Whether the head's been worked out, and sent.
+			private boolean sniffed;
+			private boolean headSent;
+			private boolean done;
+			private String status = "200 OK";
+			private String headers = "Content-Type: text/plain\r\n";
+
+			@Override
+			public void write(final int b) throws IOException
+			{
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] data, int off, int len) throws IOException
+			{
+				if (done)
+					throw new IOException("Response already finished");
+				while (!sniffed && len > 0)
+				{
+					sniff(data[off++]);
+					len--;
+				}
+				while (len > 0)
+				{
+					if (count == buf.length)
+						flushBody();
+					final int n = Math.min(len, buf.length - count);
+					System.arraycopy(data, off, buf, count, n);
+					count += n;
+					off += n;
+					len -= n;
+				}
+			}
+
+			// Look at the start of the response, to see if it has its own head.
+			private void sniff(final byte b) throws IOException
+			{
+				if (given == null)
+					given = new byte[MAX_HEAD];
+				given[givenCount++] = b;
+				final int n = givenCount;
+				if (n <= 5)
+				{
+					if (b == "HTTP/".charAt(n - 1))
+						return;
+					// Not a head after all; it's all body.
+					unsniff();
+					return;
+				}
+				final boolean end = b == '\n' && (given[n - 2] == '\n' || (given[n - 2] == '\r' && given[n - 3] == '\n'));
+				if (end || n == MAX_HEAD)
+				{
+					sniffed = true;
+					takeHead(new String(given, 0, n, "ISO-8859-1"));
+					given = null;
+				}
+			}
+
+			// Treat what was taken for the start of a head as body.
+			private void unsniff() throws IOException
+			{
+				final byte[] sofar = given;
+				sniffed = true;
+				given = null;
+				write(sofar, 0, givenCount);
+			}
+
+			// Keep the handler's status and headers, bar those about the
+			// connection, which are ours to decide.
+			private void takeHead(final String head)
+			{
+				final String[] lines = head.split("\r?\n");
+				final int space = lines[0].indexOf(' ');
+				if (space > 0)
+					status = lines[0].substring(space + 1).trim();
+				final StringBuilder kept = new StringBuilder();
+				for (int i = 1; i < lines.length; i++)
+				{
+					final String line = lines[i];
+					final String name = line.substring(0, Math.max(0, line.indexOf(':'))).trim().toLowerCase(Locale.ENGLISH);
+					if (line.length() == 0 || name.length() == 0 || name.equals("connection") || name.equals("keep-alive")
+							|| name.equals("content-length") || name.equals("transfer-encoding"))
+						continue;
+					kept.append(line).append("\r\n");
+				}
+				headers = kept.toString();
+			}
+
+			// Writers flush as they're closed, so flushing doesn't send
+			// anything by itself; otherwise no response would ever be short
+			// enough to send with a length.
+			@Override
+			public void flush()
+			{
+				// Sent when the buffer fills, or it's closed.
+			}
+
+			private void flushBody() throws IOException
+			{
+				if (!headSent)
+				{
+					headSent = true;
+					final byte[] head = head(status, headers, -1);
+					send(head, 0, head.length);
+				}
+				if (!method.equals("HEAD"))
+				{
+					if (chunked())
+					{
+						final byte[] size = (Integer.toHexString(count) + "\r\n").getBytes("ISO-8859-1");
+						final byte[] chunk = new byte[size.length + count + 2];
+						System.arraycopy(size, 0, chunk, 0, size.length);
+						System.arraycopy(buf, 0, chunk, size.length, count);
+						System.arraycopy(CRLF, 0, chunk, size.length + count, 2);
+						send(chunk, 0, chunk.length);
+					}
+					else
+						send(buf, 0, count);
+				}
+				count = 0;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if (done)
+					return;
+				// Never got as far as a whole head; call it body.
+				if (!sniffed && given != null)
+					unsniff();
+				done = true;
+				try
+				{
+					if (!headSent)
+					{
+						// It's all here, so say how long it is.
+						headSent = true;
+						final boolean head = method.equals("HEAD");
+						final byte[] start = Exchange.this.head(status, headers, count);
+						final byte[] all = new byte[start.length + (head ? 0 : count)];
+						System.arraycopy(start, 0, all, 0, start.length);
+						if (!head)
+							System.arraycopy(buf, 0, all, start.length, count);
+						send(all, 0, all.length);
+						finish(persistent(count));
+						return;
+					}
+					if (count > 0)
+						flushBody();
+					if (chunked() && !method.equals("HEAD"))
+						send(LAST_CHUNK, 0, LAST_CHUNK.length);
+					finish(persistent(-1));
+				}
+				catch (final IOException e)
+				{
+					finish(false);
+					throw e;
+				}
+			}
+
+			void error(final String errorStatus, final String message)
+			{
+				if (done)
+					return;
+				try
+				{
+					if (!headSent)
+					{
+						sniffed = true;
+						given = null;
+						count = 0;
+						status = errorStatus;
+						headers = "Content-Type: text/plain\r\n";
+					}
+					final byte[] text = (message + "\n").getBytes("UTF-8");
+					write(text, 0, text.length);
+					close();
+				}
+				catch (final IOException e)
+				{
+					// The client's gone; nothing to tell it.
+				}
+			}
+		}
+	}
+}
@@ -133,6 +133,24 @@ public class Admin
 		"). " + Runtime.getRuntime().availableProcessors() + " \"processors\".");
 	}
 
+	public String[] helpCommandDbPool = {
+		"Get the state of the database connection pool, and who is holding connections.",
+	};
+	public void commandDbPool( final Message mes )
+	{
+		irc.sendContextReply(mes, mods.odb.getConnectionPoolStatus() + " Held by: " + mods.odb.getConnectionHolders() + ".");
+	}
+
+	public String[] helpCommandPermStats = {
+		"Get how many permission checks are being made, and how many are answered from the cache.",
+	};
+	public void commandPermStats( final Message mes )
+	{
+		irc.sendContextReply(mes, mods.security.getPermissionChecks() + " permission checks made, " +
+			String.format("%.1f", mods.security.getPermissionChecksPerSecond()) + " per second on average, " +
+			String.format("%.1f%%", mods.security.getPermissionCacheHitRate() * 100) + " answered from the cache.");
+	}
+
 	public void commandGCs( final Message mes )
 	{
 		final List<GarbageCollectorMXBean> gcbeans = java.lang.management.ManagementFactory.getGarbageCollectorMXBeans();
@@ -7,6 +7,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.ChoobPermission;
@@ -50,6 +51,7 @@ public class BList
 	{
 		this.mods = mods;
 		this.irc = irc;
+		mods.odb.indexText(ListItem.class, "key", "content");
 	}
 
 	public String[] helpCommandGet = {
@@ -131,13 +133,23 @@ public class BList
 
 	private List<ListItem> get(final String key, final String regex)
 	{
-		return mods.odb.retrieve( ListItem.class , "SORT RANDOM WHERE key = \"" + key + "\"" + (regex == null ? "" : " AND content REGEXP'.*" + regex + ".*'"));
+		return mods.odb.retrieve( ListItem.class , "SORT RANDOM WHERE key = \"" + key + "\"" + (regex == null ? "" : " AND content REGEXP'.*" + regex + ".*'" + candidates("content", regex)));
+	}
+
+	// Narrows a regex search down with the text index, if it can. The regex
+	// is unescaped by MySQL before it's used, so leave any with escapes alone.
+	private String candidates(final String field, final String regex)
+	{
+		if (regex.indexOf('\\') != -1)
+			return "";
+		final Set<Integer> ids = mods.odb.findCandidates(ListItem.class, field, regex, true);
+		return ids == null ? "" : " AND " + mods.odb.idClause("id", ids);
 	}
 
 	private HashSet<String> search(final String term)
 	{
 		final HashSet<String> toReturn = new HashSet<String>();
-		for (final Object item : mods.odb.retrieve( ListItem.class , "WHERE key REGEXP '.*" + term + ".*'"))
+		for (final Object item : mods.odb.retrieve( ListItem.class , "WHERE key REGEXP '.*" + term + ".*'" + candidates("key", term)))
 		{
 			toReturn.add(((ListItem)item).key);
 		}
@@ -300,7 +312,7 @@ public class BList
 		int deleted = 0;
 		try
 		{
-			final List<ListItem> thisList = mods.odb.retrieve( ListItem.class , "WHERE key =\"" + key + "\" AND content REGEXP'.*" + regex + ".*'");
+			final List<ListItem> thisList = mods.odb.retrieve( ListItem.class , "WHERE key =\"" + key + "\" AND content REGEXP'.*" + regex + ".*'" + candidates("content", regex));
 			for (final Object item : thisList)
 			{
 				mods.odb.delete(item);
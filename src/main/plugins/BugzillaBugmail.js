@@ -29,17 +29,23 @@ function sleep(ms) {
 	}
 }
 
-String.prototype.trim =
-function _trim() {
-	return this.replace(/^\s+/, "").replace(/\s+$/, "");
+// The standard objects are shared between plugins and sealed, so only fill
+// these in if they're missing.
+if (!String.prototype.trim) {
+	String.prototype.trim =
+	function _trim() {
+		return this.replace(/^\s+/, "").replace(/\s+$/, "");
+	}
 }
 
-Array.prototype.indexOf =
-function _indexof(item) {
-	for (var i = 0; i < this.length; i++) {
-		if (this[i] == item) return i;
+if (!Array.prototype.indexOf) {
+	Array.prototype.indexOf =
+	function _indexof(item) {
+		for (var i = 0; i < this.length; i++) {
+			if (this[i] == item) return i;
+		}
+		return -1;
 	}
-	return -1;
 }
 
 
@@ -38,8 +38,35 @@ public class Concurrency {
 	public Concurrency(final Modules mods, final IRCInterface irc) {
 		this.irc = irc;
 		this.mods = mods;
+
+		// The dispatcher only knows the limits we've told it about.
+		for (final PluginConcurrencyLimit pcl : mods.odb.retrieve(PluginConcurrencyLimit.class, ""))
+		{
+			if (!applyLimit(pcl.pluginName, pcl.threadLimit))
+			{
+				// Older installs may not have granted us this yet; load anyway.
+				System.err.println("Concurrency plugin lacks ChoobPermission plugin.threadlimit; stored thread limits won't be applied.");
+				break;
+			}
+		}
 	}
 
+	// Tells the dispatcher about a limit; false if we aren't allowed to.
+	private boolean applyLimit(final String pluginName, final int limit)
+	{
+		try
+		{
+			mods.plugin.setConcurrencyLimit(pluginName, limit);
+			return true;
+		}
+		catch (final SecurityException e)
+		{
+			return false;
+		}
+	}
+
+	private static final String NOT_APPLIED = " (Not applied until this plugin is granted plugin.threadlimit.)";
+
 	public int apiGetThreadLimit(final String pluginName)
 	{
 		int limit = DEFAULT_THREAD_LIMIT;
@@ -109,13 +136,15 @@ public class Concurrency {
 			if (limit <= 0)
 			{
 				mods.odb.delete(pcl);
-				irc.sendContextReply(mes, "Plugin '" + pluginName + "' reverted to default thread limit of " + DEFAULT_THREAD_LIMIT + ". This will not take effect immediately.");
+				final boolean applied = applyLimit(pluginName, 0);
+				irc.sendContextReply(mes, "Plugin '" + pluginName + "' reverted to default thread limit of " + DEFAULT_THREAD_LIMIT + "." + (applied ? "" : NOT_APPLIED));
 			}
 			else
 			{
 				pcl.threadLimit = limit;
 				mods.odb.update(pcl);
-				irc.sendContextReply(mes, "Plugin '" + pluginName + "' given a thread limit of " + limit + ". This will not take effect immediately.");
+				final boolean applied = applyLimit(pluginName, limit);
+				irc.sendContextReply(mes, "Plugin '" + pluginName + "' given a thread limit of " + limit + "." + (applied ? "" : NOT_APPLIED));
 			}
 		}
 		else
@@ -124,7 +153,8 @@ public class Concurrency {
 			pcl.pluginName = pluginName;
 			pcl.threadLimit = limit;
 			mods.odb.save(pcl);
-			irc.sendContextReply(mes, "Plugin '" + pluginName + "' given a thread limit of " + limit + ". This will not take effect immediately.");
+			final boolean applied = applyLimit(pluginName, limit);
+			irc.sendContextReply(mes, "Plugin '" + pluginName + "' given a thread limit of " + limit + "." + (applied ? "" : NOT_APPLIED));
 		}
 	}
 }
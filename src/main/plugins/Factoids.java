@@ -87,7 +87,7 @@ public class Factoids
 
 		final String item = params.get(1).replaceAll("\\?","");
 
-		final List<FactoidObject> facts = mods.odb.retrieve( FactoidObject.class , "SORT RANDOM LIMIT (1) WHERE subject = \"" + mods.odb.escapeString(item.toLowerCase()) + "\"");
+		final List<FactoidObject> facts = mods.odb.retrieveRandom( FactoidObject.class , 1, "WHERE subject = ?", item.toLowerCase());
 
 		if( facts.size() > 0 )
 		{
@@ -171,6 +171,7 @@ public class Factoids2
 		quotedSearchPattern = Pattern.compile("\\s*\"([^\"]+)\"(?:\\s+(.*))?\\s*");
 		regexpSearchPattern = Pattern.compile("\\s*(.+?)\\s+(/([^/]+|\\/)+/)\\s*");
 
+		mods.odb.indexText(Factoid.class, "info");
 		mods.interval.callBack("clean-enums", 60000, 1);
 	}
 
@@ -254,13 +255,19 @@ public class Factoids2
 		String odbQuery = "WHERE subject = '" + mods.odb.escapeString(subject) + "'";
 
 		if (search.length() > 0) {
+			final Set<Integer> candidates;
 			if (search.startsWith("/") && search.endsWith("/")) {
 				// Regexp
-				odbQuery += " AND info RLIKE \"" + mods.odb.escapeForRLike(search.substring(1, search.length() - 1)) + "\"";
+				final String regex = search.substring(1, search.length() - 1);
+				odbQuery += " AND info RLIKE \"" + mods.odb.escapeForRLike(regex) + "\"";
+				candidates = mods.odb.findCandidates(Factoid.class, "info", regex, true);
 			} else {
 				// Substring
 				odbQuery += " AND info LIKE \"%" + mods.odb.escapeForLike(search) + "%\"";
+				candidates = mods.odb.findCandidates(Factoid.class, "info", search, false);
 			}
+			if (candidates != null)
+				odbQuery += " AND " + mods.odb.idClause("id", candidates);
 		}
 		return mods.odb.retrieve(Factoid.class, odbQuery);
 	}
@@ -356,10 +363,7 @@ public class Factoids2
 		if ("clean-enums".equals(param)) {
 			// Clean up dead enumerators.
 			final long lastUsedCutoff = System.currentTimeMillis() - ENUM_TIMEOUT;
-			final List<FactoidEnumerator> deadEnums = mods.odb.retrieve(FactoidEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
-			for (int i = 0; i < deadEnums.size(); i++) {
-				mods.odb.delete(deadEnums.get(i));
-			}
+			mods.odb.deleteWhere(FactoidEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
 			mods.interval.callBack(param, 60000, 1);
 		}
 	}
@@ -395,9 +399,8 @@ public class Factoids2
 			// Remove oldest so we only have the 5 most recent.
 			final List<Factoid> results = mods.odb.retrieve(Factoid.class, "WHERE fact = 0 AND subject = '" + mods.odb.escapeString(subject) + "' SORT DESC date");
 
-			for (int i = 5; i < results.size(); i++) {
-				final Factoid oldRumour = results.get(i);
-				mods.odb.delete(oldRumour);
+			if (results.size() > 5) {
+				mods.odb.deleteAll(results.subList(5, results.size()));
 			}
 		}
 	}
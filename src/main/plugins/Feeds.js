@@ -17,9 +17,13 @@ function log(msg) {
 	dumpln("FEEDS [" + (new Date()) + "] " + msg);
 }
 
-String.prototype.trim =
-function _trim() {
-	return this.replace(/^\s+/, "").replace(/\s+$/, "");
+// The standard objects are shared between plugins and sealed, so only fill
+// this in if it's missing.
+if (!String.prototype.trim) {
+	String.prototype.trim =
+	function _trim() {
+		return this.replace(/^\s+/, "").replace(/\s+$/, "");
+	}
 }
 
 // Constructor: Feeds
@@ -255,6 +255,7 @@ public class Karma
 	{
 		this.mods = mods;
 		this.irc = irc;
+		mods.odb.indexText(KarmaObject.class, "string");
 		mods.interval.callBack("clean-enums", 60000, 1);
 	}
 
@@ -264,10 +265,7 @@ public class Karma
 		if ("clean-enums".equals(param)) {
 			// Clean up dead enumerators.
 			final long lastUsedCutoff = System.currentTimeMillis() - ENUM_TIMEOUT;
-			final List<KarmaReasonEnumerator> deadEnums = mods.odb.retrieve(KarmaReasonEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
-			for (int i = 0; i < deadEnums.size(); i++) {
-				mods.odb.delete(deadEnums.get(i));
-			}
+			mods.odb.deleteWhere(KarmaReasonEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
 			mods.interval.callBack(param, 60000, 1);
 		}
 	}
@@ -1212,6 +1210,9 @@ public class Karma
 				// Substring
 				odbQuery = "WHERE string LIKE \"%" + mods.odb.escapeForLike(item.name) + "%\"" + andNotZero;
 			}
+			final Set<Integer> candidates = mods.odb.findCandidates(KarmaObject.class, "string", item.name, item.regex);
+			if (candidates != null)
+				odbQuery += " AND " + mods.odb.idClause("id", candidates);
 			System.out.println("    Query: " + odbQuery);
 
 			final List<KarmaObject> odbItems = mods.odb.retrieve(KarmaObject.class, odbQuery);
@@ -1294,7 +1295,9 @@ public class Karma
 		// Fetch results.
 		List<KarmaObject> karmaObjects = null;
 		if (karmaSearch != "") {
-			karmaObjects = retrieveKarmaObjects("WHERE string RLIKE \"" + mods.odb.escapeForRLike(karmaSearch) + "\" AND NOT (up = 0 AND down = 0 AND value = 0) SORT INTEGER value");
+			final Set<Integer> candidates = mods.odb.findCandidates(KarmaObject.class, "string", karmaSearch, true);
+			karmaObjects = retrieveKarmaObjects("WHERE string RLIKE \"" + mods.odb.escapeForRLike(karmaSearch) + "\" AND NOT (up = 0 AND down = 0 AND value = 0)"
+					+ (candidates == null ? "" : " AND " + mods.odb.idClause("id", candidates)) + " SORT INTEGER value");
 			out.println("<H1>" + karmaObjects.size() + " karma item" + (karmaObjects.size() == 1 ? "" : "s") + " matching /" + mods.scrape.escapeForHTML(karmaSearch) + "/i</H1>");
 		} else {
 			karmaObjects = retrieveKarmaObjects("WHERE 1 SORT INTEGER value");
@@ -1562,11 +1565,13 @@ public class Karma
 	 * adds karma.
 	 */
 	private void addKarma() {
+		final List<KarmaReasonObject> reasons = new ArrayList<KarmaReasonObject>();
 		DelayedKarmaReasonObject temp = inqueue.poll();
 		while (temp != null) {
-			if(temp.reason != null) mods.odb.save(temp.getReason());
+			if(temp.reason != null) reasons.add(temp.getReason());
 			temp = inqueue.poll();
 		}
+		mods.odb.saveAll(reasons);
 	}
 
 	public String[] helpCommandReasonMod = {
@@ -53,6 +53,9 @@ public class Link
 		this.irc = irc;
 		this.mods = mods;
 
+		// Every link posted is looked up.
+		mods.odb.cacheClass(OldLink.class, 1000, 10 * 60 * 1000, "URL");
+
 		// Purge
 		/*
 		 * List<OldLink> links = mods.odb.retrieve(OldLink.class, ""); for (OldLink link : links) { mods.odb.delete(link); }
@@ -172,8 +175,7 @@ public class Link
 			return null;
 
 		// Check objectdb
-		final String queryString = "WHERE URL = \"" + mods.odb.escapeString(link) + "\"";
-		final List<OldLink> links = mods.odb.retrieve(OldLink.class, queryString);
+		final List<OldLink> links = mods.odb.retrieve(OldLink.class, "WHERE URL = ?", link);
 
 		// Return the first result, if any.
 		return links.size() > 0 ? links.get(0) : null;
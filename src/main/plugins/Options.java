@@ -51,6 +51,10 @@ public class Options
 	{
 		this.irc = irc;
 		this.mods = mods;
+
+		// Other plugins ask for options all the time.
+		mods.odb.cacheClass(UserOption.class, 2000, 10 * 60 * 1000, "optionName", "userName", "pluginName");
+		mods.odb.cacheClass(GeneralOption.class, 500, 10 * 60 * 1000, "optionName", "pluginName");
 	}
 
 	public String[] helpCommandList = {
@@ -578,8 +582,7 @@ public class Options
 			pluginName = "*Choob*"; // Hopefully an invalid plugin name. :)
 
 		final List<GeneralOption> options = mods.odb.retrieve( GeneralOption.class,
-			  "WHERE optionName = '" + mods.odb.escapeString(optionName) + "' AND"
-			+ " pluginName = '" + mods.odb.escapeString(pluginName) + "'");
+			"WHERE optionName = ? AND pluginName = ?", optionName, pluginName);
 
 		if (options.size() == 0)
 			return defult;
@@ -603,9 +606,7 @@ public class Options
 			pluginName = "*Choob*"; // Hopefully an invalid plugin name. :)
 
 		final List<UserOption> options = mods.odb.retrieve( UserOption.class,
-			  "WHERE optionName = '" + mods.odb.escapeString(optionName) + "' AND"
-			+ " userName = '" + mods.odb.escapeString(userName) + "' AND"
-			+ " pluginName = '" + mods.odb.escapeString(pluginName) + "'");
+			"WHERE optionName = ? AND userName = ? AND pluginName = ?", optionName, userName, pluginName);
 
 		if (options.size() == 0)
 			return defult;
@@ -619,8 +620,7 @@ public class Options
 			pluginName = "*Choob*"; // Hopefully an invalid plugin name. :)
 
 		final List<GeneralOption> options = mods.odb.retrieve( GeneralOption.class,
-			  "WHERE optionName = '" + mods.odb.escapeString(optionName) + "' AND"
-			+ " pluginName = '" + mods.odb.escapeString(pluginName) + "'");
+			"WHERE optionName = ? AND pluginName = ?", optionName, pluginName);
 
 		if (options.size() == 0)
 		{
@@ -659,9 +659,7 @@ public class Options
 			pluginName = "*Choob*"; // Hopefully an invalid plugin name. :)
 
 		final List<UserOption> options = mods.odb.retrieve( UserOption.class,
-			  "WHERE optionName = '" + mods.odb.escapeString(optionName) + "' AND"
-			+ " userName = '" + mods.odb.escapeString(userName) + "' AND"
-			+ " pluginName = '" + mods.odb.escapeString(pluginName) + "'");
+			"WHERE optionName = ? AND userName = ? AND pluginName = ?", optionName, userName, pluginName);
 
 		if (options.size() == 0)
 		{
@@ -7,6 +7,7 @@ import java.util.regex.Pattern;
 
 import org.jibble.pircbot.Colors;
 
+import uk.co.uwcs.choob.modules.IrcStateModule;
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.ChoobException;
 import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
@@ -106,6 +107,12 @@ public class QuakenetAuth {
 	};
 
 	public String apiAccount(final String nick) {
+		if (whoisfallback) {
+			// The account is in the whois reply; the core keeps (and shares) those.
+			final IrcStateModule.UserInfo info = mods.ircstate.whois(nick);
+			return info == null ? null : info.getAccount();
+		}
+
 		QAuthResult result = getCachedQCheck(nick.toLowerCase());
 		if (result != null)	{
 			return result.account;
@@ -171,38 +178,6 @@ public class QuakenetAuth {
 				whoisfallback = true;
 			}
 		}
-
-		if (resp.getCode() == 330) {
-			// Whois authentication status line
-			// This takes the format: <BOTnick> <Usernick> <Account> :is authed as
-			final Matcher ma = Pattern.compile("^(.*) (.*) (.*) \\:is authed as$").matcher(resp.getResponse().trim());
-			if (ma.find()) {
-				// Extract the data
-				final String nick = ma.group(2).trim();
-				final String account = ma.group(3).trim();
-
-				// Store this data
-				QAuthResult result = getNickCheck(nick.toLowerCase());
-				if (result == null) {
-					result = new QAuthResult();
-					result.account = account;
-					result.time = System.currentTimeMillis();
-					synchronized(qChecks) {
-						qChecks.put(nick.toLowerCase(), result);
-					}
-					return;
-				}
-				synchronized(result) {
-					result.account = account;
-					result.time = System.currentTimeMillis();
-
-					// Only notify if explicitly using the whois method
-					if (whoisfallback) {
-						result.notifyAll();
-					}
-				}
-			}
-		}
 	}
 
 	public void onPrivateNotice(final Message mes) {
@@ -352,11 +327,6 @@ public class QuakenetAuth {
 						return null;
 					}
 				});
-
-				if(whoisfallback) {
-					// Perform a whois of the account too
-					irc.sendRawLine("WHOIS " + nick);
-				}
 				qChecks.put(nick, result);
 			}
 		}
@@ -2,6 +2,7 @@ import java.io.PrintWriter;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -178,6 +179,7 @@ public class Quote
 		this.irc = irc;
 		recentQuotes = new HashMap<String,List<RecentQuote>>();
 		updatePatterns();
+		mods.odb.indexText(QuoteLine.class, "message");
 		mods.interval.callBack("clean-enums", 60000, 1);
 	}
 
@@ -764,15 +766,12 @@ public class Quote
 		if ("clean-enums".equals(param)) {
 			// Clean up dead enumerators.
 			final long lastUsedCutoff = System.currentTimeMillis() - ENUM_TIMEOUT;
-			final List<QuoteEnumerator> deadEnums = mods.odb.retrieve(QuoteEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
-			for (int i = 0; i < deadEnums.size(); i++) {
-				mods.odb.delete(deadEnums.get(i));
-			}
+			mods.odb.deleteWhere(QuoteEnumerator.class, "WHERE lastUsed < " + lastUsedCutoff);
 			mods.interval.callBack(param, 60000, 1);
 		}
 	}
 
-	private QuoteObject pickRandomQuote(final List<QuoteObject> quotes, String enumSource)
+	private int pickRandomQuote(final List<Integer> quoteIds, String enumSource)
 	{
 		int quoteId = -1;
 		enumSource = enumSource.toLowerCase();
@@ -780,7 +779,7 @@ public class Quote
 		QuoteEnumerator qEnum = null;
 		if (enums.size() >= 1) {
 			qEnum = enums.get(0);
-			if (qEnum.getSize() != quotes.size()) {
+			if (qEnum.getSize() != quoteIds.size()) {
 				// Count has changed: invalidated!
 				mods.odb.delete(qEnum);
 				qEnum = null;
@@ -792,24 +791,15 @@ public class Quote
 		}
 		if (qEnum == null) {
 			// No enumerator, create one.
-			final int[] idList = new int[quotes.size()];
-			for (int i = 0; i < quotes.size(); i++)
-				idList[i] = quotes.get(i).id;
+			final int[] idList = new int[quoteIds.size()];
+			for (int i = 0; i < quoteIds.size(); i++)
+				idList[i] = quoteIds.get(i);
 
 			qEnum = new QuoteEnumerator(enumSource, idList);
 			quoteId = qEnum.getNext();
 			mods.odb.save(qEnum);
 		}
-
-		QuoteObject rvQuote = null;
-		for (int i = 0; i < quotes.size(); i++) {
-			final QuoteObject quote = quotes.get(i);
-			if (quote.id == quoteId) {
-				rvQuote = quote;
-				break;
-			}
-		}
-		return rvQuote;
+		return quoteId;
 	}
 
 	public String[] helpCommandGet = {
@@ -820,10 +810,11 @@ public class Quote
 	public void commandGet(final Message mes)
 	{
 		final String whereClause = getClause(mods.util.getParamString(mes));
-		List<QuoteObject> quotes;
+		List<Integer> quoteIds;
 		try
 		{
-			quotes = mods.odb.retrieve(QuoteObject.class, whereClause);
+			// Only the IDs are needed to pick one; just that one is loaded.
+			quoteIds = mods.odb.retrieveInt(QuoteObject.class, whereClause);
 		}
 		catch (final ObjectDBError e)
 		{
@@ -835,13 +826,22 @@ public class Quote
 			throw e;
 		}
 
+		if (quoteIds.size() == 0)
+		{
+			irc.sendContextReply(mes, "No quotes found!");
+			return;
+		}
+
+		final int quoteId = pickRandomQuote(quoteIds, mes.getContext() + ":" + whereClause);
+		final List<QuoteObject> quotes = mods.odb.retrieveByIds(QuoteObject.class, Collections.singletonList(quoteId));
 		if (quotes.size() == 0)
 		{
+			// Deleted since we looked.
 			irc.sendContextReply(mes, "No quotes found!");
 			return;
 		}
 
-		final QuoteObject quote = pickRandomQuote(quotes, mes.getContext() + ":" + whereClause);
+		final QuoteObject quote = quotes.get(0);
 
 		final List<QuoteLine> lines = mods.odb.retrieve(QuoteLine.class, "WHERE quoteID = " + quote.id + " ORDER BY lineNumber");
 		final Iterator<QuoteLine> l = lines.iterator();
@@ -883,7 +883,7 @@ public class Quote
 	public String apiSingleLineQuote(final String nick, final String context, final String querysuffix)
 	{
 		final String whereClause = getClause(nick + " length:=1" + " " + querysuffix);
-		final List<QuoteObject> quotes = mods.odb.retrieve( QuoteObject.class, "SORT BY RANDOM LIMIT (1) " + whereClause);
+		final List<QuoteObject> quotes = mods.odb.retrieveRandom( QuoteObject.class, 1, whereClause);
 		if (quotes.size() == 0)
 			return null;
 
@@ -1486,6 +1486,9 @@ public class Quote
 				final int end = ma.end();
 				final String regex = text.substring(pos + 1, end - 1);
 				clauses.add("join"+joins+".message RLIKE \"" + mods.odb.escapeForRLike(regex) + "\"");
+				final Set<Integer> candidates = mods.odb.findCandidates(QuoteLine.class, "message", regex, true);
+				if (candidates != null)
+					clauses.add(mods.odb.idClause("join"+joins+".id", candidates));
 				if (user != null)
 					clauses.add("join"+joins+".nick = \"" + mods.odb.escapeString(user) + "\"");
 				clauses.add("join"+joins+".quoteID = id");
@@ -1848,7 +1851,7 @@ public class Quote
 			List<QuoteObject> quotes;
 			try
 			{
-				quotes = mods.odb.retrieve(QuoteObject.class, "SORT BY RANDOM LIMIT (1) " + whereClause);
+				quotes = mods.odb.retrieveRandom(QuoteObject.class, 1, whereClause);
 			}
 			catch (final ObjectDBError e)
 			{
@@ -1893,20 +1896,27 @@ public class Quote
 			if (args.length() == 0)
 			{
 				// Show a single, random score=0 quote.
-				List<QuoteObject> quotes;
+				final List<Integer> quoteIds;
+				final List<QuoteObject> quotes;
 				try
 				{
-					quotes = mods.odb.retrieve(QuoteObject.class, "WHERE score = 0 SORT BY RANDOM");
+					// Just the IDs, to count them; only the chosen one is loaded.
+					quoteIds = mods.odb.retrieveInt(QuoteObject.class, "WHERE score = 0");
+					if (quoteIds.size() == 0)
+					{
+						out.println("<P>Shock! There are no score=0 quotes.</P>");
+						return;
+					}
+					final int quoteId = quoteIds.get((int)(Math.random() * quoteIds.size()));
+					quotes = mods.odb.retrieveByIds(QuoteObject.class, Collections.singletonList(quoteId));
 				}
 				catch (final ObjectDBError e)
 				{
 					return;
 				}
 				if (quotes.size() == 0)
-				{
-					out.println("<P>Shock! There are no score=0 quotes.</P>");
+					// Deleted since we looked.
 					return;
-				}
 
 				final QuoteObject quote = quotes.get(0);
 				final List<QuoteLine> lines = mods.odb.retrieve(QuoteLine.class, "WHERE quoteID = " + quote.id + " ORDER BY lineNumber");
@@ -1923,7 +1933,7 @@ public class Quote
 						out.println(safeHTML( "<" + line.nick + "> " + line.message) + "<BR>");
 				}
 				out.println("<P><A HREF='?" + quote.id + "/" + "leet'>Leetquote</A> <B>OR</B> <A HREF='?" + quote.id + "/" + "lame'>Lamequote</A> [this is quote ID " + quote.id + "]</P>");
-				out.println("<P>(" + quotes.size() + " quotes with score=0 remaining.)</P>");
+				out.println("<P>(" + quoteIds.size() + " quotes with score=0 remaining.)</P>");
 			}
 			else
 			{
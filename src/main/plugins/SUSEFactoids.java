@@ -132,6 +132,7 @@ public class SUSEFactoids
 		this.mods = mods;
 		this.irc = irc;
 		triggerPattern = Pattern.compile(irc.getTriggerRegex(), Pattern.CASE_INSENSITIVE);
+		mods.odb.indexText(Fact.class, "subject");
 	}
 
 	private void setChannelLanguage(final String channelName, final String language)
@@ -598,7 +599,10 @@ public class SUSEFactoids
 
 		final String item = params.get(1).replaceAll("\\?", "");
 
-		final List<Fact> facts = mods.odb.retrieve(Fact.class, "WHERE subject REGEXP'.*" + item.toLowerCase() + ".*' AND (lang = \"" + getChannelLanguage(mes.getContext()) + "\" OR lang = \"en_GB\")");
+		// The search is unescaped by MySQL before it's used, so only narrow it if it has no escapes.
+		final Set<Integer> candidates = item.indexOf('\\') != -1 ? null : mods.odb.findCandidates(Fact.class, "subject", item.toLowerCase(), true);
+		final List<Fact> facts = mods.odb.retrieve(Fact.class, "WHERE subject REGEXP'.*" + item.toLowerCase() + ".*' AND (lang = \"" + getChannelLanguage(mes.getContext()) + "\" OR lang = \"en_GB\")"
+				+ (candidates == null ? "" : " AND " + mods.odb.idClause("id", candidates)));
 
 		if (facts.size() == 0)
 		{
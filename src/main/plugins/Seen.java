@@ -58,6 +58,9 @@ public class Seen
 		this.irc = irc;
 		this.mods = mods;
 		lockedUntil=0;
+
+		// Everyone who speaks gets looked up (and updated).
+		mods.odb.cacheClass(SeenObj.class, 1000, 10 * 60 * 1000, "name");
 	}
 
 	public String[] helpTopics = { "Using" };
@@ -164,7 +167,7 @@ public class Seen
 		List<SeenObj> objs;
 		try
 		{
-			objs=mods.odb.retrieve( SeenObj.class, "WHERE name = \"" + mods.odb.escapeString(sortNick) + "\"" );
+			objs=mods.odb.retrieve( SeenObj.class, "WHERE name = ?", sortNick );
 		}
 		catch (final Exception e)
 		{
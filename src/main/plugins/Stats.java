@@ -1,7 +1,10 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +30,56 @@ class EntityStat
 	public double value; // WMA; over 100 lines for people, 1000 lines for channels
 }
 
+/**
+ * All the stats for one entity, held in memory between flushes. Stats are
+ * indexed as in Stats.STAT_NAMES; a bit is set in present for each stat with
+ * a value, and in dirty for each changed since it was last written back.
+ * Once evicted, it's no longer in the cache, and can't be updated.
+ */
+class EntityStats
+{
+	final String name;
+	final double[] values;
+	final int[] ids; // 0 until saved.
+	int present;
+	int dirty;
+	long lastUsed = System.currentTimeMillis();
+	boolean evicted;
+
+	EntityStats(String name, int stats)
+	{
+		this.name = name;
+		values = new double[stats];
+		ids = new int[stats];
+	}
+
+	synchronized boolean update(int stat, double thisVal, double alpha)
+	{
+		if (evicted)
+			return false;
+		lastUsed = System.currentTimeMillis();
+		final int bit = 1 << stat;
+		if ((present & bit) == 0) {
+			values[stat] = thisVal;
+			present |= bit;
+		} else {
+			values[stat] = alpha * values[stat] + (1 - alpha) * thisVal;
+		}
+		dirty |= bit;
+		return true;
+	}
+
+	synchronized boolean has(int stat)
+	{
+		return (present & (1 << stat)) != 0;
+	}
+
+	synchronized double get(int stat)
+	{
+		return values[stat];
+	}
+}
+
 class StatSortByValue implements Comparator<EntityStat>
 {
 	@Override
@@ -55,6 +108,24 @@ public class Stats
 	final double NICK_ALPHA = Math.exp(Math.log(THRESHOLD) / NICK_LENGTH);
 	final double CHAN_ALPHA = Math.exp(Math.log(THRESHOLD) / CHAN_LENGTH);
 
+	// How often changed stats are written back to the database.
+	final int FLUSH_INTERVAL = 60 * 1000;
+	// How long an entity's stats are kept in memory after they last changed.
+	final int IDLE_TIME = 30 * 60 * 1000;
+
+	// Stat names, as stored; their index is used everywhere else.
+	static final String[] STAT_NAMES = { "captuation", "wordcount", "characters", "wordlength", "referred" };
+	static final int CAPTUATION = 0, WORDCOUNT = 1, CHARACTERS = 2, WORDLENGTH = 3, REFERRED = 4;
+
+	static final Pattern ADDRESSED = Pattern.compile("^[a-zA-Z0-9`_|]+:\\s+");
+	static final Pattern QUOTE = Pattern.compile("^<\\S+>");
+	static final Pattern SMILIES = Pattern.compile("(?:^|\\s+)[:pP)/;\\\\o()^.\ufffd -]{2,4}(\\s+|$)");
+	static final Pattern URLS = Pattern.compile("[a-z0-9]+:/\\S+");
+	static final Pattern TERMINATED = Pattern.compile("[\\.\\?\\!][\\)\"]?$");
+	static final Pattern QUOTED = Pattern.compile("\".*?\"");
+	static final Pattern SMALL_START = Pattern.compile("(?:^|(?<!\\.)\\.\\s+)\\p{Ll}");
+	static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
 	public String[] info()
 	{
 		return new String[] {
@@ -71,8 +142,17 @@ public class Stats
 	{
 		this.mods = mods;
 		this.irc = irc;
+
+		mods.interval.callBack(null, FLUSH_INTERVAL);
 	}
 
+	// Entity name (lower case) -> its stats.
+	private final ConcurrentMap<String, EntityStats> entities = new ConcurrentHashMap<String, EntityStats>();
+
+	private final Object triggerLock = new Object();
+	private String triggerRegex;
+	private Pattern trigger;
+
 /*	private String getText(Message mes) throws ChoobException
 	{
 		List<Message> history = mods.history.getLastMessages( mes, HISTORY );
@@ -146,57 +226,204 @@ public class Stats
 		}
 	}
 */
-	private void update( String thing, Message mes, double thisVal )
+	private static int statIndex( String thing )
+	{
+		for (int i = 0; i < STAT_NAMES.length; i++)
+			if (STAT_NAMES[i].equals(thing))
+				return i;
+		return -1;
+	}
+
+	private EntityStats load( String name )
+	{
+		final EntityStats loaded = new EntityStats(name, STAT_NAMES.length);
+		for (EntityStat obj : mods.odb.retrieve( EntityStat.class, "WHERE entityName = ?", name )) {
+			final int stat = statIndex(obj.statName);
+			if (stat == -1)
+				continue;
+			loaded.values[stat] = obj.value;
+			loaded.ids[stat] = obj.id;
+			loaded.present |= 1 << stat;
+		}
+		return loaded;
+	}
+
+	/**
+	 * Get an entity's stats to update, reading them from the database the
+	 * first time.
+	 */
+	private EntityStats entity( String name )
+	{
+		final String key = name.toLowerCase();
+		final EntityStats cached = entities.get(key);
+		if (cached != null)
+			return cached;
+
+		final EntityStats loaded = load(name);
+		final EntityStats raced = entities.putIfAbsent(key, loaded);
+		return raced != null ? raced : loaded;
+	}
+
+	/**
+	 * Get an entity's stats just to look at. Anyone can be asked about, so
+	 * they're only kept if they're already being updated.
+	 */
+	private EntityStats find( String name )
+	{
+		final EntityStats cached = entities.get(name.toLowerCase());
+		return cached != null ? cached : load(name);
+	}
+
+	private void update( String name, int stat, double thisVal, double alpha )
+	{
+		// If it's evicted as we get it, get it again; it's read back with what was flushed.
+		while (true) {
+			if (entity( name ).update( stat, thisVal, alpha ))
+				return;
+		}
+	}
+
+	private void update( int stat, Message mes, double thisVal )
 	{
 		if ( mes instanceof ChannelEvent )
-			updateObj( thing, mes.getContext(), thisVal, CHAN_ALPHA );
-		updateObj( thing, mods.nick.getBestPrimaryNick( mes.getNick() ), thisVal, NICK_ALPHA );
+			update( mes.getContext(), stat, thisVal, CHAN_ALPHA );
+		update( mods.nick.getBestPrimaryNick( mes.getNick() ), stat, thisVal, NICK_ALPHA );
 	}
 
-	private void updateObj ( String thing, String name, double thisVal, double alpha )
+	/**
+	 * Write every changed stat back to the database, in one transaction for
+	 * the new ones and one for the rest. Entities which have been written,
+	 * and not changed for a while, are dropped from memory.
+	 */
+	private synchronized void flush()
 	{
-		// I assume thing is safe. ^.^
-		List<EntityStat> ret = mods.odb.retrieve( EntityStat.class, "WHERE entityName = \"" + mods.odb.escapeString(name) + "\" && statName = \"" + thing + "\"");
-		EntityStat obj;
-		if (ret.size() == 0) {
-			obj = new EntityStat();
-			obj.statName = thing;
-			obj.entityName = name;
-			obj.value = thisVal;
-			mods.odb.save(obj);
-		} else {
-			obj = ret.get(0);
-			obj.value = alpha * obj.value + (1 - alpha) * thisVal;
-			mods.odb.update(obj);
+		final long idleSince = System.currentTimeMillis() - IDLE_TIME;
+		for (Iterator<EntityStats> it = entities.values().iterator(); it.hasNext(); ) {
+			final EntityStats entity = it.next();
+			synchronized (entity) {
+				if (entity.dirty == 0 && entity.lastUsed < idleSince) {
+					entity.evicted = true;
+					it.remove();
+				}
+			}
+		}
+
+		final List<EntityStat> toSave = new ArrayList<EntityStat>();
+		final List<EntityStats> savedFor = new ArrayList<EntityStats>();
+		final List<EntityStat> toUpdate = new ArrayList<EntityStat>();
+		final List<EntityStats> updatedFor = new ArrayList<EntityStats>();
+
+		for (EntityStats entity : entities.values()) {
+			synchronized (entity) {
+				for (int stat = 0; stat < STAT_NAMES.length; stat++) {
+					if ((entity.dirty & (1 << stat)) == 0)
+						continue;
+					final EntityStat obj = new EntityStat();
+					obj.id = entity.ids[stat];
+					obj.statName = STAT_NAMES[stat];
+					obj.entityName = entity.name;
+					obj.value = entity.values[stat];
+					if (obj.id == 0) {
+						toSave.add(obj);
+						savedFor.add(entity);
+					} else {
+						toUpdate.add(obj);
+						updatedFor.add(entity);
+					}
+				}
+				entity.dirty = 0;
+			}
+		}
+
+		try {
+			if (toSave.size() > 0)
+				mods.odb.saveAll(toSave);
+			for (int i = 0; i < toSave.size(); i++) {
+				final EntityStats entity = savedFor.get(i);
+				synchronized (entity) {
+					entity.ids[statIndex(toSave.get(i).statName)] = toSave.get(i).id;
+				}
+			}
+		} catch (RuntimeException e) {
+			redirty(toSave, savedFor);
+			redirty(toUpdate, updatedFor);
+			throw e;
+		}
+
+		try {
+			if (toUpdate.size() > 0)
+				mods.odb.updateAll(toUpdate);
+		} catch (RuntimeException e) {
+			redirty(toUpdate, updatedFor);
+			throw e;
+		}
+	}
+
+	// Marks stats which couldn't be written as changed again, so the next flush tries them.
+	private static void redirty( List<EntityStat> objs, List<EntityStats> of )
+	{
+		for (int i = 0; i < objs.size(); i++) {
+			final EntityStats entity = of.get(i);
+			synchronized (entity) {
+				entity.dirty |= 1 << statIndex(objs.get(i).statName);
+			}
+		}
+	}
+
+	public void interval( Object param )
+	{
+		try {
+			flush();
+		} finally {
+			mods.interval.callBack(null, FLUSH_INTERVAL);
+		}
+	}
+
+	// Don't lose what's changed since the last flush when we're reloaded,
+	// unloaded, or the bot exits.
+	public void destroy()
+	{
+		flush();
+	}
+
+	private Pattern trigger()
+	{
+		final String regex = irc.getTriggerRegex();
+		synchronized (triggerLock) {
+			if (!regex.equals(triggerRegex)) {
+				trigger = Pattern.compile(regex);
+				triggerRegex = regex;
+			}
+			return trigger;
 		}
 	}
 
 	public void onMessage( Message mes )
 	{
-		if (Pattern.compile(irc.getTriggerRegex()).matcher(mes.getMessage()).find()) {
+		if (trigger().matcher(mes.getMessage()).find()) {
 			// Ignore commands.
 			return;
 		}
 
-		String content = mes.getMessage().replaceAll("^[a-zA-Z0-9`_|]+:\\s+", "");
+		String content = ADDRESSED.matcher(mes.getMessage()).replaceAll("");
 		boolean referred = !content.equals(mes.getMessage());
 
 		if (mes instanceof ActionEvent) {
 			content = "*" + mes.getNick() + " " + content; // bizarrely, this is proper captuation grammar.
 		}
 
-		if (Pattern.compile("^<\\S+>").matcher(content).find()) {
+		if (QUOTE.matcher(content).find()) {
 			// Ignore quotes, too.
 			return;
 		}
 
-		update( "captuation", mes, apiCaptuation( content ) );
+		update( CAPTUATION, mes, apiCaptuation( content ) );
 		int wc = apiWordCount( content );
-		update( "wordcount", mes, wc );
-		update( "characters", mes, apiLength( content ) );
+		update( WORDCOUNT, mes, wc );
+		update( CHARACTERS, mes, apiLength( content ) );
 		if (wc > 0)
-			update( "wordlength", mes, apiWordLength( content ) );
-		update( "referred", mes, referred ? 1.0 : 0.0 );
+			update( WORDLENGTH, mes, apiWordLength( content ) );
+		update( REFERRED, mes, referred ? 1.0 : 0.0 );
 	}
 
 	public String[] helpCommandGet = {
@@ -210,25 +437,24 @@ public class Stats
 		String[] params = mods.util.getParamArray(mes);
 		if (params.length == 3) {
 			String nick = mods.nick.getBestPrimaryNick( params[1] );
-			String thing = params[2].toLowerCase();
-			List<EntityStat> ret = mods.odb.retrieve( EntityStat.class, "WHERE entityName = \"" + mods.odb.escapeString(nick) + "\" && statName = \"" + mods.odb.escapeString(thing) + "\"");
-			EntityStat obj;
-			if (ret.size() == 0) {
+			int stat = statIndex( params[2].toLowerCase() );
+			EntityStats obj = find( nick );
+			if (stat == -1 || !obj.has(stat)) {
 				irc.sendContextReply( mes, "Sorry, cannae find datta one." );
 			} else {
-				obj = ret.get(0);
-				irc.sendContextReply( mes, "They be 'avin a score of " + Math.round(obj.value * 100) / 100.0 + ".");
+				irc.sendContextReply( mes, "They be 'avin a score of " + Math.round(obj.get(stat) * 100) / 100.0 + ".");
 			}
 		} else if (params.length == 2) {
 			String nick = mods.nick.getBestPrimaryNick( params[1] );
-			List<EntityStat> ret = mods.odb.retrieve( EntityStat.class, "WHERE entityName = \"" + mods.odb.escapeString(nick) + "\"");
-			if (ret.size() == 0) {
+			EntityStats obj = find( nick );
+			StringBuilder results = new StringBuilder( "Stats:" );
+			for (int stat = 0; stat < STAT_NAMES.length; stat++) {
+				if (obj.has(stat))
+					results.append( " " + STAT_NAMES[stat] + " = " + Math.round(obj.get(stat) * 100) / 100.0 + ";" );
+			}
+			if (results.length() == "Stats:".length()) {
 				irc.sendContextReply( mes, "Sorry, cannae find datta one." );
 			} else {
-				StringBuilder results = new StringBuilder( "Stats:" );
-				for (EntityStat obj: ret) {
-					results.append( " " + obj.statName + " = " + Math.round(obj.value * 100) / 100.0 + ";" );
-				}
 				irc.sendContextReply( mes, results.toString() );
 			}
 		} else {
@@ -251,13 +477,18 @@ public class Stats
 
 		String channel = params[1];
 		String stat = params[2].toLowerCase();
+		int index = statIndex(stat);
 
 		List<String> channelMembers = irc.getUsersList(channel);
 		List<EntityStat> stats = new ArrayList<EntityStat>();
-		for (int i = 0; i < channelMembers.size(); i++) {
-			List<EntityStat> datas = mods.odb.retrieve(EntityStat.class, "WHERE entityName = \"" + mods.odb.escapeString(channelMembers.get(i)) + "\" && statName = \"" + mods.odb.escapeString(stat) + "\"");
-			if (datas.size() == 0) continue;
-			stats.add(datas.get(0));
+		for (int i = 0; index != -1 && i < channelMembers.size(); i++) {
+			EntityStats member = find(channelMembers.get(i));
+			if (!member.has(index)) continue;
+			EntityStat data = new EntityStat();
+			data.statName = stat;
+			data.entityName = member.name;
+			data.value = member.get(index);
+			stats.add(data);
 		}
 
 		if (stats.size() == 0) {
@@ -307,10 +538,10 @@ public class Stats
 		int score = 0;
 
 		// remove smilies and trailing whitespace.
-		str = str.replaceAll("(?:^|\\s+)[:pP)/;\\\\o()^.� -]{2,4}(\\s+|$)", "$1");
+		str = SMILIES.matcher(str).replaceAll("$1");
 
 		// remove URLs
-		str = str.replaceAll("[a-z0-9]+:/\\S+", "");
+		str = URLS.matcher(str).replaceAll("");
 
 		// Nothing left?
 		if (str.length() == 0)
@@ -318,14 +549,14 @@ public class Stats
 
 		// No thingie on the end? PENALTY.
 		// Must end with ., !, ? with or without optional terminating ) or ".
-		if (!Pattern.compile("[\\.\\?\\!][\\)\"]?$").matcher(str).find())
+		if (!TERMINATED.matcher(str).find())
 			score += 1;
 
 		// Now remove quoted stuff; it'll only give extra points where not needed.
-		str = str.replaceAll("\".*?\"", "");
+		str = QUOTED.matcher(str).replaceAll("");
 
 		// Small letter at start of new sentance/line? PENALTY.
-		Matcher ma = Pattern.compile("(?:^|(?<!\\.)\\.\\s+)\\p{Ll}").matcher(str);
+		Matcher ma = SMALL_START.matcher(str);
 		while (ma.find())
 			score += 1;
 
@@ -341,13 +572,15 @@ public class Stats
 		//  Leetspeak. Unfortunately, C0FF33 is still valid, as it's also hex.
 		//   Also, words with trailing numbers are fine, since some nicknames
 		//   etc. are like this.
-		ma = Pattern.compile("(?:\\s|^)(?:[iI]m|i'm|i'?d|i'll|i|b|2b|u(?:2|r|t)?|cs:s|css|ui|zeus|dota|codd|backus|wtb|tsr|xml|ooo|lan|compsoc|cryfield|rootes|westwood|warwick|hurst|heronbank|earlsdon|cov(?:entry)?|leam(?:ington)?|claycroft|lakeside|zeeman|dcs|ramphal|(?!OOo)\\w*(.)\\1\\1\\w*|(?i:s?hes|they(?:ve|re|ll)|there(?:s|re|ll)|(?:has|was|sha|have|is|wo|ca)nt|(?:could|would|should)(?:ve|nt)|k?thz|pl[xz]|zomg|\\w+[xz]or|dee|tonite|sidewalk|captuation|moar|color|cud|yer|noes)|(?=[A-Z]*[a-z][A-Za-z]*\\b)(?i:bbq|l(?:ol)+|(?:rof)lmao|rofl|i?irc|afaik|hth|imh?o|fy|https?|ft[lwsp]|l4d|tf2)|[a-z]+[A-Z][a-zA-Z]*|(?!(?:[il]1[08]n))(?:\\w*[g-zG-Z]\\w*[0-9]\\w*[a-zA-Z]|\\w*[0-9]\\w*[g-zG-Z]\\w*[a-zA-Z])|american|british|english|european|gud|gra(?:m?me|ma)r)\\b").matcher(str);
+		ma = NON_WORDS.matcher(str);
 		while (ma.find())
 			score += 1;
 
 		return score;
 	}
 
+	static final Pattern NON_WORDS = Pattern.compile("(?:\\s|^)(?:[iI]m|i'm|i'?d|i'll|i|b|2b|u(?:2|r|t)?|cs:s|css|ui|zeus|dota|codd|backus|wtb|tsr|xml|ooo|lan|compsoc|cryfield|rootes|westwood|warwick|hurst|heronbank|earlsdon|cov(?:entry)?|leam(?:ington)?|claycroft|lakeside|zeeman|dcs|ramphal|(?!OOo)\\w*(.)\\1\\1\\w*|(?i:s?hes|they(?:ve|re|ll)|there(?:s|re|ll)|(?:has|was|sha|have|is|wo|ca)nt|(?:could|would|should)(?:ve|nt)|k?thz|pl[xz]|zomg|\\w+[xz]or|dee|tonite|sidewalk|captuation|moar|color|cud|yer|noes)|(?=[A-Z]*[a-z][A-Za-z]*\\b)(?i:bbq|l(?:ol)+|(?:rof)lmao|rofl|i?irc|afaik|hth|imh?o|fy|https?|ft[lwsp]|l4d|tf2)|[a-z]+[A-Z][a-zA-Z]*|(?!(?:[il]1[08]n))(?:\\w*[g-zG-Z]\\w*[0-9]\\w*[a-zA-Z]|\\w*[0-9]\\w*[g-zG-Z]\\w*[a-zA-Z])|american|british|english|european|gud|gra(?:m?me|ma)r)\\b");
+
 	// http://schmidt.devlib.org/java/word-count.html#source
 	public int apiWordCount(String str)
 	{
@@ -367,7 +600,7 @@ public class Stats
 
 	public int apiLength(String str)
 	{
-		return str.replaceAll("\\s+", "").length();
+		return WHITESPACE.matcher(str).replaceAll("").length();
 	}
 
 	public double apiWordLength(String str)
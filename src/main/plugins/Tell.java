@@ -80,6 +80,10 @@ public class Tell
 		this.mods = mods;
 		this.irc = irc;
 		this.tellCache = new HashMap<String,Long>();
+
+		// Checked whenever anyone speaks; usually there's nothing there.
+		mods.odb.cacheClass(TellObject.class, 1000, 10 * 60 * 1000, "target");
+		mods.odb.cacheClass(TellDSNObject.class, 1000, 10 * 60 * 1000, "target");
 	}
 
 	public String[] helpTopics = { "Using", "Security", "Cache" };
@@ -455,19 +459,13 @@ public class Tell
 
 		if (rootNick != null && !rootNick.equals(testNick))
 		{
-			tellResults = mods.odb.retrieve(TellObject.class,
-					"WHERE target = '" + mods.odb.escapeString(testNick) +
-					"' OR target = '" + mods.odb.escapeString(rootNick) + "'");
-			dsnResults  = mods.odb.retrieve(TellDSNObject.class,
-					"WHERE target = '" + mods.odb.escapeString(testNick) +
-					"' OR target = '" + mods.odb.escapeString(rootNick) + "'");
+			tellResults = mods.odb.retrieve(TellObject.class, "WHERE target = ? OR target = ?", testNick, rootNick);
+			dsnResults  = mods.odb.retrieve(TellDSNObject.class, "WHERE target = ? OR target = ?", testNick, rootNick);
 		}
 		else
 		{
-			tellResults = mods.odb.retrieve(TellObject.class,
-					"WHERE target = '" + mods.odb.escapeString(testNick) + "'");
-			dsnResults  = mods.odb.retrieve(TellDSNObject.class,
-					"WHERE target = '" + mods.odb.escapeString(testNick) + "'");
+			tellResults = mods.odb.retrieve(TellObject.class, "WHERE target = ?", testNick);
+			dsnResults  = mods.odb.retrieve(TellDSNObject.class, "WHERE target = ?", testNick);
 		}
 
 		if (tellResults.size() == 0 && dsnResults.size() == 0)
@@ -9,6 +9,7 @@ import java.util.regex.Pattern;
 
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.IRCInterface;
+import uk.co.uwcs.choob.support.IntervalJournal;
 import uk.co.uwcs.choob.support.events.IRCEvent;
 import uk.co.uwcs.choob.support.events.Message;
 
@@ -52,15 +53,21 @@ public class TimedEvents
 
 		lastDelivery = new HashMap<String,TimedEvent>();
 
-		// If we were reloaded, don't want old intervals hanging around.
-		mods.interval.reset();
-
-		// Reload all old queued objects...
+		// Events are kept by the interval module now, across reloads and
+		// restarts. Move over any still in the database from before.
 		final long time = System.currentTimeMillis();
 		final List<TimedEvent> events = mods.odb.retrieve(TimedEvent.class, "WHERE 1");
 		for(final TimedEvent event: events)
 		{
-			mods.interval.callBack( event, event.executeAt - time, -1 );
+			// Only forget it here once it's safely kept there. If it can't be,
+			// the row stays until it's delivered; using its ID for the interval
+			// stops each reload adding another.
+			final long delay = event.executeAt - time;
+			final String encoded = encodeEvent(event);
+			if (encoded.length() <= IntervalJournal.MAX_PARAMETER && mods.interval.callBackDurable( encoded, delay, event.id ))
+				mods.odb.delete(event);
+			else
+				mods.interval.callBack( event, delay, event.id );
 		}
 	}
 
@@ -130,8 +137,7 @@ public class TimedEvents
 			return;
 		}
 
-		mods.odb.save(timedEvent);
-		mods.interval.callBack( timedEvent, period * 1000, -1 );
+		mods.interval.callBackDurable( encodeEvent(timedEvent), period * 1000, -1 );
 
 		irc.sendContextReply(mes, "OK, will do at " + new Date(timedEvent.executeAt) + ".");
 	}
@@ -310,8 +316,7 @@ public class TimedEvents
 
 		final long callbackTime = cal.getTimeInMillis() - System.currentTimeMillis();
 
-		mods.odb.save(timedEvent);
-		mods.interval.callBack( timedEvent, callbackTime, -1 );
+		mods.interval.callBackDurable( encodeEvent(timedEvent), callbackTime, -1 );
 
 		irc.sendContextReply(mes, "OK, will do at " + cal.getTime() + ".");
 	}
@@ -351,40 +356,46 @@ public class TimedEvents
 
 	public synchronized void interval( final Object parameter )
 	{
-		if (parameter != null && parameter instanceof TimedEvent) {
+		if (parameter instanceof String) {
 			// It's a message to be redelivered
-
+			deliver(decodeEvent((String) parameter));
+		}
+		else if (parameter instanceof TimedEvent) {
+			// One still in the database from before; done with once delivered.
 			final TimedEvent timedEvent = (TimedEvent) parameter;
+			deliver(timedEvent);
+			mods.odb.delete(timedEvent);
+		}
+	}
 
-			final Message mes = mods.history.getMessage(timedEvent.mesID);
-			if (mes == null)
-			{
-				System.err.println("Event number " + timedEvent.mesID + " appears to have gone!");
-				return;
-			}
-
-			final String command = irc.getTrigger() + timedEvent.command;
+	private void deliver( final TimedEvent timedEvent )
+	{
+		final Message mes = mods.history.getMessage(timedEvent.mesID);
+		if (mes == null)
+		{
+			System.err.println("Event number " + timedEvent.mesID + " appears to have gone!");
+			return;
+		}
 
-			Message newMes = (Message)mes.cloneEvent(command);
-			// Resynth...
-			for(int i=0; i<timedEvent.synthLevel; i++)
-				newMes = (Message)newMes.cloneEvent(command);
+		final String command = irc.getTrigger() + timedEvent.command;
 
-			// Put back flags.
-			final Map<String,String> mesFlags = ((IRCEvent)newMes).getFlags();
-			decodeFlags(mesFlags, timedEvent.flags);
+		Message newMes = (Message)mes.cloneEvent(command);
+		// Resynth...
+		for(int i=0; i<timedEvent.synthLevel; i++)
+			newMes = (Message)newMes.cloneEvent(command);
 
-			// Also set the don't-do-flood-checking flag.
-			mesFlags.put("flood.skip", "");
+		// Put back flags.
+		final Map<String,String> mesFlags = ((IRCEvent)newMes).getFlags();
+		decodeFlags(mesFlags, timedEvent.flags);
 
-			lastDelivery.put(mes.getContext(), timedEvent);
+		// Also set the don't-do-flood-checking flag.
+		mesFlags.put("flood.skip", "");
 
-			// Get the plugin/command.
+		lastDelivery.put(mes.getContext(), timedEvent);
 
-			mods.synthetic.doSyntheticMessage( newMes );
+		// Get the plugin/command.
 
-			mods.odb.delete(timedEvent);
-		}
+		mods.synthetic.doSyntheticMessage( newMes );
 	}
 
 	public String[] helpCommandLast = {
@@ -405,6 +416,27 @@ public class TimedEvents
 			irc.sendContextReply(mes, "Nobody queued nuffin', gov'ner.");
 	}
 
+	// Events are kept as "<mesID> <synthLevel> <executeAt> <flags length> <flags><command>".
+	String encodeEvent(final TimedEvent event)
+	{
+		final String flags = event.flags == null ? "" : event.flags;
+		return event.mesID + " " + event.synthLevel + " " + event.executeAt + " " + flags.length() + " " + flags + event.command;
+	}
+
+	TimedEvent decodeEvent(final String encoded)
+	{
+		final String[] parts = encoded.split(" ", 5);
+		final int flagsLength = Integer.parseInt(parts[3]);
+
+		final TimedEvent event = new TimedEvent();
+		event.mesID = Integer.parseInt(parts[0]);
+		event.synthLevel = Integer.parseInt(parts[1]);
+		event.executeAt = Long.parseLong(parts[2]);
+		event.flags = parts[4].substring(0, flagsLength);
+		event.command = parts[4].substring(flagsLength);
+		return event;
+	}
+
 	String encodeFlags(final Map<String,String> flags)
 	{
 		String rv = "";
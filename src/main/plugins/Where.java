@@ -7,9 +7,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -17,23 +15,19 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.jibble.pircbot.ReplyConstants;
-
+import uk.co.uwcs.choob.modules.IrcStateModule;
 import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.IRCInterface;
 import uk.co.uwcs.choob.support.events.ChannelMessage;
 import uk.co.uwcs.choob.support.events.ContextEvent;
 import uk.co.uwcs.choob.support.events.Message;
-import uk.co.uwcs.choob.support.events.ServerResponse;
 
 public class Where
 {
@@ -127,40 +121,14 @@ public class Where
 		Map<String, Set<InetAddress>> users;
 	}
 
-	// (Target) channel -> Outstanding queries in it.
-	Map<String, Queue<Details>> outst = makeMap();
-
-	private static Map<String, Queue<Details>> makeMap()
-	{
-		return Collections.synchronizedMap(new HashMap<String, Queue<Details>>());
-	}
-
-	public synchronized void commandReset(final Message mes)
-	{
-		int failed = 0;
-		for (final Entry<String, Queue<Details>> ent : outst.entrySet())
-			for (final Details qu : ent.getValue())
-			{
-				qu.callback.fail();
-				++failed;
-			}
-		outst = makeMap();
-		irc.sendContextReply(mes, "Okay, purged " + failed + " item" + (failed == 1 ? "" : "s") + ".");
-	}
-
 	public Where(final Modules mods, final IRCInterface irc) throws IOException
 	{
 		this.irc = irc;
 		this.mods = mods;
-		final String whatRegex = "^BadgerBOT ([^ ]+) (.*)$";
 
 		logFile = new PrintStream(new FileOutputStream(new File(System.getProperty("user.home")+"/where.log"), true));
-		minilog("whatRegex: " + whatRegex);
-		whatExtract = Pattern.compile(whatRegex);
 	}
 
-	final Pattern whatExtract;
-
 	<T>	boolean matches(final Pattern p, final T o)
 	{
 		return p.matcher(o.toString()).find();
@@ -179,118 +147,43 @@ public class Where
 		return temp;
 	}
 
-	private static String encode(final String s)
+	// Adds a user's addresses to the details, resolving local users to where they really are.
+	private void addUser(final Details d, final IrcStateModule.UserInfo user)
 	{
-		try
-		{
-			return URLEncoder.encode(s, "UTF-8");
-		}
-		catch (final UnsupportedEncodingException e)
-		{
-			return "FAIL";
-		}
-	}
-
-	// "User", hostname, server, nick, ...
-	final Pattern splitUp = Pattern.compile("^~?([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+) .*");
-	public synchronized void onServerResponse(final ServerResponse resp)
-	{
-		minilog("onServerResponse: enter: " + resp.getCode());
-		// Ensure resp is related to WHO, and remember if we're at the end. I'm sure there's a sane way to write this.
-		final boolean atend = resp.getCode() == ReplyConstants.RPL_ENDOFWHO;
-		if (!(atend || resp.getCode() == ReplyConstants.RPL_WHOREPLY))
+		final String nick = user.getNick();
+		final String host = user.getAddress() != null ? user.getAddress() : user.getHost();
+		if (host == null)
 			return;
 
-		Matcher ma;
-		if (!(ma = whatExtract.matcher(resp.getResponse())).matches())
+		try
 		{
-			minilog("Lol whut: Couldn't parse server's reply: " + encode(resp.getResponse()));
-			return; // Lol whut.
-		}
+			final InetAddress toStore = getByName(host);
 
-		final String aboutWhat = ma.group(1);
-		final String tail = ma.group(2);
+			// Work out where we're going to add the nick.
+			Set<InetAddress> addto;
 
-		Queue<Details> detst = outst.get(aboutWhat);
-		minilog(aboutWhat + " -> " + detst);
+			if ((addto = d.users.get(nick)) == null)
+				d.users.put(nick, addto = new HashSet<InetAddress>());
 
-		if (detst == null || detst.isEmpty())
-		{
-			// The server has sent us a "WHO" line for a channel we don't care about.
-			// Ignoring when it hates us, and we're hitting a RAAAAAAACE CONDITIONS..
-			// it does this when we asked for a WHO nick. Assume that this is the only one we're going to get.
-			minilog("Looks like a line for an individual: " + resp.getResponse());
-			if (!(ma = splitUp.matcher(tail)).matches())
+			//ignore hosts we can't/don't want to check.
+			if (shouldIgnore(toStore))
 			{
-				minilog("splitUp 1 didn't match >>" + encode(tail) + "<<");
+				minilog("Ignore a host and don't store it.");
 				return;
 			}
 
-			if ((detst = outst.get(ma.group(4))) == null) // Read the nick.
-			{
-				minilog("...which we wern't expecting. BAIL.");
-				return; // If we wern't looking for this either, just bail.
-			}
-		}
-		else
-			minilog("Looks like a line for a channel: " + encode(resp.getResponse()));
+			final String login = user.getLogin() == null ? "" : user.getLogin().replaceFirst("^~", "");
+			Set<InetAddress> newones;
 
-		final Details d = detst.peek();
-		if (d == null)
-		{
-			minilog("Wtf? There are no outstanding incomming messages for this item (" + encode(aboutWhat) + ")");
-			return; // Lol whut.
+			if (!isLocal(toStore) || (newones = d.localmap.get(login)) == null)
+				addto.add(toStore);
+			else
+				addto.addAll(newones);
 		}
-
-		if (atend)
+		catch (final UnknownHostException e)
 		{
-			minilog("..and it was the end, so notify them.");
-			d.callback.complete(d);
-			detst.remove();
-			minilog("done notifying");
-		}
-		else
-		{
-			minilog("..which is not at the end, continuing: ");
-			if (!(ma = splitUp.matcher(tail)).matches())
-			{
-				minilog("splitUp 2 didn't match >>" + encode(tail) + "<<");
-				return; // Lol whut.
-			}
-
-			try
-			{
-				// D.users is Nick -> Ip.
-				// If the user is local, attempt to hax their real ip.
-				final InetAddress toStore = getByName(ma.group(2));
-				final String nick = ma.group(4);
-
-				// Work out where we're going to add the nick.
-				Set<InetAddress> addto;
-
-				if ((addto = d.users.get(nick)) == null)
-					d.users.put(nick, addto = new HashSet<InetAddress>());
-
-				//ignore hosts we can't/don't want to check.
-				if (shouldIgnore(toStore))
-				{
-					minilog("Ignore a host and don't store it.");
-					return;
-				}
-
-				Set<InetAddress> newones;
-
-				if (!isLocal(toStore) || (newones = d.localmap.get(ma.group(1))) == null)
-					addto.add(toStore);
-				else
-					addto.addAll(newones);
-
-			}
-			catch (final UnknownHostException e)
-			{
-				minilog("Warning: Couldn't resolve real ip for " + ma.group(4) + ", not a problem: " + ma.group(2));
-				// Ignore, abort the put.
-			}
+			minilog("Warning: Couldn't resolve real ip for " + nick + ", not a problem: " + host);
+			// Ignore, abort the put.
 		}
 	}
 
@@ -393,52 +286,19 @@ public class Where
 		goDo(what, c);
 	}
 
-	class IntervalArgs
-	{
-		final String what;
-		final Details det;
-
-		public IntervalArgs(final String what, final Details det)
-		{
-			this.what = what;
-			this.det = det;
-		}
-
-	}
-
-	public synchronized void interval(final Object o)
+	void goDo( final String what, final Callback c )
 	{
-		final IntervalArgs ia = (IntervalArgs) o;
-		final Queue<Details> queue = outst.get(ia.what);
-		if (queue == null)
+		final List<IrcStateModule.UserInfo> who = mods.ircstate.who(what);
+		if (who == null)
 		{
-			minilog("Attempting to clean-up a non-event, whut.");
+			c.fail();
 			return;
 		}
 
-		// If it's still present, remove and fail it.
-		if (queue.remove(ia.det))
-		{
-			minilog("Interval failing " + ia.det);
-			ia.det.callback.fail();
-		}
-		else
-			minilog("Interval found only success.");
-	}
-
-	void goDo( final String what, final Callback c )
-	{
-		Queue<Details> d = outst.get(what);
-		if (d == null)
-			d = new LinkedList<Details>();
-
 		final Details det = new Details(c);
-		d.add(det);
-
-		outst.put(what, d);
-		mods.interval.callBack(new IntervalArgs(what, det), 10000);
-
-		irc.sendRawLine("WHO " + what);
+		for (final IrcStateModule.UserInfo user : who)
+			addUser(det, user);
+		c.complete(det);
 	}
 
 	public void commandDebug(final Message mes)
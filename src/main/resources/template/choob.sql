@@ -357,6 +357,7 @@ INSERT INTO `UserNodePermissions` VALUES (57, 'uk.co.uwcs.choob.support.ChoobPer
 INSERT INTO `UserNodePermissions` VALUES (63, 'java.security.AllPermission', '', '');
 INSERT INTO `UserNodePermissions` VALUES (74, 'java.security.AllPermission', '', '');
 INSERT INTO `UserNodePermissions` VALUES (75, 'java.security.AllPermission', '', '');
+INSERT INTO `UserNodePermissions` VALUES (77, 'uk.co.uwcs.choob.support.ChoobPermission', 'plugin.threadlimit', '');
 
 -- --------------------------------------------------------
 
@@ -388,6 +389,7 @@ INSERT INTO `UserNodes` VALUES (27, 'bucko', 0);
 INSERT INTO `UserNodes` VALUES (28, 'bucko', 1);
 INSERT INTO `UserNodes` VALUES (55, 'bucko', 2);
 INSERT INTO `UserNodes` VALUES (60, 'calc', 2);
+INSERT INTO `UserNodes` VALUES (77, 'Concurrency', 2);
 INSERT INTO `UserNodes` VALUES (44, 'Crazy_Piglet', 0);
 INSERT INTO `UserNodes` VALUES (45, 'Crazy_Piglet', 1);
 INSERT INTO `UserNodes` VALUES (42, 'db_rat', 0);
@@ -110,9 +110,14 @@ INSERT INTO `UserNodes` VALUES (4, 'Security', 2);
 INSERT INTO `UserNodes` VALUES (5, 'Alias', 2);
 INSERT INTO `UserNodes` VALUES (6, 'Help', 2);
 INSERT INTO `UserNodes` VALUES (7, 'Options', 2);
+INSERT INTO `UserNodes` VALUES (8, 'Concurrency', 2);
 
 INSERT INTO `GroupMembers` VALUES (1, 2);
 INSERT INTO `GroupMembers` VALUES (1, 3);
 INSERT INTO `GroupMembers` VALUES (1, 4);
 INSERT INTO `UserNodePermissions` VALUES (1, 'java.security.AllPermission', '', '');
 
+-- Concurrency tells the thread manager about the limits it's stored.
+
+INSERT INTO `UserNodePermissions` VALUES (8, 'uk.co.uwcs.choob.support.ChoobPermission', 'plugin.threadlimit', '');
+
@@ -0,0 +1,48 @@
+package uk.co.uwcs.choob;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.uwcs.choob.support.ChoobException;
+
+public class ConcurrencyTest extends AbstractPluginTest {
+
+	@Before
+	public void grant() throws SQLException {
+		// The same grant the templates give it.
+		db.table("GroupMembers", "GroupID, MemberID");
+		db.table("UserNodePermissions", "NodeID, Type, Permission, Action");
+		db.sql("insert into UserNodes values (8, 'Concurrency', 2)");
+		db.sql("insert into UserNodePermissions values (8, 'uk.co.uwcs.choob.support.ChoobPermission', 'plugin.threadlimit', '')");
+
+		db.table("_objectdb_plugins_concurrency_pluginconcurrencylimit", "id INTEGER PRIMARY KEY, pluginName, threadLimit");
+		db.sql("insert into _objectdb_plugins_concurrency_pluginconcurrencylimit values (1, 'Talk', 5)");
+	}
+
+	@Test
+	public void testStoredLimitsApplied() throws ChoobException {
+		assertNotNull(System.getSecurityManager());
+		final int before = b.getMods().plugin.getConcurrencyLimit("Http");
+
+		// Loads with the plugin's own permissions, and tells the thread manager.
+		b.addPlugin("Concurrency");
+		assertEquals(5, b.getMods().plugin.getConcurrencyLimit("Talk"));
+		assertEquals(5, b.getMods().plugin.getConcurrencyLimit("talk"));
+		assertEquals(before, b.getMods().plugin.getConcurrencyLimit("Http"));
+	}
+
+	@Test
+	public void testLoadsWithoutGrant() throws ChoobException, SQLException {
+		// As on installs from before the templates gave it one.
+		db.sql("delete from UserNodePermissions where NodeID = 8");
+		final int before = b.getMods().plugin.getConcurrencyLimit("Talk");
+
+		b.addPlugin("Concurrency");
+		assertEquals(before, b.getMods().plugin.getConcurrencyLimit("Talk"));
+	}
+}
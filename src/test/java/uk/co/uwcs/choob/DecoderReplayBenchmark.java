@@ -0,0 +1,162 @@
+package uk.co.uwcs.choob;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import uk.co.uwcs.choob.modules.Modules;
+import uk.co.uwcs.choob.support.ChoobNoSuchCallException;
+import uk.co.uwcs.choob.support.DbConnectionBroker;
+import uk.co.uwcs.choob.support.events.ChannelEvent;
+import uk.co.uwcs.choob.support.events.ChannelMessage;
+import uk.co.uwcs.choob.support.events.Event;
+import uk.co.uwcs.choob.support.events.Message;
+
+/**
+ * Replays a synthetic stream of channel traffic through the decoder with a
+ * large number of (trivial) plugins listening, and reports the throughput.
+ * It also checks that each channel's events reached the plugins in order.
+ *
+ * Not a unit test; run it by hand:
+ *   java -cp ... uk.co.uwcs.choob.DecoderReplayBenchmark [lines] [plugins]
+ */
+public final class DecoderReplayBenchmark {
+	private static final String[] CHANNELS = { "#compsoc", "#bots", "#random", "#games", "#code", "#help", "#music", "#films" };
+	private static final String[] NICKS = { "alice", "bob", "carol", "dave", "eve", "faythe", "grace", "heidi", "ivan", "judy" };
+
+	// How many lines may be waiting to be handled before we stop replaying.
+	private static final int IN_FLIGHT = 200;
+
+	/** Pretends to be a loaded plugin per name, each with an onMessage. */
+	private static final class ReplayPluginManager extends ChoobPluginManager {
+		private final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+		private final Pattern pattern = Pattern.compile("\\b(choob|java|[0-9]+)\\b", Pattern.CASE_INSENSITIVE);
+		private final ConcurrentMap<String, AtomicInteger> lastSeen = new ConcurrentHashMap<String, AtomicInteger>();
+		final AtomicLong handled = new AtomicLong();
+		final AtomicLong outOfOrder = new AtomicLong();
+
+		ReplayPluginManager(Modules mods, ChoobPluginManagerState state) {
+			super(mods, state);
+		}
+
+		@Override
+		protected Object createPlugin(String pluginName, URL fromLocation) {
+			names.add(pluginName);
+			return pluginName;
+		}
+
+		@Override
+		protected void destroyPlugin(String pluginName) {
+			names.remove(pluginName);
+		}
+
+		@Override
+		public ChoobTask commandTask(String plugin, String command, Message ev) {
+			return null;
+		}
+
+		@Override
+		public ChoobTask intervalTask(String pluginName, Object param) {
+			return null;
+		}
+
+		@Override
+		public List<ChoobTask> eventTasks(final Event ev) {
+			if (ev instanceof ChannelMessage) {
+				// Lines for one channel are numbered in the order they were spun.
+				final ChannelMessage mes = (ChannelMessage)ev;
+				final int seq = Integer.parseInt(mes.getMessage().substring(0, mes.getMessage().indexOf(' ')));
+				final AtomicInteger last = lastSeen.get(mes.getChannel());
+				if (last.getAndSet(seq) >= seq)
+					outOfOrder.incrementAndGet();
+			}
+
+			final List<ChoobTask> tasks = new ArrayList<ChoobTask>();
+			synchronized (names) {
+				for (final String name : names) {
+					tasks.add(new ChoobTask(name, "onMessage") {
+						@Override
+						public void run() {
+							if (ev instanceof Message)
+								pattern.matcher(((Message)ev).getMessage()).find();
+							handled.incrementAndGet();
+						}
+					});
+				}
+			}
+			return tasks;
+		}
+
+		@Override
+		public List<ChoobTask> filterTasks(Message ev) {
+			return new ArrayList<ChoobTask>();
+		}
+
+		@Override
+		public Object doAPI(String pluginName, String APIName, Object... params) throws ChoobNoSuchCallException {
+			throw new ChoobNoSuchCallException(pluginName, "API " + APIName);
+		}
+
+		@Override
+		public Object doGeneric(String pluginName, String prefix, String genericName, Object... params) throws ChoobNoSuchCallException {
+			throw new ChoobNoSuchCallException(pluginName, prefix + " " + genericName);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int lines = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		final int plugins = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+		new File(ChoobMain.DEFAULT_TEMP_LOCATION).mkdir();
+		final String tempFilePath = ChoobMain.DEFAULT_TEMP_LOCATION + "/bench" + System.nanoTime() + ".db";
+		new File(tempFilePath).deleteOnExit();
+
+		final DbConnectionBroker broker = new DbConnectionBroker("org.sqlite.JDBC",
+				"jdbc:sqlite:" + tempFilePath,
+				null, null, 0, 10, new PrintWriter(System.err), 60);
+		final BrokerUtil db = new BrokerUtil(broker);
+		db.table("UserNodes", "NodeID, NodeName, NodeClass");
+		db.table("History",  "LineID, Type, Nick, Hostmask, Channel, Text, Time, Random");
+
+		final MinimalBot b = new MinimalBot(broker);
+		try {
+			final ReplayPluginManager man = new ReplayPluginManager(b.getMods(), b.getPluginState());
+			for (int i = 0; i < plugins; i++)
+				man.loadPlugin("Replay" + i, null);
+
+			final int[] seq = new int[CHANNELS.length];
+			for (final String channel : CHANNELS)
+				man.lastSeen.put(channel, new AtomicInteger(-1));
+
+			final long start = System.nanoTime();
+			for (int i = 0; i < lines; i++) {
+				while (i - man.handled.get() / plugins > IN_FLIGHT)
+					Thread.yield();
+
+				final int c = i % CHANNELS.length;
+				final String nick = NICKS[(i * 7) % NICKS.length];
+				b.spinEvent(new ChannelMessage("onMessage", System.currentTimeMillis(), 0,
+						seq[c]++ + " anyone know why choob is complaining about java " + i,
+						nick, nick, "example.com", CHANNELS[c], CHANNELS[c]));
+			}
+			while (man.handled.get() < (long)lines * plugins)
+				Thread.sleep(1);
+			final long elapsed = System.nanoTime() - start;
+
+			System.out.println(lines + " lines, " + plugins + " plugins: "
+					+ (elapsed / 1000000) + "ms, "
+					+ (long)(lines / (elapsed / 1e9)) + " lines/s, "
+					+ man.outOfOrder.get() + " out of order");
+		} finally {
+			b.close();
+		}
+	}
+}
@@ -4,7 +4,6 @@ import static junit.framework.Assert.assertTrue;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -13,14 +12,16 @@ import uk.co.uwcs.choob.modules.Modules;
 import uk.co.uwcs.choob.support.ChoobException;
 import uk.co.uwcs.choob.support.DbConnectionBroker;
 import uk.co.uwcs.choob.support.IRCInterface;
-import uk.co.uwcs.choob.support.Interval;
+import uk.co.uwcs.choob.support.IntervalScheduler;
 import uk.co.uwcs.choob.support.events.ChannelMessage;
+import uk.co.uwcs.choob.support.events.Event;
 
 final class MinimalBot extends UnsupportedOperationBot implements Closeable {
 	private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(500);
 	private final Modules mods;
 	private final ChoobDecoderTaskData cdtd;
 	private final ChoobThreadManager ctm;
+	private final ChoobPluginManagerState state;
 	private final DbConnectionBroker broker;
 
 	MinimalBot(DbConnectionBroker broker) {
@@ -28,8 +29,8 @@ final class MinimalBot extends UnsupportedOperationBot implements Closeable {
 		Choob.setupSecurity();
 		ctm = new ChoobThreadManager();
 		final IRCInterface irc = new IRCInterface(this);
-		ChoobPluginManagerState state = new ChoobPluginManagerState(irc);
-		mods = new Modules(broker, new ArrayList<Interval>(), this, irc, state, ctm);
+		state = new ChoobPluginManagerState(irc);
+		mods = new Modules(broker, new IntervalScheduler(), this, irc, state, ctm);
 		ctm.setMods(mods);
 		irc.grabMods();
 		cdtd = new ChoobDecoderTaskData(mods, irc, ctm);
@@ -77,11 +78,20 @@ final class MinimalBot extends UnsupportedOperationBot implements Closeable {
 	 				0, message, "user", "bleh", "whee", "#chan", "#chan"), false);
 	}
 
+	public void spinEvent(Event ev) {
+		Choob.spinThread(ctm, mods, cdtd, ev, false);
+	}
+
+	public ChoobPluginManagerState getPluginState() {
+		return state;
+	}
+
 	@Override
 	public void close() throws IOException {
 		ctm.shutdown();
 		try {
 			assertTrue(ctm.awaitTermination(5, TimeUnit.SECONDS));
+			mods.history.close();
 			broker.destroy();
 		} catch (Exception e) {
 			throw new IOException(e);
@@ -0,0 +1,116 @@
+package uk.co.uwcs.choob.modules;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpModuleTest {
+
+	private HttpServer server;
+	private String base;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final HttpModule http = new HttpModule(null);
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fast", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				reply(exchange, "fast");
+			}
+		});
+		server.createContext("/slow", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				reply(exchange, "slow");
+			}
+		});
+		server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		server.stop(0);
+	}
+
+	private static void reply(HttpExchange exchange, String body) throws IOException {
+		final byte[] bytes = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		final OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	private HttpModule.HostStats stats() {
+		return http.getHostStats().get("127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		assertEquals("fast", http.performGet(base + "/fast"));
+
+		final BlockingQueue<String> results = new ArrayBlockingQueue<String>(1);
+		http.performGetAsync(base + "/fast", new HttpModule.Callback() {
+			@Override
+			public void completed(String response) {
+				results.add(response);
+			}
+		});
+		assertEquals("fast", results.poll(10, TimeUnit.SECONDS));
+		assertEquals(2, stats().getRequests());
+		assertEquals(0, stats().getFailures());
+	}
+
+	@Test
+	public void testSlowRequestsWait() throws Exception {
+		final List<Future<String>> slow = new ArrayList<Future<String>>();
+		for (int i = 0; i < HttpModule.MAX_PER_HOST + 1; i++)
+			slow.add(http.performGetAsync(base + "/slow", null));
+
+		// Another host isn't held up.
+		assertEquals("fast", http.performGet("http://localhost:" + server.getAddress().getPort() + "/fast"));
+
+		HttpModule.HostStats stats = stats();
+		for (int i = 0; i < 100 && stats.getInFlight() < HttpModule.MAX_PER_HOST; i++) {
+			Thread.sleep(50);
+			stats = stats();
+		}
+		assertEquals(HttpModule.MAX_PER_HOST, stats.getInFlight());
+		assertEquals(1, stats.getQueued());
+		assertFalse(slow.get(0).isDone());
+
+		release.countDown();
+		for (final Future<String> result : slow)
+			assertEquals("slow", result.get(10, TimeUnit.SECONDS));
+		assertEquals(0, stats().getInFlight());
+		assertEquals(0, stats().getQueued());
+		assertEquals(HttpModule.MAX_PER_HOST + 1, stats().getRequests());
+	}
+}
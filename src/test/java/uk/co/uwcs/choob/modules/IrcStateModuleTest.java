@@ -0,0 +1,140 @@
+package uk.co.uwcs.choob.modules;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Permission;
+import java.security.Policy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.uwcs.choob.Bot;
+import uk.co.uwcs.choob.support.events.ChannelJoin;
+import uk.co.uwcs.choob.support.events.ChannelPart;
+import uk.co.uwcs.choob.support.events.NickChange;
+import uk.co.uwcs.choob.support.events.ServerResponse;
+
+public class IrcStateModuleTest {
+
+	private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	private IrcStateModule state;
+
+	@Before
+	public void setUp() {
+		// Events can only be made, and tracked, by trusted code; the tests are.
+		Policy.setPolicy(new Policy() {
+			@Override
+			public boolean implies(ProtectionDomain domain, Permission permission) {
+				return true;
+			}
+		});
+
+		final Bot bot = (Bot)Proxy.newProxyInstance(Bot.class.getClassLoader(), new Class<?>[] { Bot.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getNick"))
+					return "Choob";
+				if (method.getName().equals("sendRawLineViaQueue")) {
+					sent.add((String)args[0]);
+					return null;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		state = new IrcStateModule(bot);
+	}
+
+	private void reply(int code, String response) {
+		state.track(new ServerResponse("onServerResponse", 0, 0, code, response));
+	}
+
+	@Test
+	public void testParams() {
+		assertEquals(Arrays.asList("Choob", "#chan", "~user", "host", "server", "nick", "H", "0 Real Name"),
+				IrcStateModule.params("Choob #chan ~user host server nick H :0 Real Name"));
+		assertEquals(Arrays.asList("Choob", "nick"), IrcStateModule.params("Choob  nick"));
+	}
+
+	@Test
+	public void testChannelSync() {
+		state.track(new ChannelJoin("onJoin", 0, 0, "#Chan", "Choob", "choob", "bot.host"));
+		reply(353, "Choob = #chan :@Choob +fred bob");
+		assertFalse(state.isSynced("#chan"));
+		reply(366, "Choob #chan :End of /NAMES list.");
+		assertEquals(Arrays.asList("WHO #chan"), sent);
+
+		reply(352, "Choob #chan ~fred fred.host server fred G* :0 Fred");
+		reply(352, "Choob #chan bob bob.host server bob H :0 Bob");
+		reply(315, "Choob #chan :End of /WHO list.");
+		assertTrue(state.isSynced("#CHAN"));
+
+		final IrcStateModule.UserInfo fred = state.getUser("FRED");
+		assertEquals("fred.host", fred.getHost());
+		assertTrue(fred.isAway());
+		assertTrue(fred.isOperator());
+		assertEquals("Fred", fred.getRealName());
+
+		// Answered from memory.
+		assertEquals(3, state.who("#chan").size());
+		assertEquals(1, sent.size());
+
+		state.track(new NickChange("onNickChange", 0, 0, "bob", "bob", "bob.host", "robert"));
+		state.track(new ChannelPart("onPart", 0, 0, "#chan", "fred", "~fred", "fred.host"));
+		assertNull(state.getUser("bob"));
+		assertEquals(2, state.getChannelUsers("#chan").size());
+
+		state.track(new ChannelPart("onPart", 0, 0, "#chan", "Choob", "choob", "bot.host"));
+		assertFalse(state.isSynced("#chan"));
+		assertEquals(0, state.getChannelUsers("#chan").size());
+	}
+
+	@Test
+	public void testWhoisShared() throws Exception {
+		final IrcStateModule.UserInfo[] results = new IrcStateModule.UserInfo[2];
+		final Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					results[n] = state.whois("Fred");
+				}
+			};
+			threads[i].start();
+		}
+
+		while (sent.isEmpty())
+			Thread.sleep(10);
+		Thread.sleep(100);
+		assertEquals(Arrays.asList("WHOIS Fred"), sent);
+
+		reply(311, "Choob Fred ~fred fred.host * :Fred");
+		reply(307, "Choob Fred :has identified for this nick");
+		reply(330, "Choob Fred fredacct :is logged in as");
+		reply(318, "Choob Fred :End of /WHOIS list.");
+		for (final Thread thread : threads)
+			thread.join();
+
+		for (final IrcStateModule.UserInfo result : results) {
+			assertTrue(result.isRegistered());
+			assertEquals("fredacct", result.getAccount());
+		}
+
+		// Fresh, so not asked again.
+		assertEquals("fredacct", state.whois("fred").getAccount());
+		assertEquals(1, sent.size());
+		assertEquals(3, state.getLookups());
+		assertEquals(1, state.getRequestsSent());
+	}
+}
@@ -0,0 +1,145 @@
+package uk.co.uwcs.choob.plugins;
+
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+import uk.co.uwcs.choob.support.ChoobFakeProtectionDomain;
+
+/**
+ * Times calls into a small JavaScript plugin, the way JavaScriptPluginManager
+ * used to make them (the default optimisation level, a scope of its
+ * own, a new Context and AccessControlContext per call) against the way it
+ * makes them now (compiled at the highest level into a scope over the shared,
+ * sealed one, with the thread's Context and a cached AccessControlContext).
+ *
+ * The plugin chews through a small RSS document much as Feeds.js does.
+ *
+ * Not a unit test; run it by hand:
+ *   java -cp ... uk.co.uwcs.choob.plugins.JavaScriptCallBenchmark [calls]
+ */
+public final class JavaScriptCallBenchmark {
+	private static final String PLUGIN =
+		"function Bench(mods, irc) {}\n" +
+		"Bench.prototype.commandParse = function(mes, mods, irc) {\n" +
+		"	var items = [];\n" +
+		"	var re = /<(\\/?)([a-z]+)[^>]*>([^<]*)/g;\n" +
+		"	var match, item = null;\n" +
+		"	while ((match = re.exec(mes))) {\n" +
+		"		if (match[2] == 'item') {\n" +
+		"			if (match[1]) items.push(item); else item = {};\n" +
+		"		} else if (item && !match[1]) {\n" +
+		"			item[match[2]] = match[3].replace(/^\\s+/, '').replace(/\\s+$/, '');\n" +
+		"		}\n" +
+		"	}\n" +
+		"	return items.length;\n" +
+		"};\n";
+
+	private interface Caller {
+		Object call(Object[] params) throws Exception;
+	}
+
+	private static String feed() {
+		final StringBuilder rv = new StringBuilder("<rss><channel><title>Bench</title>");
+		for (int i = 0; i < 20; i++)
+			rv.append("<item><title> Item ").append(i).append(" </title><link>http://example.com/").append(i).append("</link></item>");
+		return rv.append("</channel></rss>").toString();
+	}
+
+	private static AccessControlContext accessContext() {
+		return new AccessControlContext(new ProtectionDomain[] {
+				new ChoobFakeProtectionDomain(new ArrayList<String>()),
+				new ProtectionDomain(null, null)
+			});
+	}
+
+	/** Loads and calls the plugin as the manager did before. */
+	private static Caller oldPath() {
+		final Scriptable scope;
+		final Scriptable inst;
+		final Context cx = Context.enter();
+		try {
+			scope = cx.initStandardObjects();
+			cx.evaluateString(scope, PLUGIN, "Bench", 1, null);
+			inst = cx.newObject(scope, "Bench", new Object[] { null, null });
+		} finally {
+			Context.exit();
+		}
+		final Function function = (Function)inst.get("commandParse", inst);
+
+		return new Caller() {
+			@Override
+			public Object call(final Object[] params) throws Exception {
+				final AccessControlContext accessContext = accessContext();
+				return AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+					@Override public Object run() {
+						final Context cx = Context.enter();
+						try {
+							return function.call(cx, scope, inst, params);
+						} finally {
+							Context.exit();
+						}
+					}
+				}, accessContext);
+			}
+		};
+	}
+
+	/** Loads and calls the plugin as the manager does now. */
+	private static Caller newPath(final Scriptable sharedScope) {
+		final Context cx = JavaScriptPluginManager.enterContext();
+		final Scriptable scope = JavaScriptPluginManager.createPluginScope(cx, sharedScope);
+		JavaScriptPluginManager.compile(cx, PLUGIN, "Bench").exec(cx, scope);
+		final Scriptable inst = cx.newObject(scope, "Bench", new Object[] { null, null });
+		final Function function = (Function)inst.get("commandParse", inst);
+		final AccessControlContext accessContext = accessContext();
+
+		return new Caller() {
+			@Override
+			public Object call(final Object[] params) throws Exception {
+				return AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+					@Override public Object run() {
+						final Context cx = JavaScriptPluginManager.enterContext();
+						return function.call(cx, scope, inst, params);
+					}
+				}, accessContext);
+			}
+		};
+	}
+
+	private static long time(final Caller caller, final Object[] params, final int calls) throws Exception {
+		final long start = System.nanoTime();
+		for (int i = 0; i < calls; i++)
+			caller.call(params);
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final Object[] params = { feed(), null, null };
+
+		// The new path leaves a Context entered on this thread, so time the old one first.
+		final List<String> results = new ArrayList<String>();
+		final Caller oldCaller = oldPath();
+		time(oldCaller, params, calls / 4);
+		final long oldTime = time(oldCaller, params, calls);
+		results.add("old: " + (oldTime / calls) + "ns/call");
+
+		final Caller newCaller = newPath(JavaScriptPluginManager.createSharedScope());
+		time(newCaller, params, calls / 4);
+		final long newTime = time(newCaller, params, calls);
+		results.add("new: " + (newTime / calls) + "ns/call");
+
+		System.out.println(calls + " calls, " + oldCaller.call(params) + " items each");
+		for (final String result : results)
+			System.out.println("  " + result);
+		System.out.println(String.format("  speedup: %.2fx", (double)oldTime / newTime));
+	}
+}
@@ -0,0 +1,76 @@
+package uk.co.uwcs.choob.plugins;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+
+public class PluginInvokerTest {
+
+	public static class Target {
+		public String last;
+
+		public String commandEcho(String s) {
+			return "echo " + s;
+		}
+
+		public void onThree(String a, Object b, Integer c) {
+			last = a + b + c;
+		}
+
+		public long apiAdd(int a, long b) {
+			return a + b;
+		}
+
+		public static String apiStatic(String s) {
+			return s + "!";
+		}
+
+		public void filterFail(String s) {
+			throw new IllegalStateException(s);
+		}
+	}
+
+	private static PluginInvoker invoker(String name, Class<?>... types) throws Exception {
+		final PluginInvoker inv = PluginInvoker.create(Target.class.getMethod(name, types));
+		assertTrue(inv.getClass().getName(), inv.getClass().getName().contains("$$Invoker"));
+		return inv;
+	}
+
+	@Test
+	public void testOneArgument() throws Exception {
+		final PluginInvoker inv = invoker("commandEcho", String.class);
+		assertEquals("echo a", inv.invoke(new Target(), "a"));
+		assertEquals("echo b", inv.invoke(new Target(), new Object[] { "b" }));
+	}
+
+	@Test
+	public void testThreeArgumentsAndVoid() throws Exception {
+		final PluginInvoker inv = invoker("onThree", String.class, Object.class, Integer.class);
+		final Target t = new Target();
+		assertNull(inv.invoke(t, "a", "b", 1));
+		assertEquals("ab1", t.last);
+	}
+
+	@Test
+	public void testPrimitivesAndStatic() throws Exception {
+		assertEquals(Long.valueOf(5), invoker("apiAdd", Integer.TYPE, Long.TYPE).invoke(new Target(), new Object[] { 2, 3L }));
+		assertEquals("x!", invoker("apiStatic", String.class).invoke(null, "x"));
+	}
+
+	@Test
+	public void testExceptionsAreWrapped() throws Exception {
+		try {
+			invoker("filterFail", String.class).invoke(new Target(), "oops");
+			fail();
+		} catch (InvocationTargetException e) {
+			assertSame(IllegalStateException.class, e.getCause().getClass());
+			assertEquals("oops", e.getCause().getMessage());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class FilterIndexTest {
+
+	private static Pattern ci(String regex) {
+		return Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+	}
+
+	@Test
+	public void testRequiredLiteral() {
+		assertEquals("++", FilterIndex.requiredLiteral(ci("\\w\\+\\+")));
+		assertEquals("http://", FilterIndex.requiredLiteral(ci("(https?|ftp)?http://\\S+")));
+		assertEquals("karma", FilterIndex.requiredLiteral(ci("^Karma[:,]?\\s")));
+		assertEquals("foo", FilterIndex.requiredLiteral(ci("fo+o?bar?foo")));
+		assertNull(FilterIndex.requiredLiteral(ci("abc|def")));
+		assertNull(FilterIndex.requiredLiteral(ci("(?x) a b c")));
+		assertNull(FilterIndex.requiredLiteral(ci("[abc]\\d+")));
+	}
+
+	@Test
+	public void testMatchesLikeEachPattern() {
+		final String[] regexes = {
+			"\\w\\+\\+", "http://\\S+", "^Karma", "(?i)x{2}", "[0-9]+ quid", "ab|cd", "fo+bar"
+		};
+		final FilterIndex.Builder<String> builder = new FilterIndex.Builder<String>();
+		for (String regex : regexes)
+			builder.add(ci(regex), regex);
+		final FilterIndex<String> index = builder.build();
+
+		final String[] lines = {
+			"choob++", "see HTTP://example.com", "karma choob", "xx", "10 quid", "CD",
+			"foooBAR", "nothing here", "", "fobar http:/", "\u212Aarma"
+		};
+		for (String line : lines) {
+			final StringBuilder expected = new StringBuilder();
+			for (String regex : regexes)
+				if (ci(regex).matcher(line).find())
+					expected.append(regex).append(',');
+			final StringBuilder actual = new StringBuilder();
+			for (String regex : index.match(line))
+				actual.append(regex).append(',');
+			assertEquals(line, expected.toString(), actual.toString());
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		final FilterIndex<String> index = FilterIndex.empty();
+		assertEquals(Arrays.<String>asList(), index.match("anything"));
+	}
+}
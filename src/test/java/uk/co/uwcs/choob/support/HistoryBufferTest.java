@@ -0,0 +1,70 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class HistoryBufferTest {
+
+	private static HistoryWriter.Row row(String channel, String text, long time) {
+		return new HistoryWriter.Row("Type", "nick", "login@host", channel, text, time, 0);
+	}
+
+	private static String texts(List<HistoryWriter.Row> rows) {
+		final StringBuilder ret = new StringBuilder();
+		for (HistoryWriter.Row row : rows)
+			ret.append(row.getText()).append(',');
+		return ret.toString();
+	}
+
+	@Test
+	public void testRecentFromMemory() {
+		final long now = System.currentTimeMillis() + 1000;
+		final HistoryBuffer buffer = new HistoryBuffer(3);
+		buffer.add(row("#a", "one", now + 1));
+		buffer.add(row("#A", "two", now + 2));
+		buffer.add(row("#b", "other", now + 3));
+		buffer.add(row("#a", "three", now + 4));
+
+		assertEquals("three,two,", texts(buffer.getLastRows("#a", now + 10, now, 2)));
+		assertEquals("two,one,", texts(buffer.getLastRows("#a", now + 4, now, 5)));
+
+		// Asking for more than there are, over a period before startup.
+		assertNull(buffer.getLastRows("#a", now + 10, now - 100000, 5));
+		assertNull(buffer.getLastRows("#c", now + 10, now - 100000, 5));
+	}
+
+	@Test
+	public void testWrapped() {
+		final long now = System.currentTimeMillis() + 1000;
+		final HistoryBuffer buffer = new HistoryBuffer(2);
+		buffer.add(row("#a", "one", now + 1));
+		buffer.add(row("#a", "two", now + 2));
+		buffer.add(row("#a", "three", now + 3));
+
+		assertEquals("three,two,", texts(buffer.getLastRows("#a", now + 10, now + 1, 5)));
+		assertEquals("three,", texts(buffer.getLastRows("#a", now + 10, now, 1)));
+
+		// "one" has gone, so this can't be answered.
+		assertNull(buffer.getLastRows("#a", now + 10, now, 3));
+		assertEquals(2, buffer.getHits());
+		assertEquals(1, buffer.getMisses());
+	}
+
+	@Test
+	public void testFind() {
+		final long now = System.currentTimeMillis();
+		final HistoryBuffer buffer = new HistoryBuffer(2);
+		final HistoryWriter.Row one = row("#a", "one", now);
+		buffer.add(one);
+		buffer.add(row(null, "private", now));
+
+		assertSame(one, buffer.find("Type", "nick", "login@host", "#A", now, 0));
+		assertNull(buffer.find("Type", "nick", "login@host", "#a", now + 1, 0));
+		assertNull(buffer.find(-1));
+	}
+}
@@ -0,0 +1,119 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.uwcs.choob.BrokerUtil;
+import uk.co.uwcs.choob.ChoobMain;
+
+public class HistoryWriterTest {
+
+	private DbConnectionBroker broker;
+
+	@Before
+	public void setUp() throws SQLException {
+		new File(ChoobMain.DEFAULT_TEMP_LOCATION).mkdir();
+		final String path = ChoobMain.DEFAULT_TEMP_LOCATION + "/historywriter" + System.nanoTime() + ".db";
+		new File(path).deleteOnExit();
+		broker = new DbConnectionBroker("org.sqlite.JDBC", "jdbc:sqlite:" + path, null, null, 0, 2, new PrintWriter(System.err), 60);
+		new BrokerUtil(broker).table("History", "LineID INTEGER PRIMARY KEY, Type, Nick, Hostmask, Channel, Text, Time, Random");
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		broker.destroy();
+	}
+
+	private static HistoryWriter.Row row(int i) {
+		return new HistoryWriter.Row("Type", "nick", "login@host", "#chan", "line " + i, i, 0);
+	}
+
+	private int count() throws SQLException {
+		final Connection conn = broker.getConnection();
+		try {
+			final Statement stat = conn.createStatement();
+			try {
+				final ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM History");
+				rs.next();
+				return rs.getInt(1);
+			} finally {
+				stat.close();
+			}
+		} finally {
+			broker.freeConnection(conn);
+		}
+	}
+
+	private String text(int id) throws SQLException {
+		final Connection conn = broker.getConnection();
+		try {
+			final Statement stat = conn.createStatement();
+			try {
+				final ResultSet rs = stat.executeQuery("SELECT Text FROM History WHERE LineID = " + id);
+				return rs.next() ? rs.getString(1) : null;
+			} finally {
+				stat.close();
+			}
+		} finally {
+			broker.freeConnection(conn);
+		}
+	}
+
+	@Test
+	public void testFlushDoesntWaitForBatch() throws Exception {
+		// Nothing would be written for a minute if it weren't asked.
+		final HistoryWriter writer = new HistoryWriter(broker, 100, 50, 60000);
+		try {
+			final HistoryWriter.Row row = row(1);
+			assertTrue(writer.add(row));
+			final long start = System.currentTimeMillis();
+			writer.flush();
+			final long took = System.currentTimeMillis() - start;
+			assertTrue(Long.toString(took), took < 1000);
+			assertTrue(row.getID() != -1);
+			assertEquals(1, count());
+
+			// Once more, now the writer's waiting for the first line of a batch.
+			assertTrue(writer.add(row(2)));
+			writer.flush();
+			assertEquals(2, count());
+		} finally {
+			writer.close();
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		final HistoryWriter writer = new HistoryWriter(broker, 1000, 100, 60000);
+		final HistoryWriter.Row[] rows = new HistoryWriter.Row[250];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = row(i);
+			assertTrue(writer.add(rows[i]));
+		}
+		// Everything queued is written before it stops.
+		writer.close();
+		assertEquals(rows.length, count());
+		// Drivers that don't give a key for each row of a batch (like
+		// SQLite's) leave them unknown, rather than wrong.
+		int last = 0;
+		for (final HistoryWriter.Row row : rows) {
+			if (row.getID() == -1)
+				continue;
+			assertEquals(row.getText(), text(row.getID()));
+			assertTrue(row.getID() > last);
+			last = row.getID();
+		}
+		assertTrue(!writer.add(row(0)));
+	}
+}
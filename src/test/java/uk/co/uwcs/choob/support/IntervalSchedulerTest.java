@@ -0,0 +1,172 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IntervalSchedulerTest {
+
+	private final IntervalScheduler scheduler = new IntervalScheduler();
+
+	private Interval schedule(String plugin, String param, long delay, int id) {
+		final Interval interval = new Interval(plugin, param, System.currentTimeMillis() + delay, id);
+		scheduler.schedule(interval);
+		return interval;
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		final long now = System.currentTimeMillis();
+		schedule("A", "second", -50, -1);
+		schedule("A", "first", -100, -1);
+		schedule("B", "third", -50, -1);
+		assertEquals("first", scheduler.take().getParameter());
+		assertEquals("second", scheduler.take().getParameter());
+		assertEquals("third", scheduler.take().getParameter());
+
+		// Fires when due, not on the next second.
+		schedule("A", "later", 150, -1);
+		assertEquals("later", scheduler.take().getParameter());
+		final long waited = System.currentTimeMillis() - now;
+		assertTrue(Long.toString(waited), waited >= 150 && waited < 1000);
+		assertEquals(0, scheduler.size());
+	}
+
+	@Test
+	public void testReplaceAndCancel() throws Exception {
+		schedule("A", "old", -10, 1);
+		schedule("A", "new", -5, 1);
+		schedule("B", "other", -1, 1);
+		assertEquals(2, scheduler.size());
+		assertEquals("new", scheduler.take().getParameter());
+
+		assertTrue(scheduler.cancel("B", 1));
+		assertFalse(scheduler.cancel("B", 1));
+		assertEquals(0, scheduler.size());
+
+		schedule("A", "one", -1, -1);
+		schedule("A", "two", -1, 2);
+		schedule("B", "three", 1000, -1);
+		assertEquals(2, scheduler.cancelAll("A"));
+		final Map<String,Integer> pending = scheduler.getPendingCounts();
+		assertEquals(1, pending.size());
+		assertEquals(Integer.valueOf(1), pending.get("B"));
+	}
+
+	@Test
+	public void testRetryGivesWay() throws Exception {
+		final Interval first = schedule("A", "first", -1, 1);
+		assertSame(first, scheduler.take());
+		schedule("A", "second", 1000, 1);
+		assertFalse(scheduler.retry(first));
+		assertEquals(1, scheduler.size());
+	}
+
+	@Test
+	public void testPurge() {
+		for (int i = 0; i < 1000; i++)
+			schedule("A", "x", 60000, 1);
+		assertEquals(1, scheduler.size());
+		assertEquals(Integer.valueOf(1), scheduler.getPendingCounts().get("A"));
+	}
+
+	@Test
+	public void testWakesForEarlier() throws Exception {
+		schedule("A", "late", 60000, -1);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+				schedule("A", "early", 0, -1);
+			}
+		}.start();
+		assertEquals("early", scheduler.take().getParameter());
+	}
+
+	@Test
+	public void testJournal() throws Exception {
+		final File file = new File(System.getProperty("java.io.tmpdir"), "intervaljournaltest" + System.nanoTime());
+		try {
+			final IntervalScheduler first = new IntervalScheduler(new IntervalJournal(file));
+			final long now = System.currentTimeMillis();
+			first.schedule(new Interval("A", "overdue", now - 1000, -1, true));
+			first.schedule(new Interval("A", "also overdue", now - 2000, -1, true));
+			first.schedule(new Interval("A", "replaced", now + 100000, 1, true));
+			first.schedule(new Interval("A", "later", now + 200000, 1, true));
+			first.schedule(new Interval("B", "cancelled", now + 100000, 2, true));
+			first.schedule(new Interval("B", "not durable", now + 100000, -1));
+			assertTrue(first.cancel("B", 2));
+			final Interval taken = first.take();
+			assertEquals("also overdue", taken.getParameter());
+			first.done(taken);
+
+			// The bot restarts...
+			final IntervalScheduler second = new IntervalScheduler(new IntervalJournal(file));
+			assertEquals(2, second.size());
+			assertEquals(Integer.valueOf(2), second.getPendingCounts().get("A"));
+			assertTrue(second.cancel("A", 1));
+
+			final IntervalScheduler third = new IntervalScheduler(new IntervalJournal(file));
+			assertEquals(1, third.size());
+			third.cancelAll("A");
+			assertEquals(0, new IntervalScheduler(new IntervalJournal(file)).size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testUnfinishedSurvivesRestart() throws Exception {
+		final File file = new File(System.getProperty("java.io.tmpdir"), "intervaljournaltest" + System.nanoTime());
+		try {
+			final IntervalScheduler first = new IntervalScheduler(new IntervalJournal(file));
+			final long now = System.currentTimeMillis();
+			first.schedule(new Interval("A", "busy", now - 1000, -1, true));
+			first.schedule(new Interval("A", "running", now - 500, -1, true));
+
+			// One couldn't be run yet, one was being run when the bot stopped.
+			final Interval busy = first.take();
+			assertEquals("busy", busy.getParameter());
+			busy.setTrigger(now + 100000);
+			assertTrue(first.retry(busy));
+			assertEquals("running", first.take().getParameter());
+
+			final IntervalScheduler second = new IntervalScheduler(new IntervalJournal(file));
+			assertEquals(2, second.size());
+			assertEquals(Integer.valueOf(2), second.getPendingCounts().get("A"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCompactAfterReplay() throws Exception {
+		final File file = new File(System.getProperty("java.io.tmpdir"), "intervaljournaltest" + System.nanoTime());
+		try {
+			final IntervalScheduler first = new IntervalScheduler(new IntervalJournal(file));
+			final long now = System.currentTimeMillis();
+			for (int i = 0; i < 3; i++)
+				first.schedule(new Interval("A", "x" + i, now - 1000 + i, -1, true));
+
+			final IntervalScheduler second = new IntervalScheduler(new IntervalJournal(file));
+			final Map<String,Integer> pending = second.getPendingCounts();
+			assertEquals(Integer.valueOf(3), pending.get("A"));
+			// Once all the replayed ones have gone, the journal is rewritten
+			// with nothing but its header.
+			assertEquals(3, second.cancelAll("A"));
+			assertEquals(4, file.length());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class JSRegExpTranslatorTest {
+
+	private static boolean matches(String source, boolean ignoreCase, String text) {
+		return JSRegExpTranslator.translate(source, ignoreCase, false).matcher(text).find();
+	}
+
+	@Test
+	public void testSameAsJava() {
+		assertTrue(matches("js sucks", true, "I think JS Sucks!"));
+		assertTrue(matches("^(\\w+)\\+\\+", false, "choob++"));
+		assertTrue(matches("a{2,3}", false, "caaat"));
+		assertFalse(matches("^ab", false, "cab"));
+	}
+
+	@Test
+	public void testRewritten() {
+		// Literal brackets and ampersands in classes.
+		assertTrue(matches("x[[&]", false, "x["));
+		assertTrue(matches("x[&&a]", false, "x&"));
+		// A { that doesn't start a quantifier is literal.
+		assertTrue(matches("a{b", false, "a{b"));
+		// JavaScript's \s includes no-break space, and \b is ASCII only.
+		assertTrue(matches("a\\sb", false, "a\u00a0b"));
+		assertTrue(matches("\\bb", false, "\u00e9b"));
+		assertFalse(matches("\\Bb", false, "\u00e9b"));
+		assertTrue(matches("[\\b]", false, "\b"));
+		// $ is only the very end, and . takes U+0085.
+		assertFalse(matches("a$", false, "a\n"));
+		assertTrue(matches("a.b", false, "a\u0085b"));
+		assertFalse(matches("a.b", false, "a\nb"));
+		// Unknown escapes are the letter itself.
+		assertTrue(matches("\\q\\x4\\u12", false, "qx4u12"));
+		assertTrue(matches("\\x41\\u0042\\cj", false, "AB\n"));
+		assertTrue(matches("\\v\\0", false, "\u000B\u0000"));
+	}
+
+	@Test
+	public void testUntranslatable() {
+		assertNull(JSRegExpTranslator.translate("(a)\\1", false, false));
+		assertNull(JSRegExpTranslator.translate("a[]", false, false));
+		assertNull(JSRegExpTranslator.translate("a[^]", false, false));
+		assertNull(JSRegExpTranslator.translate("[^\\S]", false, false));
+		assertNull(JSRegExpTranslator.translate("(?<x>a)", false, false));
+		assertNull(JSRegExpTranslator.translate("^a", false, true));
+		assertNull(JSRegExpTranslator.translate("a(", false, false));
+	}
+
+	@Test
+	public void testLiteralStillFound() {
+		// The index can still pick out a literal from translated patterns.
+		final Pattern pattern = JSRegExpTranslator.translate("\\bkarma\\s+\\w+", true, false);
+		assertEquals("karma", FilterIndex.requiredLiteral(pattern));
+	}
+}
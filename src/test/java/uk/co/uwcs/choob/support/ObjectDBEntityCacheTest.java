@@ -0,0 +1,116 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObjectDBEntityCacheTest {
+
+	public static class Thing {
+		public int id;
+		public String name;
+		public int count;
+
+		public Thing() {
+		}
+
+		Thing(int id, String name, int count) {
+			this.id = id;
+			this.name = name;
+			this.count = count;
+		}
+	}
+
+	private ObjectDBEntityCache cache;
+
+	private static ObjectDBObject wrap(Thing t) throws Exception {
+		return new ObjectDBObjectJavaWrapper(t);
+	}
+
+	// The names of the rows found by a lookup.
+	private String names(String clause) {
+		final ObjectDBEntityCache.Lookup lookup = lookup(clause);
+		final int name = Arrays.asList(lookup.getFields()).indexOf("name");
+		final StringBuilder ret = new StringBuilder();
+		for (Object[] row : lookup.getRows())
+			ret.append(row[name]).append(',');
+		return ret.toString();
+	}
+
+	private ObjectDBEntityCache.Lookup lookup(String clause) {
+		return cache.lookup(Thing.class.getName(), clause);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new ObjectDBEntityCache();
+		cache.register(wrap(new Thing()), "Test", 10, 60000, new String[] { "name" });
+	}
+
+	@Test
+	public void testClauses() {
+		assertNotNull(lookup("WHERE name = 'foo'"));
+		assertNotNull(lookup("where `name`=\"f\\.oo\""));
+		assertNull(lookup("WHERE name = 'foo' OR name = 'bar'"));
+		assertNull(lookup("WHERE count = 1"));
+		assertNull(lookup("WHERE name = 'foo' AND count = 1"));
+		assertNull(lookup("WHERE name = 'foo' SORT name"));
+		assertNull(lookup("WHERE name = '50\\%'"));
+		assertNull(lookup("WHERE name = 'caf\u00e9'"));
+		assertNull(cache.lookup("SomeOtherClass", "WHERE name = 'foo'"));
+		assertNotNull(cache.lookup(Thing.class.getName(), "WHERE name = ?", "foo"));
+		assertNull(cache.lookup(Thing.class.getName(), "WHERE name = ?"));
+		assertNull(cache.lookup(Thing.class.getName(), "WHERE name = ?", 1));
+	}
+
+	@Test
+	public void testFillAndWriteThrough() throws Exception {
+		ObjectDBEntityCache.Lookup foo = lookup("WHERE name = 'foo'");
+		assertNull(foo.getRows());
+		foo.fill(Arrays.asList(wrap(new Thing(1, "Foo", 1))));
+
+		// Case and trailing spaces are ignored, as the database would.
+		assertEquals("Foo,", names("WHERE name = 'FOO  '"));
+
+		cache.apply(Collections.singletonList(cache.stored(wrap(new Thing(1, "Foo", 2)))));
+		cache.apply(Collections.singletonList(cache.stored(wrap(new Thing(2, "foo", 1)))));
+		assertEquals("Foo,foo,", names("WHERE name = 'foo'"));
+
+		// Renamed away, then deleted.
+		cache.apply(Collections.singletonList(cache.stored(wrap(new Thing(1, "bar", 2)))));
+		assertEquals("foo,", names("WHERE name = 'foo'"));
+		cache.apply(Collections.singletonList(cache.deleted(wrap(new Thing(2, "foo", 1)))));
+		assertEquals("", names("WHERE name = 'foo'"));
+
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testStaleFillIgnored() throws Exception {
+		ObjectDBEntityCache.Lookup foo = lookup("WHERE name = 'foo'");
+		assertNull(foo.getRows());
+
+		// A write lands between the query and storing its result.
+		cache.apply(Collections.singletonList(cache.stored(wrap(new Thing(1, "foo", 2)))));
+		foo.fill(Arrays.asList(wrap(new Thing(1, "foo", 1))));
+
+		assertNull(lookup("WHERE name = 'foo'").getRows());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		for (int i = 0; i < 11; i++)
+			lookup("WHERE name = 'n" + i + "'").fill(Collections.<ObjectDBObject>emptyList());
+		assertEquals(1, cache.getEvictions());
+		assertNull(lookup("WHERE name = 'n0'").getRows());
+		assertNotNull(lookup("WHERE name = 'n10'").getRows());
+	}
+}
@@ -0,0 +1,36 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ObjectDBQueryCacheTest {
+
+	@Test
+	public void testPlaceholders() throws Exception {
+		final ObjectDBQueryCache.Query query = ObjectDBQueryCache.parse("Thing",
+				"SELECT `id` WHERE name = ? AND (hits > ? || name = 'what?') AND nick = \"a\\\"?\"");
+		assertEquals("SELECT s0.id FROM _objectdb_thing s0 WHERE s0.name = ? AND (s0.hits > ? OR s0.name = 'what?') AND s0.nick = \"a\\\"?\" AND 1",
+				query.getSQL());
+		assertEquals(2, query.getParamCount());
+		assertEquals(0, query.paramAt(0));
+		assertEquals(1, query.paramAt(1));
+		assertEquals(ObjectDBClauseParser.TYPE_SELECT, query.getType());
+	}
+
+	@Test
+	public void testCompileCaches() throws Exception {
+		final ObjectDBQueryCache cache = new ObjectDBQueryCache(2);
+		final ObjectDBQueryCache.Query a = cache.compile("Thing", "SELECT `id` WHERE name = ?");
+		assertSame(a, cache.compile("Thing", "SELECT `id` WHERE name = ?"));
+		cache.compile("Other", "SELECT `id` WHERE name = ?");
+		cache.compile("Thing", "SELECT `id` WHERE nick = ?");
+
+		// The first one is the least recently used of three, so has gone.
+		cache.compile("Other", "SELECT `id` WHERE name = ?");
+		cache.compile("Thing", "SELECT `id` WHERE name = ?");
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+}
@@ -0,0 +1,58 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ObjectDBSchemaCacheTest {
+
+	public static class Stored {
+		public int id;
+		public String name;
+		public long time;
+	}
+
+	public static class StoredMore {
+		public int id;
+		public String name;
+		public long time;
+		public int count;
+	}
+
+	@Test
+	public void testVerifiedOnlyAfterSet() {
+		final ObjectDBSchemaCache cache = new ObjectDBSchemaCache();
+		final String fp = ObjectDBSchemaCache.fingerprint(new ObjectDBObjectJavaWrapper(new Stored()));
+
+		assertFalse(cache.isVerified("plugins.Test.Stored", fp));
+		cache.setVerified("plugins.Test.Stored", fp);
+		assertTrue(cache.isVerified("plugins.Test.Stored", fp));
+		assertTrue(cache.isVerified("plugins.test.stored", fp));
+
+		assertEquals(1, cache.getChecksRun());
+		assertEquals(2, cache.getChecksAvoided());
+	}
+
+	@Test
+	public void testChangedFieldsMiss() {
+		final ObjectDBSchemaCache cache = new ObjectDBSchemaCache();
+		final String before = ObjectDBSchemaCache.fingerprint(new ObjectDBObjectJavaWrapper(new Stored()));
+		final String after = ObjectDBSchemaCache.fingerprint(new ObjectDBObjectJavaWrapper(new StoredMore()));
+
+		cache.setVerified("plugins.Test.Stored", before);
+		assertFalse(cache.isVerified("plugins.Test.Stored", after));
+	}
+
+	@Test
+	public void testInvalidatePlugin() {
+		final ObjectDBSchemaCache cache = new ObjectDBSchemaCache();
+		cache.setVerified("plugins.Test.Stored", "a");
+		cache.setVerified("plugins.Testing.Stored", "a");
+
+		cache.invalidatePlugin("test");
+		assertFalse(cache.isVerified("plugins.Test.Stored", "a"));
+		assertTrue(cache.isVerified("plugins.Testing.Stored", "a"));
+	}
+}
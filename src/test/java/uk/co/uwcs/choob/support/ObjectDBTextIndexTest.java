@@ -0,0 +1,105 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObjectDBTextIndexTest {
+
+	public static class Line {
+		public int id;
+		public String message;
+
+		public Line() {
+		}
+
+		Line(int id, String message) {
+			this.id = id;
+			this.message = message;
+		}
+	}
+
+	private File dir;
+	private ObjectDBTextIndex index;
+
+	private static ObjectDBObject wrap(Line l) throws Exception {
+		return new ObjectDBObjectJavaWrapper(l);
+	}
+
+	private static Set<Integer> ids(Integer... ids) {
+		return new TreeSet<Integer>(Arrays.asList(ids));
+	}
+
+	private Set<Integer> search(String text, boolean regex) {
+		return index.candidates(Line.class.getName(), "message", text, regex);
+	}
+
+	private void store(int id, String message) throws Exception {
+		index.apply(Collections.singletonList(index.stored(wrap(new Line(id, message)))));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "textindextest" + System.nanoTime());
+		index = new ObjectDBTextIndex(dir);
+		index.register(wrap(new Line()), "Test", new String[] { "message" });
+
+		final ObjectDBTextIndex.Build build = index.startBuild(Line.class.getName());
+		build.add(wrap(new Line(1, "The quick brown fox")));
+		build.add(wrap(new Line(2, "jumps over the lazy dog")));
+		build.add(wrap(new Line(3, "caf\u00e9 society")));
+		build.finish();
+	}
+
+	@Test
+	public void testLiterals() {
+		assertEquals(Arrays.asList("ab", "d"), ObjectDBTextIndex.requiredLiterals("ab+c?d"));
+		assertEquals(Arrays.asList("foo", "bar", "baz"), ObjectDBTextIndex.requiredLiterals("foo(x|y)*bar[[:alpha:]]baz"));
+		assertEquals(Arrays.asList("a.b"), ObjectDBTextIndex.requiredLiterals("a\\.b\\w"));
+		assertNull(ObjectDBTextIndex.requiredLiterals("foo|bar"));
+		assertNull(ObjectDBTextIndex.requiredLiterals("foo[bar"));
+	}
+
+	@Test
+	public void testCandidates() throws Exception {
+		assertEquals(ids(1, 3), search("QUICK", false));
+		assertEquals(ids(2, 3), search("^jumps.*lazy", true));
+		assertEquals(ids(3), search("nothing", false));
+
+		// Too short, or nothing required.
+		assertNull(search("ox", false));
+		assertNull(search("fox|dog", true));
+
+		store(1, "a slow red fox");
+		store(4, "the quick one");
+		assertEquals(ids(3, 4), search("quick", false));
+		index.apply(Collections.singletonList(index.deleted(Line.class.getName(), 4)));
+		assertEquals(ids(3), search("quick", false));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		index.save();
+
+		ObjectDBTextIndex loaded = new ObjectDBTextIndex(dir);
+		loaded.register(wrap(new Line()), "Test", new String[] { "message" });
+		assertNull(loaded.startBuild(Line.class.getName()));
+		assertEquals(ids(2, 3), loaded.candidates(Line.class.getName(), "message", "lazy", false));
+
+		// A write makes the file out of date, so it isn't trusted again.
+		loaded.stored(wrap(new Line(5, "lazy")));
+		loaded = new ObjectDBTextIndex(dir);
+		loaded.register(wrap(new Line()), "Test", new String[] { "message" });
+		assertNull(loaded.candidates(Line.class.getName(), "message", "lazy", false));
+		assertEquals(0, dir.listFiles().length);
+		dir.delete();
+	}
+}
@@ -0,0 +1,158 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class WebCacheTest {
+
+	private HttpServer server;
+	private final AtomicInteger fetches = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+	private volatile String body = "one";
+	private volatile CountDownLatch release;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				fetches.incrementAndGet();
+				if (release != null) {
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				final String etag = "\"" + body + "\"";
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+
+				final byte[] bytes = body.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("ETag", etag);
+				exchange.sendResponseHeaders(200, bytes.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private URL url(String path) throws IOException {
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	@Test
+	public void testRevalidate() throws Exception {
+		final WebCache cache = new WebCache(10, 1000, null);
+		assertEquals("one\n", cache.get(url("/a"), 60000));
+		assertEquals("one\n", cache.get(url("/a"), 60000));
+		assertEquals(1, fetches.get());
+
+		// Expired a long time ago, so waits for the (unchanged) page.
+		assertEquals("one\n", cache.get(url("/a"), -1));
+		assertEquals(2, fetches.get());
+		assertEquals(1, notModified.get());
+
+		body = "two";
+		assertEquals("two\n", cache.get(url("/a"), -1));
+		assertEquals(3, cache.getMisses());
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testSingleFetch() throws Exception {
+		final WebCache cache = new WebCache(10, 1000, null);
+		release = new CountDownLatch(1);
+		final Thread[] threads = new Thread[5];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						cache.get(url("/a"), 60000);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(200);
+		release.countDown();
+		for (final Thread thread : threads)
+			thread.join();
+		assertEquals(1, fetches.get());
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		final WebCache cache = new WebCache(10, 1000, null);
+		assertEquals("one\n", cache.get(url("/a"), 60000));
+		Thread.sleep(20);
+
+		body = "two";
+		release = new CountDownLatch(1);
+		// Past its timeout, but not twice it: the old page comes straight back.
+		assertEquals("one\n", cache.get(url("/a"), 15));
+		assertEquals(1, cache.getStaleHits());
+
+		release.countDown();
+		for (int i = 0; i < 100 && !"two\n".equals(cache.get(url("/a"), 60000)); i++)
+			Thread.sleep(20);
+		assertEquals("two\n", cache.get(url("/a"), 60000));
+	}
+
+	@Test
+	public void testEvictionAndSave() throws Exception {
+		final File file = new File(System.getProperty("java.io.tmpdir"), "webcachetest" + System.nanoTime());
+		final WebCache cache = new WebCache(2, 1000, file);
+		cache.get(url("/a"), 60000);
+		cache.get(url("/b"), 60000);
+		cache.get(url("/a"), 60000);
+		cache.get(url("/c"), 60000);
+		assertEquals(2, cache.size());
+		assertEquals(16, cache.getBytes());
+		cache.save();
+
+		final WebCache loaded = new WebCache(2, 1000, file);
+		assertEquals(2, loaded.size());
+		fetches.set(0);
+		loaded.get(url("/a"), 60000);
+		loaded.get(url("/c"), 60000);
+		assertEquals(0, fetches.get());
+		loaded.get(url("/b"), 60000);
+		assertEquals(1, fetches.get());
+		file.delete();
+	}
+}
@@ -0,0 +1,119 @@
+package uk.co.uwcs.choob.support;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how many requests a second WebServer answers, with several
+ * clients each making requests one after another over a kept connection,
+ * and a handler that answers the way plugins' web generics do (its own
+ * status line and headers, then a small page) from a pool of threads.
+ *
+ * Not a unit test; run it by hand:
+ *   java -cp ... uk.co.uwcs.choob.support.WebServerBenchmark [clients] [requests each]
+ *
+ * The bot itself can be measured the same way with any HTTP load generator,
+ * such as: ab -k -c 16 -n 10000 http://localhost:8023/rpc/Http.Pants
+ */
+public final class WebServerBenchmark {
+	private static final byte[] REQUEST = "GET /rpc/Bench.Page HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+	private static int readResponse(final InputStream in) throws IOException {
+		int length = -1;
+		final StringBuilder line = new StringBuilder();
+		while (true) {
+			final int c = in.read();
+			if (c < 0)
+				throw new IOException("Connection closed");
+			if (c == '\r')
+				continue;
+			if (c != '\n') {
+				line.append((char)c);
+				continue;
+			}
+			if (line.length() == 0)
+				break;
+			final String l = line.toString().toLowerCase();
+			if (l.startsWith("content-length:"))
+				length = Integer.parseInt(l.substring(15).trim());
+			line.setLength(0);
+		}
+		if (length < 0)
+			throw new IOException("Expected a Content-Length");
+		for (int i = 0; i < length; i++)
+			in.read();
+		return length;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+		final ExecutorService workers = Executors.newFixedThreadPool(20);
+		final WebServer server = new WebServer(new InetSocketAddress("127.0.0.1", 0), new WebServer.Handler() {
+			@Override
+			public void handle(final WebServer.Exchange exchange) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						final PrintWriter out = new PrintWriter(exchange.getResponseBody());
+						out.println("HTTP/1.0 200 OK");
+						out.println("Content-Type: text/html");
+						out.println();
+						out.println("<html><body><p>Badgers!</p></body></html>");
+						out.close();
+					}
+				});
+			}
+		}, "web-bench");
+
+		final ExecutorService pool = Executors.newFixedThreadPool(clients);
+		try {
+			for (int round = 0; round < 3; round++) {
+				final long start = System.nanoTime();
+				final List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+				for (int c = 0; c < clients; c++) {
+					done.add(pool.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws Exception {
+							final Socket socket = new Socket("127.0.0.1", server.getPort());
+							try {
+								socket.setTcpNoDelay(true);
+								final OutputStream out = socket.getOutputStream();
+								final InputStream in = new BufferedInputStream(socket.getInputStream());
+								for (int i = 0; i < requests; i++) {
+									out.write(REQUEST);
+									out.flush();
+									readResponse(in);
+								}
+								return requests;
+							} finally {
+								socket.close();
+							}
+						}
+					}));
+				}
+				int total = 0;
+				for (final Future<Integer> f : done)
+					total += f.get();
+				final double secs = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%d clients, %d requests: %.2fs, %.0f requests/s%n", clients, total, secs, total / secs);
+			}
+		} finally {
+			pool.shutdownNow();
+			server.close();
+			workers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package uk.co.uwcs.choob.support;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WebServerTest {
+
+	private final ExecutorService workers = Executors.newFixedThreadPool(16);
+	private WebServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new WebServer(new InetSocketAddress("127.0.0.1", 0), new WebServer.Handler() {
+			@Override
+			public void handle(final WebServer.Exchange exchange) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						answer(exchange);
+					}
+				});
+			}
+		}, "web-test");
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		workers.shutdownNow();
+	}
+
+	// Answers the way plugins do, according to the path.
+	private static void answer(final WebServer.Exchange exchange) {
+		final PrintWriter out = new PrintWriter(exchange.getResponseBody());
+		final String target = exchange.getTarget();
+		if (target.equals("/plugin")) {
+			out.println("HTTP/1.0 404 Not Here");
+			out.println("Content-Type: text/html");
+			out.println("Connection: close");
+			out.println();
+			out.println("<p>gone</p>");
+		} else if (target.equals("/big")) {
+			for (int i = 0; i < 10000; i++)
+				out.println("line " + i);
+		} else if (target.equals("/slow")) {
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				// Answer anyway.
+			}
+			out.println("slept");
+		} else if (target.equals("/fail")) {
+			out.println("HTTP/1.0 200 OK");
+			out.println();
+			// Enough that the head has gone out.
+			for (int i = 0; i < 10000; i++)
+				out.println("some");
+			out.flush();
+			exchange.sendError("500 Internal Server Error", "Error: oops");
+			return;
+		} else {
+			out.println("Badgers!");
+		}
+		out.close();
+	}
+
+	private static final class Response {
+		String status;
+		final Map<String,String> headers = new HashMap<String,String>();
+		String body;
+	}
+
+	private static String line(final InputStream in) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return sb.length() == 0 ? null : sb.toString();
+			if (c != '\r')
+				sb.append((char)c);
+		}
+		return sb.toString();
+	}
+
+	private static Response read(final InputStream in, final boolean head) throws IOException {
+		final Response res = new Response();
+		res.status = line(in);
+		if (res.status == null)
+			return null;
+		String l;
+		while ((l = line(in)).length() != 0) {
+			final int colon = l.indexOf(':');
+			res.headers.put(l.substring(0, colon).toLowerCase(Locale.ENGLISH), l.substring(colon + 1).trim());
+		}
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (head) {
+			// Nothing to read.
+		} else if ("chunked".equals(res.headers.get("transfer-encoding"))) {
+			int size;
+			while ((size = Integer.parseInt(line(in), 16)) != 0) {
+				for (int i = 0; i < size; i++)
+					body.write(in.read());
+				line(in);
+			}
+			line(in);
+		} else if (res.headers.containsKey("content-length")) {
+			final int size = Integer.parseInt(res.headers.get("content-length"));
+			for (int i = 0; i < size; i++)
+				body.write(in.read());
+		} else {
+			int c;
+			while ((c = in.read()) >= 0)
+				body.write(c);
+		}
+		res.body = body.toString("UTF-8");
+		return res;
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static void send(final Socket socket, final String request) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		out.write(request.getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		final Socket socket = connect();
+		try {
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			// Two at once, to check the second waits for the first.
+			send(socket, "GET /plugin HTTP/1.1\r\nHost: x\r\n\r\nGET /pants HTTP/1.1\r\nHost: x\r\n\r\n");
+
+			final Response first = read(in, false);
+			assertEquals("HTTP/1.1 404 Not Here", first.status);
+			assertEquals("text/html", first.headers.get("content-type"));
+			assertEquals(Integer.toString(first.body.length()), first.headers.get("content-length"));
+			assertNull(first.headers.get("connection"));
+			assertEquals("<p>gone</p>" + System.getProperty("line.separator"), first.body);
+
+			final Response second = read(in, false);
+			assertEquals("HTTP/1.1 200 OK", second.status);
+			assertEquals("text/plain", second.headers.get("content-type"));
+			assertEquals("Badgers!" + System.getProperty("line.separator"), second.body);
+
+			send(socket, "HEAD /pants HTTP/1.1\r\n\r\n");
+			final Response third = read(in, true);
+			assertEquals(Integer.toString(second.body.length()), second.headers.get("content-length"));
+			assertEquals(second.headers.get("content-length"), third.headers.get("content-length"));
+			send(socket, "GET /pants HTTP/1.1\r\n\r\n");
+			assertEquals(second.body, read(in, false).body);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testStreamed() throws Exception {
+		final Socket socket = connect();
+		try {
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			send(socket, "GET /big HTTP/1.1\r\n\r\n");
+			final Response chunked = read(in, false);
+			assertEquals("chunked", chunked.headers.get("transfer-encoding"));
+			assertTrue(chunked.body.endsWith("line 9999" + System.getProperty("line.separator")));
+
+			// Still usable afterwards.
+			send(socket, "GET /pants HTTP/1.1\r\n\r\n");
+			assertEquals("HTTP/1.1 200 OK", read(in, false).status);
+		} finally {
+			socket.close();
+		}
+
+		// HTTP/1.0 can't do chunks, so the end is marked by closing.
+		final Socket old = connect();
+		try {
+			final InputStream in = new BufferedInputStream(old.getInputStream());
+			send(old, "GET /big HTTP/1.0\r\n\r\n");
+			final Response plain = read(in, false);
+			assertEquals("HTTP/1.0 200 OK", plain.status);
+			assertEquals("close", plain.headers.get("connection"));
+			assertNull(plain.headers.get("transfer-encoding"));
+			assertTrue(plain.body.endsWith("line 9999" + System.getProperty("line.separator")));
+		} finally {
+			old.close();
+		}
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final long start = System.currentTimeMillis();
+		final Future<?>[] requests = new Future<?>[10];
+		final ExecutorService clients = Executors.newFixedThreadPool(requests.length);
+		try {
+			for (int i = 0; i < requests.length; i++) {
+				requests[i] = clients.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						final Socket socket = connect();
+						try {
+							send(socket, "GET /slow HTTP/1.1\r\n\r\n");
+							return read(new BufferedInputStream(socket.getInputStream()), false).body;
+						} finally {
+							socket.close();
+						}
+					}
+				});
+			}
+			for (final Future<?> request : requests)
+				assertEquals("slept" + System.getProperty("line.separator"), request.get());
+		} finally {
+			clients.shutdownNow();
+		}
+		// One at a time would be 3s.
+		final long took = System.currentTimeMillis() - start;
+		assertTrue(Long.toString(took), took < 2000);
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		Socket socket = connect();
+		try {
+			send(socket, "POST /pants HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+			final Response res = read(new BufferedInputStream(socket.getInputStream()), false);
+			assertEquals("HTTP/1.0 501 Not Implemented", res.status);
+			assertEquals("close", res.headers.get("connection"));
+		} finally {
+			socket.close();
+		}
+
+		socket = connect();
+		try {
+			send(socket, "nonsense\r\n\r\n");
+			assertEquals("HTTP/1.0 400 Bad Request", read(new BufferedInputStream(socket.getInputStream()), false).status);
+		} finally {
+			socket.close();
+		}
+
+		// Once the head's gone, all that can be done is to say so and stop.
+		socket = connect();
+		try {
+			send(socket, "GET /fail HTTP/1.1\r\n\r\n");
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			final Response res = read(in, false);
+			assertEquals("HTTP/1.1 200 OK", res.status);
+			assertTrue(res.body, res.body.endsWith("Error: oops\n"));
+		} finally {
+			socket.close();
+		}
+	}
+}